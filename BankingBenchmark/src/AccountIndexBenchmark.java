@@ -0,0 +1,86 @@
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures login and transfer lookups on a large database: logins and
+ * transfers to existing users, and transfers to unknown recipients.
+ */
+public class AccountIndexBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of users, number of operations per
+     *            measurement.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int userCount = args.length >= 1 ? Integer.parseInt(args[0]) : 1000000;
+        int operations = args.length >= 2 ? Integer.parseInt(args[1]) : 2000000;
+        Utility.setup();
+
+        // Load database
+        File databaseFile = BenchmarkDatabase.write(userCount, 1000000);
+        long loadStart = System.nanoTime();
+        Database database = new Database(databaseFile.getPath());
+        System.out.println(String.format("Loaded %d users in %.0f ms", userCount, (System.nanoTime() - loadStart) / 1e6));
+
+        // Pre-generate names, so only the lookups are measured
+        Random random = new Random(42);
+        String[] names = new String[1 << 16];
+        String[] passwords = new String[names.length];
+        String[] unknownNames = new String[names.length];
+        int[] ids = new int[names.length];
+        for(int i = 0; i < names.length; ++i)
+        {
+            ids[i] = random.nextInt(userCount);
+            names[i] = (i % 2 == 0 ? "USER" : "user") + ids[i];
+            passwords[i] = "pw" + ids[i];
+            unknownNames[i] = "nobody" + ids[i];
+        }
+
+        for(int round = 0; round < 3; ++round)
+        {
+            System.out.println("Round " + (round + 1));
+
+            // Login
+            long start = System.nanoTime();
+            for(int i = 0; i < operations; ++i)
+            {
+                int n = i & (names.length - 1);
+                if(database.verifyLogin(names[n], passwords[n]) != ids[n])
+                    throw new IllegalStateException("Login failed");
+            }
+            report("verifyLogin", operations, System.nanoTime() - start);
+
+            // Transfer to existing user
+            start = System.nanoTime();
+            for(int i = 0; i < operations; ++i)
+            {
+                int n = i & (names.length - 1);
+                if(!database.sendMoney(ids[(n + 1) & (names.length - 1)], names[n], 1))
+                    throw new IllegalStateException("Transfer failed");
+            }
+            report("sendMoney (known)", operations, System.nanoTime() - start);
+
+            // Transfer to unknown user
+            start = System.nanoTime();
+            for(int i = 0; i < operations; ++i)
+            {
+                int n = i & (names.length - 1);
+                if(database.sendMoney(ids[n], unknownNames[n], 1))
+                    throw new IllegalStateException("Transfer to unknown user succeeded");
+            }
+            report("sendMoney (unknown)", operations, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Prints the throughput of a measurement.
+     */
+    private static void report(String name, int operations, long elapsedNanos)
+    {
+        System.out.println(String.format("  %-22s %10.0f ops/s %8.0f ns/op", name, operations / (elapsedNanos / 1e9), elapsedNanos / (double)operations));
+    }
+}
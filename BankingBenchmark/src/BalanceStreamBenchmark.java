@@ -0,0 +1,140 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests the balance of an account with a long history from an in-process
+ * server, once as single packet (protocol version 2) and once as stream
+ * (version 3). Reports the time until the first and the last byte of the
+ * history, the largest packet and the peak heap of client and server
+ * together. Run one version per JVM, so the peaks do not influence each
+ * other.
+ */
+public class BalanceStreamBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: protocol version (2 or 3), number of history
+     *            entries.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int protocolVersion = args.length >= 1 ? Integer.parseInt(args[0]) : 3;
+        int entries = args.length >= 2 ? Integer.parseInt(args[1]) : 1000000;
+
+        // Silence server output
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Utility.setup();
+
+        // Build history of user 0
+        File databaseFile = BenchmarkDatabase.write(2, Integer.MAX_VALUE / 2);
+        Database database = new Database(databaseFile.getPath());
+        for(int e = 0; e < entries; ++e)
+            database.sendMoney(0, "user1", 1);
+
+        // Start server
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread(() ->
+        {
+            try
+            {
+                ServerMain.acceptClients(serverSocket, new ServerContext(database), null);
+            }
+            catch(IOException | InterruptedException e)
+            {
+                // Server socket was closed
+            }
+        });
+        acceptThread.start();
+
+        try(Socket socket = new Socket("localhost", serverSocket.getLocalPort()))
+        {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            SecureSession secureSession = login(inputStream, outputStream, protocolVersion);
+
+            // Measure
+            for(int i = 0; i < 3; ++i)
+                System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if(pool.getType() == MemoryType.HEAP)
+                {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            long start = System.nanoTime();
+            long[] firstChunkNanos = { 0 };
+            int[] maxPacket = { 0 };
+            long[] characters = { 0 };
+            secureSession.sendPacket(outputStream, "balance");
+            if(protocolVersion >= 3)
+            {
+                secureSession.receiveStream(inputStream, chunk ->
+                {
+                    if(firstChunkNanos[0] == 0)
+                        firstChunkNanos[0] = System.nanoTime() - start;
+                    maxPacket[0] = Math.max(maxPacket[0], chunk.length());
+                    characters[0] += chunk.length();
+                });
+            }
+            else
+            {
+                String balance = secureSession.receivePacket(inputStream);
+                firstChunkNanos[0] = System.nanoTime() - start;
+                maxPacket[0] = balance.length();
+                characters[0] = balance.length();
+            }
+            long totalNanos = System.nanoTime() - start;
+            long peakHeap = 0;
+            for(MemoryPoolMXBean pool : heapPools)
+                peakHeap += pool.getPeakUsage().getUsed();
+
+            report.println(String.format("%-8s %10s %12s %12s %14s %15s", "version", "entries", "first [ms]", "last [ms]", "max part [KB]", "peak heap [MB]"));
+            report.println(String.format("%-8d %10d %12.1f %12.1f %14.1f %15.0f", protocolVersion, entries, firstChunkNanos[0] / 1e6, totalNanos / 1e6,
+                    maxPacket[0] / 1e3, peakHeap / 1e6));
+            if(characters[0] < entries * 10L)
+                throw new IllegalStateException("History incomplete");
+        }
+        serverSocket.close();
+        System.exit(0);
+    }
+
+    /**
+     * Runs the key exchange with the given protocol version and logs in as
+     * user 0.
+     */
+    private static SecureSession login(DataInputStream inputStream, DataOutputStream outputStream, int protocolVersion) throws IOException
+    {
+        // Key exchange with client secret 1
+        Utility.sendUnencPacket(outputStream, "HELO");
+        String[] dhInfo = Utility.receiveUnencPacket(inputStream).split(",");
+        int dhBase = Integer.parseInt(dhInfo[0]);
+        int dhModulo = Integer.parseInt(dhInfo[1]);
+        long serverPart = Long.parseLong(dhInfo[2]);
+        Utility.sendUnencPacket(outputStream, (dhBase % dhModulo) + "," + protocolVersion);
+        SecureSession secureSession = new SecureSession();
+        secureSession.setup(serverPart % dhModulo);
+        secureSession.setProtocolVersion(protocolVersion);
+
+        // Login
+        secureSession.sendPacket(outputStream, "user0,pw0");
+        String loginResponse = secureSession.receivePacket(inputStream);
+        if(!loginResponse.equals("Login OK."))
+            throw new IOException("Login failed: " + loginResponse);
+        return secureSession;
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Writes synthetic database files for benchmarks and tests. User i is named
+ * "user<i>", has the password "pw<i>", the device code "dev<i>" and the given
+ * amount of money.
+ */
+public class BenchmarkDatabase
+{
+    /**
+     * Writes a database file with the given number of users into a new
+     * temporary file, which is deleted when the JVM exits.
+     * 
+     * @param userCount
+     *            The number of users.
+     * @param money
+     *            The initial amount of money of every user.
+     * @return The database file.
+     * @throws IOException
+     */
+    public static File write(int userCount, int money) throws IOException
+    {
+        File databaseFile = File.createTempFile("benchmark", ".json");
+        databaseFile.deleteOnExit();
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(databaseFile), 1 << 16))
+        {
+            writer.write("{\"port\":0,\"dh_base\":10,\"dh_modulo\":17,\"users\":[");
+            for(int u = 0; u < userCount; ++u)
+            {
+                if(u > 0)
+                    writer.write(',');
+                writer.write("{\"name\":\"user" + u + "\",\"email\":\"user" + u + "@its-bank\",\"password\":\"pw" + u + "\",\"money\":" + money
+                        + ",\"devices\":[\"dev" + u + "\"],\"ctfgroup\":0,\"token\":\"\"}");
+            }
+            writer.write("]}");
+        }
+        return databaseFile;
+    }
+
+    /**
+     * Writes a database image with the same users as write() into a new
+     * temporary file, which is deleted when the JVM exits.
+     * 
+     * @param userCount
+     *            The number of users.
+     * @param money
+     *            The initial amount of money of every user.
+     * @return The image file.
+     * @throws IOException
+     */
+    public static File writeImage(int userCount, int money) throws IOException
+    {
+        File imageFile = File.createTempFile("benchmark", ".img");
+        imageFile.deleteOnExit();
+        try(DatabaseImage.Writer writer = new DatabaseImage.Writer(imageFile.toPath(), 0, 10, 17, 0, userCount))
+        {
+            for(int u = 0; u < userCount; ++u)
+            {
+                LinkedList<String> devices = new LinkedList<>();
+                devices.add("dev" + u);
+                writer.addUser(new UserData("user" + u, "user" + u + "@its-bank", "pw" + u, money, 0, "", devices, new MoneyHistory(), 0));
+            }
+        }
+        return imageFile;
+    }
+
+    /**
+     * Returns the names of the users of a database with the given number of
+     * users, indexed by user ID.
+     * 
+     * @param userCount
+     *            The number of users.
+     * @return The user names.
+     */
+    public static String[] names(int userCount)
+    {
+        String[] names = new String[userCount];
+        for(int u = 0; u < userCount; ++u)
+            names[u] = "user" + u;
+        return names;
+    }
+
+    /**
+     * Deletes the given database file together with the journal segments and
+     * snapshots derived from its name.
+     * 
+     * @param databaseFile
+     *            The database file.
+     */
+    public static void delete(File databaseFile)
+    {
+        File[] files = databaseFile.getAbsoluteFile().getParentFile().listFiles((directory, name) -> name.startsWith(databaseFile.getName()));
+        if(files != null)
+            for(File file : files)
+                file.delete();
+    }
+}
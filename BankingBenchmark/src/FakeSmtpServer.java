@@ -0,0 +1,218 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal in-process SMTP server for benchmarks. It accepts any login and
+ * any message, counts connections and messages, and can simulate the setup
+ * cost of a real server (delayed greeting and authentication) and servers
+ * that drop connections after a number of messages.
+ */
+public class FakeSmtpServer implements Closeable
+{
+    /**
+     * The listening socket.
+     */
+    private final ServerSocket _serverSocket;
+
+    /**
+     * The delay before the greeting and the authentication reply.
+     */
+    private final long _setupDelayMillis;
+
+    /**
+     * The number of messages after which a connection is dropped, or 0.
+     */
+    private final int _maxMessagesPerConnection;
+
+    /**
+     * The number of accepted connections.
+     */
+    private final AtomicInteger _connectionCount = new AtomicInteger();
+
+    /**
+     * The number of received messages.
+     */
+    private final AtomicInteger _messageCount = new AtomicInteger();
+
+    /**
+     * Starts a new server on a free local port.
+     * 
+     * @param setupDelayMillis
+     *            The delay before the greeting and the authentication reply.
+     * @param maxMessagesPerConnection
+     *            The number of messages after which a connection is dropped,
+     *            or 0.
+     * @throws IOException
+     */
+    public FakeSmtpServer(long setupDelayMillis, int maxMessagesPerConnection) throws IOException
+    {
+        _setupDelayMillis = setupDelayMillis;
+        _maxMessagesPerConnection = maxMessagesPerConnection;
+        _serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread(this::acceptClients, "FakeSmtpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * 
+     * @return The port.
+     */
+    public int getPort()
+    {
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of accepted connections.
+     * 
+     * @return The number of accepted connections.
+     */
+    public int getConnectionCount()
+    {
+        return _connectionCount.get();
+    }
+
+    /**
+     * Returns the number of received messages.
+     * 
+     * @return The number of received messages.
+     */
+    public int getMessageCount()
+    {
+        return _messageCount.get();
+    }
+
+    /**
+     * Accepts clients until the server is closed.
+     */
+    private void acceptClients()
+    {
+        try
+        {
+            while(true)
+            {
+                Socket socket = _serverSocket.accept();
+                _connectionCount.incrementAndGet();
+                Thread clientThread = new Thread(() -> handleClient(socket), "FakeSmtpClient");
+                clientThread.setDaemon(true);
+                clientThread.start();
+            }
+        }
+        catch(IOException e)
+        {
+            // Server socket was closed
+        }
+    }
+
+    /**
+     * Runs the SMTP dialog with one client.
+     */
+    private void handleClient(Socket socket)
+    {
+        try(Socket s = socket)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+            delay();
+            reply(out, "220 fake-smtp ESMTP");
+            int messages = 0;
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                switch(command)
+                {
+                case "EHLO":
+                    reply(out, "250-fake-smtp\r\n250 AUTH LOGIN PLAIN");
+                    break;
+
+                case "HELO":
+                case "MAIL":
+                case "RCPT":
+                case "RSET":
+                case "NOOP":
+                    reply(out, "250 OK");
+                    break;
+
+                case "AUTH":
+                    if(line.toUpperCase().startsWith("AUTH LOGIN"))
+                    {
+                        // User name and password follow on their own lines
+                        reply(out, "334 VXNlcm5hbWU6");
+                        in.readLine();
+                        reply(out, "334 UGFzc3dvcmQ6");
+                        in.readLine();
+                    }
+                    delay();
+                    reply(out, "235 Authenticated");
+                    break;
+
+                case "DATA":
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    while((line = in.readLine()) != null && !line.equals("."))
+                        ;
+                    _messageCount.incrementAndGet();
+                    reply(out, "250 Queued");
+                    if(_maxMessagesPerConnection > 0 && ++messages >= _maxMessagesPerConnection)
+                        return;
+                    break;
+
+                case "QUIT":
+                    reply(out, "221 Bye");
+                    return;
+
+                default:
+                    reply(out, "502 Not implemented");
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            // Client disconnected
+        }
+    }
+
+    /**
+     * Sends a reply with CRLF line endings.
+     */
+    private static void reply(PrintWriter out, String reply)
+    {
+        out.print(reply + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Waits for the configured setup delay.
+     */
+    private void delay()
+    {
+        if(_setupDelayMillis <= 0)
+            return;
+        try
+        {
+            Thread.sleep(_setupDelayMillis);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting clients.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        _serverSocket.close();
+    }
+}
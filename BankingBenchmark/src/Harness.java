@@ -0,0 +1,297 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * A small throughput benchmark harness in the spirit of JMH. JMH itself cannot
+ * be used: its annotation processor generates subclasses in the benchmark's
+ * package, which does not work for classes in the default package, and the
+ * project has no build tool to run it.
+ * 
+ * Every benchmark runs warmup iterations followed by measured iterations of a
+ * fixed duration, on one or more threads that start each iteration together.
+ * Operation results are folded into a sink, so the JIT cannot remove the
+ * measured work. Results are printed as a table and, if "harness.results" is
+ * set, written as JSON, which HarnessCompare diffs between two runs.
+ * 
+ * Configuration (system properties): "harness.warmup" (warmup iterations,
+ * default 3), "harness.iterations" (measured iterations, default 5),
+ * "harness.iterationMillis" (default 1000), "harness.filter" (regular
+ * expression, only matching benchmark names run) and "harness.results" (JSON
+ * output file).
+ */
+public class Harness
+{
+    /**
+     * A measured operation. Each thread gets its own instance.
+     */
+    public interface Operation
+    {
+        /**
+         * Runs the operation once.
+         * 
+         * @return Any result of the operation, which is consumed by the sink.
+         * @throws Exception
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Creates the operation of one benchmark thread, including its per-thread
+     * state.
+     */
+    public interface OperationFactory
+    {
+        /**
+         * Creates the operation of the given thread.
+         * 
+         * @param thread
+         *            The thread index, starting at 0.
+         * @return The operation.
+         * @throws Exception
+         */
+        Operation create(int thread) throws Exception;
+    }
+
+    /**
+     * The number of warmup iterations.
+     */
+    private final int _warmupIterations = Integer.getInteger("harness.warmup", 3);
+
+    /**
+     * The number of measured iterations.
+     */
+    private final int _iterations = Math.max(1, Integer.getInteger("harness.iterations", 5));
+
+    /**
+     * The duration of one iteration.
+     */
+    private final long _iterationNanos = Long.getLong("harness.iterationMillis", 1000) * 1000000;
+
+    /**
+     * Only benchmarks with matching names are run.
+     */
+    private final Pattern _filter = Pattern.compile(System.getProperty("harness.filter", ".*"));
+
+    /**
+     * The JSON results file, or null.
+     */
+    private final String _resultsFile = System.getProperty("harness.results");
+
+    /**
+     * The results of all benchmarks run so far.
+     */
+    private final JsonArrayBuilder _results = Json.createArrayBuilder();
+
+    /**
+     * Consumes operation results.
+     */
+    private static volatile int sink;
+
+    /**
+     * Creates a harness and prints the table header.
+     * 
+     * @param suite
+     *            The name of the benchmark suite.
+     */
+    public Harness(String suite)
+    {
+        System.out.println(suite + ": " + _warmupIterations + " warmup + " + _iterations + " iterations of " + _iterationNanos / 1000000 + " ms, "
+                + Runtime.getRuntime().availableProcessors() + " cores, Java " + System.getProperty("java.version"));
+        System.out.println(String.format("%-34s %-16s %7s %14s %10s %12s", "benchmark", "params", "threads", "ops/s", "+- [%]", "us/op"));
+    }
+
+    /**
+     * Returns whether the benchmark with the given name is selected by the
+     * filter. Used to skip expensive setups.
+     * 
+     * @param name
+     *            The benchmark name.
+     * @return Whether the benchmark will run.
+     */
+    public boolean isSelected(String name)
+    {
+        return _filter.matcher(name).find();
+    }
+
+    /**
+     * Measures the throughput of the given operation.
+     * 
+     * @param name
+     *            The benchmark name.
+     * @param params
+     *            The benchmark parameters, like "size=256".
+     * @param threads
+     *            The number of threads running the operation.
+     * @param factory
+     *            Creates the operation of each thread.
+     * @throws Exception
+     */
+    public void run(String name, String params, int threads, OperationFactory factory) throws Exception
+    {
+        if(!isSelected(name))
+            return;
+
+        // Create operations
+        Operation[] operations = new Operation[threads];
+        for(int t = 0; t < threads; ++t)
+            operations[t] = factory.create(t);
+
+        // Run all iterations on all threads
+        int totalIterations = _warmupIterations + _iterations;
+        long[][] counts = new long[threads][totalIterations];
+        long[] iterationNanos = new long[totalIterations];
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; ++t)
+        {
+            int thread = t;
+            Thread worker = new Thread(() ->
+            {
+                try
+                {
+                    int localSink = 0;
+                    Operation operation = operations[thread];
+                    int batch = 1;
+                    for(int iteration = 0; iteration < totalIterations; ++iteration)
+                    {
+                        // Start together, the first thread defines the
+                        // iteration time. Fast operations are run in
+                        // batches between clock reads.
+                        barrier.await();
+                        long start = System.nanoTime();
+                        long deadline = start + _iterationNanos;
+                        long count = 0;
+                        do
+                        {
+                            for(int i = 0; i < batch; ++i)
+                            {
+                                Object result = operation.run();
+                                localSink += result == null ? 0 : result.hashCode();
+                            }
+                            count += batch;
+                        }
+                        while(System.nanoTime() < deadline);
+                        counts[thread][iteration] = count;
+                        batch = (int)Math.max(1, Math.min(16, count / 1000));
+                        if(thread == 0)
+                            iterationNanos[iteration] = System.nanoTime() - start;
+                    }
+                    sink += localSink;
+                }
+                catch(Exception e)
+                {
+                    failure[0] = e;
+                    barrier.reset();
+                }
+            }, "Harness-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for(Thread worker : workers)
+            worker.join();
+        if(failure[0] != null)
+            throw failure[0];
+
+        // Throughput per measured iteration
+        double[] scores = new double[_iterations];
+        for(int iteration = 0; iteration < _iterations; ++iteration)
+        {
+            long count = 0;
+            for(int t = 0; t < threads; ++t)
+                count += counts[t][_warmupIterations + iteration];
+            scores[iteration] = count / (iterationNanos[_warmupIterations + iteration] / 1e9);
+        }
+        double mean = 0;
+        for(double score : scores)
+            mean += score;
+        mean /= _iterations;
+        double variance = 0;
+        for(double score : scores)
+            variance += (score - mean) * (score - mean);
+        double stddev = _iterations > 1 ? Math.sqrt(variance / (_iterations - 1)) : 0;
+
+        System.out.println(String.format("%-34s %-16s %7d %14.0f %10.1f %12.3f", name, params, threads, mean, 100 * stddev / mean, threads * 1e6 / mean));
+
+        // Record result
+        JsonArrayBuilder iterationScores = Json.createArrayBuilder();
+        for(double score : scores)
+            iterationScores.add(score);
+        _results.add(Json.createObjectBuilder()
+                .add("benchmark", name)
+                .add("params", params)
+                .add("threads", threads)
+                .add("mode", "throughput")
+                .add("unit", "ops/s")
+                .add("score", mean)
+                .add("stddev", stddev)
+                .add("iterations", iterationScores));
+    }
+
+    /**
+     * Writes the JSON results file, if configured.
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if(_resultsFile == null)
+            return;
+        JsonObjectBuilder document = Json.createObjectBuilder()
+                .add("java", System.getProperty("java.version"))
+                .add("cores", Runtime.getRuntime().availableProcessors())
+                .add("iterationMillis", _iterationNanos / 1000000)
+                .add("results", _results);
+        Map<String, Object> config = new HashMap<>();
+        config.put(JsonGenerator.PRETTY_PRINTING, true);
+        try(Writer writer = new FileWriter(_resultsFile))
+        {
+            Json.createWriterFactory(config).createWriter(writer).writeObject(document.build());
+        }
+        System.out.println("Results written to '" + _resultsFile + "'.");
+    }
+
+    /**
+     * Returns the key identifying a result across runs.
+     * 
+     * @param result
+     *            A result object of the results file.
+     * @return The benchmark name, parameters and thread count.
+     */
+    public static String getKey(JsonObject result)
+    {
+        return result.getString("benchmark") + " " + result.getString("params") + " t=" + result.getInt("threads");
+    }
+
+    /**
+     * Parses a comma separated list of integers, as used for benchmark
+     * parameter properties.
+     * 
+     * @param property
+     *            The system property name.
+     * @param defaultValue
+     *            The list used if the property is not set.
+     * @return The integers.
+     */
+    public static List<Integer> getIntList(String property, String defaultValue)
+    {
+        List<Integer> values = new ArrayList<>();
+        for(String value : System.getProperty(property, defaultValue).split(","))
+            values.add(Integer.parseInt(value.trim()));
+        return Collections.unmodifiableList(values);
+    }
+}
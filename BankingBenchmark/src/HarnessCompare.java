@@ -0,0 +1,84 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * Compares two Harness results files, like the results of two releases. For
+ * every benchmark the change of the throughput is printed, and marked if it
+ * exceeds the combined standard deviations of both runs and the given
+ * threshold. The exit code is 1 if any benchmark got significantly slower.
+ */
+public class HarnessCompare
+{
+    /**
+     * Entry point.
+     * 
+     * @param args
+     *            The baseline results file, the new results file, and
+     *            optionally the threshold in percent (default 5).
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: HarnessCompare BASELINE.json NEW.json [THRESHOLD_PERCENT]");
+            return;
+        }
+        double threshold = args.length >= 3 ? Double.parseDouble(args[2]) : 5;
+        Map<String, JsonObject> baseline = load(args[0]);
+        Map<String, JsonObject> current = load(args[1]);
+
+        System.out.println(String.format("%-60s %14s %14s %9s", "benchmark", "baseline", "new", "change"));
+        int regressions = 0;
+        for(Map.Entry<String, JsonObject> entry : current.entrySet())
+        {
+            JsonObject oldResult = baseline.get(entry.getKey());
+            JsonObject newResult = entry.getValue();
+            double newScore = newResult.getJsonNumber("score").doubleValue();
+            if(oldResult == null)
+            {
+                System.out.println(String.format("%-60s %14s %14.0f %9s", entry.getKey(), "-", newScore, "new"));
+                continue;
+            }
+
+            // Significant if the difference exceeds both the noise and the
+            // threshold
+            double oldScore = oldResult.getJsonNumber("score").doubleValue();
+            double change = 100 * (newScore - oldScore) / oldScore;
+            double noise = oldResult.getJsonNumber("stddev").doubleValue() + newResult.getJsonNumber("stddev").doubleValue();
+            String mark = "";
+            if(Math.abs(newScore - oldScore) > noise && Math.abs(change) > threshold)
+            {
+                mark = change < 0 ? " slower" : " faster";
+                if(change < 0)
+                    ++regressions;
+            }
+            System.out.println(String.format("%-60s %14.0f %14.0f %+8.1f%%%s", entry.getKey(), oldScore, newScore, change, mark));
+        }
+        for(String key : baseline.keySet())
+            if(!current.containsKey(key))
+                System.out.println(String.format("%-60s %14.0f %14s %9s", key, baseline.get(key).getJsonNumber("score").doubleValue(), "-", "removed"));
+        System.out.println(regressions + " significant regressions.");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads the results of the given file, by benchmark key.
+     */
+    private static Map<String, JsonObject> load(String file) throws IOException
+    {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try(Reader reader = new FileReader(file))
+        {
+            for(JsonValue result : Json.createReader(reader).readObject().getJsonArray("results"))
+                results.put(Harness.getKey((JsonObject)result), (JsonObject)result);
+        }
+        return results;
+    }
+}
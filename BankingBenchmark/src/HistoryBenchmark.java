@@ -0,0 +1,100 @@
+import java.lang.ref.Reference;
+import java.util.Formatter;
+import java.util.LinkedList;
+
+/**
+ * Compares the columnar money history against the linked list of tuples it
+ * replaced: heap used per entry, and the time to render the balance history
+ * of one long account history as the server does (old: string concatenation
+ * over the list, new: one builder over the columns).
+ */
+public class HistoryBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of entries of the rendered history, number
+     *            of render runs.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int renderEntries = args.length >= 1 ? Integer.parseInt(args[0]) : 10000;
+        int renderRuns = args.length >= 2 ? Integer.parseInt(args[1]) : 20;
+        String[] names = BenchmarkDatabase.names(1000);
+
+        // Memory: 1000 accounts with 1000 entries each
+        int accounts = 1000;
+        int entries = 1000;
+        long before = usedHeap();
+        Object[] lists = new Object[accounts];
+        for(int a = 0; a < accounts; ++a)
+        {
+            LinkedList<Tuple<Integer, Integer>> list = new LinkedList<>();
+            for(int e = 0; e < entries; ++e)
+                list.add(new Tuple<Integer, Integer>(e % names.length, e * 7 - 3500));
+            lists[a] = list;
+        }
+        double listBytes = (usedHeap() - before) / (double)(accounts * entries);
+        Reference.reachabilityFence(lists);
+        lists = null;
+
+        before = usedHeap();
+        Object[] histories = new Object[accounts];
+        for(int a = 0; a < accounts; ++a)
+        {
+            MoneyHistory history = new MoneyHistory(0, 0);
+            for(int e = 0; e < entries; ++e)
+                history.add(e % names.length, e * 7 - 3500);
+            histories[a] = history;
+        }
+        double columnBytes = (usedHeap() - before) / (double)(accounts * entries);
+        Reference.reachabilityFence(histories);
+        histories = null;
+
+        // Rendering
+        LinkedList<Tuple<Integer, Integer>> list = new LinkedList<>();
+        MoneyHistory history = new MoneyHistory(0, 0);
+        for(int e = 0; e < renderEntries; ++e)
+        {
+            list.add(new Tuple<Integer, Integer>(e % names.length, e * 7 - 3500));
+            history.add(e % names.length, e * 7 - 3500);
+        }
+        double listMillis = 0;
+        double columnMillis = 0;
+        for(int r = 0; r < renderRuns; ++r)
+        {
+            long start = System.nanoTime();
+            String historyString = "";
+            for(Tuple<Integer, Integer> entry : list)
+                historyString += String.format("%5d", entry.y) + "   " + names[entry.x] + "\n";
+            if(r > 0)
+                listMillis += (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            StringBuilder builder = new StringBuilder(history.size() * 24);
+            Formatter formatter = new Formatter(builder);
+            for(int h = 0; h < history.size(); ++h)
+                formatter.format("%5d   %s\n", history.getAmount(h), names[history.getCounterparty(h)]);
+            if(r > 0)
+                columnMillis += (System.nanoTime() - start) / 1e6;
+            if(!builder.toString().equals(historyString))
+                throw new IllegalStateException("Renderings differ");
+        }
+
+        System.out.println(String.format("%-12s %16s %22s", "storage", "bytes/entry", "render " + renderEntries + " [ms]"));
+        System.out.println(String.format("%-12s %16.1f %22.2f", "linked list", listBytes, listMillis / (renderRuns - 1)));
+        System.out.println(String.format("%-12s %16.1f %22.2f", "columns", columnBytes, columnMillis / (renderRuns - 1)));
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     */
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the transfer throughput with the journal in each commit policy, for
+ * an increasing number of concurrent clients. Every client waits for its
+ * transfer to be acknowledged before sending the next one, like a session
+ * does. The journal is written to a temporary file next to the database.
+ */
+public class JournalBenchmark
+{
+    /**
+     * Benchmark entry point.
+     *
+     * @param args
+     *            Optional: maximum number of client threads, measurement time
+     *            per run in milliseconds, maximum group commit delay in
+     *            microseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = args.length >= 1 ? Integer.parseInt(args[0]) : 64;
+        long durationMillis = args.length >= 2 ? Long.parseLong(args[1]) : 2000;
+        long maxDelayMicros = args.length >= 3 ? Long.parseLong(args[2]) : 100;
+        int userCount = 10000;
+        Utility.setup();
+
+        // Users start with enough money for the whole run
+        File databaseFile = BenchmarkDatabase.write(userCount, Integer.MAX_VALUE / 2);
+        String[] names = BenchmarkDatabase.names(userCount);
+
+        System.out.println("Group commit delay " + maxDelayMicros + " us, " + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println(String.format("%8s %8s %14s %12s %14s", "policy", "threads", "transfers/s", "forces/s", "records/force"));
+        for(Journal.CommitPolicy policy : Journal.CommitPolicy.values())
+        {
+            for(int threads = 1; threads <= maxThreads; threads *= 4)
+            {
+                // Fresh database and journal per run
+                Database database = new Database(databaseFile.getPath());
+                File journalFile = File.createTempFile("benchmark", ".journal");
+                journalFile.deleteOnExit();
+                database.openJournal(journalFile.getPath(), policy, maxDelayMicros);
+                Journal journal = database.getJournal();
+
+                long forcesBefore = journal.getForceCount();
+                double transfers = run(database, names, threads, durationMillis);
+                double forces = (journal.getForceCount() - forcesBefore) / (durationMillis / 1000.0);
+                System.out.println(String.format("%8s %8d %14.0f %12.0f %14.1f", policy.name().toLowerCase(), threads, transfers, forces, transfers / Math.max(forces, 1)));
+
+                database.closeJournal();
+                journalFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Runs random transfers on the given number of threads and returns the
+     * throughput.
+     */
+    private static double run(Database database, String[] names, int threads, long durationMillis) throws InterruptedException
+    {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder transfers = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; ++t)
+        {
+            Thread worker = new Thread(() ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while(running.get())
+                {
+                    // Pick two distinct users
+                    int source = random.nextInt(names.length);
+                    int target = random.nextInt(names.length - 1);
+                    if(target >= source)
+                        ++target;
+
+                    // Wait for the acknowledgement
+                    if(!database.sendMoney(source, names[target], 1))
+                        throw new IllegalStateException("Transfer failed");
+                    ++count;
+                }
+                transfers.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for(Thread worker : workers)
+            worker.join();
+        return transfers.sum() / (durationMillis / 1000.0);
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Compares loading a JSON database with the streaming loader of Database
+ * against reading the whole document tree first, as the loader did before.
+ * Reports the load time and the peak heap usage during loading. Run one mode
+ * per JVM, so the peaks do not influence each other.
+ */
+public class JsonLoadBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: loader ("stream" or "tree"), number of users.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        boolean stream = args.length < 1 || args[0].equalsIgnoreCase("stream");
+        int userCount = args.length >= 2 ? Integer.parseInt(args[1]) : 1000000;
+        Utility.setup();
+        File databaseFile = BenchmarkDatabase.write(userCount, 1000000);
+
+        // Warm up on a small database
+        File warmupFile = BenchmarkDatabase.write(50000, 1000000);
+        for(int i = 0; i < 3; ++i)
+            load(stream, warmupFile);
+        warmupFile.delete();
+
+        // Measure
+        for(int i = 0; i < 3; ++i)
+            System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP)
+            {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        long start = System.nanoTime();
+        Object database = load(stream, databaseFile);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        long peakHeap = 0;
+        for(MemoryPoolMXBean pool : heapPools)
+            peakHeap += pool.getPeakUsage().getUsed();
+        Reference.reachabilityFence(database);
+
+        System.out.println(String.format("%-7s %10s %10s %12s %15s", "loader", "users", "file [MB]", "load [ms]", "peak heap [MB]"));
+        System.out.println(String.format("%-7s %10d %10.0f %12.0f %15.0f", stream ? "stream" : "tree", userCount, databaseFile.length() / 1e6, loadMillis,
+                peakHeap / 1e6));
+    }
+
+    /**
+     * Loads the given database file with the given loader and returns the
+     * loaded users.
+     */
+    private static Object load(boolean stream, File databaseFile) throws Exception
+    {
+        if(stream)
+            return new Database(databaseFile.getPath());
+
+        // Read whole tree, then build user objects
+        try(InputStream jsonFileStream = new FileInputStream(databaseFile); JsonReader jsonReader = Json.createReader(jsonFileStream))
+        {
+            JsonObject rootObj = jsonReader.readObject();
+            List<UserData> users = new ArrayList<>();
+            for(JsonObject userDataObj : rootObj.getJsonArray("users").getValuesAs(JsonObject.class))
+                users.add(new UserData(userDataObj));
+            return users;
+        }
+    }
+}
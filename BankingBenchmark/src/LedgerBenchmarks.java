@@ -0,0 +1,111 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Harness benchmarks of the ledger hot paths: Database.verifyLogin() and
+ * sendMoney() with "harness.users" accounts (default 1000,100000),
+ * getUserMoneyHistory() of one account with "harness.historySizes" entries
+ * (default 10,1000,100000), and payroll-style transfers from one account to
+ * "harness.batchSizes" others (default 10,100,1000), one by one with
+ * sendMoney() and at once with sendMoneyBatchAsync(). Every benchmark runs
+ * single-threaded and on "harness.threads" threads (default: number of cores,
+ * at least 2).
+ */
+public class LedgerBenchmarks
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Not used; see Harness for the configuration.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        List<Integer> userCounts = Harness.getIntList("harness.users", "1000,100000");
+        List<Integer> historySizes = Harness.getIntList("harness.historySizes", "10,1000,100000");
+        List<Integer> batchSizes = Harness.getIntList("harness.batchSizes", "10,100,1000");
+        int[] threadCounts = { 1, Integer.getInteger("harness.threads", Math.max(2, Runtime.getRuntime().availableProcessors())) };
+        Utility.setup();
+        Harness harness = new Harness("LedgerBenchmarks");
+
+        // Logins and random transfers between distinct users, users start
+        // with enough money for the whole run
+        for(int userCount : userCounts)
+        {
+            if(!harness.isSelected("ledger.verifyLogin") && !harness.isSelected("ledger.sendMoney"))
+                break;
+            Database database = new Database(BenchmarkDatabase.writeImage(userCount, Integer.MAX_VALUE / 2).getPath());
+            String[] names = BenchmarkDatabase.names(userCount);
+            String[] passwords = new String[userCount];
+            for(int u = 0; u < userCount; ++u)
+                passwords[u] = "pw" + u;
+            for(int threads : threadCounts)
+            {
+                harness.run("ledger.verifyLogin", "users=" + userCount, threads, thread -> () ->
+                {
+                    int user = ThreadLocalRandom.current().nextInt(userCount);
+                    return database.verifyLogin(names[user], passwords[user]);
+                });
+                harness.run("ledger.sendMoney", "users=" + userCount, threads, thread -> () ->
+                {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int source = random.nextInt(userCount);
+                    int target = random.nextInt(userCount - 1);
+                    if(target >= source)
+                        ++target;
+                    return database.sendMoney(source, names[target], 1);
+                });
+            }
+        }
+
+        // Rendering the history of user 0, which received money from the
+        // other users in turn
+        for(int historySize : historySizes)
+        {
+            if(!harness.isSelected("ledger.getUserMoneyHistory"))
+                break;
+            Database database = new Database(BenchmarkDatabase.writeImage(1000, Integer.MAX_VALUE / 2).getPath());
+            for(int h = 0; h < historySize; ++h)
+                database.sendMoney(1 + h % 999, "user0", 1);
+            for(int threads : threadCounts)
+                harness.run("ledger.getUserMoneyHistory", "history=" + historySize, threads, thread -> () -> database.getUserMoneyHistory(0));
+        }
+
+        // A random source paying random other users among 10000, each
+        // operation covers a whole batch in both variants
+        for(int batchSize : batchSizes)
+        {
+            if(!harness.isSelected("ledger.sendMoneyOneByOne") && !harness.isSelected("ledger.sendMoneyBatch"))
+                break;
+            int userCount = 10000;
+            Database database = new Database(BenchmarkDatabase.writeImage(userCount, Integer.MAX_VALUE / 2).getPath());
+            String[] names = BenchmarkDatabase.names(userCount);
+            for(int threads : threadCounts)
+            {
+                harness.run("ledger.sendMoneyOneByOne", "batch=" + batchSize, threads, thread -> () ->
+                {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int source = random.nextInt(userCount);
+                    boolean success = true;
+                    for(int t = 0; t < batchSize; ++t)
+                        success &= database.sendMoney(source, names[(source + 1 + random.nextInt(userCount - 1)) % userCount], 1);
+                    return success;
+                });
+                harness.run("ledger.sendMoneyBatch", "batch=" + batchSize, threads, thread -> () ->
+                {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int source = random.nextInt(userCount);
+                    String[] targets = new String[batchSize];
+                    int[] amounts = new int[batchSize];
+                    for(int t = 0; t < batchSize; ++t)
+                    {
+                        targets[t] = names[(source + 1 + random.nextInt(userCount - 1)) % userCount];
+                        amounts[t] = 1;
+                    }
+                    return database.sendMoneyBatchAsync(source, targets, amounts).join();
+                });
+            }
+        }
+        harness.finish();
+    }
+}
@@ -0,0 +1,460 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * Drives a local server with many concurrent client sessions, using the
+ * client tasks with programmatic inputs. Every session has its own connection
+ * and crypto state, logs in as one of the users of the server's database file,
+ * authenticates its device and then runs a random mix of balance, transaction
+ * and registration operations. At the end, throughput, rejections, errors and
+ * latency percentiles are reported per operation.
+ * 
+ * With a target rate, operations are started on a fixed schedule and their
+ * latency is measured from the scheduled start, so a stalled server shows up
+ * as latency instead of a lower request rate.
+ * 
+ * Configuration (system properties): "load.sessions" (default 8),
+ * "load.rate" (total operations per second, 0 runs every session as fast as
+ * possible, default 0), "load.duration" and "load.warmup" (seconds, default
+ * 30 and 5), "load.mix" (relative operation weights, default
+ * "balance=70,transaction=25,registration=5") and "load.amount" (money per
+ * transaction, default 1).
+ */
+public class LoadGenerator
+{
+    /**
+     * The operations, in the order of the mix weights.
+     */
+    private static final String[] OPERATIONS = { "balance", "transaction", "registration" };
+
+    /**
+     * Discards the output of the tasks.
+     */
+    private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    });
+
+    /**
+     * A user of the database file.
+     */
+    private static class User
+    {
+        /**
+         * The user name.
+         */
+        final String name;
+
+        /**
+         * The password.
+         */
+        final String password;
+
+        /**
+         * A registered device code, or null.
+         */
+        final String deviceCode;
+
+        User(String name, String password, String deviceCode)
+        {
+            this.name = name;
+            this.password = password;
+            this.deviceCode = deviceCode;
+        }
+    }
+
+    /**
+     * The measured results of one operation in one session.
+     */
+    private static class Results
+    {
+        /**
+         * The latencies of completed operations in nanoseconds.
+         */
+        long[] latencies = new long[1024];
+
+        /**
+         * The number of completed operations.
+         */
+        int count;
+
+        /**
+         * The number of operations the server declined, like transactions
+         * without enough money.
+         */
+        int rejected;
+
+        /**
+         * The number of operations that failed with a connection or protocol
+         * error.
+         */
+        int errors;
+
+        /**
+         * Records a completed operation.
+         */
+        void add(long latencyNanos)
+        {
+            if(count == latencies.length)
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            latencies[count++] = latencyNanos;
+        }
+    }
+
+    /**
+     * Host name of the server.
+     */
+    private final String _host;
+
+    /**
+     * Port of the server.
+     */
+    private final int _port;
+
+    /**
+     * The users sessions log in as.
+     */
+    private final List<User> _users;
+
+    /**
+     * Cumulative operation weights, in the order of OPERATIONS.
+     */
+    private final int[] _mix = new int[OPERATIONS.length];
+
+    /**
+     * The money sent per transaction.
+     */
+    private final int _amount = Integer.getInteger("load.amount", 1);
+
+    /**
+     * Start time of the measurement.
+     */
+    private long _measureStartNanos;
+
+    /**
+     * End time of the run.
+     */
+    private long _endNanos;
+
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Host name and port of the server, and its database JSON file
+     *            to take the user credentials from.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3)
+        {
+            System.out.println("Usage: LoadGenerator HOST PORT DATABASE_FILE");
+            return;
+        }
+
+        // Load tests must not hit remote servers
+        if(!InetAddress.getByName(args[0]).isLoopbackAddress())
+        {
+            System.out.println("The load generator only runs against a server on the loopback interface.");
+            return;
+        }
+        Utility.setup();
+        new LoadGenerator(args[0], Integer.parseInt(args[1]), readUsers(args[2])).run();
+    }
+
+    /**
+     * Creates a load generator.
+     * 
+     * @param host
+     *            Host name of the server.
+     * @param port
+     *            Port of the server.
+     * @param users
+     *            The users sessions log in as, at least two.
+     */
+    private LoadGenerator(String host, int port, List<User> users)
+    {
+        _host = host;
+        _port = port;
+        _users = users;
+        if(users.size() < 2)
+            throw new IllegalArgumentException("At least two users are needed for transactions.");
+
+        // Parse mix like "balance=70,transaction=25,registration=5"
+        for(String weight : System.getProperty("load.mix", "balance=70,transaction=25,registration=5").split(","))
+        {
+            String[] weightParts = weight.split("=");
+            int operation = Arrays.asList(OPERATIONS).indexOf(weightParts[0].trim());
+            if(weightParts.length != 2 || operation < 0)
+                throw new IllegalArgumentException("Invalid operation weight '" + weight + "'.");
+            _mix[operation] = Integer.parseInt(weightParts[1].trim());
+        }
+        for(int o = 1; o < _mix.length; ++o)
+            _mix[o] += _mix[o - 1];
+        if(_mix[_mix.length - 1] <= 0)
+            throw new IllegalArgumentException("The operation mix is empty.");
+    }
+
+    /**
+     * Runs the sessions and prints the report.
+     * 
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException
+    {
+        int sessions = Integer.getInteger("load.sessions", 8);
+        double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+        long warmupNanos = Long.getLong("load.warmup", 5) * 1000000000L;
+        long durationNanos = Long.getLong("load.duration", 30) * 1000000000L;
+        long intervalNanos = rate > 0 ? (long)(sessions * 1e9 / rate) : 0;
+        System.out.println(sessions + " sessions against " + _host + ":" + _port + ", " + (rate > 0 ? rate + " ops/s" : "unthrottled") + ", "
+                + durationNanos / 1000000000L + " s after " + warmupNanos / 1000000000L + " s warmup");
+
+        // Start sessions, spread their schedules over one interval
+        long startNanos = System.nanoTime();
+        _measureStartNanos = startNanos + warmupNanos;
+        _endNanos = _measureStartNanos + durationNanos;
+        Results[][] results = new Results[sessions][];
+        List<Thread> threads = new ArrayList<>();
+        for(int s = 0; s < sessions; ++s)
+        {
+            int session = s;
+            results[s] = new Results[OPERATIONS.length];
+            for(int o = 0; o < OPERATIONS.length; ++o)
+                results[s][o] = new Results();
+            Thread thread = new Thread(() -> runSession(session, startNanos + session * intervalNanos / sessions, intervalNanos, results[session]),
+                    "LoadSession-" + s);
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+
+        // Merge and report
+        System.out.println(String.format("%-14s %10s %10s %8s %8s %10s %10s %10s %10s %10s", "operation", "completed", "ops/s", "rejected", "errors",
+                "p50 [ms]", "p90 [ms]", "p99 [ms]", "p99.9 [ms]", "max [ms]"));
+        Results total = new Results();
+        for(int o = 0; o < OPERATIONS.length; ++o)
+        {
+            Results merged = new Results();
+            for(Results[] sessionResults : results)
+            {
+                Results operationResults = sessionResults[o];
+                for(int i = 0; i < operationResults.count; ++i)
+                {
+                    merged.add(operationResults.latencies[i]);
+                    total.add(operationResults.latencies[i]);
+                }
+                merged.rejected += operationResults.rejected;
+                merged.errors += operationResults.errors;
+            }
+            total.rejected += merged.rejected;
+            total.errors += merged.errors;
+            if(_mix[o] > (o == 0 ? 0 : _mix[o - 1]))
+                printResults(OPERATIONS[o], merged, durationNanos);
+        }
+        printResults("total", total, durationNanos);
+    }
+
+    /**
+     * Prints a report line.
+     */
+    private static void printResults(String operation, Results results, long durationNanos)
+    {
+        long[] latencies = Arrays.copyOf(results.latencies, results.count);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-14s %10d %10.1f %8d %8d %10.3f %10.3f %10.3f %10.3f %10.3f", operation, results.count, results.count / (durationNanos / 1e9),
+                results.rejected, results.errors, percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 99.9),
+                percentile(latencies, 100)));
+    }
+
+    /**
+     * Returns the given percentile of the sorted latencies in milliseconds.
+     */
+    private static double percentile(long[] sortedLatencies, double percentile)
+    {
+        if(sortedLatencies.length == 0)
+            return 0;
+        int index = (int)Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Runs one session until the end of the measurement, reconnecting after
+     * errors.
+     */
+    private void runSession(int session, long firstStartNanos, long intervalNanos, Results[] results)
+    {
+        User user = _users.get(session % _users.size());
+        long nextStartNanos = firstStartNanos;
+        while(System.nanoTime() < _endNanos)
+        {
+            try(Socket socket = new Socket(_host, _port))
+            {
+                // Header and argument packets are separate writes
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(10000);
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                SecureSession secureSession = new SecureSession();
+
+                // Set up session, register a device if the user has none
+                new DhkeTask(inputStream, outputStream, secureSession).run();
+                LoginTask loginTask = new LoginTask(inputStream, outputStream, secureSession, new ValueInput(user.name, user.password));
+                loginTask.setOutput(NO_OUTPUT);
+                loginTask.run();
+                if(!loginTask.getSuccessful())
+                    throw new IOException("Login of '" + user.name + "' failed.");
+                if(!authenticate(inputStream, outputStream, secureSession, user.deviceCode))
+                    throw new IOException("Device authentication of '" + user.name + "' failed.");
+
+                // Run operations
+                while(true)
+                {
+                    // Wait for scheduled start
+                    long startNanos = System.nanoTime();
+                    if(intervalNanos > 0)
+                    {
+                        while(startNanos < nextStartNanos)
+                        {
+                            LockSupport.parkNanos(nextStartNanos - startNanos);
+                            startNanos = System.nanoTime();
+                        }
+                        startNanos = nextStartNanos;
+                        nextStartNanos += intervalNanos;
+                    }
+                    if(startNanos >= _endNanos)
+                        return;
+
+                    // Run random operation, only count it after the warmup
+                    int operation = nextOperation();
+                    boolean accepted;
+                    try
+                    {
+                        accepted = runOperation(operation, inputStream, outputStream, secureSession, user);
+                    }
+                    catch(IOException e)
+                    {
+                        if(startNanos >= _measureStartNanos)
+                            ++results[operation].errors;
+                        throw e;
+                    }
+                    if(startNanos < _measureStartNanos)
+                        continue;
+                    if(accepted)
+                        results[operation].add(System.nanoTime() - startNanos);
+                    else
+                        ++results[operation].rejected;
+                }
+            }
+            catch(IOException | RuntimeException e)
+            {
+                System.out.println("Session " + session + ": " + e);
+                LockSupport.parkNanos(100000000);
+            }
+        }
+    }
+
+    /**
+     * Picks a random operation according to the mix.
+     */
+    private int nextOperation()
+    {
+        int value = ThreadLocalRandom.current().nextInt(_mix[_mix.length - 1]);
+        int operation = 0;
+        while(value >= _mix[operation])
+            ++operation;
+        return operation;
+    }
+
+    /**
+     * Runs the given operation and returns whether the server accepted it.
+     */
+    private boolean runOperation(int operation, DataInputStream inputStream, DataOutputStream outputStream, SecureSession secureSession, User user)
+            throws IOException
+    {
+        switch(operation)
+        {
+        case 0:
+            BalanceTask balanceTask = new BalanceTask(inputStream, outputStream, secureSession);
+            balanceTask.setOutput(NO_OUTPUT);
+            balanceTask.run();
+            return true;
+
+        case 1:
+            // Send money to another random user
+            User recipient;
+            do
+                recipient = _users.get(ThreadLocalRandom.current().nextInt(_users.size()));
+            while(recipient == user);
+            TransactionTask transactionTask = new TransactionTask(inputStream, outputStream, secureSession, new ValueInput(recipient.name, "" + _amount));
+            transactionTask.setOutput(NO_OUTPUT);
+            transactionTask.run();
+            return transactionTask.getSuccessful();
+
+        default:
+            return authenticate(inputStream, outputStream, secureSession, null);
+        }
+    }
+
+    /**
+     * Authenticates the device with the given code, or registers a new device
+     * if the code is null. Returns whether the server accepted the device.
+     */
+    private static boolean authenticate(DataInputStream inputStream, DataOutputStream outputStream, SecureSession secureSession, String deviceCode)
+            throws IOException
+    {
+        // The server derives the confirmation code from the registration code
+        // and sends it by e-mail, which cannot be read here; derive it the
+        // same way
+        RegistrationTask[] registrationTask = new RegistrationTask[1];
+        registrationTask[0] = new RegistrationTask(inputStream, outputStream, secureSession, prompt -> registrationTask[0].getRegistrationCode().substring(2, 6),
+                deviceCode, null);
+        registrationTask[0].setOutput(NO_OUTPUT);
+        registrationTask[0].run();
+        return registrationTask[0].getSuccessful();
+    }
+
+    /**
+     * Reads the users of the given database JSON file.
+     */
+    private static List<User> readUsers(String databaseFile) throws IOException
+    {
+        List<User> users = new ArrayList<>();
+        try(Reader reader = new FileReader(databaseFile))
+        {
+            for(JsonValue userValue : Json.createReader(reader).readObject().getJsonArray("users"))
+            {
+                JsonObject userObject = (JsonObject)userValue;
+                JsonArray devices = userObject.getJsonArray("devices");
+                String deviceCode = devices == null || devices.isEmpty() ? null : devices.getString(0);
+                users.add(new User(userObject.getString("name"), userObject.getString("password"), deviceCode));
+            }
+        }
+        return users;
+    }
+}
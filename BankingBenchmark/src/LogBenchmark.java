@@ -0,0 +1,111 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures how long logging threads are held up by a slow terminal. Several
+ * threads log messages to a standard output that takes a fixed time per
+ * write; as a reference, the messages are printed under a global lock like
+ * the former Utility.safePrintln(), then they are passed to the asynchronous
+ * Log. Also measures the cost of a call for a disabled level. Pass
+ * -Dbank.logPolicy=block to measure the blocking policy.
+ */
+public class LogBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of threads, messages per thread, terminal
+     *            delay per write in microseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length >= 1 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length >= 2 ? Integer.parseInt(args[1]) : 20000;
+        long writeDelayMicros = args.length >= 3 ? Long.parseLong(args[2]) : 20;
+
+        // Slow terminal
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                LockSupport.parkNanos(writeDelayMicros * 1000);
+            }
+        }, true));
+
+        report.println(threads + " threads x " + messages + " messages, terminal delay " + writeDelayMicros + " us per write, policy "
+                + System.getProperty("bank.logPolicy", "drop"));
+        report.println(String.format("%-18s %14s %14s %10s", "mode", "total [ms]", "per call [ns]", "dropped"));
+
+        // Global lock
+        ReentrantLock printLock = new ReentrantLock();
+        long nanos = run(threads, messages, message ->
+        {
+            printLock.lock();
+            try
+            {
+                System.out.println(message);
+            }
+            finally
+            {
+                printLock.unlock();
+            }
+        });
+        report.println(String.format("%-18s %14.0f %14.0f %10d", "locked println", nanos / 1e6, (double)nanos / messages, 0));
+
+        // Asynchronous log
+        nanos = run(threads, messages, Log::info);
+        report.println(String.format("%-18s %14.0f %14.0f %10d", "Log.info", nanos / 1e6, (double)nanos / messages, Log.getDroppedCount()));
+
+        // Disabled level, including the message concatenation
+        nanos = run(threads, messages * 50, message ->
+        {
+            if(Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Debug " + message);
+        });
+        report.println(String.format("%-18s %14.0f %14.1f %10s", "disabled debug", nanos / 1e6, (double)nanos / (messages * 50), "-"));
+    }
+
+    /**
+     * A logging call under test.
+     */
+    private interface Logger
+    {
+        void log(String message);
+    }
+
+    /**
+     * Logs the given number of messages on each thread, and returns the time
+     * until all threads are done.
+     */
+    private static long run(int threads, int messages, Logger logger) throws InterruptedException
+    {
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; ++t)
+        {
+            String message = "User " + t + " sent command 'balance'.";
+            Thread worker = new Thread(() ->
+            {
+                for(int m = 0; m < messages; ++m)
+                    logger.log(message);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for(Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Sends a burst of confirmation mails to a local fake SMTP server with a
+ * simulated connection setup cost. As a reference, every mail is sent on its
+ * own connection, like the former registration code; then the pooled
+ * MailSender is used with different pool sizes, and against a server that
+ * drops every connection after a few messages.
+ */
+public class MailSenderBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of mails, setup delay of the fake server in
+     *            milliseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int mails = args.length >= 1 ? Integer.parseInt(args[0]) : 200;
+        long setupDelayMillis = args.length >= 2 ? Long.parseLong(args[1]) : 5;
+
+        System.out.println(mails + " mails, server setup delay " + setupDelayMillis + " ms (greeting and AUTH)");
+        System.out.println(String.format("%-26s %10s %10s %12s %12s %10s", "mode", "total [ms]", "mails/s", "connections", "replaced", "received"));
+        runUnpooled(mails, setupDelayMillis);
+        runPooled("pooled, 1 connection", mails, setupDelayMillis, 1, 0);
+        runPooled("pooled, 2 connections", mails, setupDelayMillis, 2, 0);
+        runPooled("pooled, 4 connections", mails, setupDelayMillis, 4, 0);
+        runPooled("pooled, 2, drop every 10", mails, setupDelayMillis, 2, 10);
+    }
+
+    /**
+     * Sends every mail on a new connection.
+     */
+    private static void runUnpooled(int mails, long setupDelayMillis) throws Exception
+    {
+        try(FakeSmtpServer server = new FakeSmtpServer(setupDelayMillis, 0))
+        {
+            long start = System.nanoTime();
+            for(int m = 0; m < mails; ++m)
+            {
+                Properties props = new Properties();
+                props.put("mail.smtp.auth", "true");
+                Session session = Session.getInstance(props, null);
+                Message msg = new MimeMessage(session);
+                msg.setFrom(new InternetAddress("its@its-bank"));
+                msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse("user" + m + "@its-bank", false));
+                msg.setSubject("Confirmation code");
+                msg.setText("Your confirmation code: " + m);
+                msg.setSentDate(new Date());
+                SMTPTransport t = (SMTPTransport)session.getTransport("smtp");
+                t.connect("localhost", server.getPort(), "test@its-bank", "test");
+                t.sendMessage(msg, msg.getAllRecipients());
+                t.close();
+            }
+            report("connection per mail", mails, System.nanoTime() - start, server.getConnectionCount(), 0, server.getMessageCount());
+        }
+    }
+
+    /**
+     * Sends all mails through a MailSender with the given pool size.
+     */
+    private static void runPooled(String mode, int mails, long setupDelayMillis, int connections, int maxMessagesPerConnection) throws Exception
+    {
+        try(FakeSmtpServer server = new FakeSmtpServer(setupDelayMillis, maxMessagesPerConnection);
+                MailSender sender = new MailSender("localhost", server.getPort(), "test@its-bank", "test", connections, 0))
+        {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for(int m = 0; m < mails; ++m)
+                results.add(sender.send("user" + m + "@its-bank", "Confirmation code", "Your confirmation code: " + m));
+            CompletableFuture.allOf(results.toArray(CompletableFuture<?>[]::new)).join();
+            report(mode, mails, System.nanoTime() - start, sender.getConnectCount(), sender.getReplacedCount(), server.getMessageCount());
+        }
+    }
+
+    /**
+     * Prints one result line.
+     */
+    private static void report(String mode, int mails, long nanos, long connections, long replaced, int received)
+    {
+        System.out.println(String.format("%-26s %10.0f %10.0f %12d %12d %10d", mode, nanos / 1e6, mails / (nanos / 1e9), connections, replaced, received));
+    }
+}
@@ -0,0 +1,74 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of recording a latency (including the System.nanoTime()
+ * call) into the striped LatencyHistogram with an increasing number of
+ * threads, and the bytes allocated per recording. As a reference, the same
+ * values are recorded into a histogram guarded by a single monitor.
+ */
+public class MetricsBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: recordings per thread, maximum number of threads.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int recordings = args.length >= 1 ? Integer.parseInt(args[0]) : 10000000;
+        int maxThreads = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+
+        System.out.println(recordings + " recordings per thread, " + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println(String.format("%8s %18s %18s %18s", "threads", "striped [ns/op]", "monitor [ns/op]", "striped [B/op]"));
+        LatencyHistogram striped = new LatencyHistogram();
+        long[] monitorBuckets = new long[LatencyHistogram.BUCKETS];
+        for(int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            // Warm up and measure both variants
+            AtomicLong allocated = new AtomicLong();
+            run(threads, recordings / 10, () -> striped.recordSince(System.nanoTime()), null);
+            double stripedNanos = run(threads, recordings, () -> striped.recordSince(System.nanoTime()), allocated);
+            double monitorNanos = run(threads, recordings, () ->
+            {
+                long nanos = System.nanoTime() - System.nanoTime();
+                synchronized(monitorBuckets)
+                {
+                    ++monitorBuckets[Math.min(LatencyHistogram.BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(0, nanos) | 1))];
+                }
+            }, null);
+            System.out.println(String.format("%8d %18.1f %18.1f %18.3f", threads, stripedNanos, monitorNanos, (double)allocated.get() / (threads * (long)recordings)));
+        }
+        System.out.println("Recorded: " + striped.snapshot().count);
+    }
+
+    /**
+     * Runs the given recording on the given number of threads and returns the
+     * average time per recording and thread.
+     */
+    private static double run(int threads, int recordings, Runnable recording, AtomicLong allocated) throws InterruptedException
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; ++t)
+        {
+            Thread worker = new Thread(() ->
+            {
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                for(int r = 0; r < recordings; ++r)
+                    recording.run();
+                if(allocated != null)
+                    allocated.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for(Thread worker : workers)
+            worker.join();
+        return (double)(System.nanoTime() - start) / recordings;
+    }
+}
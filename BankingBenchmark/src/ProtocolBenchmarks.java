@@ -0,0 +1,143 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Harness benchmarks of the protocol hot paths: packet round trips through
+ * SecureSession, the Encryptor, key derivation, the Diffie-Hellman handshake
+ * and random string generation. Every benchmark runs single-threaded and on
+ * "harness.threads" threads (default: number of cores, at least 2), each with
+ * its own sessions and ciphers like the server's connections.
+ * 
+ * Payload sizes are set with "harness.sizes" (default 16,256,4096,65536).
+ */
+public class ProtocolBenchmarks
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Not used; see Harness for the configuration.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        List<Integer> sizes = Harness.getIntList("harness.sizes", "16,256,4096,65536");
+        int[] threadCounts = { 1, Integer.getInteger("harness.threads", Math.max(2, Runtime.getRuntime().availableProcessors())) };
+        Utility.setup();
+        Database database = new Database(BenchmarkDatabase.writeImage(1, 0).getPath());
+        Harness harness = new Harness("ProtocolBenchmarks");
+
+        for(int threads : threadCounts)
+        {
+            // Packet encoding and decoding between two sessions sharing a key,
+            // once in memory and once through data streams
+            for(int version = 1; version <= SecureSession.PROTOCOL_VERSION_MAX; ++version)
+                for(int size : sizes)
+                {
+                    int protocolVersion = version;
+                    String payload = newPayload(size);
+                    harness.run("packet.encodeDecode", "v=" + version + ",size=" + size, threads, thread ->
+                    {
+                        SecureSession sender = newSession(protocolVersion);
+                        SecureSession receiver = newSession(protocolVersion);
+                        return () -> receiver.decodePacket(sender.encodePacket(payload));
+                    });
+                    harness.run("packet.sendReceive", "v=" + version + ",size=" + size, threads, thread ->
+                    {
+                        SecureSession sender = newSession(protocolVersion);
+                        SecureSession receiver = newSession(protocolVersion);
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream(2 * size + 256);
+                        DataOutputStream outputStream = new DataOutputStream(buffer);
+                        return () ->
+                        {
+                            buffer.reset();
+                            sender.sendPacket(outputStream, payload);
+                            outputStream.flush();
+                            return receiver.receivePacket(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+                        };
+                    });
+                }
+
+            // Encryptor, as used by the version 1 packet format
+            for(int size : sizes)
+            {
+                String payload = newPayload(size);
+                harness.run("encryptor.encrypt", "size=" + size, threads, thread ->
+                {
+                    Encryptor encryptor = newEncryptor();
+                    return () -> encryptor.encrypt(payload);
+                });
+                harness.run("encryptor.decrypt", "size=" + size, threads, thread ->
+                {
+                    Encryptor encryptor = newEncryptor();
+                    String encrypted = encryptor.encrypt(payload);
+                    return () -> encryptor.decrypt(encrypted);
+                });
+            }
+
+            // Key derivation and the whole key exchange of a connection
+            harness.run("utility.generateKey", "", threads, thread -> () -> Utility.generateKey(ThreadLocalRandom.current().nextLong(1 << 20), 1));
+            harness.run("dhke.handshake", "", threads, thread -> () ->
+            {
+                // Server offer, client answer as in DhkeTask, both derive the
+                // session keys
+                int serverSecret = database.newDhkeSecret();
+                String[] offer = database.getDhkeMessage(serverSecret).split(",");
+                int base = Integer.parseInt(offer[0]);
+                int modulo = Integer.parseInt(offer[1]);
+                long serverPart = Long.parseLong(offer[2]);
+                int clientSecret = 1 + ThreadLocalRandom.current().nextInt(modulo - 1);
+                int clientPart = (int)((long)Math.pow(base, clientSecret) % modulo);
+                long clientKey = (long)(Math.pow(serverPart, clientSecret) % modulo);
+                long serverKey = database.getDhkeKey(clientPart, serverSecret);
+                SecureSession clientSession = new SecureSession();
+                clientSession.setup(clientKey);
+                SecureSession serverSession = new SecureSession();
+                serverSession.setup(serverKey);
+                return serverSession;
+            });
+
+            // Random strings, as used for device codes and tokens
+            for(int length : new int[] { 8, 32 })
+                harness.run("random.nextAlphaNumString", "length=" + length, threads, thread ->
+                {
+                    RandomStringGenerator generator = new RandomStringGenerator();
+                    return () -> generator.nextAlphaNumString(length);
+                });
+        }
+        harness.finish();
+    }
+
+    /**
+     * Returns a session with a fixed key and the given packet format version.
+     */
+    private static SecureSession newSession(int protocolVersion)
+    {
+        SecureSession session = new SecureSession();
+        session.setup(12);
+        session.setProtocolVersion(protocolVersion);
+        return session;
+    }
+
+    /**
+     * Returns an encryptor with a fixed key.
+     */
+    private static Encryptor newEncryptor() throws Exception
+    {
+        return new Encryptor(Utility.generateKey(12, 1), "1234567890123456");
+    }
+
+    /**
+     * Returns a printable payload of the given length.
+     */
+    private static String newPayload(int size)
+    {
+        StringBuilder payload = new StringBuilder(size);
+        while(payload.length() < size)
+            payload.append((char)('a' + payload.length() % 26));
+        return payload.toString();
+    }
+}
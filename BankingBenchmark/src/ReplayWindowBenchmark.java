@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the per packet cost of replay protection over a long session. The
+ * counters arrive mostly in order, with every eighth pair swapped to exercise
+ * the out of order path. For comparison, the former list based check is run
+ * on a much shorter session, where its cost already grows with every packet.
+ */
+public class ReplayWindowBenchmark
+{
+    /**
+     * Number of packets per measured bucket.
+     */
+    private static final int BUCKET = 1000000;
+
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of packets in millions, window size.
+     */
+    public static void main(String[] args)
+    {
+        int millions = args.length >= 1 ? Integer.parseInt(args[0]) : 20;
+        int windowSize = args.length >= 2 ? Integer.parseInt(args[1]) : ReplayWindow.DEFAULT_SIZE;
+
+        // Start close to the overflow to cover the wrap around
+        int start = Integer.MAX_VALUE - 5 * BUCKET;
+        ReplayWindow window = new ReplayWindow(windowSize);
+        System.out.println("Replay window of " + window.getSize() + " packets, " + millions + "M packets");
+        System.out.println(String.format("%10s %12s", "packets", "ns/packet"));
+        long rejected = 0;
+        for(int bucket = 0; bucket < millions; ++bucket)
+        {
+            long begin = System.nanoTime();
+            int base = start + bucket * BUCKET;
+            for(int i = 0; i < BUCKET; i += 2)
+            {
+                // Every eighth pair arrives swapped, all counters are fresh
+                boolean swap = (i & 14) == 14;
+                if(!window.accept(base + i + (swap ? 1 : 0)))
+                    ++rejected;
+                if(!window.accept(base + i + (swap ? 0 : 1)))
+                    ++rejected;
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.println(String.format("%9dM %12.2f", bucket + 1, elapsed / (double)BUCKET));
+        }
+
+        // All replays must be rejected
+        for(int i = 0; i < 1000; ++i)
+            if(window.accept(start + millions * BUCKET - 1 - i))
+                throw new IllegalStateException("Replay accepted");
+        System.out.println("Rejected fresh packets: " + rejected);
+
+        // Former list based check
+        System.out.println("List based check (former implementation)");
+        System.out.println(String.format("%10s %12s", "packets", "ns/packet"));
+        List<Integer> list = new ArrayList<>();
+        int listBucket = 20000;
+        for(int bucket = 0; bucket < 5; ++bucket)
+        {
+            long begin = System.nanoTime();
+            for(int i = 0; i < listBucket; ++i)
+            {
+                int counter = bucket * listBucket + i;
+                if(!list.contains(counter))
+                    list.add(counter);
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.println(String.format("%10d %12.2f", (bucket + 1) * listBucket, elapsed / (double)listBucket));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the platform thread per connection server mode against the bounded
+ * session executor (virtual threads, if supported by the JVM). For each mode a
+ * server is started in-process, the given number of clients connect and run
+ * the key exchange, and then stay connected while server threads and heap
+ * usage are measured.
+ */
+public class SessionModeBenchmark
+{
+    /**
+     * Number of client threads establishing the connections.
+     */
+    private static final int DRIVER_THREADS = 64;
+
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of connections, session limit of the
+     *            executor mode.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int connectionCount = args.length >= 1 ? Integer.parseInt(args[0]) : 2000;
+        int maxSessions = args.length >= 2 ? Integer.parseInt(args[1]) : connectionCount;
+
+        // Silence server output
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Utility.setup();
+
+        File databaseFile = writeDatabase();
+        report.println("Java " + System.getProperty("java.version") + ", " + connectionCount + " idle sessions after key exchange");
+        report.println(String.format("%-22s %12s %14s %14s %14s", "mode", "connect [ms]", "handshakes/s", "threads", "heap [MiB]"));
+        runMode(report, "thread-per-connection", databaseFile, null, connectionCount);
+        SessionExecutor sessionExecutor = new SessionExecutor(maxSessions, SessionExecutor.OverloadPolicy.QUEUE);
+        runMode(report, sessionExecutor.isVirtual() ? "virtual-executor" : "platform-executor", databaseFile, sessionExecutor, connectionCount);
+        databaseFile.delete();
+        System.exit(0);
+    }
+
+    /**
+     * Starts a server in the given mode, connects the clients and prints the
+     * measurements.
+     */
+    private static void runMode(PrintStream report, String mode, File databaseFile, SessionExecutor sessionExecutor, int connectionCount) throws Exception
+    {
+        ServerContext context = new ServerContext(new Database(databaseFile.getPath()));
+        ServerSocket serverSocket = new ServerSocket(0, connectionCount);
+        Thread acceptThread = new Thread(() ->
+        {
+            try
+            {
+                ServerMain.acceptClients(serverSocket, context, sessionExecutor);
+            }
+            catch(IOException | InterruptedException e)
+            {
+                // Server socket was closed
+            }
+        });
+        acceptThread.start();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        // Connect clients in parallel
+        List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService drivers = Executors.newFixedThreadPool(DRIVER_THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int d = 0; d < DRIVER_THREADS; ++d)
+        {
+            int count = connectionCount / DRIVER_THREADS + (d < connectionCount % DRIVER_THREADS ? 1 : 0);
+            results.add(drivers.submit(() ->
+            {
+                for(int c = 0; c < count; ++c)
+                    sockets.add(connect(serverSocket.getLocalPort()));
+                return null;
+            }));
+        }
+        for(Future<?> result : results)
+            result.get();
+        long elapsedNanos = System.nanoTime() - start;
+        drivers.shutdown();
+
+        // Measure resources held by the idle sessions
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        long heap = usedHeap() - heapBefore;
+        report.println(String.format("%-22s %12d %14.0f %14d %14.1f", mode, elapsedNanos / 1000000, connectionCount / (elapsedNanos / 1e9), threads,
+                heap / (1024.0 * 1024.0)));
+
+        // Disconnect
+        serverSocket.close();
+        for(Socket socket : sockets)
+            socket.close();
+        acceptThread.join();
+        if(sessionExecutor != null)
+            sessionExecutor.shutdown(10000);
+    }
+
+    /**
+     * Connects to the server and runs the unencrypted part of the key exchange.
+     */
+    private static Socket connect(int port) throws IOException
+    {
+        Socket socket = new Socket("localhost", port);
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+        Utility.sendUnencPacket(outputStream, "HELO");
+        Utility.receiveUnencPacket(inputStream);
+        Utility.sendUnencPacket(outputStream, "1");
+        return socket;
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     */
+    private static long usedHeap()
+    {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Writes a small database file for the benchmark server.
+     */
+    private static File writeDatabase() throws IOException
+    {
+        File databaseFile = File.createTempFile("benchmark", ".json");
+        try(FileWriter writer = new FileWriter(databaseFile))
+        {
+            writer.write("{\"port\":0,\"dh_base\":10,\"dh_modulo\":17,\"users\":[{\"name\":\"test\",\"email\":\"its@its-bank\",\"password\":\"test\","
+                    + "\"money\":10,\"devices\":[\"abcdefgh\"],\"ctfgroup\":0,\"token\":\"\"}]}");
+        }
+        return databaseFile;
+    }
+}
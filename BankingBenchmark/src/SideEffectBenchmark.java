@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Measures the latency of transfers that grant a CTF token, while the token
+ * endpoint is slow. As a reference, the grant is delivered inline after each
+ * transfer, like the former synchronous HTTPS call; then it is handed to the
+ * side effect dispatcher, once with a reliable and once with an unreliable
+ * endpoint. The endpoint is simulated by the local stand-in sink.
+ */
+public class SideEffectBenchmark
+{
+    /**
+     * Benchmark entry point.
+     *
+     * @param args
+     *            Optional: number of transfers, endpoint delay in milliseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int transfers = args.length >= 1 ? Integer.parseInt(args[0]) : 200;
+        long delayMillis = args.length >= 2 ? Long.parseLong(args[1]) : 20;
+
+        // Silence server output
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Utility.setup();
+
+        report.println(transfers + " token transfers, endpoint delay " + delayMillis + " ms");
+        report.println(String.format("%-22s %10s %10s %10s %12s %10s %12s", "mode", "p50 [us]", "p99 [us]", "max [us]", "drained [ms]", "delivered", "dead letters"));
+        run(report, "inline", transfers, new LocalSink(delayMillis, 0), false);
+        run(report, "dispatcher", transfers, new LocalSink(delayMillis, 0), true);
+        run(report, "dispatcher, 30% fail", transfers, new LocalSink(delayMillis, 0.3), true);
+    }
+
+    /**
+     * Runs the given number of token transfers and reports their latency.
+     */
+    private static void run(PrintStream report, String mode, int transfers, LocalSink sink, boolean async) throws Exception
+    {
+        // User 1 is a token account, user 0 has a token
+        Database database = new Database(writeTokenDatabase().getPath());
+        File deadLetterFile = File.createTempFile("benchmark", ".deadletter");
+        deadLetterFile.deleteOnExit();
+        SideEffectDispatcher dispatcher = new SideEffectDispatcher(10000, 32, 4, 5, 50, deadLetterFile.getPath());
+        dispatcher.setSink(SideEffect.Type.TOKEN_GRANT, sink);
+        dispatcher.start();
+        if(async)
+            database.setSideEffectDispatcher(dispatcher);
+
+        // Measure
+        long[] latencies = new long[transfers];
+        long start = System.nanoTime();
+        for(int t = 0; t < transfers; ++t)
+        {
+            long transferStart = System.nanoTime();
+            database.sendMoney(0, "user1", 1);
+            if(!async)
+                sink.deliver(Collections.singletonList(SideEffect.tokenGrant(1, "token0")));
+            latencies[t] = System.nanoTime() - transferStart;
+        }
+        dispatcher.close(60000);
+        long drainedNanos = System.nanoTime() - start;
+        long delivered = async ? dispatcher.getDeliveredCount() : transfers;
+
+        Arrays.sort(latencies);
+        report.println(String.format("%-22s %10.0f %10.0f %10.0f %12.0f %10d %12d", mode, latencies[transfers / 2] / 1e3, latencies[transfers * 99 / 100] / 1e3,
+                latencies[transfers - 1] / 1e3, drainedNanos / 1e6, delivered, dispatcher.getDeadLetterCount()));
+    }
+
+    /**
+     * Writes a database with a token account into a new temporary file.
+     */
+    private static File writeTokenDatabase() throws IOException
+    {
+        File databaseFile = File.createTempFile("benchmark", ".json");
+        databaseFile.deleteOnExit();
+        try(FileWriter writer = new FileWriter(databaseFile))
+        {
+            writer.write("{\"port\":0,\"dh_base\":10,\"dh_modulo\":17,\"users\":["
+                    + "{\"name\":\"user0\",\"email\":\"user0@its-bank\",\"password\":\"pw0\",\"money\":1000000,\"devices\":[],\"ctfgroup\":0,\"token\":\"token0\"},"
+                    + "{\"name\":\"user1\",\"email\":\"user1@its-bank\",\"password\":\"pw1\",\"money\":0,\"devices\":[],\"ctfgroup\":1,\"token\":\"\"}]}");
+        }
+        return databaseFile;
+    }
+}
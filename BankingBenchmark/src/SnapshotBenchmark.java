@@ -0,0 +1,144 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the latency of transfers and balance queries, first without and
+ * then with the checkpointer writing snapshots back to back. The clients pause
+ * briefly between requests, so the machine is not saturated and the latencies
+ * show waiting for locks rather than for the CPU.
+ */
+public class SnapshotBenchmark
+{
+    /**
+     * Benchmark entry point.
+     *
+     * @param args
+     *            Optional: number of users, number of client threads,
+     *            measurement time per phase in milliseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int userCount = args.length >= 1 ? Integer.parseInt(args[0]) : 100000;
+        int threads = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+        long durationMillis = args.length >= 3 ? Long.parseLong(args[2]) : 5000;
+        Utility.setup();
+
+        // Load database and open journal next to it
+        File databaseFile = BenchmarkDatabase.write(userCount, Integer.MAX_VALUE / 2);
+        Database database = new Database(databaseFile.getPath());
+        database.openJournal(databaseFile.getPath() + ".journal", Journal.CommitPolicy.ASYNC, 1000);
+        String[] names = BenchmarkDatabase.names(userCount);
+
+        System.out.println(userCount + " users, " + threads + " client threads, " + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println(String.format("%-16s %-10s %10s %10s %10s %10s %10s", "phase", "operation", "ops", "p50 [us]", "p99 [us]", "p99.9 [us]", "max [us]"));
+
+        // Warm up, then measure without snapshots
+        run(database, names, threads, durationMillis / 2, null);
+        run(database, names, threads, durationMillis, "no snapshots");
+
+        // Measure with back to back snapshots
+        Checkpointer checkpointer = new Checkpointer(database, 1, 1);
+        checkpointer.start();
+        run(database, names, threads, durationMillis, "snapshots");
+        checkpointer.stop();
+
+        // Clean up
+        database.closeJournal();
+        BenchmarkDatabase.delete(databaseFile);
+    }
+
+    /**
+     * Runs alternating transfers and balance queries on the given number of
+     * threads and prints the latency percentiles, if a phase name is given.
+     */
+    private static void run(Database database, String[] names, int threads, long durationMillis, String phase) throws InterruptedException
+    {
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<long[]> transferLatencies = new ArrayList<>();
+        List<long[]> balanceLatencies = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; ++t)
+        {
+            long[] transfers = new long[1 << 20];
+            long[] balances = new long[1 << 20];
+            transferLatencies.add(transfers);
+            balanceLatencies.add(balances);
+            Thread worker = new Thread(() ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int count = 0;
+                while(running.get() && count < transfers.length - 1)
+                {
+                    // Pick two distinct users
+                    int source = random.nextInt(names.length);
+                    int target = random.nextInt(names.length - 1);
+                    if(target >= source)
+                        ++target;
+
+                    // Transfer
+                    long start = System.nanoTime();
+                    if(!database.sendMoney(source, names[target], 1))
+                        throw new IllegalStateException("Transfer failed");
+                    transfers[count + 1] = System.nanoTime() - start;
+
+                    // Balance
+                    start = System.nanoTime();
+                    database.getMoney(source);
+                    database.getUserMoneyHistory(source);
+                    balances[count + 1] = System.nanoTime() - start;
+                    ++count;
+
+                    LockSupport.parkNanos(20_000);
+                }
+                transfers[0] = count;
+                balances[0] = count;
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for(Thread worker : workers)
+            worker.join();
+
+        if(phase != null)
+        {
+            print(phase, "transfer", transferLatencies);
+            print(phase, "balance", balanceLatencies);
+        }
+    }
+
+    /**
+     * Prints the percentiles of the given per-thread latency samples, where
+     * the first element of each array is the sample count.
+     */
+    private static void print(String phase, String operation, List<long[]> latencies)
+    {
+        int total = 0;
+        for(long[] samples : latencies)
+            total += (int)samples[0];
+        long[] all = new long[total];
+        int offset = 0;
+        for(long[] samples : latencies)
+        {
+            System.arraycopy(samples, 1, all, offset, (int)samples[0]);
+            offset += (int)samples[0];
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%-16s %-10s %10d %10.1f %10.1f %10.1f %10.1f", phase, operation, total, percentile(all, 0.5), percentile(all, 0.99),
+                percentile(all, 0.999), all[all.length - 1] / 1000.0));
+    }
+
+    /**
+     * Returns the given percentile of the sorted samples in microseconds.
+     */
+    private static double percentile(long[] sorted, double fraction)
+    {
+        return sorted[(int)Math.min(sorted.length - 1, Math.floor(sorted.length * fraction))] / 1000.0;
+    }
+}
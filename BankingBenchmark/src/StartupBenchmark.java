@@ -0,0 +1,61 @@
+import java.io.File;
+import java.lang.ref.Reference;
+
+/**
+ * Measures server startup on a JSON database and on a binary database image:
+ * the time until the database is opened, the time of the first login, and the
+ * heap used afterwards. Each format is measured on its own, so run only one
+ * format per JVM for clean heap numbers.
+ */
+public class StartupBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: database format ("image" or "json"), number of
+     *            users.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        boolean image = args.length < 1 || args[0].equalsIgnoreCase("image");
+        int userCount = args.length >= 2 ? Integer.parseInt(args[1]) : 1000000;
+        Utility.setup();
+
+        // Write database, it is not part of the measurement
+        long writeStart = System.nanoTime();
+        File databaseFile = image ? BenchmarkDatabase.writeImage(userCount, 1000000) : BenchmarkDatabase.write(userCount, 1000000);
+        System.out.println(String.format("Wrote %d users (%.0f MB) in %.0f ms", userCount, databaseFile.length() / 1e6, (System.nanoTime() - writeStart) / 1e6));
+        long heapBefore = usedHeap();
+
+        // Open database
+        long openStart = System.nanoTime();
+        Database database = new Database(databaseFile.getPath());
+        double openMillis = (System.nanoTime() - openStart) / 1e6;
+
+        // First login and balance query
+        int user = userCount / 2;
+        long loginStart = System.nanoTime();
+        int userId = database.verifyLogin("user" + user, "pw" + user);
+        int money = database.getMoney(userId);
+        double loginMillis = (System.nanoTime() - loginStart) / 1e6;
+        if(userId != user || money != 1000000)
+            throw new IllegalStateException("Login failed");
+
+        long heapUsed = usedHeap() - heapBefore;
+        System.out.println(String.format("%-6s %10s %12s %17s %12s", "format", "users", "open [ms]", "first login [ms]", "heap [MB]"));
+        System.out.println(String.format("%-6s %10d %12.1f %17.2f %12.1f", image ? "image" : "json", userCount, openMillis, loginMillis, heapUsed / 1e6));
+        Reference.reachabilityFence(database);
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     */
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
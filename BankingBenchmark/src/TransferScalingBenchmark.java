@@ -0,0 +1,96 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures the throughput of random transfers between distinct users with an
+ * increasing number of threads. As a reference, the same workload is run with
+ * every transfer serialized on one global lock, like the former single
+ * database monitor.
+ */
+public class TransferScalingBenchmark
+{
+    /**
+     * Benchmark entry point.
+     * 
+     * @param args
+     *            Optional: number of users, maximum number of threads,
+     *            measurement time per thread count in milliseconds.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int userCount = args.length >= 1 ? Integer.parseInt(args[0]) : 100000;
+        int maxThreads = args.length >= 2 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+        long durationMillis = args.length >= 3 ? Long.parseLong(args[2]) : 2000;
+        Utility.setup();
+
+        // Load database, users start with enough money for the whole run
+        Database database = new Database(BenchmarkDatabase.write(userCount, Integer.MAX_VALUE / 2).getPath());
+        String[] names = BenchmarkDatabase.names(userCount);
+
+        System.out.println(userCount + " users, " + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println(String.format("%8s %16s %10s %16s", "threads", "striped [ops/s]", "speedup", "global [ops/s]"));
+        double singleThreaded = 0;
+        for(int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            double striped = run(database, names, threads, durationMillis, null);
+            double global = run(database, names, threads, durationMillis, new ReentrantLock());
+            if(threads == 1)
+                singleThreaded = striped;
+            System.out.println(String.format("%8d %16.0f %10.2f %16.0f", threads, striped, striped / singleThreaded, global));
+        }
+    }
+
+    /**
+     * Runs random transfers on the given number of threads and returns the
+     * throughput.
+     */
+    private static double run(Database database, String[] names, int threads, long durationMillis, ReentrantLock globalLock) throws InterruptedException
+    {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder transfers = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; ++t)
+        {
+            Thread worker = new Thread(() ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while(running.get())
+                {
+                    // Pick two distinct users
+                    int source = random.nextInt(names.length);
+                    int target = random.nextInt(names.length - 1);
+                    if(target >= source)
+                        ++target;
+
+                    if(globalLock != null)
+                        globalLock.lock();
+                    try
+                    {
+                        if(!database.sendMoney(source, names[target], 1))
+                            throw new IllegalStateException("Transfer failed");
+                    }
+                    finally
+                    {
+                        if(globalLock != null)
+                            globalLock.unlock();
+                    }
+                    ++count;
+                }
+                transfers.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for(Thread worker : workers)
+            worker.join();
+        return transfers.sum() / (durationMillis / 1000.0);
+    }
+}
@@ -1,12 +1,18 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * Handles retrieval of the user's balance.
  */
 public class BalanceTask extends Task
 {
+    /**
+     * Receives the balance parts, or null to print them.
+     */
+    private Consumer<String> _balanceHandler;
+
     /**
      * Creates a now balance retrieval task.
      * 
@@ -14,11 +20,34 @@ public class BalanceTask extends Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
      */
-    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream)
+    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession)
+    {
+        this(socketInputStream, socketOutputStream, secureSession, null);
+    }
+
+    /**
+     * Creates a now balance retrieval task, which passes the balance to the
+     * given handler instead of printing it.
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param balanceHandler
+     *            Receives the balance in one or more parts, in order.
+     */
+    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, Consumer<String> balanceHandler)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream);
+        super(socketInputStream, socketOutputStream, secureSession);
+
+        // Save parameters
+        _balanceHandler = balanceHandler;
     }
 
     @Override
@@ -26,14 +55,26 @@ public class BalanceTask extends Task
     {
         // Send request packet
         String requestPacket = "balance";
-        System.out.println("Sending balance request packet...");
-        Utility.sendPacket(_socketOutputStream, requestPacket);
+        _output.println("Sending balance request packet...");
+        _secureSession.sendPacket(_socketOutputStream, requestPacket);
+
+        // Newer servers stream the balance, print it as it arrives
+        Consumer<String> balanceHandler = _balanceHandler != null ? _balanceHandler : _output::print;
+        if(_secureSession.getProtocolVersion() >= 3)
+        {
+            _output.println("Waiting for balance response stream...");
+            _output.println("Server send the following balance:");
+            _secureSession.receiveStream(_socketInputStream, balanceHandler);
+            _output.println();
+            return;
+        }
 
         // Wait for response packet
-        System.out.println("Waiting for balance response packet...");
-        String balanceResponse = Utility.receivePacket(_socketInputStream);
-        System.out.println("Server send the following balance:");
-        System.out.println(balanceResponse);
+        _output.println("Waiting for balance response packet...");
+        String balanceResponse = _secureSession.receivePacket(_socketInputStream);
+        _output.println("Server send the following balance:");
+        balanceHandler.accept(balanceResponse);
+        _output.println();
     }
 
 }
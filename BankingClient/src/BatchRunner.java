@@ -0,0 +1,752 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs scripted operations over one session without terminal prompts, and
+ * writes one JSON result line per operation. Operations are read line by line,
+ * either as script lines like "transfer alice 5" or as JSON objects like
+ * {"op":"transfer","recipient":"alice","amount":5}. Empty lines and lines
+ * starting with '#' are skipped.
+ * 
+ * Supported operations (script form, JSON fields):
+ * 
+ * <pre>
+ * login USER PASSWORD            user, password
+ * balance
+ * authenticate DEVICE_CODE       deviceCode
+ * register [CONFIRMATION_CODE]   confirmationCode
+ * transfer RECIPIENT AMOUNT      recipient, amount
+ * batch-transfer RECIPIENT AMOUNT [RECIPIENT AMOUNT ...]
+ *                                transfers ("RECIPIENT AMOUNT ...")
+ * </pre>
+ * 
+ * A batch transfer is applied by the server as a whole or not at all.
+ * 
+ * The confirmation code of a registration is only known once the server has
+ * sent it by e-mail. If it is not part of the operation, it is read from the
+ * terminal, provided the script does not come from there.
+ * 
+ * If the server supports pipelined requests, (batch) transfer operations do
+ * not wait for their responses: up to "bank.pipelineDepth" (default 64, 0
+ * disables pipelining) of them are in flight. Results are still written in
+ * script order, and all responses are awaited before any other operation, and
+ * before results are flushed. Balances are not pipelined, their result is
+ * streamed as the history arrives instead of being held until its turn.
+ */
+public class BatchRunner
+{
+    /**
+     * The operation names, each followed by the names of its arguments.
+     */
+    private static final String[][] OPERATIONS = { { "login", "user", "password" }, { "balance" }, { "authenticate", "deviceCode" },
+            { "register", "confirmationCode" }, { "transfer", "recipient", "amount" }, { "batch-transfer", "transfers" } };
+
+    /**
+     * Discards the progress messages of the tasks.
+     */
+    private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    });
+
+    /**
+     * The socket input stream.
+     */
+    private final DataInputStream _socketInputStream;
+
+    /**
+     * The socket output stream.
+     */
+    private final DataOutputStream _socketOutputStream;
+
+    /**
+     * The crypto state of the connection.
+     */
+    private final SecureSession _secureSession;
+
+    /**
+     * Receives the JSON result lines.
+     */
+    private final Writer _results;
+
+    /**
+     * Supplies confirmation codes missing in the script, or null.
+     */
+    private final TaskInput _promptInput;
+
+    /**
+     * Tells whether the login was tried; the server does not accept another
+     * try on the same session.
+     */
+    private boolean _loginAttempted = false;
+
+    /**
+     * Tells whether the login was successful.
+     */
+    private boolean _loggedIn = false;
+
+    /**
+     * Tells whether the device of the session is authenticated, which the
+     * server requires for transfers.
+     */
+    private boolean _deviceAuthenticated = false;
+
+    /**
+     * The number of failed operations.
+     */
+    private int _failures = 0;
+
+    /**
+     * Sends pipelined operations, or null if pipelining is not used.
+     */
+    private final RequestPipeline _pipeline;
+
+    /**
+     * The maximum number of pipelined operations in flight.
+     */
+    private final int _pipelineDepth;
+
+    /**
+     * The pipelined operations whose results have not been written yet, in
+     * script order.
+     */
+    private final ArrayDeque<PipelinedResult> _pipelinedResults = new ArrayDeque<>();
+
+    /**
+     * Creates a new batch runner for a session after the key exchange.
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param results
+     *            Receives the JSON result lines.
+     * @param promptInput
+     *            Supplies confirmation codes missing in the script, or null.
+     */
+    public BatchRunner(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, Writer results, TaskInput promptInput)
+    {
+        _socketInputStream = socketInputStream;
+        _socketOutputStream = socketOutputStream;
+        _secureSession = secureSession;
+        _results = results;
+        _promptInput = promptInput;
+        _pipelineDepth = Integer.getInteger("bank.pipelineDepth", 64);
+        _pipeline = _pipelineDepth > 0 && RequestPipeline.isSupported(secureSession)
+                ? new RequestPipeline(socketInputStream, socketOutputStream, secureSession) : null;
+    }
+
+    /**
+     * Runs all operations of the given script. Results are flushed whenever
+     * the script has no more operations buffered, so they stream while a
+     * producer is still writing the script.
+     * 
+     * @param script
+     *            The script lines.
+     * @return The number of failed operations.
+     * @throws IOException
+     *             If the connection failed; the result of the running
+     *             operation has been written.
+     */
+    public int run(BufferedReader script) throws IOException
+    {
+        int lineNumber = 0;
+        try
+        {
+            String line;
+            while((line = script.readLine()) != null)
+            {
+                ++lineNumber;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                runLine(lineNumber, line);
+                if(!script.ready())
+                {
+                    drainPipeline();
+                    _results.flush();
+                }
+            }
+            drainPipeline();
+        }
+        finally
+        {
+            _results.flush();
+        }
+        return _failures;
+    }
+
+    /**
+     * Parses and runs one operation, and writes its result.
+     */
+    private void runLine(int lineNumber, String line) throws IOException
+    {
+        // Parse operation into name and arguments
+        String[] operation;
+        try
+        {
+            operation = line.startsWith("{") ? parseJsonOperation(line) : parseScriptOperation(line);
+            checkArguments(operation);
+        }
+        catch(IllegalArgumentException e)
+        {
+            drainPipeline();
+            writeResult(lineNumber, line.startsWith("{") ? "" : line.split("\\s+")[0], false, null, e.getMessage(), null);
+            return;
+        }
+        String name = operation[0];
+        boolean pipelined = _pipeline != null && _loggedIn && name.endsWith("transfer") && _deviceAuthenticated;
+        if(!pipelined)
+            drainPipeline();
+        if(!_loggedIn && !name.equals("login"))
+        {
+            writeResult(lineNumber, name, false, null, "Not logged in.", null);
+            return;
+        }
+
+        try
+        {
+            if(pipelined)
+            {
+                runPipelined(lineNumber, operation);
+                return;
+            }
+            switch(name)
+            {
+            case "login":
+                if(_loginAttempted)
+                {
+                    writeResult(lineNumber, name, false, null, "Login already attempted on this session.", null);
+                    return;
+                }
+                _loginAttempted = true;
+                LoginTask loginTask = new LoginTask(_socketInputStream, _socketOutputStream, _secureSession, new ValueInput(operation[1], operation[2]));
+                loginTask.setOutput(NO_OUTPUT);
+                loginTask.run();
+                _loggedIn = loginTask.getSuccessful();
+                writeResult(lineNumber, name, _loggedIn, loginTask.getResponse(), null, null);
+                break;
+
+            case "balance":
+                runBalance(lineNumber);
+                break;
+
+            case "authenticate":
+            case "register":
+                runRegistration(lineNumber, name, operation.length > 1 ? operation[1] : null);
+                break;
+
+            case "transfer":
+                if(!_deviceAuthenticated)
+                {
+                    writeResult(lineNumber, name, false, null, "Device not authenticated.", null);
+                    return;
+                }
+                TransactionTask transactionTask = new TransactionTask(_socketInputStream, _socketOutputStream, _secureSession,
+                        new ValueInput(operation[1], operation[2]));
+                transactionTask.setOutput(NO_OUTPUT);
+                transactionTask.run();
+                writeResult(lineNumber, name, transactionTask.getSuccessful(), transactionTask.getResponse(), null, null);
+                break;
+
+            case "batch-transfer":
+                if(!_deviceAuthenticated)
+                {
+                    writeResult(lineNumber, name, false, null, "Device not authenticated.", null);
+                    return;
+                }
+                String[] transfers = operation[1].split("\\s+");
+                String[] values = new String[1 + transfers.length];
+                values[0] = Integer.toString(transfers.length / 2);
+                System.arraycopy(transfers, 0, values, 1, transfers.length);
+                BatchTransactionTask batchTransactionTask = new BatchTransactionTask(_socketInputStream, _socketOutputStream, _secureSession,
+                        new ValueInput(values));
+                batchTransactionTask.setOutput(NO_OUTPUT);
+                batchTransactionTask.run();
+                writeResult(lineNumber, name, batchTransactionTask.getSuccessful(), batchTransactionTask.getResponse(), null, null);
+                break;
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            // Tasks parse numbers before sending anything
+            writeResult(lineNumber, name, false, null, "Invalid number: " + e.getMessage(), null);
+        }
+        catch(IOException e)
+        {
+            writeResult(lineNumber, name, false, null, "Connection failed: " + e.getMessage(), null);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a (batch) transfer operation as pipelined request, after waiting
+     * for responses if too many are in flight.
+     */
+    private void runPipelined(int lineNumber, String[] operation) throws IOException
+    {
+        // Build arguments, checking the amount like the transaction task; its
+        // error is reported after the results of earlier operations
+        String name = operation[0];
+        String command = name.equals("transfer") ? "transaction" : "batch-transaction";
+        String arguments;
+        try
+        {
+            if(name.equals("transfer"))
+                arguments = operation[1] + "," + Integer.parseInt(operation[2]);
+            else
+            {
+                // One line per transfer
+                String[] transfers = operation[1].split("\\s+");
+                StringBuilder batchArguments = new StringBuilder();
+                for(int t = 0; t < transfers.length; t += 2)
+                    batchArguments.append(t > 0 ? "\n" : "").append(transfers[t]).append(',').append(Integer.parseInt(transfers[t + 1]));
+                arguments = batchArguments.toString();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            drainPipeline();
+            throw e;
+        }
+
+        try
+        {
+            while(_pipeline.getInFlight() >= _pipelineDepth)
+                receivePipelined();
+            PipelinedResult result = new PipelinedResult(lineNumber, name);
+            _pipeline.send(command, arguments, response -> result._response = response);
+            _pipelinedResults.add(result);
+        }
+        catch(IOException e)
+        {
+            failPipelinedResults(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all pipelined operations, and writes their results.
+     */
+    private void drainPipeline() throws IOException
+    {
+        try
+        {
+            while(_pipeline != null && _pipeline.getInFlight() > 0)
+                receivePipelined();
+        }
+        catch(IOException e)
+        {
+            failPipelinedResults(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the next pipelined response, and writes the results that are
+     * complete in script order.
+     */
+    private void receivePipelined() throws IOException
+    {
+        _pipeline.receive();
+        while(!_pipelinedResults.isEmpty() && _pipelinedResults.peek()._response != null)
+        {
+            PipelinedResult result = _pipelinedResults.poll();
+            writeResult(result._lineNumber, result._name, result.isSuccessful(), result._response, null, null);
+        }
+    }
+
+    /**
+     * Writes the results of the pipelined operations after a connection
+     * failure; responses which arrived are reported as well.
+     */
+    private void failPipelinedResults(IOException e) throws IOException
+    {
+        PipelinedResult result;
+        while((result = _pipelinedResults.poll()) != null)
+        {
+            if(result._response != null)
+                writeResult(result._lineNumber, result._name, result.isSuccessful(), result._response, null, null);
+            else
+                writeResult(result._lineNumber, result._name, false, null, "Connection failed: " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Retrieves the balance, and streams it into the result line as it
+     * arrives.
+     */
+    private void runBalance(int lineNumber) throws IOException
+    {
+        _results.write("{\"line\":" + lineNumber + ",\"op\":\"balance\",\"response\":\"");
+        try
+        {
+            BalanceTask balanceTask = new BalanceTask(_socketInputStream, _socketOutputStream, _secureSession, part ->
+            {
+                try
+                {
+                    appendJsonChars(_results, part);
+                }
+                catch(IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            balanceTask.setOutput(NO_OUTPUT);
+            balanceTask.run();
+        }
+        catch(IOException | UncheckedIOException e)
+        {
+            ++_failures;
+            _results.write("\",\"ok\":false,\"error\":");
+            appendJsonString(_results, "Connection failed: " + e.getMessage());
+            _results.write("}\n");
+            throw e instanceof IOException ? (IOException)e : ((UncheckedIOException)e).getCause();
+        }
+        _results.write("\",\"ok\":true}\n");
+    }
+
+    /**
+     * Authenticates with the given device code, or registers a new device with
+     * the given confirmation code.
+     */
+    private void runRegistration(int lineNumber, String name, String code) throws IOException
+    {
+        boolean registration = name.equals("register");
+        TaskInput confirmationInput = code != null ? new ValueInput(code) : _promptInput;
+        if(registration && confirmationInput == null)
+        {
+            writeResult(lineNumber, name, false, null, "Missing confirmation code.", null);
+            return;
+        }
+
+        // Run without device code file, the result line reports new device
+        // codes
+        RegistrationTask registrationTask = new RegistrationTask(_socketInputStream, _socketOutputStream, _secureSession, registration ? confirmationInput : null,
+                registration ? null : code, null);
+        registrationTask.setOutput(NO_OUTPUT);
+        registrationTask.run();
+        _deviceAuthenticated |= registrationTask.getSuccessful();
+        writeResult(lineNumber, name, registrationTask.getSuccessful(), registrationTask.getResponse(), null, registration ? registrationTask.getDeviceCode() : null);
+    }
+
+    /**
+     * Checks the operation name and number of arguments.
+     */
+    private static void checkArguments(String[] operation)
+    {
+        for(String[] knownOperation : OPERATIONS)
+        {
+            if(!knownOperation[0].equals(operation[0]))
+                continue;
+
+            // The confirmation code of a registration is optional
+            int required = operation[0].equals("register") ? 0 : knownOperation.length - 1;
+            if(operation.length - 1 < required || operation.length > knownOperation.length)
+                throw new IllegalArgumentException("Expected arguments: " + String.join(" ", knownOperation));
+            for(int a = 1; a < operation.length; ++a)
+                if(operation[a] == null)
+                    throw new IllegalArgumentException("Missing argument '" + knownOperation[a] + "'.");
+
+            // Transfers come in pairs of recipient and amount
+            if(operation[0].equals("batch-transfer") && (operation[1].isEmpty() || operation[1].split("\\s+").length % 2 != 0))
+                throw new IllegalArgumentException("Expected arguments: batch-transfer RECIPIENT AMOUNT [RECIPIENT AMOUNT ...]");
+            return;
+        }
+        throw new IllegalArgumentException("Unknown operation '" + operation[0] + "'.");
+    }
+
+    /**
+     * Writes a result line.
+     */
+    private void writeResult(int lineNumber, String name, boolean ok, String response, String error, String deviceCode) throws IOException
+    {
+        if(!ok)
+            ++_failures;
+        _results.write("{\"line\":" + lineNumber + ",\"op\":");
+        appendJsonString(_results, name);
+        if(response != null)
+        {
+            _results.write(",\"response\":");
+            appendJsonString(_results, response);
+        }
+        if(deviceCode != null)
+        {
+            _results.write(",\"deviceCode\":");
+            appendJsonString(_results, deviceCode);
+        }
+        _results.write(",\"ok\":" + ok);
+        if(error != null)
+        {
+            _results.write(",\"error\":");
+            appendJsonString(_results, error);
+        }
+        _results.write("}\n");
+    }
+
+    /**
+     * Writes the given string as JSON string literal.
+     */
+    private static void appendJsonString(Writer writer, String value) throws IOException
+    {
+        writer.write('"');
+        appendJsonChars(writer, value);
+        writer.write('"');
+    }
+
+    /**
+     * Writes the given string as contents of a JSON string literal.
+     */
+    private static void appendJsonChars(Writer writer, String value) throws IOException
+    {
+        for(int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+            {
+                writer.write('\\');
+                writer.write(c);
+            }
+            else if(c == '\n')
+                writer.write("\\n");
+            else if(c < 0x20)
+                writer.write(String.format("\\u%04x", (int)c));
+            else
+                writer.write(c);
+        }
+    }
+
+    /**
+     * Splits a script line into the operation name and its arguments. The
+     * transfers of a batch transfer are kept together as one argument.
+     */
+    private static String[] parseScriptOperation(String line)
+    {
+        String[] operation = line.split("\\s+");
+        if(operation[0].equals("batch-transfer"))
+            return line.split("\\s+", 2);
+        return operation;
+    }
+
+    /**
+     * Parses a JSON operation object into the operation name and the values of
+     * its arguments, which are null if missing.
+     */
+    private static String[] parseJsonOperation(String line)
+    {
+        Map<String, String> fields = new JsonObjectParser(line).parse();
+        String name = fields.get("op");
+        if(name == null)
+            throw new IllegalArgumentException("Missing field 'op'.");
+        for(String[] knownOperation : OPERATIONS)
+        {
+            if(!knownOperation[0].equals(name))
+                continue;
+            // The optional confirmation code is just left out
+            if(name.equals("register") && fields.get("confirmationCode") == null)
+                return new String[] { name };
+            String[] operation = new String[knownOperation.length];
+            operation[0] = name;
+            for(int a = 1; a < knownOperation.length; ++a)
+                operation[a] = fields.get(knownOperation[a]);
+            // Transfers are split like script arguments
+            if(name.equals("batch-transfer") && operation[1] != null)
+                operation[1] = operation[1].trim();
+            return operation;
+        }
+        throw new IllegalArgumentException("Unknown operation '" + name + "'.");
+    }
+
+    /**
+     * The result of a pipelined operation.
+     */
+    private static class PipelinedResult
+    {
+        /**
+         * The script line of the operation.
+         */
+        final int _lineNumber;
+
+        /**
+         * The operation name.
+         */
+        final String _name;
+
+        /**
+         * The response of the server, or null while it is in flight.
+         */
+        String _response;
+
+        PipelinedResult(int lineNumber, String name)
+        {
+            _lineNumber = lineNumber;
+            _name = name;
+        }
+
+        /**
+         * Tells whether the response reports success.
+         */
+        boolean isSuccessful()
+        {
+            return _response.equals("Transaction successful.") || _response.startsWith("Batch transaction successful.");
+        }
+    }
+
+    /**
+     * Parses a flat JSON object with string, number, boolean and null values,
+     * as used for operations. The client has no JSON library.
+     */
+    private static class JsonObjectParser
+    {
+        /**
+         * The JSON text.
+         */
+        private final String _text;
+
+        /**
+         * The index of the next character.
+         */
+        private int _position = 0;
+
+        JsonObjectParser(String text)
+        {
+            _text = text;
+        }
+
+        /**
+         * Returns the fields of the object, values as text.
+         */
+        Map<String, String> parse()
+        {
+            Map<String, String> fields = new HashMap<>();
+            expect('{');
+            if(!consume('}'))
+            {
+                do
+                {
+                    String key = parseString();
+                    expect(':');
+                    fields.put(key, parseValue());
+                }
+                while(consume(','));
+                expect('}');
+            }
+            skipWhitespace();
+            if(_position != _text.length())
+                throw new IllegalArgumentException("Unexpected text after JSON object.");
+            return fields;
+        }
+
+        /**
+         * Parses a string, number, boolean or null value.
+         */
+        private String parseValue()
+        {
+            skipWhitespace();
+            if(_position < _text.length() && _text.charAt(_position) == '"')
+                return parseString();
+            int start = _position;
+            while(_position < _text.length() && "-+.eE0123456789truefalsn".indexOf(_text.charAt(_position)) >= 0)
+                ++_position;
+            String literal = _text.substring(start, _position);
+            if(literal.isEmpty())
+                throw new IllegalArgumentException("Unsupported JSON value at position " + start + ".");
+            return literal.equals("null") ? null : literal;
+        }
+
+        /**
+         * Parses a string literal.
+         */
+        private String parseString()
+        {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while(true)
+            {
+                if(_position >= _text.length())
+                    throw new IllegalArgumentException("Unterminated JSON string.");
+                char c = _text.charAt(_position++);
+                if(c == '"')
+                    return value.toString();
+                if(c != '\\')
+                {
+                    value.append(c);
+                    continue;
+                }
+
+                // Escape sequence
+                if(_position >= _text.length())
+                    throw new IllegalArgumentException("Unterminated JSON string.");
+                char escaped = _text.charAt(_position++);
+                int index = "\"\\/bfnrt".indexOf(escaped);
+                if(index >= 0)
+                    value.append("\"\\/\b\f\n\r\t".charAt(index));
+                else if(escaped == 'u' && _position + 4 <= _text.length())
+                {
+                    try
+                    {
+                        value.append((char)Integer.parseInt(_text.substring(_position, _position + 4), 16));
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        throw new IllegalArgumentException("Invalid JSON escape sequence.");
+                    }
+                    _position += 4;
+                }
+                else
+                    throw new IllegalArgumentException("Invalid JSON escape sequence.");
+            }
+        }
+
+        /**
+         * Skips whitespace and the given character, or fails.
+         */
+        private void expect(char c)
+        {
+            if(!consume(c))
+                throw new IllegalArgumentException("Expected '" + c + "' at position " + _position + ".");
+        }
+
+        /**
+         * Skips whitespace and the given character, if present.
+         */
+        private boolean consume(char c)
+        {
+            skipWhitespace();
+            if(_position < _text.length() && _text.charAt(_position) == c)
+            {
+                ++_position;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Skips whitespace.
+         */
+        private void skipWhitespace()
+        {
+            while(_position < _text.length() && Character.isWhitespace(_text.charAt(_position)))
+                ++_position;
+        }
+    }
+}
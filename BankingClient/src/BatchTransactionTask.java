@@ -0,0 +1,101 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Sends money from the current user to several other users at once. The
+ * server applies either all transfers or none.
+ */
+public class BatchTransactionTask extends Task
+{
+    /**
+     * Tells whether the transfers were applied.
+     */
+    private boolean _successful = false;
+
+    /**
+     * The response of the server.
+     */
+    private String _response;
+
+    /**
+     * Supplies the values asked for.
+     */
+    private TaskInput _input;
+
+    /**
+     * Creates a new batch transaction task.
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
+     */
+    public BatchTransactionTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input)
+    {
+        // Call superclass constructor
+        super(socketInputStream, socketOutputStream, secureSession);
+
+        // Save parameters
+        _input = input;
+    }
+
+    /**
+     * Executes a batch transaction.
+     * 
+     * @throws IOException
+     */
+    public void run() throws IOException
+    {
+        // Read send parameters, one line per transfer
+        int transferCount = Integer.parseInt(_input.next("Number of transfers: "));
+        StringBuilder batchTransactionPacket = new StringBuilder();
+        for(int t = 0; t < transferCount; ++t)
+        {
+            String recipient = _input.next("Recipient name: ");
+            int amount = Integer.parseInt(_input.next("Amount of money (1-10): "));
+            if(t > 0)
+                batchTransactionPacket.append('\n');
+            batchTransactionPacket.append(recipient).append(',').append(amount);
+        }
+
+        // Inform server about batch transaction
+        String prePacket = "batch-transaction";
+        _output.println("Sending batch transaction header packet...");
+        _secureSession.sendPacket(_socketOutputStream, prePacket);
+
+        // Send packet
+        _output.println("Sending batch transaction packet...");
+        _secureSession.sendPacket(_socketOutputStream, batchTransactionPacket.toString());
+
+        // Wait for response packet
+        String batchTransactionResponse = _secureSession.receivePacket(_socketInputStream);
+        _output.println("Server response: " + batchTransactionResponse);
+        _successful = batchTransactionResponse.startsWith("Batch transaction successful.");
+        _response = batchTransactionResponse;
+    }
+
+    /**
+     * Returns whether the transfers were applied.
+     * 
+     * @return Whether the transfers were applied.
+     */
+    public boolean getSuccessful()
+    {
+        return _successful;
+    }
+
+    /**
+     * Returns the response of the server.
+     * 
+     * @return The response message, or null if the task did not get one.
+     */
+    public String getResponse()
+    {
+        return _response;
+    }
+}
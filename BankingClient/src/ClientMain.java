@@ -1,14 +1,24 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.net.UnknownHostException;
 import java.util.Scanner;
 
 public class ClientMain
 {
     /**
-     * Client application entry point.
+     * Client application entry point. With a third argument, the operations
+     * of the given script file ("-" for standard input) are run in batch mode,
+     * see BatchRunner, and the exit code tells whether all succeeded.
      */
     public static void main(String[] args)
     {
@@ -16,17 +26,23 @@ public class ClientMain
         if(args.length < 2)
         {
             // Crash
-            System.out.println("Please provide the server's host name or IP address, and its port.");
+            System.out.println("Please provide the server's host name or IP address, and its port, and optionally a batch script file.");
             return;
         }
+        String scriptFile = args.length >= 3 ? args[2] : null;
 
         Utility.setup();
         
+        // Create crypto state of the connection
+        SecureSession secureSession = new SecureSession();
+
         // Create scanner for terminal input
         Scanner terminalScanner = new Scanner(System.in);
+        TerminalInput terminalInput = new TerminalInput(terminalScanner);
 
-        // Connect to server
-        System.out.println("Connecting to server '" + args[0] + "' on port " + args[1]);
+        // Connect to server, batch mode keeps standard output for results
+        PrintStream messageOutput = scriptFile != null ? System.err : System.out;
+        messageOutput.println("Connecting to server '" + args[0] + "' on port " + args[1]);
         try(Socket socket = new Socket(args[0], Integer.parseInt(args[1])))
         {
             // Get I/O streams
@@ -34,11 +50,31 @@ public class ClientMain
             DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
 
             //Run DHKE
-            DhkeTask dhkeTask = new DhkeTask(inputStream, outputStream);
+            DhkeTask dhkeTask = new DhkeTask(inputStream, outputStream, secureSession);
             dhkeTask.run();
-            
+
+            // Run script, confirmation codes missing in the script are read
+            // from the terminal unless the script comes from there
+            if(scriptFile != null)
+            {
+                // Fail instead of waiting forever for missing responses;
+                // header and argument packets are written separately, do not
+                // let Nagle hold them back for the delayed ACK
+                socket.setSoTimeout(60000);
+                socket.setTcpNoDelay(true);
+                int failures;
+                try(BufferedReader script = new BufferedReader(scriptFile.equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                        : new FileReader(scriptFile), 1 << 16))
+                {
+                    Writer results = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                    TaskInput promptInput = scriptFile.equals("-") ? null : new TerminalInput(terminalScanner, System.err);
+                    failures = new BatchRunner(inputStream, outputStream, secureSession, results, promptInput).run(script);
+                }
+                System.exit(failures > 0 ? 1 : 0);
+            }
+
             // Run login task
-            LoginTask loginTask = new LoginTask(inputStream, outputStream, terminalScanner);
+            LoginTask loginTask = new LoginTask(inputStream, outputStream, secureSession, terminalInput);
             loginTask.run();
             if(!loginTask.getSuccessful())
             {
@@ -51,7 +87,7 @@ public class ClientMain
             while(true)
             {
                 // Show action string
-                System.out.println("What do you want to do?   View balance [b]   Do transaction [t]   Exit [e]");
+                System.out.println("What do you want to do?   View balance [b]   View history [h]   Do transaction [t]   Exit [e]");
                 String action = terminalScanner.next();
                 if(action.length() < 1)
                     continue;
@@ -60,7 +96,13 @@ public class ClientMain
                 case 'b':
                     // Run balance retrieval task
                     System.out.println("Balance retrieval command detected...");
-                    new BalanceTask(inputStream, outputStream).run();
+                    new BalanceTask(inputStream, outputStream, secureSession).run();
+                    break;
+
+                case 'h':
+                    // Run history paging task
+                    System.out.println("History retrieval command detected...");
+                    new HistoryTask(inputStream, outputStream, secureSession, terminalInput).run();
                     break;
 
                 case 't':
@@ -69,7 +111,7 @@ public class ClientMain
                     {
                         // Run registration
                         System.out.println("Starting registration task...");
-                        RegistrationTask registrationTask = new RegistrationTask(inputStream, outputStream, terminalScanner);
+                        RegistrationTask registrationTask = new RegistrationTask(inputStream, outputStream, secureSession, terminalInput);
                         registrationTask.run();
                         if(!registrationTask.getSuccessful())
                             break;
@@ -78,7 +120,7 @@ public class ClientMain
 
                     // Run transaction task
                     System.out.println("Starting transaction task...");
-                    TransactionTask transactionTask = new TransactionTask(inputStream, outputStream, terminalScanner);
+                    TransactionTask transactionTask = new TransactionTask(inputStream, outputStream, secureSession, terminalInput);
                     transactionTask.run();
                     break;
 
@@ -100,6 +142,10 @@ public class ClientMain
             e.printStackTrace();
         }
 
+        // Connection failures fail the whole batch
+        if(scriptFile != null)
+            System.exit(2);
+
     }
 
 }
@@ -20,11 +20,13 @@ public class DhkeTask extends Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
      */
-    public DhkeTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream)
+    public DhkeTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream);
+        super(socketInputStream, socketOutputStream, secureSession);
     }
 
     /**
@@ -45,14 +47,23 @@ public class DhkeTask extends Task
         int dh_base = Integer.parseInt(dhInfo[0]);
         int dh_modulo = Integer.parseInt(dhInfo[1]);
         long serverPart = Long.parseLong(dhInfo[2]);
+
+        // Use the newest packet format both sides support, legacy servers do
+        // not offer a version
+        int protocolVersion = 1;
+        if(dhInfo.length >= 4)
+            protocolVersion = Math.min(Integer.parseInt(dhInfo[3]), SecureSession.PROTOCOL_VERSION_MAX);
         
         do
         _client_dh_secret = new Random().nextInt() % dh_modulo;
         while (_client_dh_secret <= 0);
         
         String dhkeClientPart = "" + (long)(Math.pow(dh_base, _client_dh_secret)) % dh_modulo;
+        if(protocolVersion >= 2)
+            dhkeClientPart += "," + protocolVersion;
         Utility.sendUnencPacket(_socketOutputStream, dhkeClientPart);
         _dh_key = (long)((Math.pow(serverPart, _client_dh_secret) % dh_modulo));
-        Utility.setup(_dh_key);
+        _secureSession.setup(_dh_key);
+        _secureSession.setProtocolVersion(protocolVersion);
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Pages through the user's money history, newest entries first.
+ */
+public class HistoryTask extends Task
+{
+    /**
+     * Supplies the values asked for.
+     */
+    private TaskInput _input;
+
+    /**
+     * Creates a new history retrieval task.
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
+     */
+    public HistoryTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input)
+    {
+        // Call superclass constructor
+        super(socketInputStream, socketOutputStream, secureSession);
+
+        // Save parameters
+        _input = input;
+    }
+
+    /**
+     * Retrieves history pages until the user stops or the oldest entry is
+     * reached.
+     * 
+     * @throws IOException
+     */
+    @Override
+    public void run() throws IOException
+    {
+        // Read page size
+        int pageSize = Integer.parseInt(_input.next("Entries per page (1-500): "));
+
+        long cursor = -1;
+        while(true)
+        {
+            // Request page
+            _output.println("Sending history request packets...");
+            _secureSession.sendPacket(_socketOutputStream, "history");
+            _secureSession.sendPacket(_socketOutputStream, cursor + "," + pageSize);
+
+            // Wait for response packet, the first line is the next cursor
+            String historyResponse = _secureSession.receivePacket(_socketInputStream);
+            int firstLineEnd = historyResponse.indexOf('\n');
+            try
+            {
+                cursor = Long.parseLong(historyResponse.substring(0, Math.max(0, firstLineEnd)));
+            }
+            catch(NumberFormatException e)
+            {
+                _output.println("Server response: " + historyResponse);
+                return;
+            }
+            _output.println("Server send the following history entries:");
+            _output.print(historyResponse.substring(firstLineEnd + 1));
+
+            // Continue with older entries?
+            if(cursor < 0)
+            {
+                _output.println("No older entries.");
+                return;
+            }
+            if(!_input.next("Show older entries? [y/n] ").startsWith("y"))
+                return;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Scanner;
 
 /**
  * Sends login data to the server.
@@ -14,9 +13,14 @@ public class LoginTask extends Task
     private boolean _successful = false;
 
     /**
-     * A scanner object to read terminal input.
+     * The response of the server.
      */
-    private Scanner _terminalScanner;
+    private String _response;
+
+    /**
+     * Supplies the values asked for.
+     */
+    private TaskInput _input;
 
     /**
      * Creates a new login task.
@@ -25,16 +29,18 @@ public class LoginTask extends Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
-     * @param terminalScanner
-     *            A scanner object to read terminal input.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
      */
-    public LoginTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner)
+    public LoginTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream);
+        super(socketInputStream, socketOutputStream, secureSession);
 
         // Save parameters
-        _terminalScanner = terminalScanner;
+        _input = input;
     }
 
     /**
@@ -45,21 +51,18 @@ public class LoginTask extends Task
     public void run() throws IOException
     {
         // Read credentials
-        String name;
-        String password;
-        System.out.print("User: ");
-        name = _terminalScanner.next();
-        System.out.print("Password: ");
-        password = _terminalScanner.next();
+        String name = _input.next("User: ");
+        String password = _input.next("Password: ");
 
         // Send login packet
         String loginPacket = name + "," + password;
-        Utility.sendPacket(_socketOutputStream, loginPacket);
+        _secureSession.sendPacket(_socketOutputStream, loginPacket);
 
         // Wait for response packet
-        String loginResponse = Utility.receivePacket(_socketInputStream);
-        System.out.println("Server response: " + loginResponse);
+        String loginResponse = _secureSession.receivePacket(_socketInputStream);
+        _output.println("Server response: " + loginResponse);
         _successful = loginResponse.equals("Login OK.");
+        _response = loginResponse;
     }
 
     /**
@@ -71,4 +74,14 @@ public class LoginTask extends Task
     {
         return _successful;
     }
+
+    /**
+     * Returns the response of the server.
+     * 
+     * @return The response message, or null if the task did not get one.
+     */
+    public String getResponse()
+    {
+        return _response;
+    }
 }
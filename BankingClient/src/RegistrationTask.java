@@ -17,9 +17,47 @@ public class RegistrationTask extends Task
     private boolean _successful = false;
 
     /**
-     * A scanner object to read terminal input.
+     * The response of the server.
      */
-    private Scanner _terminalScanner;
+    private String _response;
+
+    /**
+     * Supplies the values asked for.
+     */
+    private TaskInput _input;
+
+    /**
+     * The device code used for authentication, or null if unknown.
+     */
+    private String _deviceCode;
+
+    /**
+     * The file storing the device code between runs, or null.
+     */
+    private String _deviceCodeFile;
+
+    /**
+     * The code of the running or last registration, or null.
+     */
+    private String _registrationCode;
+
+    /**
+     * Creates a registration task, which stores the device code in the file
+     * "banking_device.txt".
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
+     */
+    public RegistrationTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input)
+    {
+        this(socketInputStream, socketOutputStream, secureSession, input, null, "banking_device.txt");
+    }
 
     /**
      * Creates a registration task.
@@ -28,16 +66,27 @@ public class RegistrationTask extends Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
-     * @param terminalScanner
-     *            A scanner object to read terminal input.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
+     * @param deviceCode
+     *            The device code to authenticate with, or null to use the
+     *            device code file.
+     * @param deviceCodeFile
+     *            The file storing the device code between runs, or null to
+     *            register a new device unless a device code is given.
      */
-    public RegistrationTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner)
+    public RegistrationTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input, String deviceCode,
+            String deviceCodeFile)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream);
+        super(socketInputStream, socketOutputStream, secureSession);
 
         // Save parameters
-        _terminalScanner = terminalScanner;
+        _input = input;
+        _deviceCode = deviceCode;
+        _deviceCodeFile = deviceCodeFile;
     }
 
     /**
@@ -48,13 +97,12 @@ public class RegistrationTask extends Task
     public void run() throws IOException
     {
         // Check whether an device code has been generated in the past
-        final String deviceCodeFilename = "banking_device.txt";
-        if(new File(deviceCodeFilename).exists())
+        String authenticationCode = _deviceCode;
+        if(authenticationCode == null && _deviceCodeFile != null && new File(_deviceCodeFile).exists())
         {
             // Read device authentication code from file
-            System.out.println("Authentication file detected, reading device code...");
-            String authenticationCode = "";
-            try(Scanner deviceCodeFileScanner = new Scanner(new FileReader(deviceCodeFilename)))
+            _output.println("Authentication file detected, reading device code...");
+            try(Scanner deviceCodeFileScanner = new Scanner(new FileReader(_deviceCodeFile)))
             {
                 authenticationCode = deviceCodeFileScanner.next();
             }
@@ -63,24 +111,27 @@ public class RegistrationTask extends Task
                 e.printStackTrace();
                 return;
             }
-
+        }
+        if(authenticationCode != null)
+        {
             // Inform server about authentication
             String prePacket = "authentication";
-            System.out.println("Sending authentication header packet...");
-            Utility.sendPacket(_socketOutputStream, prePacket);
+            _output.println("Sending authentication header packet...");
+            _secureSession.sendPacket(_socketOutputStream, prePacket);
 
             // Send authentication code
-            System.out.println("Sending authentication code...");
-            Utility.sendPacket(_socketOutputStream, authenticationCode);
+            _output.println("Sending authentication code...");
+            _secureSession.sendPacket(_socketOutputStream, authenticationCode);
 
             // Wait for confirmation by server
-            System.out.println("Waiting for server confirmation...");
-            String serverConfirmation = Utility.receivePacket(_socketInputStream);
-            System.out.println("Server response: " + serverConfirmation);
+            _output.println("Waiting for server confirmation...");
+            String serverConfirmation = _secureSession.receivePacket(_socketInputStream);
+            _output.println("Server response: " + serverConfirmation);
+            _response = serverConfirmation;
             if(!serverConfirmation.equals("Authentication successful."))
             {
                 // Show error
-                System.out.println("Authentication failed. Maybe the device code file is too old or invalid?");
+                _output.println("Authentication failed. Maybe the device code file is too old or invalid?");
                 return;
             }
         }
@@ -88,52 +139,58 @@ public class RegistrationTask extends Task
         {
             // Inform server about registration
             String prePacket = "registration";
-            System.out.println("Sending registration header packet...");
-            Utility.sendPacket(_socketOutputStream, prePacket);
+            _output.println("Sending registration header packet...");
+            _secureSession.sendPacket(_socketOutputStream, prePacket);
 
             // Generate half of registration code
-            System.out.println("Generating and sending registration code part 1/2...");
+            _output.println("Generating and sending registration code part 1/2...");
             String registrationCodePart1 = Utility.getRandomString(4);
-            Utility.sendPacket(_socketOutputStream, registrationCodePart1);
+            _secureSession.sendPacket(_socketOutputStream, registrationCodePart1);
 
             // Receive other half of registration code from server
-            System.out.println("Waiting for registration code part 2/2...");
-            String registrationCodePart2 = Utility.receivePacket(_socketInputStream);
+            _output.println("Waiting for registration code part 2/2...");
+            String registrationCodePart2 = _secureSession.receivePacket(_socketInputStream);
             if(registrationCodePart2.length() != 4)
             {
+                _response = registrationCodePart2;
                 // Output response and stop registration process
-                System.out.println("Received invalid registration code part from server: " + registrationCodePart2);
+                _output.println("Received invalid registration code part from server: " + registrationCodePart2);
                 return;
             }
-            String registrationCode = registrationCodePart1 + registrationCodePart2;
-            System.out.println("Received full registration code.");
+            _registrationCode = registrationCodePart1 + registrationCodePart2;
+            _output.println("Received full registration code.");
 
             // Read confirmation code that the server should have sent via email
-            System.out.print("Confirmation code (check your email): ");
-            String confirmationCode = _terminalScanner.next();
+            String confirmationCode = _input.next("Confirmation code (check your email): ");
 
             // Send confirmation code
-            System.out.println("Sending confirmation code...");
-            Utility.sendPacket(_socketOutputStream, confirmationCode);
+            _output.println("Sending confirmation code...");
+            _secureSession.sendPacket(_socketOutputStream, confirmationCode);
 
             // Wait for confirmation by server
-            System.out.println("Waiting for server confirmation...");
-            String serverConfirmation = Utility.receivePacket(_socketInputStream);
-            System.out.println("Server response: " + serverConfirmation);
+            _output.println("Waiting for server confirmation...");
+            String serverConfirmation = _secureSession.receivePacket(_socketInputStream);
+            _output.println("Server response: " + serverConfirmation);
+            _response = serverConfirmation;
             if(!serverConfirmation.equals("Registration successful."))
                 return;
 
             // Save registration code
-            try(FileWriter deviceCodeFileWriter = new FileWriter(deviceCodeFilename))
-            {
-                deviceCodeFileWriter.write(registrationCode);
-            }
-            catch(IOException e)
+            authenticationCode = _registrationCode;
+            if(_deviceCodeFile != null)
             {
-                e.printStackTrace();
-                return;
+                try(FileWriter deviceCodeFileWriter = new FileWriter(_deviceCodeFile))
+                {
+                    deviceCodeFileWriter.write(_registrationCode);
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                    return;
+                }
             }
         }
+        _deviceCode = authenticationCode;
         _successful = true;
     }
 
@@ -146,4 +203,36 @@ public class RegistrationTask extends Task
     {
         return _successful;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the device code used for the authentication, or registered.
+     * 
+     * @return The device code, or null if the task was not successful.
+     */
+    public String getDeviceCode()
+    {
+        return _successful ? _deviceCode : null;
+    }
+
+    /**
+     * Returns the code of the running or last registration, which consists of
+     * the client and the server part.
+     * 
+     * @return The registration code, or null if no registration code was
+     *         exchanged.
+     */
+    public String getRegistrationCode()
+    {
+        return _registrationCode;
+    }
+
+    /**
+     * Returns the response of the server.
+     * 
+     * @return The response message, or null if the task did not get one.
+     */
+    public String getResponse()
+    {
+        return _response;
+    }
+}
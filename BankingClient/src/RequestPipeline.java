@@ -0,0 +1,183 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Sends pipelined requests (protocol version 4) and matches the responses to
+ * them by correlation ID, so many requests can be in flight on one connection
+ * instead of paying a round trip per operation. Responses are received by the
+ * caller; once no request is in flight, the connection can be used by the
+ * other tasks again. Responses sent in parts, like large balances, are passed
+ * on part by part as they arrive, so no response is held in memory.
+ */
+public class RequestPipeline
+{
+    /**
+     * The socket input stream.
+     */
+    private final DataInputStream _socketInputStream;
+
+    /**
+     * The socket output stream.
+     */
+    private final DataOutputStream _socketOutputStream;
+
+    /**
+     * The crypto state of the connection.
+     */
+    private final SecureSession _secureSession;
+
+    /**
+     * The response handlers of the requests in flight, by request ID.
+     */
+    private final Map<Integer, Consumer<String>> _pendingRequests = new HashMap<>();
+
+    /**
+     * The handlers of the response parts of the requests in flight which
+     * accept responses sent in parts, by request ID.
+     */
+    private final Map<Integer, Consumer<String>> _partHandlers = new HashMap<>();
+
+    /**
+     * The ID of the next request.
+     */
+    private int _nextRequestId = 0;
+
+    /**
+     * Creates a new pipeline for a session after the key exchange.
+     * 
+     * @param socketInputStream
+     *            The socket input stream.
+     * @param socketOutputStream
+     *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
+     */
+    public RequestPipeline(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession)
+    {
+        // Save parameters
+        _socketInputStream = socketInputStream;
+        _socketOutputStream = socketOutputStream;
+        _secureSession = secureSession;
+    }
+
+    /**
+     * Returns whether the server of the given session accepts pipelined
+     * requests.
+     * 
+     * @param secureSession
+     *            The crypto state of the connection, after the key exchange.
+     * @return Whether pipelined requests are supported.
+     */
+    public static boolean isSupported(SecureSession secureSession)
+    {
+        return secureSession.getProtocolVersion() >= 4;
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     * 
+     * @param command
+     *            The command name, like "balance" or "transaction".
+     * @param arguments
+     *            The command arguments, as in the argument packet of the
+     *            command.
+     * @param responseHandler
+     *            Receives the response payload when it arrives.
+     * @throws IOException
+     */
+    public void send(String command, String arguments, Consumer<String> responseHandler) throws IOException
+    {
+        send(command, arguments, null, responseHandler);
+    }
+
+    /**
+     * Sends a request whose response may be sent in parts, without waiting
+     * for the response.
+     * 
+     * @param command
+     *            The command name, like "balance" or "transaction".
+     * @param arguments
+     *            The command arguments, as in the argument packet of the
+     *            command.
+     * @param partHandler
+     *            Receives each part of the response as it arrives, or null if
+     *            the response must not be sent in parts.
+     * @param responseHandler
+     *            Receives the final response payload when it arrives.
+     * @throws IOException
+     */
+    public void send(String command, String arguments, Consumer<String> partHandler, Consumer<String> responseHandler) throws IOException
+    {
+        // IDs stay non-negative when wrapping around
+        int requestId = _nextRequestId;
+        _nextRequestId = (_nextRequestId + 1) & Integer.MAX_VALUE;
+        _pendingRequests.put(requestId, responseHandler);
+        if(partHandler != null)
+            _partHandlers.put(requestId, partHandler);
+        Utility.writePacket(_socketOutputStream, _secureSession.encodeRequest(requestId, command, arguments));
+    }
+
+    /**
+     * Waits for the next final response, and passes it to the handler of its
+     * request. Response parts arriving meanwhile are passed to their part
+     * handlers. Responses may arrive in a different order than the requests
+     * were sent.
+     * 
+     * @throws IOException
+     *             If the connection fails, or the response is invalid or does
+     *             not belong to a request in flight, or is sent in parts to a
+     *             request without part handler.
+     */
+    public void receive() throws IOException
+    {
+        while(true)
+        {
+            // Match response or response part to request
+            byte[] packet = Utility.readPacket(_socketInputStream);
+            boolean partial = SecureSession.isResponseChunk(packet);
+            String response = partial ? _secureSession.decodeResponseChunk(packet) : _secureSession.decodeResponse(packet);
+            int separator = response.indexOf('\n');
+            int requestId = -1;
+            if(separator > 0)
+            {
+                try
+                {
+                    requestId = Integer.parseInt(response.substring(0, separator));
+                }
+                catch(NumberFormatException e)
+                {
+                    // Handled below
+                }
+            }
+            if(!_pendingRequests.containsKey(requestId))
+                throw new IOException("Unexpected response: " + response);
+
+            // Pass on parts until the final response arrives
+            if(partial)
+            {
+                Consumer<String> partHandler = _partHandlers.get(requestId);
+                if(partHandler == null)
+                    throw new IOException("Unexpected response part: " + response);
+                partHandler.accept(response.substring(separator + 1));
+                continue;
+            }
+            _partHandlers.remove(requestId);
+            _pendingRequests.remove(requestId).accept(response.substring(separator + 1));
+            return;
+        }
+    }
+
+    /**
+     * Returns the number of requests whose response has not been received.
+     * 
+     * @return The number of requests in flight.
+     */
+    public int getInFlight()
+    {
+        return _pendingRequests.size();
+    }
+}
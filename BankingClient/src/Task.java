@@ -1,6 +1,7 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 
 /**
  * Defines an action a user can do (like a server login).
@@ -17,6 +18,16 @@ public abstract class Task
      */
     DataOutputStream _socketOutputStream;
 
+    /**
+     * The crypto state of the connection.
+     */
+    SecureSession _secureSession;
+
+    /**
+     * Receives the progress messages and server responses.
+     */
+    PrintStream _output = System.out;
+
     /**
      * Creates a new task.
      * 
@@ -24,12 +35,26 @@ public abstract class Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
+     * @param secureSession
+     *            The crypto state of the connection.
      */
-    public Task(DataInputStream socketInputStream, DataOutputStream socketOutputStream)
+    public Task(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession)
     {
         // Save parameters
         _socketInputStream = socketInputStream;
         _socketOutputStream = socketOutputStream;
+        _secureSession = secureSession;
+    }
+
+    /**
+     * Redirects the progress messages and server responses of this task.
+     * 
+     * @param output
+     *            The stream receiving the messages.
+     */
+    public void setOutput(PrintStream output)
+    {
+        _output = output;
     }
 
     /**
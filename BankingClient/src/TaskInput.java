@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * Supplies the values a task asks for, like user names or amounts. Values come
+ * from the terminal in interactive use, or are provided by a program.
+ */
+public interface TaskInput
+{
+    /**
+     * Returns the next value.
+     * 
+     * @param prompt
+     *            Describes the requested value, like "Recipient name: ".
+     * @return The value, without whitespace.
+     * @throws IOException
+     *             If no more values are available.
+     */
+    String next(String prompt) throws IOException;
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Reads the values of tasks from the terminal, after printing their prompt.
+ */
+public class TerminalInput implements TaskInput
+{
+    /**
+     * A scanner object to read terminal input.
+     */
+    private final Scanner _terminalScanner;
+
+    /**
+     * Receives the prompts.
+     */
+    private final PrintStream _promptOutput;
+
+    /**
+     * Creates a new terminal input, which prints prompts to standard output.
+     * 
+     * @param terminalScanner
+     *            A scanner object to read terminal input.
+     */
+    public TerminalInput(Scanner terminalScanner)
+    {
+        this(terminalScanner, System.out);
+    }
+
+    /**
+     * Creates a new terminal input.
+     * 
+     * @param terminalScanner
+     *            A scanner object to read terminal input.
+     * @param promptOutput
+     *            Receives the prompts.
+     */
+    public TerminalInput(Scanner terminalScanner, PrintStream promptOutput)
+    {
+        _terminalScanner = terminalScanner;
+        _promptOutput = promptOutput;
+    }
+
+    @Override
+    public String next(String prompt) throws IOException
+    {
+        _promptOutput.print(prompt);
+        _promptOutput.flush();
+        try
+        {
+            return _terminalScanner.next();
+        }
+        catch(NoSuchElementException e)
+        {
+            throw new IOException("End of terminal input.", e);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Scanner;
 
 /**
  * Sends money from the current user to another user.
@@ -14,9 +13,14 @@ public class TransactionTask extends Task
     private boolean _successful = false;
 
     /**
-     * A scanner object to read terminal input.
+     * The response of the server.
      */
-    private Scanner _terminalScanner;
+    private String _response;
+
+    /**
+     * Supplies the values asked for.
+     */
+    private TaskInput _input;
 
     /**
      * Creates a new transaction task.
@@ -25,16 +29,18 @@ public class TransactionTask extends Task
      *            The socket input stream.
      * @param socketOutputStream
      *            The socket output stream.
-     * @param terminalScanner
-     *            A scanner object to read terminal input.
+     * @param secureSession
+     *            The crypto state of the connection.
+     * @param input
+     *            Supplies the values asked for.
      */
-    public TransactionTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner)
+    public TransactionTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, SecureSession secureSession, TaskInput input)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream);
+        super(socketInputStream, socketOutputStream, secureSession);
 
         // Save parameters
-        _terminalScanner = terminalScanner;
+        _input = input;
     }
 
     /**
@@ -45,27 +51,24 @@ public class TransactionTask extends Task
     public void run() throws IOException
     {
         // Read send parameters
-        String recipient;
-        int amount;
-        System.out.print("Recipient name: ");
-        recipient = _terminalScanner.next();
-        System.out.print("Amount of money (1-10): ");
-        amount = _terminalScanner.nextInt();
+        String recipient = _input.next("Recipient name: ");
+        int amount = Integer.parseInt(_input.next("Amount of money (1-10): "));
 
         // Inform server about transaction
         String prePacket = "transaction";
-        System.out.println("Sending transaction header packet...");
-        Utility.sendPacket(_socketOutputStream, prePacket);
+        _output.println("Sending transaction header packet...");
+        _secureSession.sendPacket(_socketOutputStream, prePacket);
 
         // Send packet
         String transactionPacket = recipient + "," + amount;
-        System.out.println("Sending transaction packet...");
-        Utility.sendPacket(_socketOutputStream, transactionPacket);
+        _output.println("Sending transaction packet...");
+        _secureSession.sendPacket(_socketOutputStream, transactionPacket);
 
         // Wait for response packet
-        String moneySendResponse = Utility.receivePacket(_socketInputStream);
-        System.out.println("Server response: " + moneySendResponse);
+        String moneySendResponse = _secureSession.receivePacket(_socketInputStream);
+        _output.println("Server response: " + moneySendResponse);
         _successful = moneySendResponse.equals("Transaction successful.");
+        _response = moneySendResponse;
     }
 
     /**
@@ -77,4 +80,14 @@ public class TransactionTask extends Task
     {
         return _successful;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the response of the server.
+     * 
+     * @return The response message, or null if the task did not get one.
+     */
+    public String getResponse()
+    {
+        return _response;
+    }
+}
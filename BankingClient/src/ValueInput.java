@@ -0,0 +1,37 @@
+import java.io.IOException;
+
+/**
+ * Supplies a fixed list of values to a task, like the recipient and amount of
+ * a scripted transaction.
+ */
+public class ValueInput implements TaskInput
+{
+    /**
+     * The values, in the order they are asked for.
+     */
+    private final String[] _values;
+
+    /**
+     * The index of the next value.
+     */
+    private int _nextIndex = 0;
+
+    /**
+     * Creates a new value input.
+     * 
+     * @param values
+     *            The values, in the order they are asked for.
+     */
+    public ValueInput(String... values)
+    {
+        _values = values;
+    }
+
+    @Override
+    public String next(String prompt) throws IOException
+    {
+        if(_nextIndex >= _values.length)
+            throw new IOException("No value given for '" + prompt.trim() + "'.");
+        return _values[_nextIndex++];
+    }
+}
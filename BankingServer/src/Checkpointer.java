@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes snapshots of the database in the background, so
+ * recovery only has to replay the journal records written after the latest
+ * snapshot. Snapshots are named after the database file plus ".snapshot." and
+ * the journal sequence number they contain. Only the newest snapshots are
+ * kept, together with the journal segments needed to recover from them.
+ */
+public class Checkpointer
+{
+    /**
+     * The database being snapshotted.
+     */
+    private Database _database;
+
+    /**
+     * The time between two snapshots.
+     */
+    private long _intervalMillis;
+
+    /**
+     * The number of snapshots kept.
+     */
+    private int _retention;
+
+    /**
+     * Runs the snapshots.
+     */
+    private ScheduledExecutorService _timer;
+
+    /**
+     * The journal sequence number of the latest snapshot.
+     */
+    private long _lastSnapshotSequence;
+
+    /**
+     * Creates a new checkpointer configured by the "bank.snapshotInterval" (in
+     * seconds) and "bank.snapshotRetention" (number of kept snapshots) system
+     * properties.
+     * 
+     * @param database
+     *            The database, which must have an open journal.
+     */
+    public Checkpointer(Database database)
+    {
+        this(database, Long.getLong("bank.snapshotInterval", 300) * 1000, Integer.getInteger("bank.snapshotRetention", 2));
+    }
+
+    /**
+     * Creates a new checkpointer.
+     * 
+     * @param database
+     *            The database, which must have an open journal.
+     * @param intervalMillis
+     *            The time between two snapshots.
+     * @param retention
+     *            The number of snapshots kept.
+     */
+    public Checkpointer(Database database, long intervalMillis, int retention)
+    {
+        // Save parameters
+        _database = database;
+        _intervalMillis = intervalMillis;
+        _retention = Math.max(1, retention);
+        _lastSnapshotSequence = database.getSnapshotSequence();
+    }
+
+    /**
+     * Starts taking snapshots periodically.
+     */
+    public void start()
+    {
+        _timer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "Checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _timer.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                checkpoint();
+            }
+            catch(IOException | RuntimeException e)
+            {
+                // Keep the schedule, which an escaping exception would cancel
+                e.printStackTrace();
+            }
+        }, _intervalMillis, _intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops taking snapshots, and waits for a running snapshot to complete.
+     * 
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException
+    {
+        if(_timer == null)
+            return;
+        _timer.shutdown();
+        _timer.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Writes a new snapshot, if the database has changed since the last one,
+     * and removes snapshots and journal segments that are not needed anymore.
+     * 
+     * @return The new snapshot file, or null if nothing has changed.
+     * @throws IOException
+     */
+    public synchronized Path checkpoint() throws IOException
+    {
+        // Start a new journal segment, the snapshot contains all older records
+        Journal journal = _database.getJournal();
+        long sequence;
+        try
+        {
+            sequence = journal.rotate().get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new IOException("Journal rotation failed.", e);
+        }
+        if(sequence == _lastSnapshotSequence)
+            return null;
+
+        // Write snapshot
+        long startTime = System.currentTimeMillis();
+        Path snapshotFile = getSnapshotFile(_database.getDatabaseFile(), sequence);
+        _database.writeSnapshot(snapshotFile, sequence);
+        _lastSnapshotSequence = sequence;
+        Log.info("Wrote snapshot '" + snapshotFile.getFileName() + "' in " + (System.currentTimeMillis() - startTime) + " ms.");
+
+        // Delete old snapshots, and the journal segments contained in all remaining ones
+        TreeMap<Long, Path> snapshots = listSnapshots(_database.getDatabaseFile());
+        while(snapshots.size() > _retention)
+            Files.deleteIfExists(snapshots.pollFirstEntry().getValue());
+        journal.deleteSegments(snapshots.firstKey());
+        return snapshotFile;
+    }
+
+    /**
+     * Returns the newest snapshot of the given database file.
+     * 
+     * @param databaseFile
+     *            The database file name.
+     * @return The newest snapshot file name, or null if there is none.
+     * @throws IOException
+     */
+    public static String findLatestSnapshot(String databaseFile) throws IOException
+    {
+        TreeMap<Long, Path> snapshots = listSnapshots(databaseFile);
+        return snapshots.isEmpty() ? null : snapshots.lastEntry().getValue().toString();
+    }
+
+    /**
+     * Returns the snapshot file for the given journal sequence number.
+     */
+    private static Path getSnapshotFile(String databaseFile, long sequence)
+    {
+        Path databasePath = Paths.get(databaseFile).toAbsolutePath();
+        return databasePath.resolveSibling(databasePath.getFileName() + ".snapshot." + String.format("%019d", sequence));
+    }
+
+    /**
+     * Returns the snapshots of the given database file, ordered by their
+     * journal sequence number.
+     */
+    private static TreeMap<Long, Path> listSnapshots(String databaseFile) throws IOException
+    {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        Path databasePath = Paths.get(databaseFile).toAbsolutePath();
+        String prefix = databasePath.getFileName() + ".snapshot.";
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(databasePath.getParent(), prefix + "*"))
+        {
+            for(Path file : files)
+            {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if(suffix.length() == 19 && suffix.chars().allMatch(Character::isDigit))
+                    snapshots.put(Long.parseLong(suffix), file);
+            }
+        }
+        return snapshots;
+    }
+}
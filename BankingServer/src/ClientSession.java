@@ -0,0 +1,1136 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implements the server side of the banking protocol for one client connection
+ * as a state machine. The session is driven by received packets and does not
+ * depend on the underlying transport, so it can be used both by the blocking
+ * client threads and by the non-blocking event loops.
+ * 
+ * Clients with protocol version 4 may also send pipelined requests while
+ * waiting for commands. Each request carries its arguments and a correlation
+ * ID, so no argument state is entered, and the response is tagged with the ID.
+ * Transactions are answered once they are durable, so their responses may
+ * overtake each other and those of later requests.
+ */
+public class ClientSession
+{
+    /**
+     * The protocol states of a client session.
+     */
+    private enum State
+    {
+        /**
+         * Waiting for the key exchange request.
+         */
+        DHKE_REQUEST,
+
+        /**
+         * Waiting for the client's part of the key exchange.
+         */
+        DHKE_CLIENT_PART,
+
+        /**
+         * Waiting for the login packet.
+         */
+        LOGIN,
+
+        /**
+         * Waiting for the next command.
+         */
+        COMMAND,
+
+        /**
+         * Waiting for the device code of an authentication command.
+         */
+        AUTHENTICATION,
+
+        /**
+         * Waiting for the first part of the registration ID.
+         */
+        REGISTRATION_CODE,
+
+        /**
+         * Waiting for the confirmation code of a registration.
+         */
+        REGISTRATION_CONFIRMATION,
+
+        /**
+         * Waiting for the parameters of a transaction command.
+         */
+        TRANSACTION,
+
+        /**
+         * Waiting for the cursor and page size of a history command.
+         */
+        HISTORY,
+
+        /**
+         * Waiting for the transfer list of a batch transaction command.
+         */
+        BATCH_TRANSACTION
+    }
+
+    /**
+     * The maximum number of history entries sent per page.
+     */
+    private static final int MAX_HISTORY_PAGE_SIZE = 500;
+
+    /**
+     * The number of history entries per chunk of a streamed balance.
+     */
+    private static final int BALANCE_CHUNK_ENTRIES = 1024;
+
+    /**
+     * The maximum length of a packet sent by a client, taken from the
+     * "bank.maxPacketLength" system property. Longer length prefixes close the
+     * connection before any memory is allocated for them.
+     */
+    public static final int MAX_PACKET_LENGTH = Integer.getInteger("bank.maxPacketLength", 1 << 20);
+
+    /**
+     * The maximum number of transfers in a batch transaction, taken from the
+     * "bank.maxBatchTransfers" system property.
+     */
+    private static final int MAX_BATCH_TRANSFERS = Integer.getInteger("bank.maxBatchTransfers", 1000);
+
+    /**
+     * Time to handle a packet, per protocol state; command packets are
+     * recorded per command instead.
+     */
+    private static final LatencyHistogram[] STATE_LATENCY = new LatencyHistogram[State.values().length];
+
+    /**
+     * Time to dispatch a command, per known command and for unknown ones.
+     */
+    private static final LatencyHistogram[] COMMAND_LATENCY = new LatencyHistogram[7];
+
+    /**
+     * The commands with their own latency histogram, the last entry collects
+     * unknown commands.
+     */
+    private static final String[] COMMANDS = { "balance", "history", "authentication", "registration", "transaction", "batch-transaction", "unknown" };
+
+    static
+    {
+        for(State state : State.values())
+            if(state != State.COMMAND)
+                STATE_LATENCY[state.ordinal()] = Metrics.histogram("bank_request_seconds", "Time to handle a protocol step, per session state.",
+                        "state=\"" + state.name().toLowerCase() + "\"");
+        for(int c = 0; c < COMMANDS.length; ++c)
+            COMMAND_LATENCY[c] = Metrics.histogram("bank_command_seconds", "Time to dispatch a command.", "command=\"" + COMMANDS[c] + "\"");
+    }
+
+    /**
+     * The sink receiving the packets for the client.
+     */
+    private PacketSink _sink;
+
+    /**
+     * The database containing user data.
+     */
+    private Database _database;
+
+    /**
+     * Delays replies to failed logins.
+     */
+    private LoginThrottle _loginThrottle;
+
+    /**
+     * Delivers the confirmation e-mails.
+     */
+    private SideEffectDispatcher _sideEffects;
+
+    /**
+     * The address of the client, used for login throttling.
+     */
+    private String _sourceAddress;
+
+    /**
+     * The crypto state of this connection.
+     */
+    private SecureSession _secureSession = new SecureSession();
+
+    /**
+     * The Diffie-Hellman secret of the server for the running key exchange.
+     */
+    private int _serverDhSecret;
+
+    /**
+     * The current protocol state.
+     */
+    private State _state = State.DHKE_REQUEST;
+
+    /**
+     * The ID of the user that logged in.
+     */
+    private int _userId = -1;
+
+    /**
+     * True if a key has been exchanged between client and server
+     */
+    private boolean _keyExchanged = false;
+
+    /**
+     * Determines whether the client device has been authenticated.
+     */
+    private boolean _deviceAuthenticated = false;
+
+    /**
+     * The confirmation code of the currently running registration.
+     */
+    private String _confirmationCode;
+
+    /**
+     * Guards the streaming state and the encoding and handing over of single
+     * packets, so packets sent by other threads while a response is streamed
+     * are held back until the stream has ended.
+     */
+    private final ReentrantLock _sendLock = new ReentrantLock();
+
+    /**
+     * The number of streamed responses being sent or waiting to be sent;
+     * pipelined requests may queue several.
+     */
+    private int _openStreams = 0;
+
+    /**
+     * Payloads sent while a response is streamed, with the ID of the pipelined
+     * request they answer or -1. They are encoded when they are sent, so
+     * packet counters stay in sending order.
+     */
+    private ArrayDeque<Tuple<Integer, String>> _deferredPayloads = new ArrayDeque<>();
+
+    /**
+     * Set while the delayed reply to a login is waiting on the timer. Packets
+     * received meanwhile are dropped, so pipelined commands cannot reveal the
+     * outcome of the login before the reply does. Cleared while holding the
+     * send lock, right after the reply has been handed over.
+     */
+    private volatile boolean _loginPending = false;
+
+    /**
+     * Creates a new session for a freshly connected client.
+     * 
+     * @param context
+     *            The server components.
+     * @param sourceAddress
+     *            The address of the client.
+     * @param sink
+     *            The sink receiving the packets for the client.
+     */
+    public ClientSession(ServerContext context, String sourceAddress, PacketSink sink)
+    {
+        // Save parameters
+        _database = context.getDatabase();
+        _loginThrottle = context.getLoginThrottle();
+        _sideEffects = context.getSideEffects();
+        _sourceAddress = sourceAddress;
+        _sink = sink;
+    }
+
+    /**
+     * Processes the given packet received from the client, and advances the
+     * protocol state.
+     * 
+     * @param packet
+     *            The received packet contents (without length prefix).
+     * @throws IOException
+     */
+    public void handlePacket(byte[] packet) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        Metrics.BYTES_RECEIVED.add(4 + packet.length);
+        if(isLoginPending())
+        {
+            Log.warn("Dropping packet received before the login reply.");
+            return;
+        }
+        State state = _state;
+        switch(state)
+        {
+        case DHKE_REQUEST:
+            handleDhkeRequest(Utility.decodeUnencPacket(packet));
+            break;
+
+        case DHKE_CLIENT_PART:
+            handleDhkeClientPart(Utility.decodeUnencPacket(packet));
+            break;
+
+        case LOGIN:
+            handleLogin(decode(packet));
+            break;
+
+        case COMMAND:
+            if(_secureSession.getProtocolVersion() >= 4 && SecureSession.isRequest(packet))
+                handleRequest(decodeRequest(packet));
+            else
+                handleCommand(decode(packet));
+            break;
+
+        case AUTHENTICATION:
+            handleAuthentication(decode(packet));
+            break;
+
+        case REGISTRATION_CODE:
+            handleRegistrationCode(decode(packet));
+            break;
+
+        case REGISTRATION_CONFIRMATION:
+            handleRegistrationConfirmation(decode(packet));
+            break;
+
+        case TRANSACTION:
+            handleTransaction(decode(packet));
+            break;
+
+        case HISTORY:
+            handleHistory(decode(packet));
+            break;
+
+        case BATCH_TRANSACTION:
+            handleBatchTransaction(decode(packet));
+            break;
+        }
+        if(state != State.COMMAND)
+            STATE_LATENCY[state.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Checks and decrypts the given packet contents, and records the time
+     * spent.
+     */
+    private String decode(byte[] packet)
+    {
+        long startNanos = System.nanoTime();
+        String payload = _secureSession.decodePacket(packet);
+        Metrics.DECRYPT.recordSince(startNanos);
+        return payload;
+    }
+
+    /**
+     * Checks and decrypts the given pipelined request, and records the time
+     * spent.
+     */
+    private String decodeRequest(byte[] packet)
+    {
+        long startNanos = System.nanoTime();
+        String request = _secureSession.decodeRequest(packet);
+        Metrics.DECRYPT.recordSince(startNanos);
+        return request;
+    }
+
+    /**
+     * Encrypts the given payload, as response to the given pipelined request
+     * unless the request ID is -1, and records the time spent.
+     */
+    private byte[] encode(int requestId, String payload)
+    {
+        long startNanos = System.nanoTime();
+        byte[] packet = requestId >= 0 ? _secureSession.encodeResponse(requestId, payload) : _secureSession.encodePacket(payload);
+        Metrics.ENCRYPT.recordSince(startNanos);
+        return packet;
+    }
+
+    /**
+     * Returns the ID of the user that logged in, or -1.
+     * 
+     * @return The ID of the user that logged in, or -1.
+     */
+    public int getUserId()
+    {
+        return _userId;
+    }
+
+    /**
+     * Sends the given payload as an encrypted packet.
+     * 
+     * @param payload
+     *            The string payload to be sended.
+     * @throws IOException
+     */
+    private void send(String payload) throws IOException
+    {
+        respond(-1, payload);
+    }
+
+    /**
+     * Sends the given payload as response to the given pipelined request.
+     * 
+     * @param requestId
+     *            The ID of the request, or -1 to send a plain packet.
+     * @param payload
+     *            The string payload to be sended.
+     * @throws IOException
+     */
+    private void respond(int requestId, String payload) throws IOException
+    {
+        // Encode and hand over the packet while holding the lock, so packets
+        // reach the sink in counter order and a stream cannot start in between
+        _sendLock.lock();
+        try
+        {
+            if(_openStreams > 0)
+            {
+                _deferredPayloads.add(new Tuple<>(requestId, payload));
+                return;
+            }
+            _sink.writePacket(encode(requestId, payload));
+        }
+        finally
+        {
+            _sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the given login reply as an encrypted packet after the given
+     * delay, using the timer of the login throttle. The timer thread only
+     * encodes the reply and hands it to the sink, which queues it without
+     * touching the socket. Packets received until then are dropped.
+     * 
+     * @param payload
+     *            The string payload to be sended.
+     * @param delayMillis
+     *            The delay in milliseconds, 0 sends the reply directly.
+     * @throws IOException
+     */
+    private void sendLoginReply(String payload, long delayMillis) throws IOException
+    {
+        if(delayMillis <= 0)
+        {
+            send(payload);
+            return;
+        }
+        _loginPending = true;
+        _loginThrottle.schedule(delayMillis, () ->
+        {
+            // Queue the reply, the sink writes it on its own thread
+            _sendLock.lock();
+            try
+            {
+                sendLater(payload);
+                _loginPending = false;
+            }
+            finally
+            {
+                _sendLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Returns whether the delayed reply to a login has not been handed over
+     * yet. The flag is checked again under the send lock, so a packet the
+     * client sent after seeing the reply is never dropped.
+     */
+    private boolean isLoginPending()
+    {
+        if(!_loginPending)
+            return false;
+        _sendLock.lock();
+        try
+        {
+            return _loginPending;
+        }
+        finally
+        {
+            _sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the given payload as an encrypted packet from a thread other than
+     * the session's one, ignoring a closed connection.
+     * 
+     * @param payload
+     *            The string payload to be sended.
+     */
+    private void sendLater(String payload)
+    {
+        respondLater(-1, payload);
+    }
+
+    /**
+     * Sends the given payload as response to the given pipelined request from
+     * a thread other than the session's one, ignoring a closed connection.
+     * 
+     * @param requestId
+     *            The ID of the request, or -1 to send a plain packet.
+     * @param payload
+     *            The string payload to be sended.
+     */
+    private void respondLater(int requestId, String payload)
+    {
+        try
+        {
+            respond(requestId, payload);
+        }
+        catch(IOException e)
+        {
+            // Client is gone
+        }
+    }
+
+    /**
+     * Answers the Diffie-Hellman Key Exchange request of the client. The
+     * newest supported packet format version is offered as an additional
+     * field, which legacy clients ignore.
+     * 
+     * @param dhkeRequest
+     *            The request packet payload.
+     * @throws IOException
+     */
+    private void handleDhkeRequest(String dhkeRequest) throws IOException
+    {
+        // Send dhke information
+        if(dhkeRequest.equals("HELO"))
+        {
+            _serverDhSecret = _database.newDhkeSecret();
+            String dhkeMessage = _database.getDhkeMessage(_serverDhSecret) + "," + SecureSession.PROTOCOL_VERSION_MAX;
+            _sink.writePacket(Utility.encodeUnencPacket(dhkeMessage));
+        }
+        _state = State.DHKE_CLIENT_PART;
+    }
+
+    /**
+     * Completes the Diffie-Hellman Key Exchange with the client's part to get a
+     * key for further encryption. Clients supporting newer packet formats append
+     * the chosen version, else the legacy format is used.
+     * 
+     * @param dhkeClientPart
+     *            The client part packet payload.
+     */
+    private void handleDhkeClientPart(String dhkeClientPart)
+    {
+        // Split packet
+        String[] dhkeClientPartParts = dhkeClientPart.split(",");
+        int clientPart = Integer.parseInt(dhkeClientPartParts[0]);
+        int protocolVersion = 1;
+        if(dhkeClientPartParts.length >= 2)
+            protocolVersion = Math.max(1, Math.min(Integer.parseInt(dhkeClientPartParts[1]), SecureSession.PROTOCOL_VERSION_MAX));
+
+        // Save the generated key
+        if(clientPart >= 0 && clientPart < _database.getDhkeModulo())
+        {
+            _secureSession.setup(_database.getDhkeKey(clientPart, _serverDhSecret));
+            _secureSession.setProtocolVersion(protocolVersion);
+            _keyExchanged = true;
+        }
+        _state = State.LOGIN;
+    }
+
+    /**
+     * Executes the login protocol. The reply is delayed by the login throttle
+     * without blocking the session. Logins of an account from a source whose
+     * last failure is still delayed are rejected without checking the password
+     * and without counting as failures.
+     * 
+     * @param loginRequest
+     *            The login packet payload.
+     * @throws IOException
+     */
+    private void handleLogin(String loginRequest) throws IOException
+    {
+        // Split packet
+        String[] loginRequestParts = loginRequest.split(",");
+        if(loginRequestParts.length < 2)
+        {
+            send("Invalid login packet format.");
+            _userId = -1;
+        }
+        else
+        {
+            String name = loginRequestParts[0];
+            String password = loginRequestParts[1];
+
+            // Check login, unless this account is still refused for this source
+            long refusalDelayMillis = _loginThrottle.getRefusalDelay(name, _sourceAddress);
+            if(refusalDelayMillis > 0)
+            {
+                _userId = -1;
+                sendLoginReply("Login invalid.", refusalDelayMillis);
+            }
+            else
+            {
+                _userId = _database.verifyLogin(name, password);
+                if(_userId == -1)
+                    sendLoginReply("Login invalid.", _loginThrottle.registerFailure(name, _sourceAddress));
+                else
+                    sendLoginReply("Login OK.", _loginThrottle.registerSuccess(name, _sourceAddress));
+            }
+        }
+
+        // Repeat key exchange and login protocol until login is valid
+        if(_userId == -1 && !_keyExchanged)
+        {
+            _state = State.DHKE_REQUEST;
+            return;
+        }
+        Log.info("User " + _userId + " logged in.");
+        _state = State.COMMAND;
+    }
+
+    /**
+     * Dispatches the given command.
+     * 
+     * @param command
+     *            The command packet payload.
+     * @throws IOException
+     */
+    private void handleCommand(String command) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        if(Log.isEnabled(Log.Level.DEBUG))
+            Log.debug("User " + _userId + " sent command '" + command + "'.");
+        int commandIndex = COMMANDS.length - 1;
+        if(command.equals("balance"))
+        {
+            sendBalance(-1);
+            commandIndex = 0;
+        }
+        else if(command.equals("history"))
+        {
+            _state = State.HISTORY;
+            commandIndex = 1;
+        }
+        else if(command.equals("authentication"))
+        {
+            _state = State.AUTHENTICATION;
+            commandIndex = 2;
+        }
+        else if(command.equals("registration"))
+        {
+            _state = State.REGISTRATION_CODE;
+            commandIndex = 3;
+        }
+        else if(command.equals("transaction"))
+        {
+            // Check authentication
+            if(!_deviceAuthenticated)
+                Log.warn("User " + _userId + " requested transaction without device authentication.");
+            else
+                _state = State.TRANSACTION;
+            commandIndex = 4;
+        }
+        else if(command.equals("batch-transaction"))
+        {
+            // Check authentication
+            if(!_deviceAuthenticated)
+                Log.warn("User " + _userId + " requested batch transaction without device authentication.");
+            else
+                _state = State.BATCH_TRANSACTION;
+            commandIndex = 5;
+        }
+        COMMAND_LATENCY[commandIndex].recordSince(startNanos);
+    }
+
+    /**
+     * Executes the given pipelined request, and answers it with the same
+     * correlation ID. The registration of a new device is split into the
+     * "registration" request with the first part of the registration ID, and
+     * the "confirmation" request with the confirmation code.
+     * 
+     * @param request
+     *            The request packet payload.
+     * @throws IOException
+     */
+    private void handleRequest(String request) throws IOException
+    {
+        long startNanos = System.nanoTime();
+
+        // Split request into ID, command and arguments
+        String[] requestParts = request.split("\n", 3);
+        int requestId = requestParts.length == 3 ? parseRequestId(requestParts[0]) : -1;
+        if(requestId < 0)
+        {
+            // Without ID the response cannot be matched
+            Log.warn("User " + _userId + " sent invalid request.");
+            return;
+        }
+        String command = requestParts[1];
+        String arguments = requestParts[2];
+        if(Log.isEnabled(Log.Level.DEBUG))
+            Log.debug("User " + _userId + " sent request " + requestId + " '" + command + "'.");
+
+        // Dispatch command
+        int commandIndex = COMMANDS.length - 1;
+        if(command.equals("balance"))
+        {
+            sendBalance(requestId);
+            commandIndex = 0;
+        }
+        else if(command.equals("history"))
+        {
+            respond(requestId, getHistoryPage(arguments));
+            commandIndex = 1;
+        }
+        else if(command.equals("authentication"))
+        {
+            respond(requestId, authenticateDevice(arguments));
+            commandIndex = 2;
+        }
+        else if(command.equals("registration"))
+        {
+            String registrationIdPart2 = registerDevice(arguments);
+            respond(requestId, registrationIdPart2 != null ? registrationIdPart2 : "Invalid registration packet format.");
+            commandIndex = 3;
+        }
+        else if(command.equals("confirmation"))
+        {
+            respond(requestId, confirmRegistration(arguments));
+            commandIndex = 3;
+        }
+        else if(command.equals("transaction"))
+        {
+            // Check authentication, the client waits for a response
+            if(!_deviceAuthenticated)
+            {
+                Log.warn("User " + _userId + " requested transaction without device authentication.");
+                respond(requestId, "Device not authenticated.");
+            }
+            else
+                sendMoney(arguments).thenAccept(response -> respondLater(requestId, response));
+            commandIndex = 4;
+        }
+        else if(command.equals("batch-transaction"))
+        {
+            if(!_deviceAuthenticated)
+            {
+                Log.warn("User " + _userId + " requested batch transaction without device authentication.");
+                respond(requestId, "Device not authenticated.");
+            }
+            else
+                sendMoneyBatch(arguments).thenAccept(response -> respondLater(requestId, response));
+            commandIndex = 5;
+        }
+        else
+            respond(requestId, "Unknown command.");
+        COMMAND_LATENCY[commandIndex].recordSince(startNanos);
+    }
+
+    /**
+     * Parses the correlation ID of a pipelined request.
+     * 
+     * @param requestId
+     *            The ID as sent by the client.
+     * @return The non-negative ID, or -1 if it is invalid.
+     */
+    private static int parseRequestId(String requestId)
+    {
+        try
+        {
+            return Math.max(-1, Integer.parseInt(requestId));
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the balance to the current user. Clients supporting protocol
+     * version 3 receive it as stream, in parts of a bounded number of history
+     * entries; as response to a pipelined request, the parts are tagged with
+     * the request ID.
+     * 
+     * @param requestId
+     *            The ID of the pipelined request, or -1.
+     * @throws IOException
+     */
+    private void sendBalance(int requestId) throws IOException
+    {
+        // Stream balance?
+        if(_secureSession.getProtocolVersion() >= 3)
+        {
+            _sendLock.lock();
+            try
+            {
+                ++_openStreams;
+            }
+            finally
+            {
+                _sendLock.unlock();
+            }
+            _sink.writeStream(new BalanceStream(requestId));
+            return;
+        }
+
+        // Send balance string
+        respond(requestId, getBalance());
+    }
+
+    /**
+     * Returns the balance of the current user as a single payload.
+     * 
+     * @return The amount of money and the history.
+     */
+    private String getBalance()
+    {
+        String balance = "Amount of money: " + _database.getMoney(_userId) + "\n";
+        balance += _database.getUserMoneyHistory(_userId);
+        return balance;
+    }
+
+    /**
+     * Sends one page of the current user's history, newest entries first. The
+     * request contains the cursor (only entries with a smaller sequence number
+     * are sent, -1 starts at the newest entry) and the page size. The first
+     * line of the reply is the cursor of the next page, or -1 if there are no
+     * older entries.
+     * 
+     * @param historyRequest
+     *            The history packet payload.
+     * @throws IOException
+     */
+    private void handleHistory(String historyRequest) throws IOException
+    {
+        _state = State.COMMAND;
+        send(getHistoryPage(historyRequest));
+    }
+
+    /**
+     * Returns the history page of the current user requested by the given
+     * history packet payload, or an error message.
+     * 
+     * @param historyRequest
+     *            The cursor and the page size.
+     * @return The reply to the history request.
+     */
+    private String getHistoryPage(String historyRequest)
+    {
+        // Split packet
+        String[] historyRequestParts = historyRequest.split(",");
+        if(historyRequestParts.length != 2)
+            return "Invalid history packet format.";
+
+        // Parse cursor and page size
+        long beforeSequence;
+        int pageSize;
+        try
+        {
+            beforeSequence = Long.parseLong(historyRequestParts[0]);
+            if(beforeSequence < 0)
+                beforeSequence = Long.MAX_VALUE;
+            pageSize = Math.max(1, Math.min(Integer.parseInt(historyRequestParts[1]), MAX_HISTORY_PAGE_SIZE));
+        }
+        catch(NumberFormatException e)
+        {
+            return "Invalid number format.";
+        }
+
+        // Get page
+        return _database.getUserMoneyHistoryPage(_userId, beforeSequence, pageSize);
+    }
+
+    /**
+     * Checks the device code of an authentication command.
+     * 
+     * @param deviceCode
+     *            The device code packet payload.
+     * @throws IOException
+     */
+    private void handleAuthentication(String deviceCode) throws IOException
+    {
+        _state = State.COMMAND;
+        send(authenticateDevice(deviceCode));
+    }
+
+    /**
+     * Checks the given device code, and authenticates the device on success.
+     * 
+     * @param deviceCode
+     *            The device code.
+     * @return The reply to the authentication.
+     */
+    private String authenticateDevice(String deviceCode)
+    {
+        // Check device code
+        if(!_database.userHasDevice(_userId, deviceCode))
+            return "Authentication failed.";
+        _deviceAuthenticated = true;
+        Log.info("User " + _userId + " successfully authenticated.");
+        return "Authentication successful.";
+    }
+
+    /**
+     * Handles the registration ID part of the client, and sends out the
+     * confirmation code.
+     * 
+     * @param registrationIdPart1
+     *            The registration ID part 1 packet payload.
+     * @throws IOException
+     */
+    private void handleRegistrationCode(String registrationIdPart1) throws IOException
+    {
+        _state = State.COMMAND;
+        String registrationIdPart2 = registerDevice(registrationIdPart1);
+        if(registrationIdPart2 == null)
+            return;
+
+        // Send registration ID part 2 packet, and wait for client
+        // confirmation code
+        send(registrationIdPart2);
+        _state = State.REGISTRATION_CONFIRMATION;
+    }
+
+    /**
+     * Adds a new device with the given registration ID part of the client, and
+     * sends out the confirmation code.
+     * 
+     * @param registrationIdPart1
+     *            The registration ID part of the client.
+     * @return The registration ID part of the server, or null if the client's
+     *         part is invalid.
+     */
+    private String registerDevice(String registrationIdPart1)
+    {
+        if(registrationIdPart1.length() != 4)
+            return null;
+
+        // Generate registration ID part 2
+        String registrationIdPart2 = Utility.getRandomString(4);
+        String registrationId = registrationIdPart1 + registrationIdPart2;
+        _database.addUserDevice(_userId, registrationId);
+
+        // Send confirmation code via e-mail in the background, and display it
+        // in server terminal outside of the lab
+        _confirmationCode = registrationId.substring(2, 6);
+        _sideEffects.submit(SideEffect.mail(_database.getUserEmail(_userId), "Confirmation code", "Your confirmation code: " + _confirmationCode));
+        if(!Utility.LAB_MODE)
+            Log.info("Generated confirmation code: " + _confirmationCode);
+        return registrationIdPart2;
+    }
+
+    /**
+     * Checks the confirmation code of a registration.
+     * 
+     * @param clientConfirmationCode
+     *            The confirmation code packet payload.
+     * @throws IOException
+     */
+    private void handleRegistrationConfirmation(String clientConfirmationCode) throws IOException
+    {
+        _state = State.COMMAND;
+        send(confirmRegistration(clientConfirmationCode));
+    }
+
+    /**
+     * Checks the confirmation code of the running registration, and
+     * authenticates the device on success.
+     * 
+     * @param clientConfirmationCode
+     *            The confirmation code sent by the client.
+     * @return The reply to the confirmation.
+     */
+    private String confirmRegistration(String clientConfirmationCode)
+    {
+        boolean confirmed = clientConfirmationCode.equals(_confirmationCode);
+        _confirmationCode = null;
+        if(!confirmed)
+            return "Registration failed.";
+        _deviceAuthenticated = true;
+        Log.info("User " + _userId + " successfully registered a new device (and authenticated).");
+        return "Registration successful.";
+    }
+
+    /**
+     * Handles a transaction issued by the current user. The result is sent
+     * once the transfer is durable.
+     * 
+     * @param transactionRequest
+     *            The transaction packet payload.
+     * @throws IOException
+     */
+    private void handleTransaction(String transactionRequest) throws IOException
+    {
+        _state = State.COMMAND;
+        sendMoney(transactionRequest).thenAccept(this::sendLater);
+    }
+
+    /**
+     * Sends money as requested by the given transaction packet payload.
+     * 
+     * @param transactionRequest
+     *            The recipient and the amount of money.
+     * @return A future completed with the reply to the transaction once the
+     *         transfer is durable, or right away if the request is invalid.
+     */
+    private CompletableFuture<String> sendMoney(String transactionRequest)
+    {
+        // Split packet
+        String[] transactionRequestParts = transactionRequest.split(",");
+        if(transactionRequestParts.length != 2)
+            return CompletableFuture.completedFuture("Invalid transaction packet format.");
+        String recipient = transactionRequestParts[0];
+
+        // Parse and check money amount parameter
+        int amount = 0;
+        try
+        {
+            // Parse
+            amount = Integer.parseInt(transactionRequestParts[1]);
+
+            // Check range
+            if(amount < 0 || amount > 10)
+                amount = 10;
+        }
+        catch(NumberFormatException e)
+        {
+            return CompletableFuture.completedFuture("Invalid number format.");
+        }
+
+        // Send money, acknowledge when durable
+        return _database.sendMoneyAsync(_userId, recipient, amount).handle((success, ex) -> ex == null && success ? "Transaction successful." : "Transaction failed.");
+    }
+
+    /**
+     * Handles a batch transaction issued by the current user. The result is
+     * sent once the transfers are durable.
+     * 
+     * @param batchTransactionRequest
+     *            The batch transaction packet payload.
+     * @throws IOException
+     */
+    private void handleBatchTransaction(String batchTransactionRequest) throws IOException
+    {
+        _state = State.COMMAND;
+        sendMoneyBatch(batchTransactionRequest).thenAccept(this::sendLater);
+    }
+
+    /**
+     * Sends money as requested by the given batch transaction packet payload,
+     * which contains one "recipient,amount" line per transfer. Either all
+     * transfers are applied or none. The first line of the reply tells
+     * whether the batch was applied, followed by the result of each transfer.
+     * 
+     * @param batchTransactionRequest
+     *            The transfer lines.
+     * @return A future completed with the reply to the batch transaction once
+     *         the transfers are durable, or right away if the batch is
+     *         rejected.
+     */
+    private CompletableFuture<String> sendMoneyBatch(String batchTransactionRequest)
+    {
+        // Split packet
+        String[] transfers = batchTransactionRequest.split("\n");
+        if(transfers.length > MAX_BATCH_TRANSFERS)
+            return CompletableFuture.completedFuture("Too many transfers, at most " + MAX_BATCH_TRANSFERS + " are allowed.");
+        String[] recipients = new String[transfers.length];
+        int[] amounts = new int[transfers.length];
+        for(int t = 0; t < transfers.length; ++t)
+        {
+            String[] transferParts = transfers[t].split(",");
+            if(transferParts.length != 2)
+                return CompletableFuture.completedFuture("Invalid batch transaction packet format.");
+            recipients[t] = transferParts[0];
+
+            // Amounts outside the range of a single transaction are rejected
+            // instead of being capped
+            try
+            {
+                amounts[t] = Integer.parseInt(transferParts[1]);
+                if(amounts[t] > 10)
+                    amounts[t] = -1;
+            }
+            catch(NumberFormatException e)
+            {
+                amounts[t] = -1;
+            }
+        }
+
+        // Send money, acknowledge when durable
+        return _database.sendMoneyBatchAsync(_userId, recipients, amounts).handle((results, ex) ->
+        {
+            StringBuilder reply = new StringBuilder(ex == null && results[0] == Database.TransferResult.OK ? "Batch transaction successful." : "Batch transaction failed.");
+            for(int t = 0; t < transfers.length; ++t)
+                reply.append('\n').append(ex == null ? results[t].name() : "FAILED");
+            return reply.toString();
+        });
+    }
+
+    /**
+     * Produces the packets of a streamed balance: the amount of money and the
+     * history in chunks, the end marker, and then the payloads which were sent
+     * while streaming. Each chunk is read from the database only when the
+     * previous one has been handed to the connection. For a pipelined request
+     * the chunks are response chunks, and the end marker is an empty response.
+     */
+    private class BalanceStream implements PacketStream
+    {
+        /**
+         * The ID of the pipelined request, or -1.
+         */
+        private final int _requestId;
+
+        /**
+         * The sequence number of the next history entry, or -1 if the history
+         * is complete.
+         */
+        private long _nextSequence = 0;
+
+        /**
+         * Whether the first chunk has been sent.
+         */
+        private boolean _started = false;
+
+        /**
+         * Whether the end marker has been sent.
+         */
+        private boolean _ended = false;
+
+        /**
+         * Creates a new balance stream.
+         * 
+         * @param requestId
+         *            The ID of the pipelined request, or -1.
+         */
+        BalanceStream(int requestId)
+        {
+            _requestId = requestId;
+        }
+
+        @Override
+        public byte[] nextPacket()
+        {
+            // Next chunk, starting with the amount of money
+            if(_nextSequence >= 0)
+            {
+                StringBuilder chunk = new StringBuilder();
+                if(!_started)
+                {
+                    chunk.append("Amount of money: ").append(_database.getMoney(_userId)).append('\n');
+                    _started = true;
+                }
+                _nextSequence = _database.appendUserMoneyHistory(_userId, _nextSequence, BALANCE_CHUNK_ENTRIES, chunk);
+                long startNanos = System.nanoTime();
+                byte[] packet = _requestId >= 0 ? _secureSession.encodeResponseChunk(_requestId, chunk.toString())
+                        : _secureSession.encodeChunk(chunk.toString());
+                Metrics.ENCRYPT.recordSince(startNanos);
+                return packet;
+            }
+            if(!_ended)
+            {
+                _ended = true;
+                return _requestId >= 0 ? _secureSession.encodeResponse(_requestId, "") : _secureSession.encodeStreamEnd();
+            }
+
+            // Send held back payloads, then stop streaming
+            _sendLock.lock();
+            try
+            {
+                Tuple<Integer, String> payload = _deferredPayloads.poll();
+                if(payload != null)
+                    return encode(payload.x, payload.y);
+                --_openStreams;
+                return null;
+            }
+            finally
+            {
+                _sendLock.unlock();
+            }
+        }
+    }
+}
@@ -3,22 +3,30 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Date;
-import java.util.Properties;
-
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
-
-import com.sun.mail.smtp.SMTPTransport;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Handles a client connection.
+ * Handles a client connection. Packets are queued and written by the session
+ * thread after each handled packet; packets sent from other threads, like the
+ * journal writer or the login throttle timer, are written by a pooled writer
+ * thread, so a client that stops reading never blocks them.
  */
-public class ClientThread implements Runnable
+public class ClientThread implements Runnable, PacketSink
 {
+    /**
+     * Writes the packets sent from threads other than the session threads.
+     */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r ->
+    {
+        Thread thread = new Thread(r, "ClientWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * The underlying client socket.
      */
@@ -35,38 +43,49 @@ public class ClientThread implements Runnable
     private DataOutputStream _clientSocketOutputStream;
 
     /**
-     * The database containing user data.
+     * The server components.
+     */
+    private ServerContext _context;
+
+    /**
+     * Serializes writes to the output stream, since packets are written by
+     * the session thread and by writer threads.
      */
-    private Database _database;
+    private final ReentrantLock _writeLock = new ReentrantLock();
 
     /**
-     * The ID of the user that logged in.
+     * Packets waiting to be written, in the order they were encoded.
      */
-    private int _userId = -1;
+    private final ConcurrentLinkedQueue<byte[]> _outputQueue = new ConcurrentLinkedQueue<>();
 
     /**
-     * True if a key has been exchanged between client and server
+     * Whether a writer thread has been asked to write the queued packets.
      */
-    private boolean _keyExchanged = false;
-    
+    private final AtomicBoolean _flushScheduled = new AtomicBoolean();
+
     /**
-     * Determines whether the client device has been authenticated.
+     * The thread running the session.
      */
-    private boolean _deviceAuthenticated = false;
+    private volatile Thread _sessionThread;
+
+    /**
+     * The protocol state machine of this client.
+     */
+    private ClientSession _session;
 
     /**
      * Creates a new thread that processes the given client socket.
      * 
      * @param clientSocket
      *            The socket of the new client.
-     * @param database
-     *            The database containing user data.
+     * @param context
+     *            The server components.
      */
-    public ClientThread(Socket clientSocket, Database database)
+    public ClientThread(Socket clientSocket, ServerContext context)
     {
         // Save parameters
         _clientSocket = clientSocket;
-        _database = database;
+        _context = context;
     }
 
     /**
@@ -75,51 +94,23 @@ public class ClientThread implements Runnable
     @Override
     public void run()
     {
-        Utility.safePrintln("Client thread started on port " + _clientSocket.getLocalPort() + ".");
+        Log.debug("Client thread started on port " + _clientSocket.getLocalPort() + ".");
+        _sessionThread = Thread.currentThread();
+        Metrics.CONNECTIONS_TOTAL.increment();
+        Metrics.CONNECTIONS_ACTIVE.increment();
         try
         {
             // Get send and receive streams
             _clientSocketInputStream = new DataInputStream(_clientSocket.getInputStream());
             _clientSocketOutputStream = new DataOutputStream(_clientSocket.getOutputStream());
 
-            // Repeat key exchange and login protocol until login is valid
-            do {
-            	dhke();
-                _userId = runLogin();
-            }
-            while(_userId == -1 && !_keyExchanged);
-            Utility.safePrintln("User " + _userId + " logged in.");
-
             // Run until connection is closed
+            String sourceAddress = _clientSocket.getInetAddress().getHostAddress();
+            _session = new ClientSession(_context, sourceAddress, this);
             while(!_clientSocket.isClosed())
             {
-                // Check for commands
-                String command = Utility.receivePacket(_clientSocketInputStream);
-                Utility.safePrintln("User " + _userId + " sent command '" + command + "'.");
-                if(command.equals("balance"))
-                    sendBalance();
-                else if(command.equals("authentication"))
-                {
-                    // Run authentication
-                    runAuthentication();
-                    if(_deviceAuthenticated)
-                        Utility.safePrintln("User " + _userId + " successfully authenticated.");
-                }
-                else if(command.equals("registration"))
-                {
-                    // Run registration
-                    doRegistration();
-                    if(_deviceAuthenticated)
-                        Utility.safePrintln("User " + _userId + " successfully registered a new device (and authenticated).");
-                }
-                else if(command.equals("transaction"))
-                {
-                    // Check authentication
-                    if(!_deviceAuthenticated)
-                        Utility.safePrintln("User " + _userId + " requested transaction without device authentication.");
-                    else
-                        handleTransaction();
-                }
+                _session.handlePacket(Utility.readPacket(_clientSocketInputStream, ClientSession.MAX_PACKET_LENGTH));
+                flush();
             }
         }
         catch(EOFException e)
@@ -132,7 +123,7 @@ public class ClientThread implements Runnable
         }
         finally
         {
-            Utility.safePrintln("Doing cleanup...");
+            Log.debug("Doing cleanup...");
             try
             {
                 // Clean up resources
@@ -144,205 +135,83 @@ public class ClientThread implements Runnable
             {
                 e.printStackTrace();
             }
-            Utility.safePrintln("Cleanup complete.");
+            Metrics.CONNECTIONS_ACTIVE.decrement();
+            Log.debug("Cleanup complete.");
         }
     }
 
     /**
-     * Performs a Diffie-Hellman Key Exchange with the client
-     * To get a key for further encryption
-     */
-    public void dhke() throws IOException {
-    	// Wait for dhke request
-    	String dhkeRequest = Utility.receiveUnencPacket(_clientSocketInputStream);
-    	
-    	//Send dhke information
-    	if (dhkeRequest.equals("HELO"))
-    		Utility.sendUnencPacket(_clientSocketOutputStream, _database.getDhkeMessage());
-    	
-    	//Wait for clients dhke part
-    	String dhkeClientPart = Utility.receiveUnencPacket(_clientSocketInputStream);
-    	
-    	//save the generated key
-    	if(Integer.parseInt(dhkeClientPart) >= 0 
-    			&& Integer.parseInt(dhkeClientPart) < _database.getDhkeModulo()) {
-    		_database.setDhkeKey(Integer.parseInt(dhkeClientPart));
-    		_keyExchanged = true;
-    	}
-    }
-    
-    /**
-     * Executes the login protocol and returns the ID of the user.
+     * Queues the given packet for sending. May be called from any thread, only
+     * the session thread writes it itself, after handling the current packet.
      * 
-     * @return The ID of the user that logged in.
-     * @throws IOException
+     * @param packet
+     *            The encoded packet contents.
      */
-    public int runLogin() throws IOException
-    {
-        // Wait for login packet
-        String loginRequest = Utility.receivePacket(_clientSocketInputStream);
-
-        // Split packet
-        String[] loginRequestParts = loginRequest.split(",");
-        if(loginRequestParts.length < 2)
-        {
-            Utility.sendPacket(_clientSocketOutputStream, "Invalid login packet format.");
-            return -1;
-        }
-        String name = loginRequestParts[0];
-        String password = loginRequestParts[1];
-
-        // Check login
-        int userId = _database.verifyLogin(name, password);
-        if(userId == -1)
-            Utility.sendPacket(_clientSocketOutputStream, "Login invalid.");
-        else
-            Utility.sendPacket(_clientSocketOutputStream, "Login OK.");
-        return userId;
-    }
-
-    /**
-     * Sends the balance to the current user.
-     * 
-     * @throws IOException
-     */
-    public void sendBalance() throws IOException
+    @Override
+    public void writePacket(byte[] packet)
     {
-        // Build balance string
-        String balance = "Amount of money: " + _database.getMoney(_userId) + "\n";
-        balance += _database.getUserMoneyHistory(_userId);
-
-        // Send balance string
-        Utility.sendPacket(_clientSocketOutputStream, balance);
+        _outputQueue.add(packet);
+        if(Thread.currentThread() != _sessionThread && _flushScheduled.compareAndSet(false, true))
+            WRITERS.execute(this::flushLater);
     }
 
     /**
-     * Executes the authentication protocol.
+     * Writes the packets of the given stream, each one before the next one is
+     * produced. Called by the session thread.
      * 
+     * @param stream
+     *            The packet stream.
      * @throws IOException
      */
-    public void runAuthentication() throws IOException
+    @Override
+    public void writeStream(PacketStream stream) throws IOException
     {
-        // Wait for authentication packet
-        String deviceCode = Utility.receivePacket(_clientSocketInputStream);
-
-        // Check device code
-        if(_database.userHasDevice(_userId, deviceCode))
+        byte[] packet;
+        while((packet = stream.nextPacket()) != null)
         {
-            // Send success message
-            Utility.sendPacket(_clientSocketOutputStream, "Authentication successful.");
-            _deviceAuthenticated = true;
+            _outputQueue.add(packet);
+            flush();
         }
-        else
-            Utility.sendPacket(_clientSocketOutputStream, "Authentication failed.");
     }
 
     /**
-     * Handles the registration of a client device for the current user.
+     * Writes the queued packets in order.
      * 
      * @throws IOException
      */
-    public void doRegistration() throws IOException
+    private void flush() throws IOException
     {
-        // Wait for registration ID part 1 packet
-        String registrationIdPart1 = Utility.receivePacket(_clientSocketInputStream);
-        if(registrationIdPart1.length() != 4)
-            return;
-
-        // Generate and send registration ID part 2 packet
-        String registrationIdPart2 = Utility.getRandomString(4);
-        Utility.sendPacket(_clientSocketOutputStream, registrationIdPart2);
-        String registrationId = registrationIdPart1 + registrationIdPart2;
-        _database.addUserDevice(_userId, registrationId);
-
-        // Send confirmation code via e-mail or display it in server terminal
-        String confirmationCode = registrationId.substring(2, 6);
-        if(Utility.LAB_MODE)
+        _writeLock.lock();
+        try
         {
-            try
-            {
-                // Create mail session
-                Properties props = System.getProperties();
-                props.put("mail.smtps.host", "localhost");
-                props.put("mail.smtps.auth", "true");
-                Session session = Session.getInstance(props, null);
-
-                // Create message
-                Message msg = new MimeMessage(session);
-                msg.setFrom(new InternetAddress("its@its-bank"));
-                msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse(_database.getUserEmail(_userId), false));
-                msg.setSubject("Confirmation code");
-                msg.setText("Your confirmation code: " + confirmationCode);
-                msg.setHeader("X-Mailer", "ITS-BankServer");
-                msg.setSentDate(new Date());
-
-                // Send message
-                SMTPTransport t = (SMTPTransport)session.getTransport("smtp");
-                t.connect("localhost", "test@its-bank", "test");
-                t.sendMessage(msg, msg.getAllRecipients());
-                Utility.safePrintln("Confirmation code sent. [SMTP response: " + t.getLastServerResponse() + "]");
-                t.close();
-            }
-            catch(MessagingException ex)
+            byte[] packet;
+            while((packet = _outputQueue.poll()) != null)
             {
-                ex.printStackTrace();
+                Utility.writePacket(_clientSocketOutputStream, packet);
+                Metrics.BYTES_SENT.add(4 + packet.length);
             }
         }
-        else
-            Utility.safePrintln("Generated confirmation code: " + confirmationCode);
-
-        // Wait for client confirmation code
-        String clientConfirmationCode = Utility.receivePacket(_clientSocketInputStream);
-        if(clientConfirmationCode.equals(confirmationCode))
+        finally
         {
-            // Update database, send success message
-            Utility.sendPacket(_clientSocketOutputStream, "Registration successful.");
-            _deviceAuthenticated = true;
+            _writeLock.unlock();
         }
-        else
-            Utility.sendPacket(_clientSocketOutputStream, "Registration failed.");
     }
 
     /**
-     * Handles a transaction issued by the current user.
-     * 
-     * @throws IOException
+     * Writes the queued packets on a writer thread, ignoring a closed
+     * connection.
      */
-    public void handleTransaction() throws IOException
+    private void flushLater()
     {
-        // Wait for transaction packet
-        String transactionRequest = Utility.receivePacket(_clientSocketInputStream);
-
-        // Split packet
-        String[] transactionRequestParts = transactionRequest.split(",");
-        if(transactionRequestParts.length != 2)
-        {
-            Utility.sendPacket(_clientSocketOutputStream, "Invalid transaction packet format.");
-            return;
-        }
-        String recipient = transactionRequestParts[0];
-
-        // Parse and check money amount parameter
-        int amount = 0;
+        _flushScheduled.set(false);
         try
         {
-            // Parse
-            amount = Integer.parseInt(transactionRequestParts[1]);
-
-            // Check range
-            if(amount < 0 || amount > 10)
-                amount = 10;
+            flush();
         }
-        catch(NumberFormatException e)
+        catch(IOException e)
         {
-            Utility.sendPacket(_clientSocketOutputStream, "Invalid number format.");
-            return;
+            // Client is gone, the session thread cleans up
+            _outputQueue.clear();
         }
-
-        // Send money
-        if(_database.sendMoney(_userId, recipient, amount))
-            Utility.sendPacket(_clientSocketOutputStream, "Transaction successful.");
-        else
-            Utility.sendPacket(_clientSocketOutputStream, "Transaction failed.");
     }
-}
+}
\ No newline at end of file
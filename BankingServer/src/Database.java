@@ -1,29 +1,47 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonReader;
-import javax.json.JsonWriter;
-import javax.net.ssl.HttpsURLConnection;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 
 /**
  * Contains and manages user data. This class is thread safe.
  */
 public class Database
 {
+    /**
+     * The number of user objects handed to a loader thread at once.
+     */
+    private static final int LOAD_BATCH_SIZE = 4096;
+
     /**
      * The JSON file the database is stored in.
      */
@@ -43,52 +61,163 @@ public class Database
      * The modulo for the Diffie-Hellman Key Exchange
      */
     private int _dh_modulo;
-    
+
     /**
-     * The Diffie-Hellman secret of the server.
+     * Contains the user data like name, password in device list. The index of
+     * a user is his/her ID. When the database is opened from an image, users
+     * are null until they are first accessed (see getUser()).
      */
-    private int _server_dh_secret;
-    
+    private AtomicReferenceArray<UserData> _users;
+
+    /**
+     * The number of users.
+     */
+    private int _userCount = 0;
+
+    /**
+     * Maps normalized user names (see normalizeName()) to user IDs. Built while
+     * loading and maintained by addUser(), read without locking afterwards.
+     * Null when the database is opened from an image, which has its own index.
+     */
+    private HashMap<String, Integer> _userIdsByName;
+
+    /**
+     * The mapped database image the users are read from, or null if the
+     * database was loaded from JSON.
+     */
+    private DatabaseImage _image;
+
+    /**
+     * Guards the mutable user data (money, history, devices). User i is
+     * guarded by lock i modulo the number of locks, so operations on unrelated
+     * users do not contend, and reads only take the shared lock. Explicit locks
+     * instead of monitors keep sessions on virtual threads from pinning their
+     * carrier thread.
+     */
+    private final ReentrantReadWriteLock[] _userLocks = createUserLocks();
+
+    /**
+     * Journal record type of a transfer: source ID, target ID, amount.
+     */
+    private static final byte JOURNAL_TRANSFER = 1;
+
+    /**
+     * Journal record type of a new device: user ID, device code length, device
+     * code (UTF-8).
+     */
+    private static final byte JOURNAL_DEVICE = 2;
+
+    /**
+     * Journal record type of a batch transfer, applied as a whole: source ID,
+     * number of transfers, and target ID and amount per transfer.
+     */
+    private static final byte JOURNAL_TRANSFER_BATCH = 3;
+
+    /**
+     * The results of the single transfers of a batch transfer.
+     */
+    public enum TransferResult
+    {
+        /**
+         * The money was transferred.
+         */
+        OK,
+
+        /**
+         * There is no user with the given name.
+         */
+        UNKNOWN_RECIPIENT,
+
+        /**
+         * The amount is not positive.
+         */
+        INVALID_AMOUNT,
+
+        /**
+         * The source user does not have enough money left for this and the
+         * preceding transfers.
+         */
+        INSUFFICIENT_FUNDS,
+
+        /**
+         * The transfer is valid, but was not applied since the batch as a
+         * whole was rejected.
+         */
+        NOT_APPLIED
+    }
+
     /**
-     * The Diffie-hellman key for encryption
+     * The journal mutations are appended to, or null if changes are kept in
+     * memory only.
      */
-    private long _dh_key;
+    private Journal _journal;
 
     /**
-     * Contains the user data like name, password in device list.
+     * Time spent checking logins.
      */
-    private LinkedList<UserData> _users;
+    private static final LatencyHistogram VERIFY_LOGIN_LATENCY = Metrics.histogram("bank_database_seconds", "Time spent in database operations.", "op=\"verify_login\"");
 
     /**
-     * Loads the given database JSON file.
+     * Time spent sending money, until the transfer is journaled.
+     */
+    private static final LatencyHistogram SEND_MONEY_LATENCY = Metrics.histogram("bank_database_seconds", "Time spent in database operations.", "op=\"send_money\"");
+
+    /**
+     * Time transfers wait for the locks of both users.
+     */
+    private static final LatencyHistogram SEND_MONEY_LOCK_WAIT = Metrics.histogram("bank_lock_wait_seconds", "Time spent waiting for user locks.", "op=\"send_money\"");
+
+    /**
+     * Time spent sending the money of a batch transfer, until it is journaled.
+     */
+    private static final LatencyHistogram SEND_MONEY_BATCH_LATENCY = Metrics.histogram("bank_database_seconds", "Time spent in database operations.",
+            "op=\"send_money_batch\"");
+
+    /**
+     * Time batch transfers wait for the locks of all involved users.
+     */
+    private static final LatencyHistogram SEND_MONEY_BATCH_LOCK_WAIT = Metrics.histogram("bank_lock_wait_seconds", "Time spent waiting for user locks.",
+            "op=\"send_money_batch\"");
+
+    /**
+     * Delivers the token grants caused by transfers, or null if no grants are
+     * sent.
+     */
+    private SideEffectDispatcher _sideEffects;
+
+    /**
+     * The journal sequence number up to which all changes are contained in the
+     * loaded file, if it is a snapshot.
+     */
+    private long _snapshotSequence = 0;
+
+    /**
+     * Loads the given database JSON file or image.
      */
     public Database(String databaseFile)
     {
-        // Open JSON file
+        this(databaseFile, databaseFile);
+    }
+
+    /**
+     * Loads the given database from the given snapshot file.
+     * 
+     * @param databaseFile
+     *            The database file name, which journal and snapshot file names
+     *            are derived from.
+     * @param snapshotFile
+     *            The JSON file or image the data is read from.
+     */
+    public Database(String databaseFile, String snapshotFile)
+    {
+        // Map binary image, or stream JSON file
         _databaseFile = databaseFile;
-        try(InputStream jsonFileStream = new FileInputStream(databaseFile))
-        {
-            // Retrieve root object
-            JsonReader jsonReader = Json.createReader(jsonFileStream);
-            JsonObject rootObj = jsonReader.readObject();
-
-            // Read server configuration
-            _serverPort = rootObj.getInt("port");
-            
-            // Read Diffie_Hellman base
-            _dh_base = rootObj.getInt("dh_base");
-            
-            // Read Diffie_Hellman modulo
-            _dh_modulo = rootObj.getInt("dh_modulo");
-            
-            // Read user data
-            _users = new LinkedList<>();
-            JsonArray usersArr = rootObj.getJsonArray("users");
-            for(JsonObject userDataObj : usersArr.getValuesAs(JsonObject.class))
-                _users.add(new UserData(userDataObj));
-
-            // Release reader resources
-            jsonReader.close();
+        try
+        {
+            if(DatabaseImage.isImage(snapshotFile))
+                openImage(snapshotFile);
+            else
+                loadJson(snapshotFile);
         }
         catch(FileNotFoundException e)
         {
@@ -106,58 +235,664 @@ public class Database
     private Database()
     {
         // Initialize empty user list
-        _users = new LinkedList<>();
+        _users = new AtomicReferenceArray<>(8);
+        _userIdsByName = new HashMap<>();
     }
 
     /**
-     * Saves the database. Use only for generation.
+     * Reads the given database JSON file with a streaming parser. The user
+     * objects are parsed in batches, which are turned into user data by a pool
+     * of "bank.loadThreads" threads (default: number of cores). Only a bounded
+     * number of batches is in flight, so the memory needed for loading does
+     * not grow with the file size.
+     * 
+     * @param jsonFile
+     *            The JSON file name.
+     * @throws IOException
      */
-    private void Save()
+    private void loadJson(String jsonFile) throws IOException
+    {
+        int threadCount = Math.max(1, Integer.getInteger("bank.loadThreads", Runtime.getRuntime().availableProcessors()));
+        ExecutorService loaders = Executors.newFixedThreadPool(threadCount, r ->
+        {
+            Thread thread = new Thread(r, "DatabaseLoader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try(JsonParser parser = Json.createParser(new FileInputStream(jsonFile)))
+        {
+            // Read root object
+            if(parser.next() != JsonParser.Event.START_OBJECT)
+                throw new IOException("'" + jsonFile + "' is no database file.");
+            _users = new AtomicReferenceArray<>(LOAD_BATCH_SIZE);
+            _userIdsByName = new HashMap<>();
+            while(parser.next() == JsonParser.Event.KEY_NAME)
+            {
+                String key = parser.getString();
+                JsonParser.Event event = parser.next();
+                switch(key)
+                {
+                    case "port":
+                        _serverPort = parser.getInt();
+                        break;
+                    case "dh_base":
+                        _dh_base = parser.getInt();
+                        break;
+                    case "dh_modulo":
+                        _dh_modulo = parser.getInt();
+                        break;
+                    case "journalseq":
+                        // Journal position of snapshots
+                        _snapshotSequence = parser.getLong();
+                        break;
+                    case "users":
+                        if(event != JsonParser.Event.START_ARRAY)
+                            throw new IOException("'" + jsonFile + "' has no user list.");
+                        loadUsers(parser, loaders, 2 * threadCount);
+                        break;
+                    default:
+                        if(event == JsonParser.Event.START_OBJECT)
+                            parser.skipObject();
+                        else if(event == JsonParser.Event.START_ARRAY)
+                            parser.skipArray();
+                }
+            }
+        }
+        finally
+        {
+            loaders.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the user objects of the user list the parser is positioned in, and
+     * adds them in file order.
+     * 
+     * @param parser
+     *            The parser, positioned after the start of the user list.
+     * @param loaders
+     *            The threads turning user objects into user data.
+     * @param maxPendingBatches
+     *            The maximum number of batches in flight.
+     * @throws IOException
+     */
+    private void loadUsers(JsonParser parser, ExecutorService loaders, int maxPendingBatches) throws IOException
+    {
+        ArrayDeque<Future<Tuple<UserData[], String[]>>> pendingBatches = new ArrayDeque<>();
+        ArrayList<JsonObject> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        JsonParser.Event event;
+        while((event = parser.next()) == JsonParser.Event.START_OBJECT)
+        {
+            batch.add(parser.getObject());
+            if(batch.size() < LOAD_BATCH_SIZE)
+                continue;
+
+            // Hand over full batch, wait for the oldest one if too many are pending
+            pendingBatches.add(loaders.submit(createLoadTask(batch)));
+            batch = new ArrayList<>(LOAD_BATCH_SIZE);
+            if(pendingBatches.size() > maxPendingBatches)
+                addUsers(pendingBatches.poll());
+        }
+        if(event != JsonParser.Event.END_ARRAY)
+            throw new IOException("User list contains a non-object value.");
+        if(!batch.isEmpty())
+            pendingBatches.add(loaders.submit(createLoadTask(batch)));
+        while(!pendingBatches.isEmpty())
+            addUsers(pendingBatches.poll());
+    }
+
+    /**
+     * Returns a task turning the given user objects into user data and
+     * normalized names.
+     */
+    private static Callable<Tuple<UserData[], String[]>> createLoadTask(ArrayList<JsonObject> batch)
+    {
+        return () ->
+        {
+            UserData[] users = new UserData[batch.size()];
+            String[] normalizedNames = new String[batch.size()];
+            for(int u = 0; u < users.length; ++u)
+            {
+                users[u] = new UserData(batch.get(u));
+                normalizedNames[u] = normalizeName(users[u].getName());
+            }
+            return new Tuple<>(users, normalizedNames);
+        };
+    }
+
+    /**
+     * Waits for the given batch and adds its users.
+     */
+    private void addUsers(Future<Tuple<UserData[], String[]>> pendingBatch) throws IOException
+    {
+        Tuple<UserData[], String[]> batch;
+        try
+        {
+            batch = pendingBatch.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading the database was interrupted.", e);
+        }
+        catch(ExecutionException e)
+        {
+            // Malformed user objects fail like before
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+        for(int u = 0; u < batch.x.length; ++u)
+            addUser(batch.x[u], batch.y[u]);
+    }
+
+    /**
+     * Maps the given database image. Users are decoded on first access.
+     * 
+     * @param imageFile
+     *            The image file name.
+     * @throws IOException
+     */
+    private void openImage(String imageFile) throws IOException
+    {
+        _image = new DatabaseImage(imageFile);
+        _serverPort = _image.getServerPort();
+        _dh_base = _image.getDhBase();
+        _dh_modulo = _image.getDhModulo();
+        _snapshotSequence = _image.getJournalSequence();
+        _userCount = _image.getUserCount();
+        _users = new AtomicReferenceArray<>(_userCount);
+    }
+
+    /**
+     * Creates the user lock stripes. Their number is a power of two, taken from
+     * the "bank.lockStripes" system property or derived from the number of
+     * cores.
+     * 
+     * @return The user lock stripes.
+     */
+    private static ReentrantReadWriteLock[] createUserLocks()
+    {
+        int stripeCount = Integer.getInteger("bank.lockStripes", 64 * Runtime.getRuntime().availableProcessors());
+        stripeCount = Integer.highestOneBit(Math.max(1, Math.min(stripeCount, 1 << 16)));
+        ReentrantReadWriteLock[] userLocks = new ReentrantReadWriteLock[stripeCount];
+        for(int i = 0; i < stripeCount; ++i)
+            userLocks[i] = new ReentrantReadWriteLock();
+        return userLocks;
+    }
+
+    /**
+     * Returns the lock guarding the given user.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return The lock guarding the given user.
+     */
+    private ReentrantReadWriteLock getUserLock(int userId)
+    {
+        return _userLocks[userId & (_userLocks.length - 1)];
+    }
+
+    /**
+     * Appends the given user and adds him/her to the name index. Only used
+     * while the database is being built.
+     * 
+     * @param userData
+     *            The new user.
+     */
+    private void addUser(UserData userData)
+    {
+        addUser(userData, normalizeName(userData.getName()));
+    }
+
+    /**
+     * Adds the given user, whose name was already normalized.
+     * 
+     * @param userData
+     *            The new user.
+     * @param normalizedName
+     *            The user's normalized name (see normalizeName()).
+     */
+    private void addUser(UserData userData, String normalizedName)
+    {
+        // Grow user list
+        if(_userCount == _users.length())
+        {
+            AtomicReferenceArray<UserData> users = new AtomicReferenceArray<>(Math.max(8, 2 * _userCount));
+            for(int u = 0; u < _userCount; ++u)
+                users.set(u, _users.get(u));
+            _users = users;
+        }
+
+        // If names collide, the first user keeps the name
+        _userIdsByName.putIfAbsent(normalizedName, _userCount);
+        _users.set(_userCount++, userData);
+    }
+
+    /**
+     * Returns the given user. Users of an image are decoded on first access;
+     * if two threads race, only one decoded object is published, so all
+     * changes go to the same object.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return The user.
+     */
+    private UserData getUser(int userId)
+    {
+        UserData userData = _users.get(userId);
+        if(userData == null)
+        {
+            userData = _image.readUser(userId);
+            if(!_users.compareAndSet(userId, null, userData))
+                userData = _users.get(userId);
+        }
+        return userData;
+    }
+
+    /**
+     * Returns the given user without publishing a decoded image user, so
+     * writing snapshots does not fill the memory. The caller must hold the
+     * user's lock, so the image data is not outdated by a concurrent change.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return The user, which must not be modified.
+     */
+    private UserData peekUser(int userId)
+    {
+        UserData userData = _users.get(userId);
+        if(userData == null)
+            return _image.readUser(userId);
+        return userData;
+    }
+
+    /**
+     * Returns the name of the given user, without decoding an image user.
+     * Names never change and need no lock.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return The user's name.
+     */
+    private String getUserName(int userId)
+    {
+        UserData userData = _users.get(userId);
+        if(userData == null)
+            return _image.readUserName(userId);
+        return userData.getName();
+    }
+
+    /**
+     * Returns the given name in the form used as name index key. Two names
+     * yield the same key exactly if they are equal when ignoring case (in the
+     * sense of String.equalsIgnoreCase()).
+     * 
+     * @param name
+     *            The user name.
+     * @return The normalized user name.
+     */
+    static String normalizeName(String name)
+    {
+        // Fast path for names that are already lower case ASCII
+        int i = 0;
+        while(i < name.length() && name.charAt(i) < 128 && !Character.isUpperCase(name.charAt(i)))
+            ++i;
+        if(i == name.length())
+            return name;
+
+        // Fold case the same way equalsIgnoreCase() compares characters
+        StringBuilder normalized = new StringBuilder(name.length());
+        normalized.append(name, 0, i);
+        for(; i < name.length(); ++i)
+            normalized.append(Character.toLowerCase(Character.toUpperCase(name.charAt(i))));
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the ID of the user with the given name (ignoring case). Does not
+     * need the user lock, since the index is not modified after loading.
+     * 
+     * @param name
+     *            The user name.
+     * @return The ID of the user, or -1 if there is no such user.
+     */
+    int findUserId(String name)
+    {
+        if(_image != null)
+            return _image.findUserId(normalizeName(name));
+        Integer userId = _userIdsByName.get(normalizeName(name));
+        return userId == null ? -1 : userId;
+    }
+
+    /**
+     * Replays and opens the journal configured by the "bank.journal" (file
+     * name, defaults to the database file name plus ".journal"),
+     * "bank.journalCommit" (sync, group or async) and
+     * "bank.journalMaxDelayMicros" system properties.
+     * 
+     * @throws IOException
+     */
+    public void openJournal() throws IOException
+    {
+        String journalFile = System.getProperty("bank.journal", _databaseFile + ".journal");
+        Journal.CommitPolicy policy = Journal.CommitPolicy.valueOf(System.getProperty("bank.journalCommit", "group").toUpperCase());
+        openJournal(journalFile, policy, Long.getLong("bank.journalMaxDelayMicros", 100));
+    }
+
+    /**
+     * Applies the mutations recorded in the given journal file, and appends
+     * all further mutations to it. Must be called before serving clients.
+     * 
+     * @param journalFile
+     *            The journal file name.
+     * @param policy
+     *            The commit policy.
+     * @param maxDelayMicros
+     *            The maximum time a record waits before it is forced, in
+     *            microseconds.
+     * @throws IOException
+     */
+    public void openJournal(String journalFile, Journal.CommitPolicy policy, long maxDelayMicros) throws IOException
+    {
+        Journal journal = new Journal(journalFile, policy, maxDelayMicros);
+        long recordCount = journal.replay(_snapshotSequence, this::applyJournalRecord);
+        Log.info("Replayed " + recordCount + " journal records from '" + journalFile + "', " + policy.name().toLowerCase() + " commit.");
+        _journal = journal;
+    }
+
+    /**
+     * Writes the outstanding journal records and closes the journal.
+     * 
+     * @throws IOException
+     */
+    public void closeJournal() throws IOException
+    {
+        if(_journal != null)
+            _journal.close();
+        _journal = null;
+    }
+
+    /**
+     * Returns the journal, or null if changes are kept in memory only.
+     * 
+     * @return The journal, or null.
+     */
+    public Journal getJournal()
+    {
+        return _journal;
+    }
+
+    /**
+     * Sets the dispatcher delivering the token grants caused by transfers.
+     * 
+     * @param sideEffects
+     *            The side effect dispatcher, or null if no grants are sent.
+     */
+    public void setSideEffectDispatcher(SideEffectDispatcher sideEffects)
+    {
+        _sideEffects = sideEffects;
+    }
+
+    /**
+     * Returns the database file name.
+     * 
+     * @return The database file name.
+     */
+    public String getDatabaseFile()
+    {
+        return _databaseFile;
+    }
+
+    /**
+     * Returns the journal sequence number up to which all changes are
+     * contained in the loaded file.
+     * 
+     * @return The journal sequence number of the loaded snapshot, or 0.
+     */
+    public long getSnapshotSequence()
+    {
+        return _snapshotSequence;
+    }
+
+    /**
+     * Applies a replayed journal record to the users it has not been applied
+     * to yet, according to their journal sequence numbers. Runs before clients
+     * are served, so no locks are needed.
+     */
+    private void applyJournalRecord(long sequence, byte type, DataInputStream payload) throws IOException
     {
-        Utility.safePrintln("Saving database...");
-        synchronized(_users)
+        switch(type)
         {
-            // Retrieve user data
-            JsonArrayBuilder usersArrayBuilder = Json.createArrayBuilder();
-            for(UserData userData : _users)
-                usersArrayBuilder.add(userData.toJson());
+        case JOURNAL_TRANSFER:
+            int sourceUserId = payload.readInt();
+            int targetUserId = payload.readInt();
+            int amount = payload.readInt();
 
-            // Build root object
-            JsonObjectBuilder rootObjBuilder = Json.createObjectBuilder();
-            rootObjBuilder.add("port", _serverPort);
-            rootObjBuilder.add("dh_base", _dh_base);
-            rootObjBuilder.add("dh_modulo", _dh_modulo);
-            rootObjBuilder.add("users", usersArrayBuilder.build());
+            // Decide for both users before advancing their sequence numbers,
+            // since source and target may be the same user
+            UserData source = getUser(sourceUserId);
+            UserData target = getUser(targetUserId);
+            boolean applyToSource = sequence > source.getJournalSequence();
+            boolean applyToTarget = sequence > target.getJournalSequence();
+            if(applyToSource)
+                source.changeMoney(targetUserId, -amount);
+            if(applyToTarget)
+                target.changeMoney(sourceUserId, amount);
+            if(applyToSource)
+                source.setJournalSequence(sequence);
+            if(applyToTarget)
+                target.setJournalSequence(sequence);
+            break;
 
-            // Create output JSON file
-            try(OutputStream jsonFileStream = new FileOutputStream(_databaseFile))
+        case JOURNAL_TRANSFER_BATCH:
+            int batchSourceUserId = payload.readInt();
+            int[] targetUserIds = new int[payload.readInt()];
+            int[] amounts = new int[targetUserIds.length];
+            for(int t = 0; t < targetUserIds.length; ++t)
             {
-                // Write JSON data
-                JsonWriter jsonWriter = Json.createWriter(jsonFileStream);
-                jsonWriter.writeObject(rootObjBuilder.build());
+                targetUserIds[t] = payload.readInt();
+                amounts[t] = payload.readInt();
+            }
+
+            // Apply all transfers to the users lagging behind, then advance
+            // their sequence numbers, since a user may occur several times
+            UserData batchSource = getUser(batchSourceUserId);
+            boolean applyToBatchSource = sequence > batchSource.getJournalSequence();
+            for(int t = 0; t < targetUserIds.length; ++t)
+            {
+                if(applyToBatchSource)
+                    batchSource.changeMoney(targetUserIds[t], -amounts[t]);
+                UserData batchTarget = getUser(targetUserIds[t]);
+                if(sequence > batchTarget.getJournalSequence())
+                    batchTarget.changeMoney(batchSourceUserId, amounts[t]);
+            }
+            batchSource.setJournalSequence(Math.max(sequence, batchSource.getJournalSequence()));
+            for(int batchTargetUserId : targetUserIds)
+                getUser(batchTargetUserId).setJournalSequence(Math.max(sequence, getUser(batchTargetUserId).getJournalSequence()));
+            break;
+
+        case JOURNAL_DEVICE:
+            int userId = payload.readInt();
+            byte[] deviceCode = new byte[payload.readUnsignedShort()];
+            payload.readFully(deviceCode);
+            UserData user = getUser(userId);
+            if(sequence > user.getJournalSequence())
+            {
+                user.addDevice(new String(deviceCode, StandardCharsets.UTF_8));
+                user.setJournalSequence(sequence);
+            }
+            break;
+
+        default:
+            throw new IOException("Unknown journal record type " + type + ".");
+        }
+    }
+
+    /**
+     * Writes a snapshot of the database to the given file. Each user is only
+     * locked while being copied, so transfers continue meanwhile. Every user
+     * remembers the last journal record applied to him/her, so replaying the
+     * newer journal records on top of the snapshot restores a consistent
+     * state. The file is written under a temporary name and renamed when
+     * complete and the journal has forced all records whose changes it may
+     * contain. Databases opened from an image are snapshotted as image, else
+     * as JSON.
+     * 
+     * @param snapshotFile
+     *            The snapshot file.
+     * @param journalSequence
+     *            The journal sequence number up to which all records are
+     *            contained in the snapshot.
+     * @throws IOException
+     */
+    public void writeSnapshot(Path snapshotFile, long journalSequence) throws IOException
+    {
+        // Write and sync temporary file
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        if(_image != null)
+            writeImage(tempFile, journalSequence);
+        else
+        {
+            try(FileOutputStream fileStream = new FileOutputStream(tempFile.toFile()))
+            {
+                writeJson(new BufferedOutputStream(fileStream, 1 << 16), journalSequence);
+                fileStream.getFD().sync();
+            }
+        }
 
-                // Release writer resources
-                jsonWriter.close();
+        // Users may have been copied with changes of records appended after
+        // the given sequence number, so publish only once these are durable
+        if(_journal != null)
+        {
+            try
+            {
+                _journal.flush().get();
             }
-            catch(FileNotFoundException e)
+            catch(InterruptedException | ExecutionException e)
             {
-                e.printStackTrace();
+                throw new IOException("Journal flush failed.", e);
             }
-            catch(IOException e)
+        }
+
+        // Publish snapshot
+        Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE);
+        Journal.syncDirectory(snapshotFile.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Writes the database as binary image (see DatabaseImage) to the given
+     * file, locking one user at a time.
+     * 
+     * @param imageFile
+     *            The image file.
+     * @param journalSequence
+     *            The journal sequence number up to which all records are
+     *            contained in the written data.
+     * @throws IOException
+     */
+    public void writeImage(Path imageFile, long journalSequence) throws IOException
+    {
+        try(DatabaseImage.Writer writer = new DatabaseImage.Writer(imageFile, _serverPort, _dh_base, _dh_modulo, journalSequence, _userCount))
+        {
+            for(int u = 0; u < _userCount; ++u)
             {
-                e.printStackTrace();
+                ReentrantReadWriteLock.ReadLock userLock = getUserLock(u).readLock();
+                userLock.lock();
+                try
+                {
+                    writer.addUser(peekUser(u));
+                }
+                finally
+                {
+                    userLock.unlock();
+                }
             }
         }
     }
 
+    /**
+     * Writes the database as JSON to the given stream, locking one user at a
+     * time.
+     * 
+     * @param stream
+     *            The output stream, which is flushed but not closed.
+     * @param journalSequence
+     *            The journal sequence number up to which all records are
+     *            contained in the written data.
+     */
+    private void writeJson(OutputStream stream, long journalSequence)
+    {
+        // Write server configuration
+        JsonGenerator generator = Json.createGenerator(stream);
+        generator.writeStartObject();
+        generator.write("port", _serverPort);
+        generator.write("dh_base", _dh_base);
+        generator.write("dh_modulo", _dh_modulo);
+        generator.write("journalseq", journalSequence);
+
+        // Write user data
+        generator.writeStartArray("users");
+        for(int u = 0; u < _userCount; ++u)
+        {
+            JsonObject userDataObj;
+            ReentrantReadWriteLock.ReadLock userLock = getUserLock(u).readLock();
+            userLock.lock();
+            try
+            {
+                userDataObj = peekUser(u).toJson();
+            }
+            finally
+            {
+                userLock.unlock();
+            }
+            generator.write(userDataObj);
+        }
+        generator.writeEnd();
+        generator.writeEnd();
+        generator.flush();
+    }
+
+    /**
+     * Saves the database. Use only for generation.
+     */
+    private void Save()
+    {
+        Log.info("Saving database...");
+
+        // Create output JSON file
+        try(OutputStream jsonFileStream = new FileOutputStream(_databaseFile))
+        {
+            // Write JSON data
+            writeJson(jsonFileStream, 0);
+        }
+        catch(FileNotFoundException e)
+        {
+            e.printStackTrace();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Picks a new random Diffie-Hellman secret for the server side of a key
+     * exchange.
+     * @return A new server secret
+     */
+    public int newDhkeSecret() {
+        return new Random().nextInt(_dh_modulo);
+    }
+
     /**
      * This method will generate a message with public information,
      * that will be sent to the client
+     * @param serverSecret The Diffie-Hellman secret of the server for this key exchange
      * @return message containing all public inormation for the dhke
      */
-    public String getDhkeMessage() {
-        _server_dh_secret = new Random().nextInt(_dh_modulo);
-    	long serverPart = (long)((Math.pow(_dh_base, _server_dh_secret)) % _dh_modulo);
+    public String getDhkeMessage(int serverSecret) {
+    	long serverPart = (long)((Math.pow(_dh_base, serverSecret)) % _dh_modulo);
     	return _dh_base + "," + _dh_modulo + "," + serverPart;
     }
 
@@ -172,10 +907,11 @@ public class Database
      * The received information of the client is used to generate 
      * the final secret key, that will be used for encryption.
      * @param clientPart The public part, that was sent by the Client
+     * @param serverSecret The Diffie-Hellman secret of the server for this key exchange
+     * @return The shared Diffie-Hellman key
      */
-    public void setDhkeKey(int clientPart) {
-    	_dh_key = (long)(Math.pow(clientPart, _server_dh_secret) % _dh_modulo);
-    	Utility.setup(_dh_key);
+    public long getDhkeKey(int clientPart, int serverSecret) {
+    	return (long)(Math.pow(clientPart, serverSecret) % _dh_modulo);
     }
     
     /**
@@ -190,23 +926,23 @@ public class Database
      */
     public int verifyLogin(String name, String password)
     {
-        synchronized(_users)
+        long startNanos = System.nanoTime();
+        try
         {
-            // Run through users and search for given credentials
-            for(int u = 0; u < _users.size(); ++u)
-            {
-                // Correct name?
-                UserData currU = _users.get(u);
-                if(currU.getName().equalsIgnoreCase(name))
-                {
-                    // Check password
-                    if(currU.checkPassword(password))
-                        return u;
-                }
+            // Unknown name?
+            int userId = findUserId(name);
+            if(userId < 0)
+                return -1;
 
-            }
+            // Check password, which never changes and needs no lock
+            if(getUser(userId).checkPassword(password))
+                return userId;
             return -1;
         }
+        finally
+        {
+            VERIFY_LOGIN_LATENCY.recordSince(startNanos);
+        }
     }
 
     /**
@@ -219,11 +955,31 @@ public class Database
      */
     public void addUserDevice(int userId, String deviceCode)
     {
-        synchronized(_users)
+        if(userId < 0 || userId >= _userCount)
+            return;
+        ReentrantReadWriteLock.WriteLock userLock = getUserLock(userId).writeLock();
+        userLock.lock();
+        try
         {
+            // Record device while the user is locked, and keep it out of memory
+            // too if the journal does not accept it anymore
+            if(_journal != null)
+            {
+                byte[] code = deviceCode.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer payload = ByteBuffer.allocate(4 + 2 + code.length);
+                payload.putInt(userId).putShort((short)code.length).put(code);
+                Journal.Record record = _journal.append(JOURNAL_DEVICE, payload.array());
+                if(!record.isAccepted())
+                    return;
+                getUser(userId).setJournalSequence(record.getSequence());
+            }
+
             // Add device
-            if(userId >= 0 && userId < _users.size())
-                _users.get(userId).addDevice(deviceCode);
+            getUser(userId).addDevice(deviceCode);
+        }
+        finally
+        {
+            userLock.unlock();
         }
     }
 
@@ -238,12 +994,18 @@ public class Database
      */
     public boolean userHasDevice(int userId, String deviceCode)
     {
-        synchronized(_users)
+        if(userId < 0 || userId >= _userCount)
+            return false;
+        ReentrantReadWriteLock.ReadLock userLock = getUserLock(userId).readLock();
+        userLock.lock();
+        try
         {
             // Check device
-            if(userId >= 0 && userId < _users.size())
-                return _users.get(userId).hasDevice(deviceCode);
-            return false;
+            return getUser(userId).hasDevice(deviceCode);
+        }
+        finally
+        {
+            userLock.unlock();
         }
     }
 
@@ -256,13 +1018,10 @@ public class Database
      */
     public String getUserEmail(int userId)
     {
-        synchronized(_users)
-        {
-            // Return email
-            if(userId >= 0 && userId < _users.size())
-                return _users.get(userId).getEmail();
-            return null;
-        }
+        // Return email, which never changes and needs no lock
+        if(userId >= 0 && userId < _userCount)
+            return getUser(userId).getEmail();
+        return null;
     }
 
     /**
@@ -274,17 +1033,24 @@ public class Database
      */
     public int getMoney(int userId)
     {
-        synchronized(_users)
+        if(userId < 0 || userId >= _userCount)
+            return -1;
+        ReentrantReadWriteLock.ReadLock userLock = getUserLock(userId).readLock();
+        userLock.lock();
+        try
         {
             // Return money
-            if(userId >= 0 && userId < _users.size())
-                return _users.get(userId).getMoney();
-            return -1;
+            return getUser(userId).getMoney();
+        }
+        finally
+        {
+            userLock.unlock();
         }
     }
 
     /**
-     * Sends money from the given source user to the given target user.
+     * Sends money from the given source user to the given target user, and
+     * waits until the transfer is durable.
      * 
      * @param sourceUserId
      *            The ID of the user where the money comes from.
@@ -296,62 +1062,288 @@ public class Database
      */
     public boolean sendMoney(int sourceUserId, String targetUserName, int amount)
     {
-        synchronized(_users)
+        try
         {
-            // Test whether users exist
-            if(sourceUserId < 0 || sourceUserId >= _users.size())
-                return false;
-            int targetUserId = -1;
-            for(int u = 0; u < _users.size(); ++u)
-                if(_users.get(u).getName().equalsIgnoreCase(targetUserName))
-                {
-                    targetUserId = u;
-                    break;
-                }
-            if(targetUserId < 0)
-                return false;
+            return sendMoneyAsync(sourceUserId, targetUserName, amount).get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    /**
+     * Sends money from the given source user to the given target user. The
+     * transfer is visible immediately, but the returned future completes only
+     * once it is durable according to the journal's commit policy.
+     * 
+     * @param sourceUserId
+     *            The ID of the user where the money comes from.
+     * @param targetUserName
+     *            The name of the user where the money is sent to.
+     * @param amount
+     *            The (positive) amount of money being sent to the target user.
+     * @return A future completed with a boolean indicating whether sending
+     *         money was successful, or completed exceptionally if the journal
+     *         failed.
+     */
+    public CompletableFuture<Boolean> sendMoneyAsync(int sourceUserId, String targetUserName, int amount)
+    {
+        // Test whether users exist, unknown recipients are rejected without
+        // touching the user list
+        long startNanos = System.nanoTime();
+        int targetUserId = findUserId(targetUserName);
+        if(targetUserId < 0 || sourceUserId < 0 || sourceUserId >= _userCount)
+            return CompletableFuture.completedFuture(false);
+
+        // Lock both users, always in stripe order to avoid deadlocks
+        int sourceStripe = sourceUserId & (_userLocks.length - 1);
+        int targetStripe = targetUserId & (_userLocks.length - 1);
+        ReentrantReadWriteLock.WriteLock firstLock = _userLocks[Math.min(sourceStripe, targetStripe)].writeLock();
+        ReentrantReadWriteLock.WriteLock secondLock = _userLocks[Math.max(sourceStripe, targetStripe)].writeLock();
+        long lockStartNanos = System.nanoTime();
+        firstLock.lock();
+        if(secondLock != firstLock)
+            secondLock.lock();
+        SEND_MONEY_LOCK_WAIT.recordSince(lockStartNanos);
+        try
+        {
             // Test whether source user has enough money
-            if(amount <= 0 || _users.get(sourceUserId).getMoney() < amount)
-                return false;
+            if(amount <= 0 || getUser(sourceUserId).getMoney() < amount)
+                return CompletableFuture.completedFuture(false);
+
+            // Record transfer while both users are locked, so the journal has
+            // the same order as the histories; nothing is changed if the
+            // journal does not accept the record anymore
+            CompletableFuture<Boolean> durable = CompletableFuture.completedFuture(true);
+            if(_journal != null)
+            {
+                ByteBuffer payload = ByteBuffer.allocate(12);
+                payload.putInt(sourceUserId).putInt(targetUserId).putInt(amount);
+                Journal.Record record = _journal.append(JOURNAL_TRANSFER, payload.array());
+                if(!record.isAccepted())
+                    return record.getDurable().thenApply(sequence -> true);
+                getUser(sourceUserId).setJournalSequence(record.getSequence());
+                getUser(targetUserId).setJournalSequence(record.getSequence());
+                durable = record.getDurable().thenApply(sequence -> true);
+            }
 
             // Send money
-            _users.get(sourceUserId).changeMoney(targetUserId, -amount);
-            _users.get(targetUserId).changeMoney(sourceUserId, amount);
+            getUser(sourceUserId).changeMoney(targetUserId, -amount);
+            getUser(targetUserId).changeMoney(sourceUserId, amount);
 
-            // Token account?
-            int ctfGroupId = _users.get(targetUserId).getCtfGroupId();
-            String _token = _users.get(sourceUserId).getToken();
-            if(ctfGroupId > 0 && !_token.isEmpty())
-            {
-                // Show notification
-                String sourceUserName = _users.get(sourceUserId).getName();
-                Utility.safePrintln("User " + targetUserName + " stole money from user " + sourceUserName + ", granting token");
+            return grantToken(sourceUserId, targetUserId, targetUserName, durable);
+        }
+        finally
+        {
+            if(secondLock != firstLock)
+                secondLock.unlock();
+            firstLock.unlock();
+            SEND_MONEY_LATENCY.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Sends money from the given source user to all given target users as one
+     * atomic operation: either all transfers are applied or none. All
+     * transfers are validated up front with the rules of sendMoney(), the
+     * source user must have enough money for all of them. The involved users
+     * are locked once for the whole batch, and the batch is journaled as a
+     * single record, so replaying the journal applies it completely or not at
+     * all.
+     * 
+     * @param sourceUserId
+     *            The ID of the user where the money comes from.
+     * @param targetUserNames
+     *            The names of the users where the money is sent to.
+     * @param amounts
+     *            The (positive) amounts of money being sent to the target
+     *            users.
+     * @return A future completed with the result of each transfer, right away
+     *         if the batch was rejected, else once it is durable according to
+     *         the journal's commit policy; completed exceptionally if the
+     *         journal failed.
+     */
+    public CompletableFuture<TransferResult[]> sendMoneyBatchAsync(int sourceUserId, String[] targetUserNames, int[] amounts)
+    {
+        // Look up recipients, and check amounts which do not depend on the
+        // source user's money
+        long startNanos = System.nanoTime();
+        TransferResult[] results = new TransferResult[targetUserNames.length];
+        int[] targetUserIds = new int[targetUserNames.length];
+        boolean rejected = sourceUserId < 0 || sourceUserId >= _userCount;
+        for(int t = 0; t < targetUserNames.length; ++t)
+        {
+            targetUserIds[t] = findUserId(targetUserNames[t]);
+            if(targetUserIds[t] < 0)
+                results[t] = TransferResult.UNKNOWN_RECIPIENT;
+            else if(amounts[t] <= 0)
+                results[t] = TransferResult.INVALID_AMOUNT;
+            rejected |= results[t] != null;
+        }
+        if(rejected)
+            return CompletableFuture.completedFuture(completeResults(results));
 
-                // Grant token, if in lab
-                if(Utility.LAB_MODE)
+        // Lock all users, always in stripe order to avoid deadlocks
+        int[] stripes = new int[targetUserIds.length + 1];
+        stripes[0] = sourceUserId & (_userLocks.length - 1);
+        for(int t = 0; t < targetUserIds.length; ++t)
+            stripes[t + 1] = targetUserIds[t] & (_userLocks.length - 1);
+        Arrays.sort(stripes);
+        long lockStartNanos = System.nanoTime();
+        for(int s = 0; s < stripes.length; ++s)
+            if(s == 0 || stripes[s] != stripes[s - 1])
+                _userLocks[stripes[s]].writeLock().lock();
+        SEND_MONEY_BATCH_LOCK_WAIT.recordSince(lockStartNanos);
+        try
+        {
+            // Test whether source user has enough money for all transfers;
+            // money received within the batch does not count
+            long remainingMoney = getUser(sourceUserId).getMoney();
+            for(int t = 0; t < amounts.length; ++t)
+            {
+                remainingMoney -= amounts[t];
+                if(remainingMoney < 0)
                 {
-                    try
-                    {
-                        // Send token
-                        String ctfUrl = "https://192.168.0.101/ctf/index.php?group=" + ctfGroupId + "&token=" + _token;
-                        URL ctfUrlObj = new URL(ctfUrl);
-                        HttpsURLConnection conn = (HttpsURLConnection)ctfUrlObj.openConnection();
-                        int code = conn.getResponseCode();
-                        if(code != 200)
-                            Utility.safePrintln("Error granting token for user " + targetUserName + ": " + conn.getResponseMessage());
-                    }
-                    catch(Exception e)
-                    {
-                        // Show error
-                        e.printStackTrace();
-                    }
+                    results[t] = TransferResult.INSUFFICIENT_FUNDS;
+                    rejected = true;
                 }
             }
-            return true;
+            if(rejected)
+                return CompletableFuture.completedFuture(completeResults(results));
+
+            // Record all transfers as one record while the users are locked;
+            // nothing is changed if the journal does not accept it anymore
+            UserData source = getUser(sourceUserId);
+            CompletableFuture<Boolean> durable = CompletableFuture.completedFuture(true);
+            if(_journal != null)
+            {
+                ByteBuffer payload = ByteBuffer.allocate(8 + 8 * targetUserIds.length);
+                payload.putInt(sourceUserId).putInt(targetUserIds.length);
+                for(int t = 0; t < targetUserIds.length; ++t)
+                    payload.putInt(targetUserIds[t]).putInt(amounts[t]);
+                Journal.Record record = _journal.append(JOURNAL_TRANSFER_BATCH, payload.array());
+                if(!record.isAccepted())
+                    return record.getDurable().thenApply(sequence -> results);
+                source.setJournalSequence(record.getSequence());
+                for(int targetUserId : targetUserIds)
+                    getUser(targetUserId).setJournalSequence(record.getSequence());
+                durable = record.getDurable().thenApply(sequence -> true);
+            }
+
+            // Send money
+            for(int t = 0; t < targetUserIds.length; ++t)
+            {
+                source.changeMoney(targetUserIds[t], -amounts[t]);
+                getUser(targetUserIds[t]).changeMoney(sourceUserId, amounts[t]);
+                durable = grantToken(sourceUserId, targetUserIds[t], targetUserNames[t], durable);
+            }
+            return durable.thenApply(success ->
+            {
+                Arrays.fill(results, TransferResult.OK);
+                return results;
+            });
+        }
+        finally
+        {
+            for(int s = stripes.length - 1; s >= 0; --s)
+                if(s == 0 || stripes[s] != stripes[s - 1])
+                    _userLocks[stripes[s]].writeLock().unlock();
+            SEND_MONEY_BATCH_LATENCY.recordSince(startNanos);
         }
     }
 
+    /**
+     * Sends money between the given existing users with the balance rules of
+     * sendMoney(), without locking and journaling. Only for offline imports,
+     * which make sure no other thread changes the two users at the same time.
+     * 
+     * @param sourceUserId
+     *            The ID of the user where the money comes from.
+     * @param targetUserId
+     *            The ID of the user where the money is sent to.
+     * @param amount
+     *            The amount of money being sent to the target user.
+     * @return Whether the source user had enough money.
+     */
+    boolean applyImportedTransfer(int sourceUserId, int targetUserId, int amount)
+    {
+        UserData source = getUser(sourceUserId);
+        if(amount <= 0 || source.getMoney() < amount)
+            return false;
+        source.changeMoney(targetUserId, -amount);
+        getUser(targetUserId).changeMoney(sourceUserId, amount);
+        return true;
+    }
+
+    /**
+     * Returns the number of users.
+     * 
+     * @return The number of users.
+     */
+    int getUserCount()
+    {
+        return _userCount;
+    }
+
+    /**
+     * Marks the transfers of a rejected batch which are valid on their own as
+     * not applied.
+     * 
+     * @param results
+     *            The results of the invalid transfers, null for the others.
+     * @return The given results.
+     */
+    private static TransferResult[] completeResults(TransferResult[] results)
+    {
+        for(int t = 0; t < results.length; ++t)
+            if(results[t] == null)
+                results[t] = TransferResult.NOT_APPLIED;
+        return results;
+    }
+
+    /**
+     * Grants the token of the source user to the CTF group of the target user
+     * once the given transfer is durable, if the target is a token account.
+     * Must be called while holding the locks of both users.
+     * 
+     * @param sourceUserId
+     *            The ID of the user where the money comes from.
+     * @param targetUserId
+     *            The ID of the user where the money is sent to.
+     * @param targetUserName
+     *            The name of the user where the money is sent to.
+     * @param durable
+     *            Completes when the transfer is durable.
+     * @return A future completing after the given one, once the grant has been
+     *         submitted.
+     */
+    private CompletableFuture<Boolean> grantToken(int sourceUserId, int targetUserId, String targetUserName, CompletableFuture<Boolean> durable)
+    {
+        // Token account?
+        int ctfGroupId = getUser(targetUserId).getCtfGroupId();
+        String _token = getUser(sourceUserId).getToken();
+        if(ctfGroupId > 0 && !_token.isEmpty())
+        {
+            // Show notification
+            String sourceUserName = getUserName(sourceUserId);
+            Log.info("User " + targetUserName + " stole money from user " + sourceUserName + ", granting token");
+
+            // Grant token in the background, once the transfer is durable
+            if(_sideEffects != null)
+            {
+                SideEffect grant = SideEffect.tokenGrant(ctfGroupId, _token);
+                durable = durable.thenApply(success ->
+                {
+                    _sideEffects.submit(grant);
+                    return success;
+                });
+            }
+        }
+        return durable;
+    }
+
     /**
      * Returns a string containing the given user's full money sending/receiving
      * history.
@@ -363,20 +1355,101 @@ public class Database
      */
     public String getUserMoneyHistory(int userId)
     {
-        synchronized(_users)
-        {
-            // Check parameters history
-            if(userId < 0 && userId >= _users.size())
-                return "";
+        // Check parameters history
+        if(userId < 0 || userId >= _userCount)
+            return "";
 
-            // Get user's history
-            LinkedList<Tuple<Integer, Integer>> history = _users.get(userId).getMoneyHistory();
+        StringBuilder historyString = new StringBuilder();
+        appendUserMoneyHistory(userId, 0, Integer.MAX_VALUE, historyString);
+        return historyString.toString();
+    }
+
+    /**
+     * Appends a part of the given user's money sending/receiving history in the
+     * format of getUserMoneyHistory(), oldest entries first. Used to stream
+     * long histories in parts.
+     * 
+     * @param userId
+     *            The ID of the user whose history is requested.
+     * @param fromSequence
+     *            The sequence number of the first appended entry. Older entries
+     *            which are not retained anymore are skipped.
+     * @param limit
+     *            The maximum number of appended entries.
+     * @param historyString
+     *            Receives the history entries.
+     * @return The sequence number of the next entry, or -1 if the newest entry
+     *         was appended.
+     */
+    public long appendUserMoneyHistory(int userId, long fromSequence, int limit, StringBuilder historyString)
+    {
+        // Check parameters
+        if(userId < 0 || userId >= _userCount)
+            return -1;
+
+        ReentrantReadWriteLock.ReadLock userLock = getUserLock(userId).readLock();
+        userLock.lock();
+        try
+        {
+            // Find the requested entries
+            MoneyHistory history = getUser(userId).getMoneyHistory();
+            int startIndex = (int)Math.min(history.size(), Math.max(0, fromSequence - history.getFirstSequence()));
+            int endIndex = (int)Math.min(history.size(), (long)startIndex + limit);
 
             // Build history
-            String historyString = "";
-            for(Tuple<Integer, Integer> entry : history)
-                historyString += String.format("%5d", entry.y) + "   " + _users.get(entry.x).getName() + "\n";
-            return historyString;
+            historyString.ensureCapacity(historyString.length() + (endIndex - startIndex) * 24);
+            Formatter formatter = new Formatter(historyString);
+            for(int h = startIndex; h < endIndex; ++h)
+                formatter.format("%5d   %s\n", history.getAmount(h), getUserName(history.getCounterparty(h)));
+            return endIndex < history.size() ? history.getSequence(endIndex) : -1;
+        }
+        finally
+        {
+            userLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a page of the given user's money sending/receiving history,
+     * newest entries first. Only the requested entries are visited, so the cost
+     * does not depend on the length of the history.
+     * 
+     * @param userId
+     *            The ID of the user whose history is requested.
+     * @param beforeSequence
+     *            Only entries with a smaller sequence number are returned.
+     * @param limit
+     *            The maximum number of returned entries.
+     * @return The sequence number to pass as beforeSequence for the next page
+     *         (or -1 if there are no older entries) in the first line, followed
+     *         by one line per entry (sequence number, amount, counterparty).
+     */
+    public String getUserMoneyHistoryPage(int userId, long beforeSequence, int limit)
+    {
+        // Check parameters
+        if(userId < 0 || userId >= _userCount)
+            return "-1\n";
+
+        ReentrantReadWriteLock.ReadLock userLock = getUserLock(userId).readLock();
+        userLock.lock();
+        try
+        {
+            // Find the entries before the cursor
+            MoneyHistory history = getUser(userId).getMoneyHistory();
+            int endIndex = (int)Math.max(0, Math.min(history.size(), beforeSequence - history.getFirstSequence()));
+            int startIndex = Math.max(0, endIndex - limit);
+
+            // Build page
+            StringBuilder page = new StringBuilder(32 + (endIndex - startIndex) * 32);
+            page.append(startIndex > 0 ? history.getSequence(startIndex) : -1).append('\n');
+            Formatter formatter = new Formatter(page);
+            for(int h = endIndex - 1; h >= startIndex; --h)
+                formatter.format("%8d %5d   %s\n", history.getSequence(h), history.getAmount(h), getUserName(history.getCounterparty(h)));
+            return page.toString();
+        }
+        finally
+        {
+            userLock.unlock();
         }
     }
 
@@ -455,12 +1528,12 @@ public class Database
         database._serverPort = 12300 + attackerGroupId;
         database._dh_base = 10;
         database._dh_modulo = 17;
-        database._users.add(testUserData);
-        database._users.add(attackerUserData);
-        database._users.add(victim1UserData);
-        database._users.add(victim2UserData);
-        database._users.add(victim3UserData);
-        database._users.add(victim4UserData);
+        database.addUser(testUserData);
+        database.addUser(attackerUserData);
+        database.addUser(victim1UserData);
+        database.addUser(victim2UserData);
+        database.addUser(victim3UserData);
+        database.addUser(victim4UserData);
 
         // Save database
         database.Save();
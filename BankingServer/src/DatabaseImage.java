@@ -0,0 +1,672 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A compact binary image of the database, which is memory mapped instead of
+ * parsed, so a server can start serving without reading all users first.
+ * Users are decoded only when they are accessed.
+ * 
+ * Layout (big endian):
+ * <ul>
+ * <li>Header (64 bytes): magic "BANKIMG2", port, DH base, DH modulo, user
+ * count, journal sequence number, hash slot count, unused int, and the file
+ * offsets of records, hash index and heap.</li>
+ * <li>Records (64 bytes per user): heap references of name, e-mail, password,
+ * token, device list and history, then money, token server group ID and
+ * journal sequence number.</li>
+ * <li>Hash index: open addressing slots of (user ID + 1, name hash), keyed by
+ * the normalized user name. 0 marks an empty slot.</li>
+ * <li>Heap: strings as [length int][UTF-8 bytes], device lists as [count
+ * int][strings], histories as [count int][first sequence number
+ * long][(user ID int, amount int)...]. No heap entry crosses a 1 GiB
+ * boundary, so the heap can be mapped in chunks.</li>
+ * </ul>
+ */
+public class DatabaseImage implements Closeable
+{
+    /**
+     * The magic bytes at the start of every image.
+     */
+    private static final byte[] MAGIC = "BANKIMG2".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The header length.
+     */
+    private static final int HEADER_LENGTH = 64;
+
+    /**
+     * The length of a user record.
+     */
+    private static final int RECORD_LENGTH = 64;
+
+    /**
+     * The length of a hash slot.
+     */
+    private static final int SLOT_LENGTH = 8;
+
+    /**
+     * The size of the heap chunks that are mapped separately.
+     */
+    private static final int HEAP_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * The mapped image file.
+     */
+    private FileChannel _channel;
+
+    /**
+     * The mapped user records.
+     */
+    private MappedByteBuffer _records;
+
+    /**
+     * The mapped hash index.
+     */
+    private MappedByteBuffer _hashIndex;
+
+    /**
+     * The mapped heap chunks.
+     */
+    private MappedByteBuffer[] _heapChunks;
+
+    /**
+     * The number of hash slots, a power of two.
+     */
+    private int _hashSlotCount;
+
+    /**
+     * The number of users.
+     */
+    private int _userCount;
+
+    /**
+     * The TCP port the server listens on.
+     */
+    private int _serverPort;
+
+    /**
+     * The base for the Diffie-Hellman Key Exchange.
+     */
+    private int _dhBase;
+
+    /**
+     * The modulo for the Diffie-Hellman Key Exchange.
+     */
+    private int _dhModulo;
+
+    /**
+     * The journal sequence number up to which all changes are contained.
+     */
+    private long _journalSequence;
+
+    /**
+     * Maps the given image file.
+     * 
+     * @param imageFile
+     *            The image file name.
+     * @throws IOException
+     */
+    public DatabaseImage(String imageFile) throws IOException
+    {
+        _channel = FileChannel.open(Paths.get(imageFile), StandardOpenOption.READ);
+
+        // Read header
+        ByteBuffer header = _channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+            throw new IOException("'" + imageFile + "' is no database image.");
+        _serverPort = header.getInt();
+        _dhBase = header.getInt();
+        _dhModulo = header.getInt();
+        _userCount = header.getInt();
+        _journalSequence = header.getLong();
+        _hashSlotCount = header.getInt();
+        header.getInt();
+        long recordsOffset = header.getLong();
+        long hashOffset = header.getLong();
+        long heapOffset = header.getLong();
+
+        // Map records and hash index
+        if((long)_userCount * RECORD_LENGTH > Integer.MAX_VALUE || (long)_hashSlotCount * SLOT_LENGTH > Integer.MAX_VALUE)
+            throw new IOException("'" + imageFile + "' has too many users to be mapped.");
+        _records = _channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, (long)_userCount * RECORD_LENGTH);
+        _hashIndex = _channel.map(FileChannel.MapMode.READ_ONLY, hashOffset, (long)_hashSlotCount * SLOT_LENGTH);
+
+        // Map heap in chunks
+        long heapLength = _channel.size() - heapOffset;
+        _heapChunks = new MappedByteBuffer[(int)((heapLength + HEAP_CHUNK_SIZE - 1) / HEAP_CHUNK_SIZE)];
+        for(int c = 0; c < _heapChunks.length; ++c)
+        {
+            long chunkOffset = (long)c * HEAP_CHUNK_SIZE;
+            _heapChunks[c] = _channel.map(FileChannel.MapMode.READ_ONLY, heapOffset + chunkOffset, Math.min(HEAP_CHUNK_SIZE, heapLength - chunkOffset));
+        }
+    }
+
+    /**
+     * Checks whether the given file is a database image.
+     * 
+     * @param file
+     *            The file name.
+     * @return Whether the file starts with the image magic bytes.
+     * @throws IOException
+     */
+    public static boolean isImage(String file) throws IOException
+    {
+        try(DataInputStream stream = new DataInputStream(new FileInputStream(file)))
+        {
+            byte[] magic = new byte[MAGIC.length];
+            stream.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        }
+        catch(EOFException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of users.
+     * 
+     * @return The number of users.
+     */
+    public int getUserCount()
+    {
+        return _userCount;
+    }
+
+    /**
+     * Returns the TCP port the server listens on.
+     * 
+     * @return The TCP port the server listens on.
+     */
+    public int getServerPort()
+    {
+        return _serverPort;
+    }
+
+    /**
+     * Returns the base for the Diffie-Hellman Key Exchange.
+     * 
+     * @return The base for the Diffie-Hellman Key Exchange.
+     */
+    public int getDhBase()
+    {
+        return _dhBase;
+    }
+
+    /**
+     * Returns the modulo for the Diffie-Hellman Key Exchange.
+     * 
+     * @return The modulo for the Diffie-Hellman Key Exchange.
+     */
+    public int getDhModulo()
+    {
+        return _dhModulo;
+    }
+
+    /**
+     * Returns the journal sequence number up to which all changes are
+     * contained in the image.
+     * 
+     * @return The journal sequence number.
+     */
+    public long getJournalSequence()
+    {
+        return _journalSequence;
+    }
+
+    /**
+     * Decodes the given user.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return A new object containing the user's data.
+     */
+    public UserData readUser(int userId)
+    {
+        // Read record
+        long record = (long)userId * RECORD_LENGTH;
+        String name = readString(_records.getLong((int)record));
+        String email = readString(_records.getLong((int)record + 8));
+        String password = readString(_records.getLong((int)record + 16));
+        String token = readString(_records.getLong((int)record + 24));
+        long devicesRef = _records.getLong((int)record + 32);
+        long historyRef = _records.getLong((int)record + 40);
+        int money = _records.getInt((int)record + 48);
+        int ctfGroupId = _records.getInt((int)record + 52);
+        long journalSequence = _records.getLong((int)record + 56);
+
+        // Read device list
+        LinkedList<String> devices = new LinkedList<>();
+        ByteBuffer heap = getHeap(devicesRef);
+        int deviceCount = heap.getInt();
+        for(int d = 0; d < deviceCount; ++d)
+            devices.add(readString(heap));
+
+        // Read history
+        heap = getHeap(historyRef);
+        int historyCount = heap.getInt();
+        MoneyHistory history = new MoneyHistory(heap.getLong(), MoneyHistory.DEFAULT_RETENTION);
+        for(int h = 0; h < historyCount; ++h)
+            history.add(heap.getInt(), heap.getInt());
+
+        return new UserData(name, email, password, money, ctfGroupId, token, devices, history, journalSequence);
+    }
+
+    /**
+     * Returns the name of the given user without decoding the other data.
+     * 
+     * @param userId
+     *            The ID of the user.
+     * @return The user's name.
+     */
+    public String readUserName(int userId)
+    {
+        return readString(_records.getLong(userId * RECORD_LENGTH));
+    }
+
+    /**
+     * Looks up the user with the given normalized name in the hash index.
+     * 
+     * @param normalizedName
+     *            The normalized user name (see Database.normalizeName()).
+     * @return The ID of the user, or -1 if there is no such user.
+     */
+    public int findUserId(String normalizedName)
+    {
+        int hash = hash(normalizedName);
+        for(int slot = hash & (_hashSlotCount - 1);; slot = (slot + 1) & (_hashSlotCount - 1))
+        {
+            int userIdPlusOne = _hashIndex.getInt(slot * SLOT_LENGTH);
+            if(userIdPlusOne == 0)
+                return -1;
+            if(_hashIndex.getInt(slot * SLOT_LENGTH + 4) == hash && Database.normalizeName(readUserName(userIdPlusOne - 1)).equals(normalizedName))
+                return userIdPlusOne - 1;
+        }
+    }
+
+    /**
+     * Releases the file. The mapping stays valid until it is garbage
+     * collected.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        _channel.close();
+    }
+
+    /**
+     * Returns the hash of the given normalized name, as stored in the index.
+     */
+    private static int hash(String normalizedName)
+    {
+        int hash = normalizedName.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns a buffer positioned at the given heap reference.
+     */
+    private ByteBuffer getHeap(long reference)
+    {
+        ByteBuffer heap = _heapChunks[(int)(reference / HEAP_CHUNK_SIZE)].duplicate();
+        heap.position((int)(reference % HEAP_CHUNK_SIZE));
+        return heap;
+    }
+
+    /**
+     * Reads the string at the given heap reference.
+     */
+    private String readString(long reference)
+    {
+        return readString(getHeap(reference));
+    }
+
+    /**
+     * Reads a string at the position of the given heap buffer.
+     */
+    private static String readString(ByteBuffer heap)
+    {
+        byte[] bytes = new byte[heap.getInt()];
+        heap.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a database image. Users are added in ID order; the file is
+     * complete after close().
+     */
+    public static class Writer implements Closeable
+    {
+        /**
+         * The image file.
+         */
+        private FileChannel _channel;
+
+        /**
+         * Buffers user records until they are written to their file position.
+         */
+        private ByteBuffer _recordBuffer = ByteBuffer.allocate(1024 * RECORD_LENGTH);
+
+        /**
+         * The file offset of the next buffered record.
+         */
+        private long _recordFileOffset = HEADER_LENGTH;
+
+        /**
+         * The heap, written sequentially behind the hash index.
+         */
+        private OutputStream _heap;
+
+        /**
+         * The current heap length.
+         */
+        private long _heapLength = 0;
+
+        /**
+         * Encodes a heap entry.
+         */
+        private ByteBuffer _entryBuffer = ByteBuffer.allocate(1 << 16);
+
+        /**
+         * The name hashes of the added users.
+         */
+        private int[] _hashes;
+
+        /**
+         * The heap references of the added users' names.
+         */
+        private long[] _nameReferences;
+
+        /**
+         * The number of users announced in the header.
+         */
+        private int _userCount;
+
+        /**
+         * The number of added users.
+         */
+        private int _addedCount = 0;
+
+        /**
+         * The number of hash slots.
+         */
+        private int _hashSlotCount;
+
+        /**
+         * The file offset of the hash index.
+         */
+        private long _hashOffset;
+
+        /**
+         * Creates the given image file and writes its header.
+         * 
+         * @param imageFile
+         *            The image file.
+         * @param serverPort
+         *            The TCP port the server listens on.
+         * @param dhBase
+         *            The base for the Diffie-Hellman Key Exchange.
+         * @param dhModulo
+         *            The modulo for the Diffie-Hellman Key Exchange.
+         * @param journalSequence
+         *            The journal sequence number up to which all changes are
+         *            contained.
+         * @param userCount
+         *            The exact number of users that will be added.
+         * @throws IOException
+         */
+        public Writer(Path imageFile, int serverPort, int dhBase, int dhModulo, long journalSequence, int userCount) throws IOException
+        {
+            // Size hash index for a load factor of at most 2/3
+            _userCount = userCount;
+            _hashSlotCount = Integer.highestOneBit(Math.max(2, userCount + userCount / 2)) << 1;
+            _hashOffset = HEADER_LENGTH + (long)userCount * RECORD_LENGTH;
+            _hashes = new int[userCount];
+            _nameReferences = new long[userCount];
+
+            // Write header
+            _channel = FileChannel.open(imageFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC);
+            header.putInt(serverPort).putInt(dhBase).putInt(dhModulo).putInt(userCount);
+            header.putLong(journalSequence);
+            header.putInt(_hashSlotCount).putInt(0);
+            header.putLong(HEADER_LENGTH).putLong(_hashOffset).putLong(getHeapOffset());
+            header.flip();
+            writeFully(header, 0);
+
+            // Heap is appended sequentially
+            _channel.position(getHeapOffset());
+            _heap = new BufferedOutputStream(Channels.newOutputStream(_channel), 1 << 16);
+        }
+
+        /**
+         * Appends the given user.
+         * 
+         * @param user
+         *            The user.
+         * @throws IOException
+         */
+        public void addUser(UserData user) throws IOException
+        {
+            if(_addedCount == _userCount)
+                throw new IOException("More users than announced.");
+
+            // Write heap entries
+            long nameReference = writeString(user.getName());
+            long emailReference = writeString(user.getEmail());
+            long passwordReference = writeString(user.getPassword());
+            long tokenReference = writeString(user.getToken());
+            _entryBuffer.clear();
+            _entryBuffer.putInt(user.getDevices().size());
+            for(String device : user.getDevices())
+                putString(device);
+            long devicesReference = writeEntry();
+            _entryBuffer.clear();
+            MoneyHistory history = user.getMoneyHistory();
+            _entryBuffer.putInt(history.size()).putLong(history.getFirstSequence());
+            for(int h = 0; h < history.size(); ++h)
+            {
+                ensureEntryCapacity(8);
+                _entryBuffer.putInt(history.getCounterparty(h)).putInt(history.getAmount(h));
+            }
+            long historyReference = writeEntry();
+
+            // Buffer record
+            _recordBuffer.putLong(nameReference).putLong(emailReference).putLong(passwordReference).putLong(tokenReference);
+            _recordBuffer.putLong(devicesReference).putLong(historyReference);
+            _recordBuffer.putInt(user.getMoney()).putInt(user.getCtfGroupId()).putLong(user.getJournalSequence());
+            if(!_recordBuffer.hasRemaining())
+                flushRecords();
+
+            // Remember name for the hash index
+            _hashes[_addedCount] = hash(Database.normalizeName(user.getName()));
+            _nameReferences[_addedCount] = nameReference;
+            ++_addedCount;
+        }
+
+        /**
+         * Writes the hash index and closes the file.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if(_addedCount != _userCount)
+                    throw new IOException("Fewer users than announced.");
+                flushRecords();
+                _heap.flush();
+
+                // Build hash index, the first user with a name keeps it
+                int[] slots = new int[_hashSlotCount * 2];
+                for(int u = 0; u < _userCount; ++u)
+                {
+                    int slot = _hashes[u] & (_hashSlotCount - 1);
+                    boolean duplicate = false;
+                    while(slots[2 * slot] != 0)
+                    {
+                        int other = slots[2 * slot] - 1;
+                        if(slots[2 * slot + 1] == _hashes[u] && readString(_nameReferences[other]).equalsIgnoreCase(readString(_nameReferences[u])))
+                        {
+                            duplicate = true;
+                            break;
+                        }
+                        slot = (slot + 1) & (_hashSlotCount - 1);
+                    }
+                    if(!duplicate)
+                    {
+                        slots[2 * slot] = u + 1;
+                        slots[2 * slot + 1] = _hashes[u];
+                    }
+                }
+
+                // Write hash index
+                ByteBuffer hashBuffer = ByteBuffer.allocate(1 << 16);
+                long offset = _hashOffset;
+                for(int i = 0; i < slots.length; ++i)
+                {
+                    hashBuffer.putInt(slots[i]);
+                    if(!hashBuffer.hasRemaining() || i == slots.length - 1)
+                    {
+                        hashBuffer.flip();
+                        offset += writeFully(hashBuffer, offset);
+                        hashBuffer.clear();
+                    }
+                }
+                _channel.force(true);
+            }
+            finally
+            {
+                _channel.close();
+            }
+        }
+
+        /**
+         * Returns the file offset of the heap.
+         */
+        private long getHeapOffset()
+        {
+            return _hashOffset + (long)_hashSlotCount * SLOT_LENGTH;
+        }
+
+        /**
+         * Writes the given string as heap entry and returns its reference.
+         */
+        private long writeString(String string) throws IOException
+        {
+            _entryBuffer.clear();
+            putString(string);
+            return writeEntry();
+        }
+
+        /**
+         * Appends the given string to the current heap entry.
+         */
+        private void putString(String string) throws IOException
+        {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            ensureEntryCapacity(4 + bytes.length);
+            _entryBuffer.putInt(bytes.length).put(bytes);
+        }
+
+        /**
+         * Makes sure the current heap entry can grow by the given length.
+         */
+        private void ensureEntryCapacity(int length) throws IOException
+        {
+            if(_entryBuffer.remaining() >= length)
+                return;
+            if(_entryBuffer.capacity() >= HEAP_CHUNK_SIZE / 2)
+                throw new IOException("Heap entry too large.");
+            ByteBuffer larger = ByteBuffer.allocate(_entryBuffer.capacity() * 2);
+            _entryBuffer.flip();
+            larger.put(_entryBuffer);
+            _entryBuffer = larger;
+        }
+
+        /**
+         * Appends the current heap entry to the heap and returns its
+         * reference. Entries are moved to the next chunk if they would cross a
+         * chunk boundary.
+         */
+        private long writeEntry() throws IOException
+        {
+            int length = _entryBuffer.position();
+            long chunkRemaining = HEAP_CHUNK_SIZE - _heapLength % HEAP_CHUNK_SIZE;
+            if(length > chunkRemaining)
+            {
+                _heap.write(new byte[(int)chunkRemaining]);
+                _heapLength += chunkRemaining;
+            }
+            long reference = _heapLength;
+            _heap.write(_entryBuffer.array(), 0, length);
+            _heapLength += length;
+            return reference;
+        }
+
+        /**
+         * Writes the buffered records to their file position.
+         */
+        private void flushRecords() throws IOException
+        {
+            _recordBuffer.flip();
+            _recordFileOffset += writeFully(_recordBuffer, _recordFileOffset);
+            _recordBuffer.clear();
+        }
+
+        /**
+         * Reads back the string at the given heap reference. Only used for
+         * (rare) hash collisions.
+         */
+        private String readString(long reference) throws IOException
+        {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, getHeapOffset() + reference);
+            ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+            readFully(bytes, getHeapOffset() + reference + 4);
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Writes the whole buffer at the given file position.
+         * 
+         * @return The number of written bytes.
+         */
+        private int writeFully(ByteBuffer buffer, long position) throws IOException
+        {
+            int length = buffer.remaining();
+            while(buffer.hasRemaining())
+                _channel.write(buffer, position + length - buffer.remaining());
+            return length;
+        }
+
+        /**
+         * Fills the whole buffer from the given file position.
+         */
+        private void readFully(ByteBuffer buffer, long position) throws IOException
+        {
+            while(buffer.hasRemaining())
+                if(_channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of image.");
+        }
+    }
+}
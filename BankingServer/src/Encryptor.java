@@ -1,19 +1,35 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Encrypts and decrypts messages with a fixed key. The cipher instances are
+ * created and initialized once and reused for every message, so an Encryptor
+ * must not be used by multiple threads concurrently.
+ */
 public class Encryptor {
-	public static String encrypt(String key, String initVector, String value) {
-        try {
-            IvParameterSpec iv = new IvParameterSpec(initVector.getBytes("UTF-8"));
-            SecretKeySpec skeySpec = new SecretKeySpec(key.getBytes("UTF-8"), "AES");
+    private final Cipher _encryptCipher;
+
+    private final Cipher _decryptCipher;
+
+    public Encryptor(String key, String initVector) throws GeneralSecurityException {
+        IvParameterSpec iv = new IvParameterSpec(initVector.getBytes(StandardCharsets.UTF_8));
+        SecretKeySpec skeySpec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "AES");
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-            cipher.init(Cipher.ENCRYPT_MODE, skeySpec, iv);
+        // Cipher objects return to their initialized state after doFinal()
+        _encryptCipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+        _encryptCipher.init(Cipher.ENCRYPT_MODE, skeySpec, iv);
+        _decryptCipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+        _decryptCipher.init(Cipher.DECRYPT_MODE, skeySpec, iv);
+    }
 
-            byte[] encrypted = cipher.doFinal(value.getBytes());
+    public String encrypt(String value) {
+        try {
+            byte[] encrypted = _encryptCipher.doFinal(value.getBytes());
 
             return Base64.getEncoder().encodeToString(encrypted);
         } catch (Exception ex) {
@@ -23,15 +39,21 @@ public class Encryptor {
         return null;
     }
 
-    public static String decrypt(String key, String initVector, String encrypted) {
-        try {
-            IvParameterSpec iv = new IvParameterSpec(initVector.getBytes("UTF-8"));
-            SecretKeySpec skeySpec = new SecretKeySpec(key.getBytes("UTF-8"), "AES");
+    public int getEncryptedLength(int length) {
+        return _encryptCipher.getOutputSize(length);
+    }
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-            cipher.init(Cipher.DECRYPT_MODE, skeySpec, iv);
+    public int encrypt(byte[] input, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        return _encryptCipher.doFinal(input, 0, inputLength, output, outputOffset);
+    }
 
-            byte[] original = cipher.doFinal(Base64.getDecoder().decode(encrypted));
+    public byte[] decrypt(byte[] input, int inputOffset, int inputLength) throws GeneralSecurityException {
+        return _decryptCipher.doFinal(input, inputOffset, inputLength);
+    }
+
+    public String decrypt(String encrypted) {
+        try {
+            byte[] original = _decryptCipher.doFinal(Base64.getDecoder().decode(encrypted));
 
             return new String(original);
         } catch (Exception ex) {
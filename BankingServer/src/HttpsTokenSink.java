@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Grants CTF tokens by calling the CTF server. Connections to the server are
+ * kept alive between the requests of a batch.
+ */
+public class HttpsTokenSink implements SideEffectSink
+{
+    /**
+     * The CTF server URL, the group and token parameters are appended.
+     */
+    private final String _ctfUrl;
+
+    /**
+     * Creates a new sink configured by the "bank.ctfUrl" system property.
+     */
+    public HttpsTokenSink()
+    {
+        this(System.getProperty("bank.ctfUrl", "https://192.168.0.101/ctf/index.php"));
+    }
+
+    /**
+     * Creates a new sink.
+     * 
+     * @param ctfUrl
+     *            The CTF server URL, the group and token parameters are
+     *            appended.
+     */
+    public HttpsTokenSink(String ctfUrl)
+    {
+        _ctfUrl = ctfUrl;
+    }
+
+    /**
+     * Sends one grant request per token.
+     */
+    @Override
+    public List<SideEffect> deliver(List<SideEffect> batch)
+    {
+        List<SideEffect> failed = new ArrayList<>();
+        for(SideEffect effect : batch)
+        {
+            try
+            {
+                // Send token
+                String ctfUrl = _ctfUrl + "?group=" + effect.getTarget() + "&token=" + URLEncoder.encode(effect.getText(), StandardCharsets.UTF_8);
+                HttpsURLConnection conn = (HttpsURLConnection)new URL(ctfUrl).openConnection();
+                int code = conn.getResponseCode();
+                if(code != 200)
+                {
+                    effect.fail("HTTP " + code + " " + conn.getResponseMessage());
+                    failed.add(effect);
+                    continue;
+                }
+
+                // Read response, so the connection can be reused
+                try(InputStream response = conn.getInputStream())
+                {
+                    response.readAllBytes();
+                }
+            }
+            catch(IOException e)
+            {
+                effect.fail(e.toString());
+                failed.add(effect);
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,751 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of database mutations. Records are handed to a writer
+ * thread, which writes them in batches and makes them durable with a single
+ * FileChannel.force() per batch (group commit). Each record carries an
+ * increasing sequence number and a checksum, so a torn record at the end of
+ * the file is detected and dropped on replay.
+ * 
+ * Record layout: [length int][sequence long][type byte][payload][crc32 int],
+ * where length counts sequence, type and payload.
+ * 
+ * Records are appended to the active segment (the journal file itself). When
+ * the journal is rotated, the active segment is renamed to the journal file
+ * name plus the sequence number of its last record, and a new active segment
+ * is started. Archived segments that are covered by a snapshot can then be
+ * deleted.
+ */
+public class Journal implements Closeable
+{
+    /**
+     * Determines when appended records are forced to disk and acknowledged.
+     */
+    public enum CommitPolicy
+    {
+        /**
+         * Every record is forced on its own before it is acknowledged.
+         */
+        SYNC,
+
+        /**
+         * Concurrent records are forced together. The writer waits at most the
+         * maximum delay for further records to join a batch.
+         */
+        GROUP,
+
+        /**
+         * Records are acknowledged as soon as they are queued, and forced at
+         * least once per maximum delay. A crash may lose the latest records.
+         */
+        ASYNC
+    }
+
+    /**
+     * Handles records read during replay.
+     */
+    public interface RecordHandler
+    {
+        /**
+         * Applies the given record.
+         * 
+         * @param sequence
+         *            The sequence number of the record.
+         * @param type
+         *            The record type.
+         * @param payload
+         *            A stream over the record payload.
+         * @throws IOException
+         */
+        void apply(long sequence, byte type, DataInputStream payload) throws IOException;
+    }
+
+    /**
+     * An appended record.
+     */
+    public static class Record
+    {
+        /**
+         * The sequence number of the record.
+         */
+        private final long _sequence;
+
+        /**
+         * The encoded record, or null for a rotation or flush request.
+         */
+        private final byte[] _data;
+
+        /**
+         * Whether this request archives the active segment after forcing it.
+         */
+        private final boolean _archive;
+
+        /**
+         * Completed with the sequence number once the record is durable.
+         */
+        private final CompletableFuture<Long> _durable = new CompletableFuture<>();
+
+        private Record(long sequence, byte[] data, boolean archive)
+        {
+            _sequence = sequence;
+            _data = data;
+            _archive = archive;
+        }
+
+        /**
+         * Returns the sequence number of the record.
+         * 
+         * @return The sequence number of the record.
+         */
+        public long getSequence()
+        {
+            return _sequence;
+        }
+
+        /**
+         * Returns whether the record was queued for writing. Records appended
+         * after the journal failed or was closed are not, so callers must not
+         * apply their changes.
+         * 
+         * @return Whether the record was accepted.
+         */
+        public boolean isAccepted()
+        {
+            return _data != null;
+        }
+
+        /**
+         * Returns a future that is completed with the sequence number once the
+         * record is durable according to the commit policy.
+         * 
+         * @return The durability future.
+         */
+        public CompletableFuture<Long> getDurable()
+        {
+            return _durable;
+        }
+    }
+
+    /**
+     * Record header length (length, sequence, type).
+     */
+    private static final int HEADER_LENGTH = 4 + 8 + 1;
+
+    /**
+     * Maximum number of records written with one force.
+     */
+    private static final int MAX_BATCH = 4096;
+
+    /**
+     * The journal file name, which is also the active segment.
+     */
+    private final Path _journalFile;
+
+    /**
+     * The active segment being appended to.
+     */
+    private FileChannel _channel;
+
+    /**
+     * The commit policy.
+     */
+    private final CommitPolicy _policy;
+
+    /**
+     * The maximum time a record waits before it is forced, in nanoseconds.
+     */
+    private final long _maxDelayNanos;
+
+    /**
+     * Records waiting for the writer thread, in sequence order.
+     */
+    private final LinkedBlockingQueue<Record> _pending = new LinkedBlockingQueue<>();
+
+    /**
+     * Keeps sequence numbers and queue order consistent.
+     */
+    private final ReentrantLock _appendLock = new ReentrantLock();
+
+    /**
+     * The last assigned sequence number.
+     */
+    private long _lastSequence;
+
+    /**
+     * The sequence number of the last record written to the active segment.
+     * Only used by the writer thread.
+     */
+    private long _writtenSequence;
+
+    /**
+     * Whether written records still need a force. Only used by the writer
+     * thread.
+     */
+    private boolean _unforced = false;
+
+    /**
+     * The time of the last force. Only used by the writer thread.
+     */
+    private long _lastForceNanos = System.nanoTime();
+
+    /**
+     * The thread writing and forcing the records.
+     */
+    private Thread _writerThread;
+
+    /**
+     * Set when the journal is closed.
+     */
+    private volatile boolean _closed = false;
+
+    /**
+     * Set when writing failed; no further records are accepted.
+     */
+    private volatile IOException _failure;
+
+    /**
+     * The number of forces done so far.
+     */
+    private volatile long _forceCount = 0;
+
+    /**
+     * Opens (or creates) the given journal file. Call replay() before
+     * appending.
+     * 
+     * @param journalFile
+     *            The journal file name.
+     * @param policy
+     *            The commit policy.
+     * @param maxDelayMicros
+     *            The maximum time a record waits before it is forced, in
+     *            microseconds.
+     * @throws IOException
+     */
+    public Journal(String journalFile, CommitPolicy policy, long maxDelayMicros) throws IOException
+    {
+        // Save parameters
+        _journalFile = Paths.get(journalFile).toAbsolutePath();
+        _policy = policy;
+        _maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        // Open active segment
+        _channel = FileChannel.open(_journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads all records after the given sequence number from the archived and
+     * active segments, and passes them to the given handler. A damaged or
+     * incomplete tail of the active segment is cut off. Afterwards the writer
+     * thread is started and records can be appended.
+     * 
+     * @param fromSequence
+     *            Records up to this sequence number are skipped, since they are
+     *            contained in the loaded snapshot.
+     * @param handler
+     *            The handler applying the records.
+     * @return The number of replayed records.
+     * @throws IOException
+     */
+    public long replay(long fromSequence, RecordHandler handler) throws IOException
+    {
+        // Replay archived segments that are not covered completely
+        long count = 0;
+        _lastSequence = fromSequence;
+        for(Path segment : listSegments().values())
+        {
+            long segmentSequence = getSegmentSequence(segment);
+            if(segmentSequence <= fromSequence)
+                continue;
+            try(FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ))
+            {
+                long[] result = replaySegment(segmentChannel, fromSequence, handler);
+                if(result[0] != segmentChannel.size())
+                    throw new IOException("Journal segment '" + segment + "' is damaged.");
+                count += result[1];
+            }
+        }
+
+        // Replay active segment and drop damaged tail
+        long[] result = replaySegment(_channel, fromSequence, handler);
+        long position = result[0];
+        count += result[1];
+        if(_channel.size() > position)
+        {
+            Log.warn("Journal: dropping " + (_channel.size() - position) + " bytes of incomplete records.");
+            _channel.truncate(position);
+        }
+        _channel.position(position);
+        _writtenSequence = _lastSequence;
+
+        // Start writing
+        _writerThread = new Thread(this::runWriter, "JournalWriter");
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+        return count;
+    }
+
+    /**
+     * Appends a record. The records are written in the order of the append()
+     * calls, so callers that need a specific order have to hold their locks
+     * while calling this method.
+     * 
+     * @param type
+     *            The record type.
+     * @param payload
+     *            The record payload.
+     * @return The record, which tells its sequence number and when it is
+     *         durable.
+     */
+    public Record append(byte type, byte[] payload)
+    {
+        // Encode record
+        ByteBuffer data = ByteBuffer.allocate(HEADER_LENGTH + payload.length + 4);
+        data.putInt(9 + payload.length);
+        data.putLong(0);
+        data.put(type);
+        data.put(payload);
+
+        _appendLock.lock();
+        try
+        {
+            // Journal still usable? Failed records get the last sequence number,
+            // which is safe for callers to remember
+            if(_failure != null || _closed)
+            {
+                Record record = new Record(_lastSequence, null, false);
+                record._durable.completeExceptionally(_failure != null ? _failure : new IOException("Journal closed."));
+                return record;
+            }
+
+            // Set sequence number and checksum
+            long sequence = ++_lastSequence;
+            data.putLong(4, sequence);
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), 4, 9 + payload.length);
+            data.putInt((int)crc.getValue());
+
+            // Queue record
+            Record record = new Record(sequence, data.array(), false);
+            _pending.add(record);
+            if(_policy == CommitPolicy.ASYNC)
+                record._durable.complete(sequence);
+            return record;
+        }
+        finally
+        {
+            _appendLock.unlock();
+        }
+    }
+
+    /**
+     * Archives the active segment and starts a new one. All records appended
+     * before this call end up in archived segments.
+     * 
+     * @return A future completed with the sequence number of the last archived
+     *         record once the rotation is done.
+     */
+    public CompletableFuture<Long> rotate()
+    {
+        return request(true);
+    }
+
+    /**
+     * Forces all records appended before this call, whatever the commit
+     * policy.
+     * 
+     * @return A future completed with the sequence number of the last forced
+     *         record once they are durable.
+     */
+    public CompletableFuture<Long> flush()
+    {
+        return request(false);
+    }
+
+    /**
+     * Queues a request to force the records appended so far, and to archive
+     * the active segment if requested.
+     */
+    private CompletableFuture<Long> request(boolean archive)
+    {
+        _appendLock.lock();
+        try
+        {
+            // Journal still usable?
+            Record marker = new Record(_lastSequence, null, archive);
+            if(_failure != null || _closed)
+                marker._durable.completeExceptionally(_failure != null ? _failure : new IOException("Journal closed."));
+            else
+                _pending.add(marker);
+            return marker._durable;
+        }
+        finally
+        {
+            _appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the archived segments that only contain records up to the given
+     * sequence number.
+     * 
+     * @param sequence
+     *            The sequence number up to which records are not needed
+     *            anymore.
+     * @throws IOException
+     */
+    public void deleteSegments(long sequence) throws IOException
+    {
+        for(Path segment : listSegments().headMap(sequence, true).values())
+            Files.deleteIfExists(segment);
+    }
+
+    /**
+     * Returns the commit policy.
+     * 
+     * @return The commit policy.
+     */
+    public CommitPolicy getPolicy()
+    {
+        return _policy;
+    }
+
+    /**
+     * Returns the last assigned sequence number.
+     * 
+     * @return The last assigned sequence number.
+     */
+    public long getLastSequence()
+    {
+        _appendLock.lock();
+        try
+        {
+            return _lastSequence;
+        }
+        finally
+        {
+            _appendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of forces done so far.
+     * 
+     * @return The number of forces done so far.
+     */
+    public long getForceCount()
+    {
+        return _forceCount;
+    }
+
+    /**
+     * Writes the pending records and closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        _appendLock.lock();
+        try
+        {
+            _closed = true;
+        }
+        finally
+        {
+            _appendLock.unlock();
+        }
+        try
+        {
+            if(_writerThread != null)
+                _writerThread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        _channel.close();
+    }
+
+    /**
+     * Forces the given directory, so renames and deletions in it are durable.
+     * Not supported on all platforms, where it does nothing.
+     * 
+     * @param directory
+     *            The directory.
+     */
+    public static void syncDirectory(Path directory)
+    {
+        try(FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            directoryChannel.force(true);
+        }
+        catch(IOException e)
+        {
+            // Not supported
+        }
+    }
+
+    /**
+     * The writer thread entry point.
+     */
+    private void runWriter()
+    {
+        ArrayList<Record> batch = new ArrayList<>();
+        try
+        {
+            while(!_closed || !_pending.isEmpty())
+            {
+                // Wait for the first record, force async records on time
+                Record first = _pending.poll(_policy == CommitPolicy.ASYNC && _unforced ? Math.max(1, _maxDelayNanos) : 100_000_000, TimeUnit.NANOSECONDS);
+                if(first != null)
+                {
+                    // Collect batch
+                    batch.add(first);
+                    if(_policy != CommitPolicy.SYNC)
+                        _pending.drainTo(batch, MAX_BATCH - batch.size());
+                    if(_policy == CommitPolicy.GROUP)
+                    {
+                        // Give concurrent clients a chance to share the force
+                        long deadline = System.nanoTime() + _maxDelayNanos;
+                        while(batch.size() < MAX_BATCH)
+                        {
+                            long remaining = deadline - System.nanoTime();
+                            Record next = remaining > 0 ? _pending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                            if(next == null)
+                                break;
+                            batch.add(next);
+                            _pending.drainTo(batch, MAX_BATCH - batch.size());
+                        }
+                    }
+                }
+
+                // Write batch, forcing the segment at rotation and flush
+                // requests and rotating it at rotation requests
+                int written = 0;
+                for(int i = 0; i < batch.size(); ++i)
+                {
+                    if(batch.get(i)._data != null)
+                        continue;
+                    write(batch, written, i);
+                    force();
+                    acknowledge(batch, written, i);
+                    if(batch.get(i)._archive)
+                        archiveSegment();
+                    batch.get(i)._durable.complete(_writtenSequence);
+                    written = i + 1;
+                }
+                write(batch, written, batch.size());
+
+                // Force
+                if(_policy != CommitPolicy.ASYNC || System.nanoTime() - _lastForceNanos >= _maxDelayNanos || _closed)
+                    force();
+                acknowledge(batch, written, batch.size());
+                batch.clear();
+            }
+
+            // Force the rest before closing
+            force();
+        }
+        catch(IOException | InterruptedException e)
+        {
+            // Fail everything that is not durable
+            e.printStackTrace();
+            _failure = e instanceof IOException ? (IOException)e : new IOException(e);
+            for(Record record : batch)
+                record._durable.completeExceptionally(_failure);
+            _appendLock.lock();
+            try
+            {
+                for(Record record : _pending)
+                    record._durable.completeExceptionally(_failure);
+                _pending.clear();
+            }
+            finally
+            {
+                _appendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the records in the given range of the batch to the active
+     * segment.
+     */
+    private void write(List<Record> batch, int from, int to) throws IOException
+    {
+        if(from >= to)
+            return;
+        int size = 0;
+        for(int i = from; i < to; ++i)
+            size += batch.get(i)._data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for(int i = from; i < to; ++i)
+            buffer.put(batch.get(i)._data);
+        buffer.flip();
+        while(buffer.hasRemaining())
+            _channel.write(buffer);
+        _writtenSequence = batch.get(to - 1)._sequence;
+        _unforced = true;
+    }
+
+    /**
+     * Forces the active segment, if there are unforced records.
+     */
+    private void force() throws IOException
+    {
+        if(!_unforced)
+            return;
+        _channel.force(false);
+        ++_forceCount;
+        _lastForceNanos = System.nanoTime();
+        _unforced = false;
+    }
+
+    /**
+     * Completes the durability futures of the records in the given range of
+     * the batch, if they are forced.
+     */
+    private void acknowledge(List<Record> batch, int from, int to)
+    {
+        if(_policy == CommitPolicy.ASYNC || _unforced)
+            return;
+        for(int i = from; i < to; ++i)
+            batch.get(i)._durable.complete(batch.get(i)._sequence);
+    }
+
+    /**
+     * Renames the (forced) active segment to its archived name and starts a
+     * new one. Does nothing if the active segment is empty.
+     */
+    private void archiveSegment() throws IOException
+    {
+        if(_channel.size() == 0)
+            return;
+        _channel.close();
+        Files.move(_journalFile, getSegmentFile(_writtenSequence), StandardCopyOption.ATOMIC_MOVE);
+        _channel = FileChannel.open(_journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        syncDirectory(_journalFile.getParent());
+    }
+
+    /**
+     * Reads the records of the given segment and passes those after the given
+     * sequence number to the handler.
+     * 
+     * @return The position after the last valid record and the number of
+     *         replayed records.
+     */
+    private long[] replaySegment(FileChannel channel, long fromSequence, RecordHandler handler) throws IOException
+    {
+        long position = 0;
+        long count = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+        while(true)
+        {
+            // Read header
+            header.clear();
+            if(readFully(channel, header, position) < HEADER_LENGTH)
+                break;
+            header.flip();
+            int length = header.getInt();
+            long sequence = header.getLong();
+            byte type = header.get();
+            if(length < 9 || length > (1 << 24))
+                break;
+
+            // Read payload and checksum
+            ByteBuffer body = ByteBuffer.allocate(length - 9 + 4);
+            if(readFully(channel, body, position + HEADER_LENGTH) < body.capacity())
+                break;
+            crc.reset();
+            crc.update(header.array(), 4, 9);
+            crc.update(body.array(), 0, length - 9);
+            if((int)crc.getValue() != body.getInt(length - 9))
+                break;
+
+            // Apply record
+            if(sequence > fromSequence)
+            {
+                handler.apply(sequence, type, new DataInputStream(new ByteArrayInputStream(body.array(), 0, length - 9)));
+                ++count;
+            }
+            _lastSequence = Math.max(_lastSequence, sequence);
+            position += 4 + length + 4;
+        }
+        return new long[] { position, count };
+    }
+
+    /**
+     * Returns the archived segments, ordered by the sequence number of their
+     * last record.
+     */
+    private TreeMap<Long, Path> listSegments() throws IOException
+    {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        String prefix = _journalFile.getFileName() + ".";
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(_journalFile.getParent(), prefix + "*"))
+        {
+            for(Path file : files)
+            {
+                long segmentSequence = getSegmentSequence(file);
+                if(segmentSequence >= 0)
+                    segments.put(segmentSequence, file);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the archived segment file for the given last sequence number.
+     */
+    private Path getSegmentFile(long sequence)
+    {
+        return _journalFile.resolveSibling(_journalFile.getFileName() + "." + String.format("%019d", sequence));
+    }
+
+    /**
+     * Returns the sequence number of the last record of the given archived
+     * segment, or -1 if the file is no archived segment.
+     */
+    private long getSegmentSequence(Path segment)
+    {
+        String suffix = segment.getFileName().toString().substring(_journalFile.getFileName().toString().length() + 1);
+        if(suffix.length() != 19 || !suffix.chars().allMatch(Character::isDigit))
+            return -1;
+        return Long.parseLong(suffix);
+    }
+
+    /**
+     * Reads from the given file position until the buffer is full or the end
+     * of the file is reached.
+     * 
+     * @return The number of bytes read.
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0)
+                break;
+        }
+        return buffer.position();
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with power of two buckets: bucket i counts durations
+ * from 2^i up to 2^(i+1) nanoseconds. Recording neither allocates nor locks;
+ * the counters are striped by thread, so concurrent threads rarely update the
+ * same cache line. Reading sums the stripes and is only approximately
+ * consistent while recording continues.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of buckets; the last one also counts all longer durations
+     * (2^39 ns are about 9 minutes).
+     */
+    public static final int BUCKETS = 40;
+
+    /**
+     * The number of counter stripes, a power of two.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1);
+
+    /**
+     * The array slots per stripe: buckets, sum and maximum, padded to whole
+     * cache lines.
+     */
+    private static final int STRIDE = (BUCKETS + 2 + 7) / 8 * 8;
+
+    /**
+     * Index of the sum of recorded durations within a stripe.
+     */
+    private static final int SUM = BUCKETS;
+
+    /**
+     * Index of the maximum recorded duration within a stripe.
+     */
+    private static final int MAX = BUCKETS + 1;
+
+    /**
+     * The striped counters.
+     */
+    private final AtomicLongArray _counters = new AtomicLongArray(STRIPES * STRIDE);
+
+    /**
+     * A copy of the histogram values.
+     */
+    public static class Snapshot
+    {
+        /**
+         * The number of durations per bucket.
+         */
+        public final long[] buckets = new long[BUCKETS];
+
+        /**
+         * The number of recorded durations.
+         */
+        public long count;
+
+        /**
+         * The sum of the recorded durations in nanoseconds.
+         */
+        public long sum;
+
+        /**
+         * The longest recorded duration in nanoseconds.
+         */
+        public long max;
+    }
+
+    /**
+     * Records a duration.
+     * 
+     * @param nanos
+     *            The duration in nanoseconds.
+     */
+    public void record(long nanos)
+    {
+        if(nanos < 0)
+            nanos = 0;
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos | 1));
+        int base = ((int)Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        _counters.getAndIncrement(base + bucket);
+        _counters.getAndAdd(base + SUM, nanos);
+        long max;
+        while(nanos > (max = _counters.get(base + MAX)) && !_counters.compareAndSet(base + MAX, max, nanos))
+            ;
+    }
+
+    /**
+     * Records the time passed since the given start time.
+     * 
+     * @param startNanos
+     *            The start time, from System.nanoTime().
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Sums the stripes.
+     * 
+     * @return The current values.
+     */
+    public Snapshot snapshot()
+    {
+        Snapshot snapshot = new Snapshot();
+        for(int stripe = 0; stripe < STRIPES; ++stripe)
+        {
+            int base = stripe * STRIDE;
+            for(int bucket = 0; bucket < BUCKETS; ++bucket)
+                snapshot.buckets[bucket] += _counters.get(base + bucket);
+            snapshot.sum += _counters.get(base + SUM);
+            snapshot.max = Math.max(snapshot.max, _counters.get(base + MAX));
+        }
+        for(long bucketCount : snapshot.buckets)
+            snapshot.count += bucketCount;
+        return snapshot;
+    }
+
+    /**
+     * Returns the upper bound of the given bucket.
+     * 
+     * @param bucket
+     *            The bucket index.
+     * @return The upper bound in nanoseconds (exclusive).
+     */
+    public static long getUpperBound(int bucket)
+    {
+        return 1L << (bucket + 1);
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports external transfer files into a database offline, for migrations and
+ * end-of-day settlement. A transfer file contains one transfer per line as
+ * "source,recipient,amount" with user names; empty lines and lines starting
+ * with '#' are skipped.
+ * 
+ * The file is streamed in chunks of rows. The rows of a chunk are parsed and
+ * their users looked up in parallel. Then each transfer gets a level one above
+ * the levels of the preceding transfers touching the same users, so the
+ * transfers of one level touch distinct users and are applied in parallel,
+ * level after level. The result is the same as applying all rows one after
+ * another in file order with the rules of Database.sendMoney(), including the
+ * order of the histories.
+ * 
+ * Rejected rows are written to a report file, one "line, reason, row" per
+ * row, separated by tabs.
+ */
+public class LedgerImport
+{
+    /**
+     * The reasons for rejecting a row.
+     */
+    private enum RejectReason
+    {
+        /**
+         * The row does not have three fields.
+         */
+        INVALID_FORMAT,
+
+        /**
+         * The amount is not a positive number.
+         */
+        INVALID_AMOUNT,
+
+        /**
+         * There is no user with the source name.
+         */
+        UNKNOWN_SOURCE,
+
+        /**
+         * There is no user with the recipient name.
+         */
+        UNKNOWN_RECIPIENT,
+
+        /**
+         * The source user does not have enough money at this point of the
+         * file.
+         */
+        INSUFFICIENT_FUNDS
+    }
+
+    /**
+     * The reasons in declaration order, for indexing the reject counts.
+     */
+    private static final RejectReason[] REJECT_REASONS = RejectReason.values();
+
+    /**
+     * Levels and row ranges smaller than this are processed by the calling
+     * thread, since handing them over costs more.
+     */
+    private static final int MIN_PARALLEL_ROWS = 4096;
+
+    /**
+     * The database the transfers are applied to.
+     */
+    private final Database _database;
+
+    /**
+     * The number of rows processed at once.
+     */
+    private final int _chunkRows;
+
+    /**
+     * The number of worker threads.
+     */
+    private final int _threadCount;
+
+    /**
+     * The rows of the current chunk.
+     */
+    private final String[] _rows;
+
+    /**
+     * The line numbers of the rows of the current chunk.
+     */
+    private final long[] _lineNumbers;
+
+    /**
+     * The source user IDs of the current chunk.
+     */
+    private final int[] _sourceUserIds;
+
+    /**
+     * The target user IDs of the current chunk.
+     */
+    private final int[] _targetUserIds;
+
+    /**
+     * The amounts of the current chunk.
+     */
+    private final int[] _amounts;
+
+    /**
+     * The reject reasons of the current chunk, null for applied rows.
+     */
+    private final RejectReason[] _rejectReasons;
+
+    /**
+     * The levels of the current chunk, 0 for rejected rows.
+     */
+    private final int[] _levels;
+
+    /**
+     * The rows of the current chunk, ordered by level.
+     */
+    private final int[] _levelOrder;
+
+    /**
+     * The highest level of the current chunk's transfers per user, valid if
+     * the user's chunk stamp matches.
+     */
+    private final int[] _userLevels;
+
+    /**
+     * The number of the chunk the user's level belongs to, counted from 1.
+     */
+    private final int[] _userChunks;
+
+    /**
+     * The number of imported rows.
+     */
+    private long _importedCount = 0;
+
+    /**
+     * The number of rejected rows per reason.
+     */
+    private final long[] _rejectCounts = new long[REJECT_REASONS.length];
+
+    /**
+     * Creates a new import into the given database. The chunk size is taken
+     * from the "bank.importChunkRows" system property (default 65536), the
+     * number of threads from "bank.importThreads" (default: number of cores).
+     * 
+     * @param database
+     *            The database, which must not serve clients meanwhile.
+     */
+    public LedgerImport(Database database)
+    {
+        _database = database;
+        _chunkRows = Math.max(1, Integer.getInteger("bank.importChunkRows", 1 << 16));
+        _threadCount = Math.max(1, Integer.getInteger("bank.importThreads", Runtime.getRuntime().availableProcessors()));
+        _rows = new String[_chunkRows];
+        _lineNumbers = new long[_chunkRows];
+        _sourceUserIds = new int[_chunkRows];
+        _targetUserIds = new int[_chunkRows];
+        _amounts = new int[_chunkRows];
+        _rejectReasons = new RejectReason[_chunkRows];
+        _levels = new int[_chunkRows];
+        _levelOrder = new int[_chunkRows];
+        _userLevels = new int[database.getUserCount()];
+        _userChunks = new int[database.getUserCount()];
+    }
+
+    /**
+     * Applies all transfers of the given file, and logs a summary with the
+     * achieved rows per second.
+     * 
+     * @param transferFile
+     *            The transfer file.
+     * @param reportFile
+     *            Receives the rejected rows.
+     * @throws IOException
+     */
+    public void run(Path transferFile, Path reportFile) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(_threadCount, r ->
+        {
+            Thread thread = new Thread(r, "LedgerImport");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try(BufferedReader transfers = Files.newBufferedReader(transferFile, StandardCharsets.UTF_8);
+                Writer report = new BufferedWriter(Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8), 1 << 16))
+        {
+            // Read chunks of rows, and import them
+            long lineNumber = 0;
+            int chunk = 0;
+            int rowCount = 0;
+            String row;
+            while((row = transfers.readLine()) != null)
+            {
+                ++lineNumber;
+                if(row.isEmpty() || row.startsWith("#"))
+                    continue;
+                _rows[rowCount] = row;
+                _lineNumbers[rowCount] = lineNumber;
+                if(++rowCount == _chunkRows)
+                {
+                    importChunk(workers, ++chunk, rowCount, report);
+                    rowCount = 0;
+                }
+            }
+            if(rowCount > 0)
+                importChunk(workers, ++chunk, rowCount, report);
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+
+        // Report results
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long rejectedCount = 0;
+        StringBuilder rejects = new StringBuilder();
+        for(RejectReason reason : REJECT_REASONS)
+        {
+            rejectedCount += _rejectCounts[reason.ordinal()];
+            if(_rejectCounts[reason.ordinal()] > 0)
+                rejects.append(", ").append(_rejectCounts[reason.ordinal()]).append(' ').append(reason.name().toLowerCase());
+        }
+        long rowCount = _importedCount + rejectedCount;
+        Log.info(String.format("Imported %d of %d rows in %.3f s (%.0f rows/s), %d rejected%s.", _importedCount, rowCount, seconds, rowCount / seconds,
+                rejectedCount, rejects));
+        if(rejectedCount > 0)
+            Log.info("Rejected rows were written to '" + reportFile + "'.");
+    }
+
+    /**
+     * Parses and applies the given number of rows of the current chunk, and
+     * reports the rejected ones.
+     */
+    private void importChunk(ExecutorService workers, int chunk, int rowCount, Writer report) throws IOException
+    {
+        // Parse rows and look up users
+        forEachRange(workers, 0, rowCount, this::parseRows);
+
+        // Assign levels: one above the last transfer of both users
+        int levelCount = 0;
+        for(int r = 0; r < rowCount; ++r)
+        {
+            _levels[r] = 0;
+            if(_rejectReasons[r] != null)
+                continue;
+            int source = _sourceUserIds[r];
+            int target = _targetUserIds[r];
+            int level = 1 + Math.max(_userChunks[source] == chunk ? _userLevels[source] : 0, _userChunks[target] == chunk ? _userLevels[target] : 0);
+            _userLevels[source] = level;
+            _userChunks[source] = chunk;
+            _userLevels[target] = level;
+            _userChunks[target] = chunk;
+            _levels[r] = level;
+            levelCount = Math.max(levelCount, level);
+        }
+
+        // Order rows by level (counting sort), remembering where each level
+        // starts
+        int[] levelStarts = new int[levelCount + 2];
+        for(int r = 0; r < rowCount; ++r)
+            if(_levels[r] > 0)
+                ++levelStarts[_levels[r] + 1];
+        for(int l = 1; l <= levelCount + 1; ++l)
+            levelStarts[l] += levelStarts[l - 1];
+        int[] nextPositions = levelStarts.clone();
+        for(int r = 0; r < rowCount; ++r)
+            if(_levels[r] > 0)
+                _levelOrder[nextPositions[_levels[r]]++] = r;
+
+        // Apply levels one after another
+        for(int l = 1; l <= levelCount; ++l)
+            forEachRange(workers, levelStarts[l], levelStarts[l + 1], this::applyTransfers);
+
+        // Count and report rows in file order
+        for(int r = 0; r < rowCount; ++r)
+        {
+            RejectReason reason = _rejectReasons[r];
+            if(reason == null)
+            {
+                ++_importedCount;
+                continue;
+            }
+            ++_rejectCounts[reason.ordinal()];
+            report.write(_lineNumbers[r] + "\t" + reason.name() + "\t" + _rows[r] + "\n");
+        }
+    }
+
+    /**
+     * Parses the given rows of the current chunk and looks up their users.
+     */
+    private void parseRows(int from, int to)
+    {
+        for(int r = from; r < to; ++r)
+        {
+            _rejectReasons[r] = null;
+            String[] fields = _rows[r].split(",");
+            if(fields.length != 3)
+            {
+                _rejectReasons[r] = RejectReason.INVALID_FORMAT;
+                continue;
+            }
+            try
+            {
+                _amounts[r] = Integer.parseInt(fields[2].trim());
+            }
+            catch(NumberFormatException e)
+            {
+                _amounts[r] = 0;
+            }
+            _sourceUserIds[r] = _database.findUserId(fields[0].trim());
+            _targetUserIds[r] = _database.findUserId(fields[1].trim());
+            if(_amounts[r] <= 0)
+                _rejectReasons[r] = RejectReason.INVALID_AMOUNT;
+            else if(_sourceUserIds[r] < 0)
+                _rejectReasons[r] = RejectReason.UNKNOWN_SOURCE;
+            else if(_targetUserIds[r] < 0)
+                _rejectReasons[r] = RejectReason.UNKNOWN_RECIPIENT;
+        }
+    }
+
+    /**
+     * Applies the transfers at the given positions of the level order. They
+     * belong to the same level, so they touch distinct users.
+     */
+    private void applyTransfers(int from, int to)
+    {
+        for(int p = from; p < to; ++p)
+        {
+            int r = _levelOrder[p];
+            if(!_database.applyImportedTransfer(_sourceUserIds[r], _targetUserIds[r], _amounts[r]))
+                _rejectReasons[r] = RejectReason.INSUFFICIENT_FUNDS;
+        }
+    }
+
+    /**
+     * Processes a range of rows or positions.
+     */
+    private interface RangeTask
+    {
+        /**
+         * Processes the given range.
+         * 
+         * @param from
+         *            The first index.
+         * @param to
+         *            The index behind the last one.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the given task on the given range, split among the workers if it is
+     * large enough, and waits until it is done.
+     */
+    private void forEachRange(ExecutorService workers, int from, int to, RangeTask task) throws IOException
+    {
+        if(to - from < MIN_PARALLEL_ROWS || _threadCount == 1)
+        {
+            task.run(from, to);
+            return;
+        }
+
+        // Hand over one part per thread
+        List<Callable<Void>> parts = new ArrayList<>(_threadCount);
+        for(int t = 0; t < _threadCount; ++t)
+        {
+            int partFrom = from + (int)((long)(to - from) * t / _threadCount);
+            int partTo = from + (int)((long)(to - from) * (t + 1) / _threadCount);
+            parts.add(() ->
+            {
+                task.run(partFrom, partTo);
+                return null;
+            });
+        }
+        try
+        {
+            for(Future<Void> part : workers.invokeAll(parts))
+                part.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Importing transfers was interrupted.", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An in-process stand-in for the SMTP and CTF servers, used outside of the lab
+ * and for testing the dispatcher offline. Side effects are only printed to
+ * the server terminal. A delivery delay and a failure rate can be configured
+ * to simulate slow or unreliable endpoints.
+ */
+public class LocalSink implements SideEffectSink
+{
+    /**
+     * The simulated time one delivery takes.
+     */
+    private final long _delayMillis;
+
+    /**
+     * The probability that a delivery fails.
+     */
+    private final double _failureRate;
+
+    /**
+     * Creates a new sink configured by the "bank.localSinkDelay" (in
+     * milliseconds) and "bank.localSinkFailureRate" (0 to 1) system
+     * properties.
+     */
+    public LocalSink()
+    {
+        this(Long.getLong("bank.localSinkDelay", 0), Double.parseDouble(System.getProperty("bank.localSinkFailureRate", "0")));
+    }
+
+    /**
+     * Creates a new sink.
+     * 
+     * @param delayMillis
+     *            The simulated time one delivery takes.
+     * @param failureRate
+     *            The probability that a delivery fails.
+     */
+    public LocalSink(long delayMillis, double failureRate)
+    {
+        _delayMillis = delayMillis;
+        _failureRate = failureRate;
+    }
+
+    /**
+     * Prints the given side effects.
+     */
+    @Override
+    public List<SideEffect> deliver(List<SideEffect> batch)
+    {
+        List<SideEffect> failed = new ArrayList<>();
+        for(SideEffect effect : batch)
+        {
+            // Simulate endpoint
+            if(_delayMillis > 0)
+            {
+                try
+                {
+                    Thread.sleep(_delayMillis);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(ThreadLocalRandom.current().nextDouble() < _failureRate)
+            {
+                effect.fail("Simulated failure.");
+                failed.add(effect);
+                continue;
+            }
+
+            if(effect.getType() == SideEffect.Type.MAIL)
+                Log.info("Local mail to " + effect.getTarget() + ": " + effect.getSubject() + ": " + effect.getText());
+            else
+                Log.info("Local token grant for group " + effect.getTarget() + ".");
+        }
+        return failed;
+    }
+}
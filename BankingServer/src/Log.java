@@ -0,0 +1,367 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log. Logging threads only put the message into a
+ * bounded lock-free ring buffer; a single writer thread formats the messages
+ * and writes them in batches to standard output or to a file, so a slow
+ * terminal does not throttle the sessions.
+ * 
+ * The log is configured by the "bank.logLevel" (debug, info, warn, error),
+ * "bank.logFile" (default: standard output), "bank.logBuffer" (ring capacity,
+ * rounded up to a power of two) and "bank.logPolicy" (drop or block when the
+ * ring is full) system properties. The level threshold is a constant, so
+ * checks of disabled levels are removed by the JIT; callers building
+ * expensive messages for disabled levels should still guard them with
+ * isEnabled().
+ */
+public class Log
+{
+    /**
+     * Message severity levels.
+     */
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * The lowest level that is logged.
+     */
+    private static final int THRESHOLD = Level.valueOf(System.getProperty("bank.logLevel", "info").toUpperCase()).ordinal();
+
+    /**
+     * Whether producers wait for free space instead of dropping messages when
+     * the ring is full.
+     */
+    private static final boolean BLOCK_WHEN_FULL = System.getProperty("bank.logPolicy", "drop").equalsIgnoreCase("block");
+
+    /**
+     * The maximum number of messages written with one flush.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Formats the time stamps.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /**
+     * The ring capacity minus one, for masking positions.
+     */
+    private static final int MASK;
+
+    /**
+     * The sequence number of each slot. A slot at position p is free for the
+     * producer claiming p if its sequence is p, and contains a message for the
+     * writer if its sequence is p + 1.
+     */
+    private static final AtomicLongArray SEQUENCES;
+
+    /**
+     * The messages of the slots.
+     */
+    private static final String[] MESSAGES;
+
+    /**
+     * The levels of the slots.
+     */
+    private static final Level[] LEVELS;
+
+    /**
+     * The creation times of the slots' messages, in milliseconds.
+     */
+    private static final long[] TIMES;
+
+    /**
+     * The next position claimed by a producer.
+     */
+    private static final AtomicLong HEAD = new AtomicLong();
+
+    /**
+     * The next position read by the writer. Only used by the writer thread.
+     */
+    private static long tail = 0;
+
+    /**
+     * The number of messages dropped because the ring was full.
+     */
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    /**
+     * The number of dropped messages already reported. Only used by the
+     * writer thread.
+     */
+    private static long reportedDropped = 0;
+
+    /**
+     * The log file, or null for standard output.
+     */
+    private static final PrintStream FILE;
+
+    /**
+     * The writer thread, parked while the ring is empty.
+     */
+    private static final Thread WRITER;
+
+    /**
+     * Set while the writer thread is parked or about to park.
+     */
+    private static volatile boolean writerIdle = false;
+
+    static
+    {
+        // Allocate ring
+        int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("bank.logBuffer", 65536)) * 2 - 1);
+        MASK = capacity - 1;
+        SEQUENCES = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; ++i)
+            SEQUENCES.set(i, i);
+        MESSAGES = new String[capacity];
+        LEVELS = new Level[capacity];
+        TIMES = new long[capacity];
+
+        // Open log file
+        PrintStream file = null;
+        String fileName = System.getProperty("bank.logFile");
+        if(fileName != null)
+        {
+            try
+            {
+                file = new PrintStream(new FileOutputStream(fileName, true), false, StandardCharsets.UTF_8.name());
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        FILE = file;
+
+        // Start writer, and write remaining messages on exit
+        WRITER = new Thread(Log::runWriter, "LogWriter");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogFlush"));
+    }
+
+    /**
+     * Returns whether messages of the given level are logged.
+     * 
+     * @param level
+     *            The level.
+     * @return Whether messages of the given level are logged.
+     */
+    public static boolean isEnabled(Level level)
+    {
+        return level.ordinal() >= THRESHOLD;
+    }
+
+    /**
+     * Logs a message for debugging, like per command or per connection
+     * events.
+     * 
+     * @param message
+     *            The message.
+     */
+    public static void debug(String message)
+    {
+        if(Level.DEBUG.ordinal() >= THRESHOLD)
+            enqueue(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs an informational message.
+     * 
+     * @param message
+     *            The message.
+     */
+    public static void info(String message)
+    {
+        if(Level.INFO.ordinal() >= THRESHOLD)
+            enqueue(Level.INFO, message);
+    }
+
+    /**
+     * Logs a warning.
+     * 
+     * @param message
+     *            The message.
+     */
+    public static void warn(String message)
+    {
+        if(Level.WARN.ordinal() >= THRESHOLD)
+            enqueue(Level.WARN, message);
+    }
+
+    /**
+     * Logs an error.
+     * 
+     * @param message
+     *            The message.
+     */
+    public static void error(String message)
+    {
+        if(Level.ERROR.ordinal() >= THRESHOLD)
+            enqueue(Level.ERROR, message);
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring was full.
+     * 
+     * @return The number of dropped messages.
+     */
+    public static long getDroppedCount()
+    {
+        return DROPPED.get();
+    }
+
+    /**
+     * Puts the given message into the ring. Producers claim a position by
+     * advancing the head, fill the slot and then publish it by setting its
+     * sequence.
+     */
+    private static void enqueue(Level level, String message)
+    {
+        long time = System.currentTimeMillis();
+        long position = HEAD.get();
+        int spins = 0;
+        while(true)
+        {
+            int slot = (int)position & MASK;
+            long difference = SEQUENCES.get(slot) - position;
+            if(difference == 0)
+            {
+                // Slot is free, claim it
+                if(HEAD.compareAndSet(position, position + 1))
+                {
+                    MESSAGES[slot] = message;
+                    LEVELS[slot] = level;
+                    TIMES[slot] = time;
+                    SEQUENCES.lazySet(slot, position + 1);
+                    break;
+                }
+                position = HEAD.get();
+            }
+            else if(difference < 0)
+            {
+                // Ring is full
+                if(!BLOCK_WHEN_FULL)
+                {
+                    DROPPED.incrementAndGet();
+                    return;
+                }
+                wakeWriter();
+                if(++spins < 100)
+                    Thread.onSpinWait();
+                else
+                    LockSupport.parkNanos(50000);
+                position = HEAD.get();
+            }
+            else
+                position = HEAD.get();
+        }
+
+        wakeWriter();
+    }
+
+    /**
+     * Unparks the writer thread if it waits for messages.
+     */
+    private static void wakeWriter()
+    {
+        if(writerIdle)
+        {
+            writerIdle = false;
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * Writes messages until the JVM exits.
+     */
+    private static void runWriter()
+    {
+        while(true)
+        {
+            if(drain() == 0)
+            {
+                // Park until a producer publishes a message; check again after
+                // announcing. Producers publish without a full fence, so a
+                // wakeup may be missed, which the park timeout bounds
+                writerIdle = true;
+                if(SEQUENCES.get((int)tail & MASK) != tail + 1)
+                    LockSupport.parkNanos(100_000_000);
+                writerIdle = false;
+            }
+        }
+    }
+
+    /**
+     * Writes all published messages in batches.
+     * 
+     * @return The number of written messages.
+     */
+    private static synchronized int drain()
+    {
+        PrintStream out = FILE != null ? FILE : System.out;
+        StringBuilder batch = new StringBuilder();
+        int written = 0;
+        while(true)
+        {
+            // Take published messages
+            int count = 0;
+            while(count < MAX_BATCH)
+            {
+                int slot = (int)tail & MASK;
+                if(SEQUENCES.get(slot) != tail + 1)
+                    break;
+                format(batch, LEVELS[slot], TIMES[slot], MESSAGES[slot]);
+                MESSAGES[slot] = null;
+                SEQUENCES.lazySet(slot, tail + MASK + 1);
+                ++tail;
+                ++count;
+            }
+
+            // Report drops
+            long dropped = DROPPED.get();
+            if(dropped != reportedDropped)
+            {
+                format(batch, Level.WARN, System.currentTimeMillis(), (dropped - reportedDropped) + " log messages dropped.");
+                reportedDropped = dropped;
+            }
+
+            if(batch.length() == 0)
+                return written;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+            written += count;
+        }
+    }
+
+    /**
+     * Appends a formatted log line.
+     */
+    private static void format(StringBuilder batch, Level level, long time, String message)
+    {
+        TIME_FORMAT.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()), batch);
+        batch.append(' ').append(level.name()).append(' ').append(message).append(System.lineSeparator());
+    }
+
+    /**
+     * Writes all messages logged so far. Called on exit.
+     */
+    public static void flush()
+    {
+        drain();
+    }
+}
@@ -0,0 +1,259 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Slows down password guessing. Failed logins are counted per account name,
+ * per source address and per pair of both, and the "Login invalid." reply is
+ * delayed exponentially in the number of recent failures. The delay is
+ * implemented by scheduling the reply on a timer, so no session thread and no
+ * lock is held while waiting.
+ * 
+ * Until the delay of its last failure has passed, a pair of account and source
+ * is refused without checking the password, so parallel connections cannot
+ * tell an immediate success from a delayed failure. Refused attempts are not
+ * counted as failures. Failures of the account or the source alone only delay
+ * replies, including the one to a correct password, so neither a peer guessing
+ * a victim's password nor other users behind the same address can lock the
+ * victim out.
+ */
+public class LoginThrottle
+{
+    /**
+     * Counts the recent failed logins of one account, source or pair.
+     */
+    private static class FailureRecord
+    {
+        /**
+         * The number of failures since the last reset.
+         */
+        volatile int failures;
+
+        /**
+         * The time of the last failure.
+         */
+        volatile long lastFailureMillis;
+    }
+
+    /**
+     * Recent failures per account name, normalized like the name index.
+     */
+    private final ConcurrentHashMap<String, FailureRecord> _accountFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Recent failures per source address.
+     */
+    private final ConcurrentHashMap<String, FailureRecord> _sourceFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Recent failures per pair of source address and normalized account name.
+     */
+    private final ConcurrentHashMap<String, FailureRecord> _pairFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Sends the delayed replies.
+     */
+    private final ScheduledExecutorService _timer;
+
+    /**
+     * The delay after the first failure.
+     */
+    private final long _baseDelayMillis;
+
+    /**
+     * The maximum delay.
+     */
+    private final long _maxDelayMillis;
+
+    /**
+     * The time without failures after which an account or source starts over.
+     */
+    private final long _resetMillis;
+
+    /**
+     * Creates a new throttle configured by the "bank.loginDelay",
+     * "bank.loginDelayMax" and "bank.loginDelayReset" system properties (in
+     * milliseconds).
+     */
+    public LoginThrottle()
+    {
+        this(Long.getLong("bank.loginDelay", 3000), Long.getLong("bank.loginDelayMax", 60000), Long.getLong("bank.loginDelayReset", 15 * 60000));
+    }
+
+    /**
+     * Creates a new throttle.
+     * 
+     * @param baseDelayMillis
+     *            The delay after the first failure.
+     * @param maxDelayMillis
+     *            The maximum delay.
+     * @param resetMillis
+     *            The time without failures after which an account or source
+     *            starts over.
+     */
+    public LoginThrottle(long baseDelayMillis, long maxDelayMillis, long resetMillis)
+    {
+        // Save parameters
+        _baseDelayMillis = baseDelayMillis;
+        _maxDelayMillis = maxDelayMillis;
+        _resetMillis = resetMillis;
+
+        // Create timer thread
+        _timer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "LoginThrottle");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Forget stale records regularly
+        long cleanupMillis = Math.max(1000, _resetMillis);
+        _timer.scheduleAtFixedRate(this::removeStaleRecords, cleanupMillis, cleanupMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a failed login and returns how long the reply shall be delayed.
+     * 
+     * @param account
+     *            The name used for the login.
+     * @param source
+     *            The address the login came from.
+     * @return The reply delay in milliseconds.
+     */
+    public long registerFailure(String account, String source)
+    {
+        long now = System.currentTimeMillis();
+        int accountFailures = countFailure(_accountFailures, Database.normalizeName(account), now);
+        int sourceFailures = countFailure(_sourceFailures, source, now);
+        int pairFailures = countFailure(_pairFailures, getPairKey(account, source), now);
+        return getDelay(Math.max(pairFailures, Math.max(accountFailures, sourceFailures)));
+    }
+
+    /**
+     * Returns how long logins of the given account from the given source are
+     * still refused, because the delay of their last failure has not passed
+     * yet. A refused login is answered after this time without checking the
+     * password and without counting it as failure.
+     * 
+     * @param account
+     *            The name used for the login.
+     * @param source
+     *            The address the login came from.
+     * @return The remaining refusal time in milliseconds, or 0 if the login
+     *         may be checked.
+     */
+    public long getRefusalDelay(String account, String source)
+    {
+        return getRemainingDelay(_pairFailures.get(getPairKey(account, source)), System.currentTimeMillis());
+    }
+
+    /**
+     * Records a successful login, which resets the failures of the account and
+     * of the pair, and returns how long the reply shall be delayed, because
+     * the delay of a recent failure of the account or the source has not
+     * passed yet.
+     * 
+     * @param account
+     *            The name used for the login.
+     * @param source
+     *            The address the login came from.
+     * @return The reply delay in milliseconds.
+     */
+    public long registerSuccess(String account, String source)
+    {
+        long now = System.currentTimeMillis();
+        String normalizedAccount = Database.normalizeName(account);
+        long delayMillis = Math.max(getRemainingDelay(_accountFailures.get(normalizedAccount), now), getRemainingDelay(_sourceFailures.get(source), now));
+        _accountFailures.remove(normalizedAccount);
+        _pairFailures.remove(getPairKey(account, source));
+        return delayMillis;
+    }
+
+    /**
+     * Runs the given action after the given delay on the timer thread. The
+     * thread is shared by all sessions, so the action must not block: sessions
+     * only hand the encoded reply to their packet sink, which queues packets
+     * from foreign threads and writes them elsewhere.
+     * 
+     * @param delayMillis
+     *            The delay in milliseconds.
+     * @param action
+     *            The action to be run.
+     */
+    public void schedule(long delayMillis, Runnable action)
+    {
+        _timer.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the delay for the given number of recent failures.
+     * 
+     * @param failures
+     *            The number of recent failures.
+     * @return The delay in milliseconds.
+     */
+    public long getDelay(int failures)
+    {
+        if(failures <= 0)
+            return 0;
+        return Math.min(_maxDelayMillis, _baseDelayMillis << Math.min(failures - 1, 20));
+    }
+
+    /**
+     * Stops the timer thread. Pending replies are dropped.
+     */
+    public void shutdown()
+    {
+        _timer.shutdownNow();
+    }
+
+    /**
+     * Returns the key of the given account and source in the pair records.
+     * Source addresses contain no spaces, so the key is unambiguous.
+     */
+    private static String getPairKey(String account, String source)
+    {
+        return source + " " + Database.normalizeName(account);
+    }
+
+    /**
+     * Increments the failure count of the given key and returns it.
+     */
+    private int countFailure(ConcurrentHashMap<String, FailureRecord> records, String key, long now)
+    {
+        FailureRecord record = records.compute(key, (k, r) ->
+        {
+            if(r == null)
+                r = new FailureRecord();
+            if(now - r.lastFailureMillis > _resetMillis)
+                r.failures = 0;
+            ++r.failures;
+            r.lastFailureMillis = now;
+            return r;
+        });
+        return record.failures;
+    }
+
+    /**
+     * Returns the time until the delay of the last failure of the given record
+     * has passed, or 0 if it has.
+     */
+    private long getRemainingDelay(FailureRecord record, long now)
+    {
+        if(record == null)
+            return 0;
+        return Math.max(0, record.lastFailureMillis + getDelay(record.failures) - now);
+    }
+
+    /**
+     * Removes records without recent failures.
+     */
+    private void removeStaleRecords()
+    {
+        long now = System.currentTimeMillis();
+        _accountFailures.values().removeIf(r -> now - r.lastFailureMillis > _resetMillis);
+        _sourceFailures.values().removeIf(r -> now - r.lastFailureMillis > _resetMillis);
+        _pairFailures.values().removeIf(r -> now - r.lastFailureMillis > _resetMillis);
+    }
+}
@@ -0,0 +1,394 @@
+import java.io.Closeable;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Sends e-mails over a small pool of authenticated SMTP connections. Each
+ * connection stays open and sends message after message, so the TCP
+ * handshake, greeting and authentication are only paid once per connection.
+ * Connections that were idle for a while are checked with NOOP before reuse;
+ * dead connections are replaced, and a message that failed because its
+ * connection died is sent once more on a fresh connection.
+ */
+public class MailSender implements Closeable
+{
+    /**
+     * An open SMTP connection.
+     */
+    private static class PooledTransport
+    {
+        /**
+         * The connected transport.
+         */
+        final SMTPTransport transport;
+
+        /**
+         * The time the connection was last used.
+         */
+        long lastUsedNanos = System.nanoTime();
+
+        PooledTransport(SMTPTransport transport)
+        {
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * The SMTP server host.
+     */
+    private final String _host;
+
+    /**
+     * The SMTP server port.
+     */
+    private final int _port;
+
+    /**
+     * The SMTP user name.
+     */
+    private final String _user;
+
+    /**
+     * The SMTP password.
+     */
+    private final String _password;
+
+    /**
+     * The mail session.
+     */
+    private final Session _session;
+
+    /**
+     * Idle connections, the most recently used first.
+     */
+    private final LinkedBlockingDeque<PooledTransport> _idle = new LinkedBlockingDeque<>();
+
+    /**
+     * The threads sending the messages, one per connection.
+     */
+    private final ExecutorService _senders;
+
+    /**
+     * Idle time after which a connection is checked before reuse, in
+     * nanoseconds.
+     */
+    private final long _idleCheckNanos;
+
+    /**
+     * The number of messages waiting for or being sent.
+     */
+    private final AtomicInteger _pending = new AtomicInteger();
+
+    /**
+     * The number of sent messages.
+     */
+    private final AtomicLong _sentCount = new AtomicLong();
+
+    /**
+     * The total time spent sending messages, in nanoseconds.
+     */
+    private final AtomicLong _sendNanos = new AtomicLong();
+
+    /**
+     * The longest time spent sending a message, in nanoseconds.
+     */
+    private final AtomicLong _maxSendNanos = new AtomicLong();
+
+    /**
+     * The number of opened connections.
+     */
+    private final AtomicLong _connectCount = new AtomicLong();
+
+    /**
+     * The number of dead connections that were replaced.
+     */
+    private final AtomicLong _replacedCount = new AtomicLong();
+
+    /**
+     * Creates a new sender configured by the "bank.smtpHost", "bank.smtpPort",
+     * "bank.smtpUser", "bank.smtpPassword", "bank.smtpConnections" and
+     * "bank.smtpIdleCheck" (in milliseconds) system properties.
+     */
+    public MailSender()
+    {
+        this(System.getProperty("bank.smtpHost", "localhost"), Integer.getInteger("bank.smtpPort", 25), System.getProperty("bank.smtpUser", "test@its-bank"),
+                System.getProperty("bank.smtpPassword", "test"), Integer.getInteger("bank.smtpConnections", 2), Long.getLong("bank.smtpIdleCheck", 1000));
+    }
+
+    /**
+     * Creates a new sender. Connections are opened when they are first
+     * needed.
+     * 
+     * @param host
+     *            The SMTP server host.
+     * @param port
+     *            The SMTP server port.
+     * @param user
+     *            The SMTP user name.
+     * @param password
+     *            The SMTP password.
+     * @param connections
+     *            The maximum number of open connections.
+     * @param idleCheckMillis
+     *            Idle time after which a connection is checked before reuse.
+     */
+    public MailSender(String host, int port, String user, String password, int connections, long idleCheckMillis)
+    {
+        // Save parameters
+        _host = host;
+        _port = port;
+        _user = user;
+        _password = password;
+        _idleCheckNanos = TimeUnit.MILLISECONDS.toNanos(idleCheckMillis);
+
+        // Create mail session
+        Properties props = new Properties();
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", Integer.toString(port));
+        props.put("mail.smtp.auth", "true");
+        _session = Session.getInstance(props, null);
+
+        // One sender thread per connection
+        _senders = Executors.newFixedThreadPool(Math.max(1, connections), runnable ->
+        {
+            Thread thread = new Thread(runnable, "MailSender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues an e-mail for sending.
+     * 
+     * @param recipient
+     *            The recipient address.
+     * @param subject
+     *            The mail subject.
+     * @param text
+     *            The mail text.
+     * @return A future that completes when the message was accepted by the
+     *         server, or completes exceptionally if it could not be sent.
+     */
+    public CompletableFuture<Void> send(String recipient, String subject, String text)
+    {
+        _pending.incrementAndGet();
+        return CompletableFuture.runAsync(() ->
+        {
+            try
+            {
+                sendNow(recipient, subject, text);
+            }
+            catch(MessagingException e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                _pending.decrementAndGet();
+            }
+        }, _senders);
+    }
+
+    /**
+     * Sends the given e-mail on a pooled connection. Called by the sender
+     * threads.
+     */
+    private void sendNow(String recipient, String subject, String text) throws MessagingException
+    {
+        // Create message
+        Message msg = new MimeMessage(_session);
+        msg.setFrom(new InternetAddress("its@its-bank"));
+        msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipient, false));
+        msg.setSubject(subject);
+        msg.setText(text);
+        msg.setHeader("X-Mailer", "ITS-BankServer");
+        msg.setSentDate(new Date());
+
+        long start = System.nanoTime();
+        PooledTransport connection = acquire();
+        try
+        {
+            connection.transport.sendMessage(msg, msg.getAllRecipients());
+        }
+        catch(MessagingException e)
+        {
+            // Message rejected by a live server?
+            if(connection.transport.isConnected())
+            {
+                release(connection);
+                throw e;
+            }
+
+            // Connection died, try once more on a new one
+            discard(connection);
+            _replacedCount.incrementAndGet();
+            connection = connect();
+            try
+            {
+                connection.transport.sendMessage(msg, msg.getAllRecipients());
+            }
+            catch(MessagingException retryException)
+            {
+                discard(connection);
+                throw retryException;
+            }
+        }
+        release(connection);
+
+        // Update statistics
+        long sendNanos = System.nanoTime() - start;
+        _sentCount.incrementAndGet();
+        _sendNanos.addAndGet(sendNanos);
+        _maxSendNanos.accumulateAndGet(sendNanos, Math::max);
+    }
+
+    /**
+     * Returns an open connection from the pool, or opens a new one.
+     */
+    private PooledTransport acquire() throws MessagingException
+    {
+        PooledTransport connection;
+        while((connection = _idle.pollFirst()) != null)
+        {
+            // Recently used connections are assumed to be alive, others are
+            // checked with NOOP
+            if(System.nanoTime() - connection.lastUsedNanos < _idleCheckNanos || connection.transport.isConnected())
+                return connection;
+            discard(connection);
+            _replacedCount.incrementAndGet();
+        }
+        return connect();
+    }
+
+    /**
+     * Opens and authenticates a new connection.
+     */
+    private PooledTransport connect() throws MessagingException
+    {
+        SMTPTransport transport = (SMTPTransport)_session.getTransport("smtp");
+        transport.connect(_host, _port, _user, _password);
+        _connectCount.incrementAndGet();
+        return new PooledTransport(transport);
+    }
+
+    /**
+     * Returns the given connection to the pool.
+     */
+    private void release(PooledTransport connection)
+    {
+        connection.lastUsedNanos = System.nanoTime();
+        _idle.offerFirst(connection);
+    }
+
+    /**
+     * Closes the given connection, ignoring errors.
+     */
+    private static void discard(PooledTransport connection)
+    {
+        try
+        {
+            connection.transport.close();
+        }
+        catch(MessagingException e)
+        {
+            // Connection is dead anyway
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for or being sent.
+     * 
+     * @return The queue depth.
+     */
+    public int getPendingCount()
+    {
+        return _pending.get();
+    }
+
+    /**
+     * Returns the number of sent messages.
+     * 
+     * @return The number of sent messages.
+     */
+    public long getSentCount()
+    {
+        return _sentCount.get();
+    }
+
+    /**
+     * Returns the average time spent sending a message, including waiting for
+     * a connection.
+     * 
+     * @return The average send latency in milliseconds.
+     */
+    public double getAverageSendMillis()
+    {
+        long sent = _sentCount.get();
+        return sent == 0 ? 0 : _sendNanos.get() / 1e6 / sent;
+    }
+
+    /**
+     * Returns the longest time spent sending a message.
+     * 
+     * @return The maximum send latency in milliseconds.
+     */
+    public double getMaxSendMillis()
+    {
+        return _maxSendNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the number of opened connections.
+     * 
+     * @return The number of opened connections.
+     */
+    public long getConnectCount()
+    {
+        return _connectCount.get();
+    }
+
+    /**
+     * Returns the number of dead connections that were replaced.
+     * 
+     * @return The number of replaced connections.
+     */
+    public long getReplacedCount()
+    {
+        return _replacedCount.get();
+    }
+
+    /**
+     * Stops the sender threads and closes all connections.
+     */
+    @Override
+    public void close()
+    {
+        _senders.shutdown();
+        try
+        {
+            _senders.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        PooledTransport connection;
+        while((connection = _idle.pollFirst()) != null)
+            discard(connection);
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The server wide metrics registry. Components register their counters,
+ * gauges and latency histograms once (usually in static fields) and update
+ * them without allocation or locking. The registry renders all metrics in the
+ * plain-text exposition format understood by Prometheus, which is served by a
+ * local admin endpoint and periodically written to a file.
+ */
+public class Metrics
+{
+    /**
+     * A registered metric.
+     */
+    private static class Metric
+    {
+        /**
+         * The metric family name.
+         */
+        final String name;
+
+        /**
+         * The family description.
+         */
+        final String help;
+
+        /**
+         * The family type: counter, gauge or histogram.
+         */
+        final String type;
+
+        /**
+         * The label set, like 'op="encrypt"', or an empty string.
+         */
+        final String labels;
+
+        /**
+         * The LongAdder or LatencyHistogram holding the values.
+         */
+        final Object value;
+
+        Metric(String name, String help, String type, String labels, Object value)
+        {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The registered metrics, in registration order.
+     */
+    private static final List<Metric> METRICS = new ArrayList<>();
+
+    /**
+     * Number of currently connected clients.
+     */
+    public static final LongAdder CONNECTIONS_ACTIVE = gauge("bank_connections_active", "Currently connected clients.", "");
+
+    /**
+     * Number of accepted clients.
+     */
+    public static final LongAdder CONNECTIONS_TOTAL = counter("bank_connections_total", "Accepted clients.", "");
+
+    /**
+     * Number of received bytes, including length prefixes.
+     */
+    public static final LongAdder BYTES_RECEIVED = counter("bank_received_bytes_total", "Bytes received from clients.", "");
+
+    /**
+     * Number of sent bytes, including length prefixes.
+     */
+    public static final LongAdder BYTES_SENT = counter("bank_sent_bytes_total", "Bytes sent to clients.", "");
+
+    /**
+     * Time spent encrypting and authenticating packets.
+     */
+    public static final LatencyHistogram ENCRYPT = histogram("bank_crypto_seconds", "Time spent in packet cryptography.", "op=\"encrypt\"");
+
+    /**
+     * Time spent checking and decrypting packets.
+     */
+    public static final LatencyHistogram DECRYPT = histogram("bank_crypto_seconds", "Time spent in packet cryptography.", "op=\"decrypt\"");
+
+    /**
+     * Registers a counter.
+     * 
+     * @param name
+     *            The metric family name.
+     * @param help
+     *            The family description.
+     * @param labels
+     *            The label set, like 'op="encrypt"', or an empty string.
+     * @return The counter.
+     */
+    public static LongAdder counter(String name, String help, String labels)
+    {
+        return register(new Metric(name, help, "counter", labels, new LongAdder()));
+    }
+
+    /**
+     * Registers a gauge, a value that goes up and down.
+     * 
+     * @param name
+     *            The metric family name.
+     * @param help
+     *            The family description.
+     * @param labels
+     *            The label set, or an empty string.
+     * @return The gauge.
+     */
+    public static LongAdder gauge(String name, String help, String labels)
+    {
+        return register(new Metric(name, help, "gauge", labels, new LongAdder()));
+    }
+
+    /**
+     * Registers a latency histogram, exposed in seconds.
+     * 
+     * @param name
+     *            The metric family name.
+     * @param help
+     *            The family description.
+     * @param labels
+     *            The label set, or an empty string.
+     * @return The histogram.
+     */
+    public static LatencyHistogram histogram(String name, String help, String labels)
+    {
+        return register(new Metric(name, help, "histogram", labels, new LatencyHistogram()));
+    }
+
+    /**
+     * Adds the given metric to the registry and returns its value holder.
+     */
+    @SuppressWarnings("unchecked")
+    private static synchronized <T> T register(Metric metric)
+    {
+        METRICS.add(metric);
+        return (T)metric.value;
+    }
+
+    /**
+     * Renders all metrics in the plain-text exposition format.
+     * 
+     * @return The metrics text.
+     */
+    public static String format()
+    {
+        // Copy registry, so rendering does not block registrations
+        List<Metric> metrics;
+        synchronized(Metrics.class)
+        {
+            metrics = new ArrayList<>(METRICS);
+        }
+
+        // Render families in order of their first registration
+        StringBuilder text = new StringBuilder();
+        List<String> renderedNames = new ArrayList<>();
+        for(Metric family : metrics)
+        {
+            if(renderedNames.contains(family.name))
+                continue;
+            renderedNames.add(family.name);
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for(Metric metric : metrics)
+                if(metric.name.equals(family.name))
+                    formatMetric(text, metric);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends the samples of one metric.
+     */
+    private static void formatMetric(StringBuilder text, Metric metric)
+    {
+        if(metric.value instanceof LongAdder)
+        {
+            text.append(metric.name);
+            if(!metric.labels.isEmpty())
+                text.append('{').append(metric.labels).append('}');
+            text.append(' ').append(((LongAdder)metric.value).sum()).append('\n');
+            return;
+        }
+
+        // Histogram: cumulative buckets up to the highest used one; the last
+        // bucket is unbounded and only rendered as +Inf
+        LatencyHistogram.Snapshot snapshot = ((LatencyHistogram)metric.value).snapshot();
+        String labelPrefix = metric.labels.isEmpty() ? "" : metric.labels + ",";
+        int lastBucket = LatencyHistogram.BUCKETS - 2;
+        while(lastBucket > 0 && snapshot.buckets[lastBucket] == 0)
+            --lastBucket;
+        long cumulative = 0;
+        for(int bucket = 0; bucket <= lastBucket; ++bucket)
+        {
+            cumulative += snapshot.buckets[bucket];
+            text.append(metric.name).append("_bucket{").append(labelPrefix).append("le=\"").append(LatencyHistogram.getUpperBound(bucket) / 1e9).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        text.append(metric.name).append("_bucket{").append(labelPrefix).append("le=\"+Inf\"} ").append(snapshot.count).append('\n');
+        String labels = metric.labels.isEmpty() ? "" : "{" + metric.labels + "}";
+        text.append(metric.name).append("_sum").append(labels).append(' ').append(snapshot.sum / 1e9).append('\n');
+        text.append(metric.name).append("_count").append(labels).append(' ').append(snapshot.count).append('\n');
+    }
+
+    /**
+     * Starts the admin endpoint and the periodic dump, as configured by the
+     * "bank.metricsPort" (0 disables the endpoint), "bank.metricsFile" and
+     * "bank.metricsInterval" (in seconds) system properties.
+     * 
+     * @throws IOException
+     */
+    public static void start() throws IOException
+    {
+        // Serve metrics on the loopback interface only
+        int port = Integer.getInteger("bank.metricsPort", 0);
+        if(port > 0)
+        {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange ->
+            {
+                byte[] response = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                try(OutputStream body = exchange.getResponseBody())
+                {
+                    body.write(response);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "MetricsEndpoint");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            Log.info("Serving metrics on http://127.0.0.1:" + port + "/metrics.");
+        }
+
+        // Dump metrics periodically
+        String file = System.getProperty("bank.metricsFile");
+        if(file != null)
+        {
+            long intervalSeconds = Math.max(1, Long.getLong("bank.metricsInterval", 60));
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "MetricsDump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(() -> dump(Paths.get(file)), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Replaces the given file with the current metrics.
+     */
+    private static void dump(Path file)
+    {
+        try
+        {
+            Path tempFile = Paths.get(file + ".tmp");
+            Files.write(tempFile, format().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
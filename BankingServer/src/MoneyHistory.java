@@ -0,0 +1,205 @@
+/**
+ * The history of money changes on an account, stored in primitive columns
+ * (counterparty ID, amount) instead of one object per entry. Entries are only
+ * appended. Every entry has a sequence number, which counts the entries ever
+ * added to the account; since the numbers are consecutive, only the number of
+ * the oldest retained entry is stored.
+ * 
+ * If a retention limit is set, the columns form a ring buffer and the oldest
+ * entries are dropped when it is full. This class is not thread safe, the
+ * owning user's lock guards it.
+ */
+public class MoneyHistory
+{
+    /**
+     * The default retention limit, taken from the "bank.historyRetention"
+     * system property. 0 keeps all entries.
+     */
+    public static final int DEFAULT_RETENTION = Math.max(0, Integer.getInteger("bank.historyRetention", 0));
+
+    /**
+     * Shared column of empty histories.
+     */
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * The IDs of the users that sent or received the money.
+     */
+    private int[] _counterparties = EMPTY;
+
+    /**
+     * The amounts of money received (positive) or sent (negative).
+     */
+    private int[] _amounts = EMPTY;
+
+    /**
+     * The column index of the oldest retained entry.
+     */
+    private int _start = 0;
+
+    /**
+     * The number of retained entries.
+     */
+    private int _size = 0;
+
+    /**
+     * The sequence number of the oldest retained entry.
+     */
+    private long _firstSequence;
+
+    /**
+     * The maximum number of retained entries, or 0 for no limit.
+     */
+    private int _retention;
+
+    /**
+     * Creates an empty history with the default retention limit.
+     */
+    public MoneyHistory()
+    {
+        this(0, DEFAULT_RETENTION);
+    }
+
+    /**
+     * Creates an empty history.
+     * 
+     * @param firstSequence
+     *            The sequence number of the first entry that will be added.
+     * @param retention
+     *            The maximum number of retained entries, or 0 for no limit.
+     */
+    public MoneyHistory(long firstSequence, int retention)
+    {
+        _firstSequence = firstSequence;
+        _retention = retention;
+    }
+
+    /**
+     * Appends an entry, and drops the oldest one if the retention limit is
+     * reached.
+     * 
+     * @param counterparty
+     *            The ID of the user that sent or received the money.
+     * @param amount
+     *            The amount of money received (positive) or sent (negative).
+     */
+    public void add(int counterparty, int amount)
+    {
+        // Full?
+        if(_size == _counterparties.length)
+        {
+            if(_retention > 0 && _size >= _retention)
+            {
+                // Overwrite oldest entry
+                _counterparties[_start] = counterparty;
+                _amounts[_start] = amount;
+                _start = (_start + 1) % _counterparties.length;
+                ++_firstSequence;
+                return;
+            }
+            grow();
+        }
+
+        int index = (_start + _size) % _counterparties.length;
+        _counterparties[index] = counterparty;
+        _amounts[index] = amount;
+        ++_size;
+    }
+
+    /**
+     * Enlarges the columns and moves the oldest entry to index 0.
+     */
+    private void grow()
+    {
+        int capacity = Math.max(4, _counterparties.length * 2);
+        if(_retention > 0)
+            capacity = Math.min(capacity, _retention);
+        int[] counterparties = new int[capacity];
+        int[] amounts = new int[capacity];
+        for(int i = 0; i < _size; ++i)
+        {
+            counterparties[i] = _counterparties[(_start + i) % _counterparties.length];
+            amounts[i] = _amounts[(_start + i) % _counterparties.length];
+        }
+        _counterparties = counterparties;
+        _amounts = amounts;
+        _start = 0;
+    }
+
+    /**
+     * Returns the number of retained entries.
+     * 
+     * @return The number of retained entries.
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns the counterparty of the given entry.
+     * 
+     * @param index
+     *            The entry index, 0 is the oldest retained entry.
+     * @return The ID of the user that sent or received the money.
+     */
+    public int getCounterparty(int index)
+    {
+        return _counterparties[getColumnIndex(index)];
+    }
+
+    /**
+     * Returns the amount of the given entry.
+     * 
+     * @param index
+     *            The entry index, 0 is the oldest retained entry.
+     * @return The amount of money received (positive) or sent (negative).
+     */
+    public int getAmount(int index)
+    {
+        return _amounts[getColumnIndex(index)];
+    }
+
+    /**
+     * Returns the sequence number of the given entry.
+     * 
+     * @param index
+     *            The entry index, 0 is the oldest retained entry.
+     * @return The sequence number.
+     */
+    public long getSequence(int index)
+    {
+        return _firstSequence + index;
+    }
+
+    /**
+     * Returns the sequence number of the oldest retained entry.
+     * 
+     * @return The sequence number of the oldest retained entry.
+     */
+    public long getFirstSequence()
+    {
+        return _firstSequence;
+    }
+
+    /**
+     * Returns the sequence number the next added entry will get.
+     * 
+     * @return The next sequence number.
+     */
+    public long getNextSequence()
+    {
+        return _firstSequence + _size;
+    }
+
+    /**
+     * Returns the column index of the given entry.
+     */
+    private int getColumnIndex(int index)
+    {
+        if(index < 0 || index >= _size)
+            throw new IndexOutOfBoundsException("History index " + index + " out of range [0, " + _size + ").");
+        int columnIndex = _start + index;
+        return columnIndex < _counterparties.length ? columnIndex : columnIndex - _counterparties.length;
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles a non-blocking client connection. Incoming bytes are reassembled
+ * into length prefixed packets and passed to the client session, outgoing
+ * packets are queued until the channel accepts them. Packets of a streamed
+ * response are only produced when the channel has written the previous one.
+ * 
+ * Packets handed over by the loop thread and by other threads, like the
+ * journal writer, pass through one FIFO, so they reach the channel in the
+ * order of their packet counters.
+ */
+public class NioConnection implements PacketSink
+{
+    /**
+     * The event loop this connection is registered with.
+     */
+    private NioEventLoop _eventLoop;
+
+    /**
+     * The underlying client channel.
+     */
+    private SocketChannel _channel;
+
+    /**
+     * The selection key of the client channel.
+     */
+    private SelectionKey _key;
+
+    /**
+     * The protocol state machine of this client.
+     */
+    private ClientSession _session;
+
+    /**
+     * The length prefix of the packet currently being received.
+     */
+    private int _packetLength = 0;
+
+    /**
+     * The number of length prefix bytes received so far.
+     */
+    private int _packetLengthBytes = 0;
+
+    /**
+     * The contents of the packet currently being received, or null while the
+     * length prefix is incomplete.
+     */
+    private byte[] _packet;
+
+    /**
+     * The number of packet content bytes received so far.
+     */
+    private int _packetPosition = 0;
+
+    /**
+     * Packets (ByteBuffer) and packet streams (PacketStream) waiting to be
+     * written to the channel.
+     */
+    private ArrayDeque<Object> _outputQueue = new ArrayDeque<>();
+
+    /**
+     * Packets (ByteBuffer) and packet streams (PacketStream) handed over by
+     * any thread, in call order, until the loop thread moves them to the
+     * output queue.
+     */
+    private final ConcurrentLinkedQueue<Object> _handedOver = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Set while a task moving handed over output is waiting on the loop.
+     */
+    private final AtomicBoolean _transferScheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates a new connection for the given freshly registered channel.
+     * 
+     * @param eventLoop
+     *            The event loop the channel is registered with.
+     * @param channel
+     *            The client channel.
+     * @param key
+     *            The selection key of the client channel.
+     * @param context
+     *            The server components.
+     */
+    public NioConnection(NioEventLoop eventLoop, SocketChannel channel, SelectionKey key, ServerContext context)
+    {
+        // Save parameters
+        _eventLoop = eventLoop;
+        _channel = channel;
+        _key = key;
+        _session = new ClientSession(context, channel.socket().getInetAddress().getHostAddress(), this);
+        Metrics.CONNECTIONS_TOTAL.increment();
+        Metrics.CONNECTIONS_ACTIVE.increment();
+    }
+
+    /**
+     * Queues the given packet for sending. May be called from any thread.
+     */
+    @Override
+    public void writePacket(byte[] packet)
+    {
+        handOver(prependLength(packet));
+    }
+
+    /**
+     * Queues the given packet stream for sending, its packets are produced on
+     * the loop thread while the channel is writable. May be called from any
+     * thread.
+     */
+    @Override
+    public void writeStream(PacketStream stream)
+    {
+        handOver(stream);
+    }
+
+    /**
+     * Returns a buffer containing the given packet with length prefix.
+     */
+    private static ByteBuffer prependLength(byte[] packet)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + packet.length);
+        buffer.putInt(packet.length);
+        buffer.put(packet);
+        buffer.flip();
+        Metrics.BYTES_SENT.add(buffer.remaining());
+        return buffer;
+    }
+
+    /**
+     * Appends the given buffer or packet stream to the hand over queue, and
+     * moves it to the output queue on the loop thread. Output of all threads
+     * passes the same queue, so it is never reordered.
+     * 
+     * @param output
+     *            The buffer or packet stream to be sent.
+     */
+    private void handOver(Object output)
+    {
+        _handedOver.add(output);
+        if(_eventLoop.inLoop())
+            transferHandedOver();
+        else if(_transferScheduled.compareAndSet(false, true))
+            _eventLoop.execute(() ->
+            {
+                _transferScheduled.set(false);
+                transferHandedOver();
+            });
+    }
+
+    /**
+     * Moves the handed over buffers and packet streams to the output queue
+     * and tries to send them. Must be called on the loop thread.
+     */
+    private void transferHandedOver()
+    {
+        if(!_key.isValid())
+        {
+            _handedOver.clear();
+            return;
+        }
+        boolean idle = _outputQueue.isEmpty();
+        Object output;
+        while((output = _handedOver.poll()) != null)
+            _outputQueue.add(output);
+        if(idle && !_outputQueue.isEmpty())
+            onWritable();
+    }
+
+    /**
+     * Writes as many queued packets as the channel accepts.
+     */
+    public void onWritable()
+    {
+        try
+        {
+            while(!_outputQueue.isEmpty())
+            {
+                // Produce next packet of a stream in front of it
+                if(_outputQueue.peek() instanceof PacketStream)
+                {
+                    byte[] packet = ((PacketStream)_outputQueue.peek()).nextPacket();
+                    if(packet == null)
+                        _outputQueue.poll();
+                    else
+                        _outputQueue.addFirst(prependLength(packet));
+                    continue;
+                }
+
+                ByteBuffer buffer = (ByteBuffer)_outputQueue.peek();
+                _channel.write(buffer);
+                if(buffer.hasRemaining())
+                {
+                    // Wait until the channel is writable again
+                    _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                _outputQueue.poll();
+            }
+            _key.interestOps(SelectionKey.OP_READ);
+        }
+        catch(IOException e)
+        {
+            close();
+        }
+        catch(RuntimeException e)
+        {
+            // Failing packet stream, drop client
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Reads available bytes from the channel and processes all completed
+     * packets.
+     * 
+     * @param readBuffer
+     *            A buffer that may be used for reading.
+     */
+    public void onReadable(ByteBuffer readBuffer)
+    {
+        try
+        {
+            // Read available data
+            readBuffer.clear();
+            if(_channel.read(readBuffer) < 0)
+            {
+                // Socket was closed
+                close();
+                return;
+            }
+            readBuffer.flip();
+
+            // Reassemble packets
+            while(readBuffer.hasRemaining() && _key.isValid())
+            {
+                if(_packet == null)
+                {
+                    // Read length prefix
+                    while(_packetLengthBytes < 4 && readBuffer.hasRemaining())
+                    {
+                        _packetLength = (_packetLength << 8) | (readBuffer.get() & 0xFF);
+                        ++_packetLengthBytes;
+                    }
+                    if(_packetLengthBytes < 4)
+                        break;
+                    if(_packetLength < 0 || _packetLength > ClientSession.MAX_PACKET_LENGTH)
+                        throw new IOException("Invalid packet length " + _packetLength + ".");
+                    _packet = new byte[_packetLength];
+                    _packetPosition = 0;
+                }
+
+                // Read packet contents
+                int count = Math.min(readBuffer.remaining(), _packet.length - _packetPosition);
+                readBuffer.get(_packet, _packetPosition, count);
+                _packetPosition += count;
+                if(_packetPosition == _packet.length)
+                {
+                    // Packet is complete, pass it to the session
+                    byte[] packet = _packet;
+                    _packet = null;
+                    _packetLength = 0;
+                    _packetLengthBytes = 0;
+                    _session.handlePacket(packet);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            close();
+        }
+        catch(RuntimeException e)
+        {
+            // Malformed packet, drop client
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close()
+    {
+        if(!_channel.isOpen())
+            return;
+        Log.debug("Doing cleanup...");
+        Metrics.CONNECTIONS_ACTIVE.decrement();
+        _key.cancel();
+        _outputQueue.clear();
+        try
+        {
+            _channel.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        Log.debug("Cleanup complete.");
+    }
+}
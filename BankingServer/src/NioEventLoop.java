@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread multiplexing many client connections with a selector. All
+ * I/O and protocol processing of a connection happens on the event loop the
+ * connection has been registered with.
+ */
+public class NioEventLoop implements Runnable
+{
+    /**
+     * Size of the read buffer shared by all connections of this loop.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The selector waiting for readiness events.
+     */
+    private Selector _selector;
+
+    /**
+     * The server components.
+     */
+    private ServerContext _context;
+
+    /**
+     * Tasks submitted by other threads, executed on the loop thread.
+     */
+    private ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The read buffer shared by all connections of this loop.
+     */
+    private ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     * The thread running this loop.
+     */
+    private Thread _thread;
+
+    /**
+     * Tells whether the loop shall keep running.
+     */
+    private volatile boolean _running = true;
+
+    /**
+     * Creates a new event loop.
+     * 
+     * @param context
+     *            The server components.
+     * @throws IOException
+     */
+    public NioEventLoop(ServerContext context) throws IOException
+    {
+        // Save parameters
+        _context = context;
+        _selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop thread.
+     * 
+     * @param name
+     *            The name of the loop thread.
+     */
+    public void start(String name)
+    {
+        _thread = new Thread(this, name);
+        _thread.start();
+    }
+
+    /**
+     * Stops the loop and closes all of its connections.
+     */
+    public void stop()
+    {
+        _running = false;
+        _selector.wakeup();
+    }
+
+    /**
+     * Runs the given task on the loop thread.
+     * 
+     * @param task
+     *            The task to be run.
+     */
+    public void execute(Runnable task)
+    {
+        _tasks.add(task);
+        _selector.wakeup();
+    }
+
+    /**
+     * Tells whether the calling thread is the loop thread.
+     * 
+     * @return Whether the calling thread is the loop thread.
+     */
+    public boolean inLoop()
+    {
+        return Thread.currentThread() == _thread;
+    }
+
+    /**
+     * Hands the given freshly accepted client channel over to this loop.
+     * 
+     * @param channel
+     *            The client channel.
+     */
+    public void register(SocketChannel channel)
+    {
+        execute(() ->
+        {
+            try
+            {
+                // Register for read events
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, channel, key, _context));
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                try
+                {
+                    channel.close();
+                }
+                catch(IOException e2)
+                {
+                    e2.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * The loop thread entry point.
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(_running)
+            {
+                // Wait for readiness events or submitted tasks
+                _selector.select();
+
+                // Run submitted tasks
+                Runnable task;
+                while((task = _tasks.poll()) != null)
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch(RuntimeException e)
+                    {
+                        Log.error("Event loop task failed: " + e);
+                    }
+                }
+
+                // Process ready connections
+                Iterator<SelectionKey> keyIterator = _selector.selectedKeys().iterator();
+                while(keyIterator.hasNext())
+                {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    NioConnection connection = (NioConnection)key.attachment();
+                    if(!key.isValid())
+                        continue;
+                    try
+                    {
+                        if(key.isWritable())
+                            connection.onWritable();
+                        if(key.isValid() && key.isReadable())
+                            connection.onReadable(_readBuffer);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        // Drop only this client, the loop keeps serving the
+                        // others
+                        Log.error("Connection failed: " + e);
+                        connection.close();
+                    }
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            // Close remaining connections
+            for(SelectionKey key : _selector.keys())
+                if(key.attachment() instanceof NioConnection)
+                    ((NioConnection)key.attachment()).close();
+            try
+            {
+                _selector.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves clients with a small fixed number of event loop threads instead of
+ * one thread per connection.
+ */
+public class NioServer
+{
+    /**
+     * The server components.
+     */
+    private ServerContext _context;
+
+    /**
+     * The event loops serving the client connections.
+     */
+    private NioEventLoop[] _eventLoops;
+
+    /**
+     * The server channel accepting new clients.
+     */
+    private ServerSocketChannel _serverChannel;
+
+    /**
+     * Creates a new server and starts its event loops.
+     * 
+     * @param context
+     *            The server components.
+     * @param port
+     *            The TCP port the server listens on.
+     * @param eventLoopCount
+     *            The number of event loop threads.
+     * @throws IOException
+     */
+    public NioServer(ServerContext context, int port, int eventLoopCount) throws IOException
+    {
+        // Save parameters
+        _context = context;
+
+        // Create server channel
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        // Start event loops
+        _eventLoops = new NioEventLoop[eventLoopCount];
+        for(int i = 0; i < eventLoopCount; ++i)
+        {
+            _eventLoops[i] = new NioEventLoop(_context);
+            _eventLoops[i].start("NioEventLoop-" + i);
+        }
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * 
+     * @return The port the server listens on.
+     * @throws IOException
+     */
+    public int getPort() throws IOException
+    {
+        return ((InetSocketAddress)_serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Accepts clients and distributes them over the event loops, until the
+     * server is closed.
+     */
+    public void run()
+    {
+        Log.info("Enter client listen loop.");
+        int nextEventLoop = 0;
+        try
+        {
+            while(true)
+            {
+                // Accept new client
+                SocketChannel clientChannel = _serverChannel.accept();
+                Log.debug("Client accepted on port " + clientChannel.socket().getLocalPort());
+
+                // Responses and stream chunks are separate writes, send
+                // them immediately
+                clientChannel.socket().setTcpNoDelay(true);
+
+                // Hand client over to the next event loop
+                _eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = (nextEventLoop + 1) % _eventLoops.length;
+            }
+        }
+        catch(IOException e)
+        {
+            // Server channel was closed
+            if(_serverChannel.isOpen())
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting clients and shuts down the event loops.
+     */
+    public void close()
+    {
+        try
+        {
+            _serverChannel.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        for(NioEventLoop eventLoop : _eventLoops)
+            eventLoop.stop();
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+
+/**
+ * Receives the encoded packets a client session wants to send to its client.
+ */
+public interface PacketSink
+{
+    /**
+     * Sends the given packet contents (without length prefix) to the client.
+     * Packets must reach the client in the order of the calls. Callers other
+     * than the session's own thread, like the journal writer, must never be
+     * blocked by a slow client.
+     * 
+     * @param packet
+     *            The encoded packet contents.
+     * @throws IOException
+     */
+    void writePacket(byte[] packet) throws IOException;
+
+    /**
+     * Sends all packets of the given stream to the client, pulling the next
+     * packet only when the previous one was handed to the connection. The
+     * default implementation blocks until the stream has ended.
+     * 
+     * @param stream
+     *            The packet stream.
+     * @throws IOException
+     */
+    default void writeStream(PacketStream stream) throws IOException
+    {
+        byte[] packet;
+        while((packet = stream.nextPacket()) != null)
+            writePacket(packet);
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+/**
+ * Produces the encoded packets of a streamed response one at a time, so a
+ * large payload never has to be held in memory as a whole. The sink pulls the
+ * next packet when the connection can take it.
+ */
+public interface PacketStream
+{
+    /**
+     * Returns the next encoded packet contents (without length prefix).
+     * 
+     * @return The next packet, or null if the stream has ended.
+     * @throws IOException
+     */
+    byte[] nextPacket() throws IOException;
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Detects replayed packet counters with a sliding bitmap window keyed off the
+ * highest counter seen so far. Counters may arrive out of order as long as
+ * they are within the window; anything older is rejected. Counters are
+ * compared with wrap-around arithmetic, so the window keeps working when a
+ * counter overflows. Accepting or rejecting a counter takes constant time and
+ * memory does not grow with the session length. This class is not thread
+ * safe.
+ */
+public class ReplayWindow
+{
+    /**
+     * The default window size in packets.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * One bit per counter in the window, indexed by the counter's low bits.
+     */
+    private final long[] _bitmap;
+
+    /**
+     * The window size minus one, used to map counters to bit indices.
+     */
+    private final int _mask;
+
+    /**
+     * The highest counter seen so far.
+     */
+    private int _highest;
+
+    /**
+     * Tells whether any counter has been accepted yet.
+     */
+    private boolean _empty = true;
+
+    /**
+     * Creates a new replay window.
+     * 
+     * @param size
+     *            The number of counters below the highest one that are still
+     *            accepted. Rounded up to a power of two, at least 64.
+     */
+    public ReplayWindow(int size)
+    {
+        int roundedSize = Math.max(64, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        _bitmap = new long[roundedSize / 64];
+        _mask = roundedSize - 1;
+    }
+
+    /**
+     * Returns the window size.
+     * 
+     * @return The window size.
+     */
+    public int getSize()
+    {
+        return _mask + 1;
+    }
+
+    /**
+     * Checks whether the given counter has not been seen yet and lies within
+     * the window, and marks it as seen.
+     * 
+     * @param counter
+     *            The counter of an incoming packet.
+     * @return Whether the packet shall be accepted.
+     */
+    public boolean accept(int counter)
+    {
+        // First packet
+        if(_empty)
+        {
+            _empty = false;
+            _highest = counter;
+            setBit(counter);
+            return true;
+        }
+
+        int delta = counter - _highest;
+        if(delta > 0)
+        {
+            // Newer than everything seen, slide window forward
+            if(delta > _mask)
+                Arrays.fill(_bitmap, 0L);
+            else
+                clearBits(_highest + 1, delta);
+            _highest = counter;
+            setBit(counter);
+            return true;
+        }
+
+        // Too old or already seen?
+        if(-delta > _mask)
+            return false;
+        int index = counter & _mask;
+        long bit = 1L << index;
+        if((_bitmap[index >>> 6] & bit) != 0)
+            return false;
+        _bitmap[index >>> 6] |= bit;
+        return true;
+    }
+
+    /**
+     * Marks the given counter as seen.
+     */
+    private void setBit(int counter)
+    {
+        int index = counter & _mask;
+        _bitmap[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Clears the bits of the given number of counters starting at the given
+     * one, one word at a time.
+     */
+    private void clearBits(int firstCounter, int count)
+    {
+        int counter = firstCounter;
+        while(count > 0)
+        {
+            int index = counter & _mask;
+            int bitInWord = index & 63;
+            int bitCount = Math.min(count, 64 - bitInWord);
+            long bits = bitCount == 64 ? -1L : ((1L << bitCount) - 1) << bitInWord;
+            _bitmap[index >>> 6] &= ~bits;
+            counter += bitCount;
+            count -= bitCount;
+        }
+    }
+}
@@ -0,0 +1,634 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds the crypto state of one connection: the keys derived from the key
+ * exchange, the message counters and initialized MAC and cipher instances
+ * that are reused for every packet. Sending and receiving may happen on
+ * different threads.
+ * 
+ * Two packet formats are supported. Version 1 encrypts
+ * "payload::timestamp::counter" and sends "base64(cipher)::base64(hmac)" as
+ * text. Version 2 (negotiated during the key exchange) sends a binary packet:
+ * opcode (1 byte), counter (4 bytes), timestamp (8 bytes), the raw cipher text
+ * and the raw HMAC over all preceding bytes. Version 3 additionally streams
+ * large responses as a sequence of chunk packets with consecutive counters,
+ * terminated by an end packet; each of them is authenticated on its own.
+ * Version 4 adds pipelined requests: a request packet carries a correlation
+ * ID, the command and its arguments as "id\ncommand\narguments", and the
+ * response packet carries "id\npayload", so a client may send further
+ * requests before the responses arrive, in any order. Large responses are
+ * preceded by response chunk packets carrying "id\npart"; the payload is the
+ * concatenation of the parts and the final response.
+ */
+public class SecureSession
+{
+    /**
+     * The newest supported packet format version.
+     */
+    public static final int PROTOCOL_VERSION_MAX = 4;
+
+    /**
+     * Version 2 opcode of a packet carrying a complete payload.
+     */
+    public static final byte OPCODE_DATA = 0;
+
+    /**
+     * Version 3 opcode of a packet carrying one part of a streamed payload.
+     */
+    public static final byte OPCODE_CHUNK = 1;
+
+    /**
+     * Version 3 opcode of the (empty) packet ending a streamed payload.
+     */
+    public static final byte OPCODE_END = 2;
+
+    /**
+     * Version 4 opcode of a pipelined request packet.
+     */
+    public static final byte OPCODE_REQUEST = 3;
+
+    /**
+     * Version 4 opcode of the response packet to a pipelined request.
+     */
+    public static final byte OPCODE_RESPONSE = 4;
+
+    /**
+     * Version 4 opcode of a packet carrying one part of the response to a
+     * pipelined request.
+     */
+    public static final byte OPCODE_RESPONSE_CHUNK = 5;
+
+    /**
+     * Length of the version 2 packet header.
+     */
+    private static final int HEADER_LENGTH = 1 + 4 + 8;
+
+    /**
+     * Length of the HMAC tag.
+     */
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Init Vector for encryption
+     */
+    private static final String INIT_VECTOR = "1234567890123456";
+
+    /**
+     * Used for authenticating outgoing messages
+     */
+    private Mac _outMac;
+
+    /**
+     * Used for checking incoming messages
+     */
+    private Mac _inMac;
+
+    /**
+     * Used for encrypting and decrypting messages
+     */
+    private Encryptor _encryptor;
+
+    /**
+     * The negotiated packet format version.
+     */
+    private volatile int _protocolVersion = 1;
+
+    /**
+     * Receives the HMAC of incoming version 2 packets.
+     */
+    private byte[] _inMacBuffer = new byte[MAC_LENGTH];
+
+    /**
+     * Used to keep track of messages
+     */
+    private int _msgOutCounter;
+
+    /**
+     * The counter of the last accepted incoming version 2 packet.
+     */
+    private int _lastInCounter;
+
+    /**
+     * Tracks the counter values of ingoing messages
+     */
+    private ReplayWindow _msgInCounter;
+
+    /**
+     * Serializes outgoing packets.
+     */
+    private final ReentrantLock _outLock = new ReentrantLock();
+
+    /**
+     * Serializes incoming packets.
+     */
+    private final ReentrantLock _inLock = new ReentrantLock();
+
+    /**
+     * Creates a new session without keys. setup() must be called before
+     * packets can be encoded or decoded. The replay window size is read from
+     * the "bank.replayWindow" system property.
+     */
+    public SecureSession()
+    {
+        this(Integer.getInteger("bank.replayWindow", ReplayWindow.DEFAULT_SIZE));
+    }
+
+    /**
+     * Creates a new session without keys. setup() must be called before
+     * packets can be encoded or decoded.
+     * 
+     * @param replayWindowSize
+     *            The number of packets an incoming packet may lag behind the
+     *            newest one received.
+     */
+    public SecureSession(int replayWindowSize)
+    {
+        _msgOutCounter = new Random().nextInt();
+        _msgInCounter = new ReplayWindow(replayWindowSize);
+    }
+
+    /**
+     * Derives the MAC and encryption keys from the given key exchange result
+     * and initializes the MAC and cipher instances.
+     * 
+     * @param dhke
+     *            The shared Diffie-Hellman key.
+     */
+    public void setup(long dhke)
+    {
+        String rawMacKey = Utility.generateKey(dhke, 0);
+        String encKey = Utility.generateKey(dhke, 1);
+        SecretKeySpec macKey = new SecretKeySpec(rawMacKey.getBytes(), "AES");
+        try
+        {
+            Mac outMac = Mac.getInstance("HmacSHA256");
+            outMac.init(macKey);
+            Mac inMac = Mac.getInstance("HmacSHA256");
+            inMac.init(macKey);
+            Encryptor encryptor = new Encryptor(encKey, INIT_VECTOR);
+
+            // Swap keys
+            _outLock.lock();
+            _inLock.lock();
+            _outMac = outMac;
+            _inMac = inMac;
+            _encryptor = encryptor;
+            _inLock.unlock();
+            _outLock.unlock();
+        }
+        catch(GeneralSecurityException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the packet format version negotiated during the key exchange.
+     * 
+     * @param protocolVersion
+     *            The packet format version.
+     */
+    public void setProtocolVersion(int protocolVersion)
+    {
+        _protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Returns the negotiated packet format version.
+     * 
+     * @return The negotiated packet format version.
+     */
+    public int getProtocolVersion()
+    {
+        return _protocolVersion;
+    }
+
+    /**
+     * Writes the given payload as a packet into the given output stream.
+     * 
+     * @param outputStream
+     *            The stream the packet shall be written to.
+     * @param payload
+     *            The string payload to be sended.
+     * @throws IOException
+     */
+    public void sendPacket(DataOutputStream outputStream, String payload) throws IOException
+    {
+        Utility.writePacket(outputStream, encodePacket(payload));
+    }
+
+    /**
+     * Receives the next packet from the given input stream.
+     * 
+     * @param inputStream
+     *            The stream where the packet shall be retrieved.
+     * @return The payload of the received packet.
+     * @throws IOException
+     */
+    public String receivePacket(DataInputStream inputStream) throws IOException
+    {
+        return decodePacket(Utility.readPacket(inputStream));
+    }
+
+    /**
+     * Receives a streamed payload from the given input stream, and passes each
+     * part to the given handler as soon as it arrives. Only one chunk is held
+     * in memory at a time. Must not run concurrently with other receives.
+     * 
+     * @param inputStream
+     *            The stream where the packets shall be retrieved.
+     * @param chunkHandler
+     *            Receives the payload parts in order.
+     * @throws IOException
+     *             If the connection fails, or a packet is invalid or out of
+     *             order.
+     */
+    public void receiveStream(DataInputStream inputStream, Consumer<String> chunkHandler) throws IOException
+    {
+        boolean first = true;
+        int lastCounter = 0;
+        while(true)
+        {
+            // Check packet
+            byte[] packet = Utility.readPacket(inputStream);
+            byte opcode = packet.length > 0 ? packet[0] : -1;
+            if(opcode != OPCODE_CHUNK && opcode != OPCODE_END)
+                throw new IOException("Unexpected packet in stream.");
+            String chunk = decodeBinaryPacket(packet, opcode);
+            if(chunk.startsWith("Error: "))
+                throw new IOException("Invalid packet in stream: " + chunk);
+
+            // Chunks must not be reordered or dropped
+            if(!first && _lastInCounter != lastCounter + 1)
+                throw new IOException("Stream packet out of order.");
+            first = false;
+            lastCounter = _lastInCounter;
+
+            if(opcode == OPCODE_END)
+                return;
+            chunkHandler.accept(chunk);
+        }
+    }
+
+    /**
+     * Encrypts and authenticates the given part of a streamed payload
+     * (protocol version 3).
+     * 
+     * @param chunk
+     *            The payload part.
+     * @return The encoded packet contents.
+     */
+    public byte[] encodeChunk(String chunk)
+    {
+        return encodeBinaryPacket(OPCODE_CHUNK, chunk);
+    }
+
+    /**
+     * Encodes the packet ending a streamed payload (protocol version 3).
+     * 
+     * @return The encoded packet contents.
+     */
+    public byte[] encodeStreamEnd()
+    {
+        return encodeBinaryPacket(OPCODE_END, "");
+    }
+
+    /**
+     * Encrypts and authenticates a pipelined request (protocol version 4).
+     * 
+     * @param requestId
+     *            The correlation ID, which is sent back with the response.
+     * @param command
+     *            The command name.
+     * @param arguments
+     *            The command arguments, as in the argument packet of the
+     *            command.
+     * @return The encoded packet contents.
+     */
+    public byte[] encodeRequest(int requestId, String command, String arguments)
+    {
+        return encodeBinaryPacket(OPCODE_REQUEST, requestId + "\n" + command + "\n" + arguments);
+    }
+
+    /**
+     * Checks and decrypts a pipelined request (protocol version 4).
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @return The request as "id\ncommand\narguments", or an error message.
+     */
+    public String decodeRequest(byte[] packet)
+    {
+        return decodeBinaryPacket(packet, OPCODE_REQUEST);
+    }
+
+    /**
+     * Encrypts and authenticates the response to a pipelined request
+     * (protocol version 4).
+     * 
+     * @param requestId
+     *            The correlation ID of the request.
+     * @param payload
+     *            The response payload.
+     * @return The encoded packet contents.
+     */
+    public byte[] encodeResponse(int requestId, String payload)
+    {
+        return encodeBinaryPacket(OPCODE_RESPONSE, requestId + "\n" + payload);
+    }
+
+    /**
+     * Checks and decrypts the response to a pipelined request (protocol
+     * version 4).
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @return The response as "id\npayload", or an error message.
+     */
+    public String decodeResponse(byte[] packet)
+    {
+        return decodeBinaryPacket(packet, OPCODE_RESPONSE);
+    }
+
+    /**
+     * Encrypts and authenticates one part of the response to a pipelined
+     * request (protocol version 4).
+     * 
+     * @param requestId
+     *            The correlation ID of the request.
+     * @param chunk
+     *            The response part.
+     * @return The encoded packet contents.
+     */
+    public byte[] encodeResponseChunk(int requestId, String chunk)
+    {
+        return encodeBinaryPacket(OPCODE_RESPONSE_CHUNK, requestId + "\n" + chunk);
+    }
+
+    /**
+     * Checks and decrypts one part of the response to a pipelined request
+     * (protocol version 4).
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @return The response part as "id\npart", or an error message.
+     */
+    public String decodeResponseChunk(byte[] packet)
+    {
+        return decodeBinaryPacket(packet, OPCODE_RESPONSE_CHUNK);
+    }
+
+    /**
+     * Returns whether the given packet is one part of a pipelined response.
+     * Only meaningful for protocol version 4 and newer.
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @return Whether the packet has the response chunk opcode.
+     */
+    public static boolean isResponseChunk(byte[] packet)
+    {
+        return packet.length > 0 && packet[0] == OPCODE_RESPONSE_CHUNK;
+    }
+
+    /**
+     * Returns whether the given packet is a pipelined request. Only meaningful
+     * for protocol version 4 and newer.
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @return Whether the packet has the request opcode.
+     */
+    public static boolean isRequest(byte[] packet)
+    {
+        return packet.length > 0 && packet[0] == OPCODE_REQUEST;
+    }
+
+    /**
+     * Encrypts and authenticates the given payload, and returns the resulting
+     * packet contents (without length prefix).
+     * 
+     * @param payload
+     *            The string payload to be encoded.
+     * @return The encoded packet contents.
+     */
+    public byte[] encodePacket(String payload)
+    {
+        if(_protocolVersion >= 2)
+            return encodeBinaryPacket(OPCODE_DATA, payload);
+        _outLock.lock();
+        try
+        {
+            // Assemble data
+            // payload + timestamp + counter
+            String data = payload + "::" + System.currentTimeMillis() + "::" + nextOutCounter();
+
+            // Encrypt data
+            String cipher = _encryptor.encrypt(data);
+
+            // Authenticate cipher
+            String hmac = Base64.getEncoder().encodeToString(_outMac.doFinal(cipher.getBytes()));
+
+            // Encode payload
+            return (cipher + "::" + hmac).getBytes();
+        }
+        finally
+        {
+            _outLock.unlock();
+        }
+    }
+
+    /**
+     * Checks and decrypts the given packet contents (without length prefix).
+     * 
+     * @param payloadEncoded
+     *            The packet contents as received.
+     * @return The payload of the packet, or an error message.
+     */
+    public String decodePacket(byte[] payloadEncoded)
+    {
+        if(_protocolVersion >= 2)
+            return decodeBinaryPacket(payloadEncoded, OPCODE_DATA);
+        _inLock.lock();
+        try
+        {
+            // Split package in cipher and HMAC
+            String[] split = new String(payloadEncoded).split("::");
+            if(split.length < 2)
+                return "Error: Bad Package.";
+            String rcvCipher = split[0];
+            String rcvHmac = split[1];
+
+            // Authenticate cipher
+            String hmac = Base64.getEncoder().encodeToString(_inMac.doFinal(rcvCipher.getBytes()));
+
+            // If hmac is diffrent from the recieved one
+            if(!hmac.equals(rcvHmac))
+            {
+                // Someone tamperd with the package
+                return "Error: Bad HMAC.";
+            }
+
+            // Decrypt
+            String data = _encryptor.decrypt(rcvCipher);
+            if(data == null)
+                return "Error: Bad Package.";
+
+            // Dissassamble data
+            split = data.split("::");
+            String payload = split[0];
+            int msgCounter = Integer.parseInt(split[2]);
+
+            // Check if messageCounter was already used
+            if(!acceptCounter(msgCounter))
+                return "Error: Package counter already used.";
+            return payload;
+        }
+        finally
+        {
+            _inLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts and authenticates the given payload as a version 2 packet.
+     * 
+     * @param opcode
+     *            The packet opcode.
+     * @param payload
+     *            The string payload to be encoded.
+     * @return The encoded packet contents.
+     */
+    private byte[] encodeBinaryPacket(byte opcode, String payload)
+    {
+        byte[] plain = payload.getBytes(StandardCharsets.UTF_8);
+        _outLock.lock();
+        try
+        {
+            // Write header
+            byte[] packet = new byte[HEADER_LENGTH + _encryptor.getEncryptedLength(plain.length) + MAC_LENGTH];
+            int msgCounter = nextOutCounter();
+            long timestamp = System.currentTimeMillis();
+            packet[0] = opcode;
+            writeInt(packet, 1, msgCounter);
+            writeInt(packet, 5, (int)(timestamp >>> 32));
+            writeInt(packet, 9, (int)timestamp);
+
+            // Encrypt payload directly behind the header
+            int cipherLength = _encryptor.encrypt(plain, plain.length, packet, HEADER_LENGTH);
+
+            // Authenticate header and cipher text
+            _outMac.update(packet, 0, HEADER_LENGTH + cipherLength);
+            _outMac.doFinal(packet, HEADER_LENGTH + cipherLength);
+            return packet;
+        }
+        catch(GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            _outLock.unlock();
+        }
+    }
+
+    /**
+     * Checks and decrypts the given version 2 packet.
+     * 
+     * @param packet
+     *            The packet contents as received.
+     * @param opcode
+     *            The expected packet opcode.
+     * @return The payload of the packet, or an error message.
+     */
+    private String decodeBinaryPacket(byte[] packet, byte opcode)
+    {
+        if(packet.length < HEADER_LENGTH + MAC_LENGTH || packet[0] != opcode)
+            return "Error: Bad Package.";
+        int cipherLength = packet.length - HEADER_LENGTH - MAC_LENGTH;
+        _inLock.lock();
+        try
+        {
+            // Check HMAC in constant time
+            _inMac.update(packet, 0, HEADER_LENGTH + cipherLength);
+            _inMac.doFinal(_inMacBuffer, 0);
+            int tagDifference = 0;
+            for(int i = 0; i < MAC_LENGTH; ++i)
+                tagDifference |= _inMacBuffer[i] ^ packet[HEADER_LENGTH + cipherLength + i];
+            if(tagDifference != 0)
+                return "Error: Bad HMAC.";
+
+            // Check if messageCounter was already used
+            _lastInCounter = readInt(packet, 1);
+            if(!acceptCounter(_lastInCounter))
+                return "Error: Package counter already used.";
+
+            // Decrypt
+            return new String(_encryptor.decrypt(packet, HEADER_LENGTH, cipherLength), StandardCharsets.UTF_8);
+        }
+        catch(GeneralSecurityException e)
+        {
+            return "Error: Bad Package.";
+        }
+        finally
+        {
+            _inLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the counter for the next outgoing packet. Must be called while
+     * holding the output lock.
+     * 
+     * @return The counter for the next outgoing packet.
+     */
+    private int nextOutCounter()
+    {
+        // Increase Counter for outgoing messages, so it will not be use again.
+        // Overflows wrap around, which the receiver's replay window expects.
+        return _msgOutCounter++;
+    }
+
+    /**
+     * Checks whether the given counter of an incoming packet has not been used
+     * yet, and marks it as used. Must be called while holding the input lock.
+     * 
+     * @param msgCounter
+     *            The counter of the incoming packet.
+     * @return Whether the counter has not been used before.
+     */
+    private boolean acceptCounter(int msgCounter)
+    {
+        return _msgInCounter.accept(msgCounter);
+    }
+
+    /**
+     * Writes the given value in big endian byte order into the given array.
+     */
+    private static void writeInt(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Reads a big endian value from the given array.
+     */
+    private static int readInt(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+}
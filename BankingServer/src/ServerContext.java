@@ -0,0 +1,79 @@
+/**
+ * Bundles the server wide components the client sessions work with.
+ */
+public class ServerContext
+{
+    /**
+     * The database containing user data.
+     */
+    private Database _database;
+
+    /**
+     * Delays replies to failed logins.
+     */
+    private LoginThrottle _loginThrottle;
+
+    /**
+     * Delivers e-mails and token grants in the background.
+     */
+    private SideEffectDispatcher _sideEffects;
+
+    /**
+     * Creates the server components for the given database.
+     * 
+     * @param database
+     *            The database containing user data.
+     */
+    public ServerContext(Database database)
+    {
+        _database = database;
+        _loginThrottle = new LoginThrottle();
+
+        // Deliver side effects to the lab servers or the local stand-in, as
+        // chosen by the "bank.sideEffectSinks" system property
+        _sideEffects = new SideEffectDispatcher(database.getDatabaseFile() + ".deadletter");
+        if(System.getProperty("bank.sideEffectSinks", Utility.LAB_MODE ? "lab" : "local").equals("lab"))
+        {
+            _sideEffects.setSink(SideEffect.Type.MAIL, new SmtpMailSink());
+            _sideEffects.setSink(SideEffect.Type.TOKEN_GRANT, new HttpsTokenSink());
+        }
+        else
+        {
+            LocalSink localSink = new LocalSink();
+            _sideEffects.setSink(SideEffect.Type.MAIL, localSink);
+            _sideEffects.setSink(SideEffect.Type.TOKEN_GRANT, localSink);
+        }
+        _sideEffects.start();
+        database.setSideEffectDispatcher(_sideEffects);
+    }
+
+    /**
+     * Returns the database containing user data.
+     * 
+     * @return The database containing user data.
+     */
+    public Database getDatabase()
+    {
+        return _database;
+    }
+
+    /**
+     * Returns the component delaying replies to failed logins.
+     * 
+     * @return The login throttle.
+     */
+    public LoginThrottle getLoginThrottle()
+    {
+        return _loginThrottle;
+    }
+
+    /**
+     * Returns the dispatcher delivering e-mails and token grants.
+     * 
+     * @return The side effect dispatcher.
+     */
+    public SideEffectDispatcher getSideEffects()
+    {
+        return _sideEffects;
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 
 public class ServerMain
 {
@@ -13,7 +14,7 @@ public class ServerMain
         if(args.length < 1)
         {
             // Show usage
-            Utility.safePrintln("Please provide the JSON database file name.");
+            Log.info("Please provide the database file name (JSON or binary image).");
             return;
         }
         
@@ -24,33 +25,158 @@ public class ServerMain
         {
             // Create database file with given name and exit
             Database.generate(args[0]);
-            Utility.safePrintln("Generating database file completed.");
+            Log.info("Generating database file completed.");
             return;
         }
 
-        // Read database
-        Utility.safePrintln("Reading database file '" + args[0] + "'...");
-        Database database = new Database(args[0]);
+        // Read database, or its latest snapshot
+        Database database;
+        try
+        {
+            String snapshotFile = Checkpointer.findLatestSnapshot(args[0]);
+            if(snapshotFile == null)
+            {
+                Log.info("Reading database file '" + args[0] + "'...");
+                database = new Database(args[0]);
+            }
+            else
+            {
+                Log.info("Reading database snapshot '" + snapshotFile + "'...");
+                database = new Database(args[0], snapshotFile);
+            }
+
+            // Replay and open transaction journal
+            database.openJournal();
+
+            // Convert into a binary image and exit?
+            if(args.length >= 3 && args[1].equalsIgnoreCase("convert"))
+            {
+                Log.info("Writing database image '" + args[2] + "'...");
+                database.writeImage(Paths.get(args[2]), database.getJournal().getLastSequence());
+                database.closeJournal();
+                Log.info("Converting database completed.");
+                return;
+            }
+
+            // Import a transfer file offline, write the result and exit?
+            if(args.length >= 4 && args[1].equalsIgnoreCase("import"))
+            {
+                long journalSequence = database.getJournal().getLastSequence();
+                database.closeJournal();
+                Log.info("Importing transfers from '" + args[2] + "'...");
+                new LedgerImport(database).run(Paths.get(args[2]), Paths.get(args[3] + ".rejected"));
+                Log.info("Writing database '" + args[3] + "'...");
+                database.writeSnapshot(Paths.get(args[3]), journalSequence);
+                Log.info("Importing transfers completed.");
+                return;
+            }
+
+            // Take snapshots in background
+            new Checkpointer(database).start();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+        ServerContext context = new ServerContext(database);
+
+        // Start admin endpoint and metrics dump
+        try
+        {
+            Metrics.start();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        // Use non-blocking event loops?
+        if(args.length >= 2 && args[1].equalsIgnoreCase("nio"))
+        {
+            // Determine number of event loops
+            int eventLoopCount = Runtime.getRuntime().availableProcessors();
+            if(args.length >= 3)
+                eventLoopCount = Integer.parseInt(args[2]);
+
+            // Create server channel and serve clients
+            Log.info("Creating server channel with " + eventLoopCount + " event loops...");
+            try
+            {
+                new NioServer(context, database.getServerPort(), eventLoopCount).run();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // Run sessions on a bounded executor?
+        SessionExecutor sessionExecutor = null;
+        if(args.length >= 2 && args[1].equalsIgnoreCase("virtual"))
+        {
+            // Read session limit and overload policy
+            int maxSessions = 10000;
+            if(args.length >= 3)
+                maxSessions = Integer.parseInt(args[2]);
+            SessionExecutor.OverloadPolicy overloadPolicy = SessionExecutor.OverloadPolicy.QUEUE;
+            if(args.length >= 4)
+                overloadPolicy = SessionExecutor.OverloadPolicy.valueOf(args[3].toUpperCase());
+            sessionExecutor = new SessionExecutor(maxSessions, overloadPolicy);
+            Log.info("Running at most " + maxSessions + " sessions on " + (sessionExecutor.isVirtual() ? "virtual" : "platform")
+                    + " threads, " + overloadPolicy.name().toLowerCase() + " clients beyond the limit.");
+        }
 
         // Create server socket
-        Utility.safePrintln("Creating server socket...");
+        Log.info("Creating server socket...");
         try(ServerSocket serverSocket = new ServerSocket(database.getServerPort()))
         {
             // Listen for clients
-            Utility.safePrintln("Enter client listen loop.");
-            while(true)
-            {
-                // Accept new client
-                Socket clientSocket = serverSocket.accept();
-                Utility.safePrintln("Client accepted on port " + clientSocket.getLocalPort());
-
-                // Start new thread to handle client
-                new Thread(new ClientThread(clientSocket, database)).start();
-            }
+            Log.info("Enter client listen loop.");
+            acceptClients(serverSocket, context, sessionExecutor);
         }
         catch(IOException e)
         {
             e.printStackTrace();
         }
+        catch(InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts clients on the given server socket and runs a client thread for
+     * each of them, until the server socket is closed.
+     * 
+     * @param serverSocket
+     *            The server socket.
+     * @param context
+     *            The server components.
+     * @param sessionExecutor
+     *            The executor running the client sessions, or null to start a
+     *            new platform thread per client.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void acceptClients(ServerSocket serverSocket, ServerContext context, SessionExecutor sessionExecutor) throws IOException, InterruptedException
+    {
+        while(true)
+        {
+            // Accept new client
+            Socket clientSocket = serverSocket.accept();
+            Log.debug("Client accepted on port " + clientSocket.getLocalPort());
+
+            // Responses and stream chunks are separate writes, send them
+            // immediately
+            clientSocket.setTcpNoDelay(true);
+
+            // Start new thread to handle client
+            if(sessionExecutor == null)
+                new Thread(new ClientThread(clientSocket, context)).start();
+            else
+                sessionExecutor.execute(clientSocket, new ClientThread(clientSocket, context));
+        }
     }
 }
\ No newline at end of file
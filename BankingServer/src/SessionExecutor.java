@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs client sessions on a pool of platform threads, while limiting the
+ * number of concurrently running sessions. On JVMs providing virtual threads
+ * (Java 21+), these are used instead of the pool.
+ */
+public class SessionExecutor
+{
+    /**
+     * Determines what happens with new clients while the session limit is
+     * reached.
+     */
+    public enum OverloadPolicy
+    {
+        /**
+         * The accept loop waits until a session slot is free, further clients
+         * queue up in the socket backlog.
+         */
+        QUEUE,
+
+        /**
+         * New clients are disconnected immediately.
+         */
+        REJECT
+    }
+
+    /**
+     * The executor running the sessions.
+     */
+    private ExecutorService _executor;
+
+    /**
+     * Tells whether the sessions run on virtual threads.
+     */
+    private boolean _virtual;
+
+    /**
+     * Limits the number of concurrently running sessions.
+     */
+    private Semaphore _sessionPermits;
+
+    /**
+     * The maximum number of concurrently running sessions.
+     */
+    private int _maxSessions;
+
+    /**
+     * Determines what happens with new clients while the session limit is
+     * reached.
+     */
+    private OverloadPolicy _overloadPolicy;
+
+    /**
+     * The number of rejected clients.
+     */
+    private AtomicInteger _rejectedCount = new AtomicInteger();
+
+    /**
+     * Creates a new session executor.
+     * 
+     * @param maxSessions
+     *            The maximum number of concurrently running sessions.
+     * @param overloadPolicy
+     *            Determines what happens with new clients while the session
+     *            limit is reached.
+     */
+    public SessionExecutor(int maxSessions, OverloadPolicy overloadPolicy)
+    {
+        // Save parameters
+        _maxSessions = maxSessions;
+        _overloadPolicy = overloadPolicy;
+        _sessionPermits = new Semaphore(maxSessions);
+
+        // Use virtual threads if available (Java 21+), these are looked up
+        // reflectively to keep the code compatible with Java 17
+        try
+        {
+            _executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            _virtual = true;
+        }
+        catch(ReflectiveOperationException e)
+        {
+            // Fall back to platform threads, the session limit bounds the pool
+            AtomicInteger threadCounter = new AtomicInteger();
+            _executor = Executors.newCachedThreadPool(r -> new Thread(r, "ClientSession-" + threadCounter.incrementAndGet()));
+            _virtual = false;
+        }
+    }
+
+    /**
+     * Tells whether the sessions run on virtual threads.
+     * 
+     * @return Whether the sessions run on virtual threads.
+     */
+    public boolean isVirtual()
+    {
+        return _virtual;
+    }
+
+    /**
+     * Returns the maximum number of concurrently running sessions.
+     * 
+     * @return The maximum number of concurrently running sessions.
+     */
+    public int getMaxSessions()
+    {
+        return _maxSessions;
+    }
+
+    /**
+     * Returns the number of currently running sessions.
+     * 
+     * @return The number of currently running sessions.
+     */
+    public int getActiveSessions()
+    {
+        return _maxSessions - _sessionPermits.availablePermits();
+    }
+
+    /**
+     * Returns the number of clients rejected due to the session limit.
+     * 
+     * @return The number of rejected clients.
+     */
+    public int getRejectedCount()
+    {
+        return _rejectedCount.get();
+    }
+
+    /**
+     * Starts a session for the given client socket. Depending on the overload
+     * policy, this blocks until a session slot is free or disconnects the client
+     * when the session limit is reached.
+     * 
+     * @param clientSocket
+     *            The socket of the new client.
+     * @param session
+     *            The session to be run for this client.
+     * @return Whether the session was started.
+     * @throws InterruptedException
+     */
+    public boolean execute(Socket clientSocket, Runnable session) throws InterruptedException
+    {
+        // Obtain session slot
+        if(_overloadPolicy == OverloadPolicy.QUEUE)
+            _sessionPermits.acquire();
+        else if(!_sessionPermits.tryAcquire())
+        {
+            // Limit reached, drop client
+            _rejectedCount.incrementAndGet();
+            Log.warn("Session limit reached, rejecting client.");
+            try
+            {
+                clientSocket.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            return false;
+        }
+
+        // Run session, free slot afterwards
+        _executor.execute(() ->
+        {
+            try
+            {
+                session.run();
+            }
+            finally
+            {
+                _sessionPermits.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stops accepting sessions and waits for running sessions to finish.
+     * 
+     * @param timeoutMillis
+     *            The maximum time to wait.
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException
+    {
+        _executor.shutdown();
+        _executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
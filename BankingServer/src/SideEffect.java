@@ -0,0 +1,233 @@
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * An outbound action caused by a database mutation or a session, like a
+ * confirmation e-mail or a CTF token grant. Side effects are handed to the
+ * SideEffectDispatcher, which delivers them in the background, so no lock and
+ * no session waits for an external endpoint.
+ */
+public class SideEffect
+{
+    /**
+     * The kinds of side effects. Each kind is delivered by its own sink.
+     */
+    public enum Type
+    {
+        /**
+         * An e-mail; target is the recipient address, subject and text are the
+         * message contents.
+         */
+        MAIL,
+
+        /**
+         * A CTF token grant; target is the CTF group ID, text is the token.
+         */
+        TOKEN_GRANT
+    }
+
+    /**
+     * The kind of this side effect.
+     */
+    private final Type _type;
+
+    /**
+     * The recipient address or group ID.
+     */
+    private final String _target;
+
+    /**
+     * The mail subject, or null.
+     */
+    private final String _subject;
+
+    /**
+     * The mail text or token.
+     */
+    private final String _text;
+
+    /**
+     * The time the side effect was created.
+     */
+    private final long _createdMillis = System.currentTimeMillis();
+
+    /**
+     * The number of failed delivery attempts. Only used by the dispatcher
+     * thread.
+     */
+    private int _attempts = 0;
+
+    /**
+     * The time the next delivery attempt is due. Only used by the dispatcher
+     * thread.
+     */
+    private long _dueMillis = 0;
+
+    /**
+     * The reason the last delivery attempt failed, or null.
+     */
+    private String _lastError;
+
+    /**
+     * Creates a new side effect.
+     * 
+     * @param type
+     *            The kind of side effect.
+     * @param target
+     *            The recipient address or group ID.
+     * @param subject
+     *            The mail subject, or null.
+     * @param text
+     *            The mail text or token.
+     */
+    public SideEffect(Type type, String target, String subject, String text)
+    {
+        _type = type;
+        _target = target;
+        _subject = subject;
+        _text = text;
+    }
+
+    /**
+     * Creates an e-mail side effect.
+     * 
+     * @param recipient
+     *            The recipient address.
+     * @param subject
+     *            The mail subject.
+     * @param text
+     *            The mail text.
+     * @return The side effect.
+     */
+    public static SideEffect mail(String recipient, String subject, String text)
+    {
+        return new SideEffect(Type.MAIL, recipient, subject, text);
+    }
+
+    /**
+     * Creates a CTF token grant side effect.
+     * 
+     * @param ctfGroupId
+     *            The group the token is granted to.
+     * @param token
+     *            The token.
+     * @return The side effect.
+     */
+    public static SideEffect tokenGrant(int ctfGroupId, String token)
+    {
+        return new SideEffect(Type.TOKEN_GRANT, Integer.toString(ctfGroupId), null, token);
+    }
+
+    /**
+     * Returns the kind of this side effect.
+     * 
+     * @return The kind of this side effect.
+     */
+    public Type getType()
+    {
+        return _type;
+    }
+
+    /**
+     * Returns the recipient address or group ID.
+     * 
+     * @return The recipient address or group ID.
+     */
+    public String getTarget()
+    {
+        return _target;
+    }
+
+    /**
+     * Returns the mail subject.
+     * 
+     * @return The mail subject, or null.
+     */
+    public String getSubject()
+    {
+        return _subject;
+    }
+
+    /**
+     * Returns the mail text or token.
+     * 
+     * @return The mail text or token.
+     */
+    public String getText()
+    {
+        return _text;
+    }
+
+    /**
+     * Returns the number of failed delivery attempts.
+     * 
+     * @return The number of failed delivery attempts.
+     */
+    public int getAttempts()
+    {
+        return _attempts;
+    }
+
+    /**
+     * Returns the time the next delivery attempt is due.
+     * 
+     * @return The due time in milliseconds.
+     */
+    public long getDueMillis()
+    {
+        return _dueMillis;
+    }
+
+    /**
+     * Records a failed delivery attempt. Sinks call this for every side effect
+     * they could not deliver.
+     * 
+     * @param error
+     *            The reason of the failure.
+     */
+    public void fail(String error)
+    {
+        _lastError = error;
+    }
+
+    /**
+     * Counts a failed attempt and schedules the next one.
+     * 
+     * @param dueMillis
+     *            The time the next attempt is due.
+     */
+    void scheduleRetry(long dueMillis)
+    {
+        ++_attempts;
+        _dueMillis = dueMillis;
+    }
+
+    /**
+     * Returns the reason the last delivery attempt failed.
+     * 
+     * @return The reason of the last failure, or null.
+     */
+    public String getLastError()
+    {
+        return _lastError;
+    }
+
+    /**
+     * Returns a JSON object describing this side effect, as written to the
+     * dead letter file.
+     * 
+     * @return The JSON object.
+     */
+    public JsonObject toJson()
+    {
+        return Json.createObjectBuilder()
+                .add("type", _type.name())
+                .add("target", _target)
+                .add("subject", _subject == null ? "" : _subject)
+                .add("text", _text)
+                .add("created", _createdMillis)
+                .add("attempts", _attempts)
+                .add("error", _lastError == null ? "" : _lastError)
+                .build();
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers side effects (e-mails, token grants) in the background. Callers
+ * only put the side effect into a bounded queue; a single dispatcher thread
+ * drains it in batches and passes each batch to the sink of its kind. Failed
+ * side effects are retried with exponential backoff and jitter, and written
+ * to a dead letter file (one JSON object per line) once the maximum number of
+ * attempts is reached, or when the queue is full.
+ */
+public class SideEffectDispatcher
+{
+    /**
+     * Queued side effects waiting for their first delivery attempt.
+     */
+    private final ArrayBlockingQueue<SideEffect> _queue;
+
+    /**
+     * Failed side effects waiting for their next attempt, ordered by due time.
+     * Only used by the dispatcher thread.
+     */
+    private final PriorityQueue<SideEffect> _retries = new PriorityQueue<>(Comparator.comparingLong(SideEffect::getDueMillis));
+
+    /**
+     * The sinks delivering each kind of side effect.
+     */
+    private final EnumMap<SideEffect.Type, SideEffectSink> _sinks = new EnumMap<>(SideEffect.Type.class);
+
+    /**
+     * The maximum number of side effects passed to a sink at once.
+     */
+    private final int _batchSize;
+
+    /**
+     * The number of delivery attempts before a side effect is dead lettered.
+     */
+    private final int _maxAttempts;
+
+    /**
+     * The delay before the first retry.
+     */
+    private final long _baseBackoffMillis;
+
+    /**
+     * The maximum delay between retries.
+     */
+    private final long _maxBackoffMillis;
+
+    /**
+     * The file undeliverable side effects are appended to.
+     */
+    private final Path _deadLetterFile;
+
+    /**
+     * The thread delivering the side effects.
+     */
+    private Thread _dispatcherThread;
+
+    /**
+     * Set when the dispatcher is closed.
+     */
+    private volatile boolean _closed = false;
+
+    /**
+     * The number of delivered side effects.
+     */
+    private final AtomicLong _deliveredCount = new AtomicLong();
+
+    /**
+     * The number of failed delivery attempts.
+     */
+    private final AtomicLong _failedCount = new AtomicLong();
+
+    /**
+     * The number of dead lettered side effects.
+     */
+    private final AtomicLong _deadLetterCount = new AtomicLong();
+
+    /**
+     * Creates a new dispatcher configured by the "bank.sideEffectQueue",
+     * "bank.sideEffectBatch", "bank.sideEffectAttempts",
+     * "bank.sideEffectBackoff", "bank.sideEffectBackoffMax" (in milliseconds)
+     * and "bank.deadLetterFile" system properties.
+     * 
+     * @param defaultDeadLetterFile
+     *            The dead letter file used if the property is not set.
+     */
+    public SideEffectDispatcher(String defaultDeadLetterFile)
+    {
+        this(Integer.getInteger("bank.sideEffectQueue", 10000), Integer.getInteger("bank.sideEffectBatch", 32), Integer.getInteger("bank.sideEffectAttempts", 6),
+                Long.getLong("bank.sideEffectBackoff", 1000), Long.getLong("bank.sideEffectBackoffMax", 5 * 60000),
+                System.getProperty("bank.deadLetterFile", defaultDeadLetterFile));
+    }
+
+    /**
+     * Creates a new dispatcher. Register the sinks and call start() before
+     * submitting side effects.
+     * 
+     * @param queueCapacity
+     *            The maximum number of queued side effects.
+     * @param batchSize
+     *            The maximum number of side effects passed to a sink at once.
+     * @param maxAttempts
+     *            The number of delivery attempts before a side effect is dead
+     *            lettered.
+     * @param baseBackoffMillis
+     *            The delay before the first retry.
+     * @param maxBackoffMillis
+     *            The maximum delay between retries.
+     * @param deadLetterFile
+     *            The file undeliverable side effects are appended to.
+     */
+    public SideEffectDispatcher(int queueCapacity, int batchSize, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, String deadLetterFile)
+    {
+        // Save parameters
+        _queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        _batchSize = Math.max(1, batchSize);
+        _maxAttempts = Math.max(1, maxAttempts);
+        _baseBackoffMillis = Math.max(1, baseBackoffMillis);
+        _maxBackoffMillis = Math.max(_baseBackoffMillis, maxBackoffMillis);
+        _deadLetterFile = Paths.get(deadLetterFile);
+    }
+
+    /**
+     * Registers the sink for the given kind of side effect. Side effects
+     * without sink are dead lettered.
+     * 
+     * @param type
+     *            The kind of side effect.
+     * @param sink
+     *            The sink delivering it.
+     */
+    public void setSink(SideEffect.Type type, SideEffectSink sink)
+    {
+        _sinks.put(type, sink);
+    }
+
+    /**
+     * Starts the dispatcher thread.
+     */
+    public void start()
+    {
+        _dispatcherThread = new Thread(this::runDispatcher, "SideEffectDispatcher");
+        _dispatcherThread.setDaemon(true);
+        _dispatcherThread.start();
+    }
+
+    /**
+     * Queues the given side effect for delivery. Never blocks; if the queue is
+     * full, the side effect is dead lettered right away.
+     * 
+     * @param effect
+     *            The side effect.
+     * @return Whether the side effect was queued.
+     */
+    public boolean submit(SideEffect effect)
+    {
+        if(!_closed && _queue.offer(effect))
+            return true;
+        effect.fail(_closed ? "Dispatcher closed." : "Queue full.");
+        deadLetter(effect);
+        return false;
+    }
+
+    /**
+     * Returns the number of side effects waiting for their first attempt.
+     * 
+     * @return The queue length.
+     */
+    public int getQueueLength()
+    {
+        return _queue.size();
+    }
+
+    /**
+     * Returns the number of delivered side effects.
+     * 
+     * @return The number of delivered side effects.
+     */
+    public long getDeliveredCount()
+    {
+        return _deliveredCount.get();
+    }
+
+    /**
+     * Returns the number of failed delivery attempts.
+     * 
+     * @return The number of failed delivery attempts.
+     */
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    /**
+     * Returns the number of dead lettered side effects.
+     * 
+     * @return The number of dead lettered side effects.
+     */
+    public long getDeadLetterCount()
+    {
+        return _deadLetterCount.get();
+    }
+
+    /**
+     * Delivers the queued side effects until the dispatcher is closed.
+     */
+    private void runDispatcher()
+    {
+        List<SideEffect> batch = new ArrayList<>(_batchSize);
+        while(!_closed || !_queue.isEmpty())
+        {
+            try
+            {
+                // Wait for new side effects or the next due retry
+                long waitMillis = 1000;
+                if(!_retries.isEmpty())
+                    waitMillis = Math.max(0, _retries.peek().getDueMillis() - System.currentTimeMillis());
+                SideEffect first = _queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if(first != null)
+                {
+                    batch.add(first);
+                    _queue.drainTo(batch, _batchSize - 1);
+                }
+
+                // Add due retries
+                long now = System.currentTimeMillis();
+                while(!_retries.isEmpty() && _retries.peek().getDueMillis() <= now)
+                    batch.add(_retries.poll());
+
+                // Deliver batches per kind
+                for(SideEffect.Type type : SideEffect.Type.values())
+                {
+                    List<SideEffect> typeBatch = new ArrayList<>();
+                    for(SideEffect effect : batch)
+                        if(effect.getType() == type)
+                            typeBatch.add(effect);
+                    for(int start = 0; start < typeBatch.size(); start += _batchSize)
+                        deliver(type, typeBatch.subList(start, Math.min(typeBatch.size(), start + _batchSize)));
+                }
+                batch.clear();
+            }
+            catch(InterruptedException e)
+            {
+                // Closed, deliver remaining queued side effects
+            }
+        }
+
+        // Pending retries cannot be delivered anymore
+        for(SideEffect effect : _retries)
+            deadLetter(effect);
+        _retries.clear();
+    }
+
+    /**
+     * Passes the given batch to its sink and schedules the failed side effects
+     * for retry.
+     */
+    private void deliver(SideEffect.Type type, List<SideEffect> batch)
+    {
+        // Deliver
+        SideEffectSink sink = _sinks.get(type);
+        List<SideEffect> failed;
+        if(sink == null)
+        {
+            for(SideEffect effect : batch)
+                effect.fail("No sink for " + type + ".");
+            failed = batch;
+        }
+        else
+        {
+            try
+            {
+                failed = sink.deliver(batch);
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+                for(SideEffect effect : batch)
+                    effect.fail(e.toString());
+                failed = batch;
+            }
+        }
+        _deliveredCount.addAndGet(batch.size() - failed.size());
+        _failedCount.addAndGet(failed.size());
+
+        // Retry or give up
+        long now = System.currentTimeMillis();
+        for(SideEffect effect : failed)
+        {
+            if(sink == null || effect.getAttempts() + 1 >= _maxAttempts)
+            {
+                effect.scheduleRetry(0);
+                deadLetter(effect);
+                continue;
+            }
+            long backoff = Math.min(_maxBackoffMillis, _baseBackoffMillis << Math.min(30, effect.getAttempts()));
+            effect.scheduleRetry(now + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            _retries.add(effect);
+        }
+    }
+
+    /**
+     * Appends the given side effect to the dead letter file.
+     */
+    private synchronized void deadLetter(SideEffect effect)
+    {
+        _deadLetterCount.incrementAndGet();
+        Log.warn("Side effect " + effect.getType() + " for " + effect.getTarget() + " given up: " + effect.getLastError());
+        try(BufferedWriter writer = Files.newBufferedWriter(_deadLetterFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+        {
+            writer.write(effect.toJson().toString());
+            writer.newLine();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting side effects, delivers the queued ones (without further
+     * retries) and waits for the dispatcher thread to finish.
+     * 
+     * @param timeoutMillis
+     *            The maximum time to wait.
+     * @throws InterruptedException
+     */
+    public void close(long timeoutMillis) throws InterruptedException
+    {
+        _closed = true;
+        if(_dispatcherThread == null)
+            return;
+        _dispatcherThread.interrupt();
+        _dispatcherThread.join(timeoutMillis);
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.List;
+
+/**
+ * Delivers side effects of one kind to an external endpoint. Sinks are called
+ * by the dispatcher thread only, so they do not need to be thread safe.
+ */
+public interface SideEffectSink
+{
+    /**
+     * Delivers a batch of side effects. Side effects that could not be
+     * delivered are marked with SideEffect.fail() and returned, the dispatcher
+     * retries them later.
+     * 
+     * @param batch
+     *            The side effects to deliver, all of the same kind.
+     * @return The side effects that failed, or an empty list.
+     */
+    List<SideEffect> deliver(List<SideEffect> batch);
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sends e-mail side effects via SMTP. The messages of a batch are spread over
+ * the pooled connections of a MailSender.
+ */
+public class SmtpMailSink implements SideEffectSink
+{
+    /**
+     * The pooled SMTP sender.
+     */
+    private final MailSender _sender;
+
+    /**
+     * Creates a new sink with a mail sender configured by system properties.
+     */
+    public SmtpMailSink()
+    {
+        this(new MailSender());
+    }
+
+    /**
+     * Creates a new sink.
+     * 
+     * @param sender
+     *            The pooled SMTP sender.
+     */
+    public SmtpMailSink(MailSender sender)
+    {
+        _sender = sender;
+    }
+
+    /**
+     * Returns the pooled SMTP sender.
+     * 
+     * @return The mail sender.
+     */
+    public MailSender getSender()
+    {
+        return _sender;
+    }
+
+    /**
+     * Sends the given e-mails and waits until all were accepted or failed.
+     */
+    @Override
+    public List<SideEffect> deliver(List<SideEffect> batch)
+    {
+        // Queue messages
+        List<CompletableFuture<Void>> results = new ArrayList<>(batch.size());
+        for(SideEffect effect : batch)
+            results.add(_sender.send(effect.getTarget(), effect.getSubject(), effect.getText()));
+
+        // Collect failures
+        List<SideEffect> failed = new ArrayList<>();
+        for(int i = 0; i < batch.size(); ++i)
+        {
+            try
+            {
+                results.get(i).get();
+                Log.debug("Mail to " + batch.get(i).getTarget() + " sent.");
+            }
+            catch(ExecutionException e)
+            {
+                Throwable cause = e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+                batch.get(i).fail(cause.toString());
+                failed.add(batch.get(i));
+            }
+            catch(InterruptedException e)
+            {
+                // Closing, the message may still be sent
+                Thread.currentThread().interrupt();
+                batch.get(i).fail("Interrupted.");
+                failed.add(batch.get(i));
+            }
+        }
+        return failed;
+    }
+}
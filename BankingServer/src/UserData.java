@@ -1,7 +1,10 @@
 import java.util.LinkedList;
+import java.util.List;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonString;
@@ -13,6 +16,12 @@ import javax.json.JsonValue.ValueType;
  */
 public class UserData
 {
+    /**
+     * Creates the JSON builders. Cached, since Json.createObjectBuilder() looks
+     * up the JSON provider on every call, which dominates snapshot time.
+     */
+    private static final JsonBuilderFactory JSON_BUILDER_FACTORY = Json.createBuilderFactory(null);
+
     /**
      * The user's name.
      */
@@ -51,7 +60,12 @@ public class UserData
     /**
      * The history of money changes on this account.
      */
-    private LinkedList<Tuple<Integer, Integer>> _moneyHistory;
+    private MoneyHistory _moneyHistory;
+
+    /**
+     * The sequence number of the last journal record that changed this user.
+     */
+    private long _journalSequence = 0;
 
     /**
      * Reads the user data from the given JSON object.
@@ -72,8 +86,14 @@ public class UserData
             if(val.getValueType() == ValueType.STRING)
                 _deviceAuthenticationStrings.add(((JsonString)val).getString());
 
-        // Initialize empty history
-        _moneyHistory = new LinkedList<>();
+        // Read history and journal position, which only snapshots contain
+        long historyStart = userDataObj.containsKey("historystart") ? userDataObj.getJsonNumber("historystart").longValue() : 0;
+        _moneyHistory = new MoneyHistory(historyStart, MoneyHistory.DEFAULT_RETENTION);
+        if(userDataObj.containsKey("history"))
+            for(JsonArray entry : userDataObj.getJsonArray("history").getValuesAs(JsonArray.class))
+                _moneyHistory.add(entry.getInt(0), entry.getInt(1));
+        if(userDataObj.containsKey("journalseq"))
+            _journalSequence = userDataObj.getJsonNumber("journalseq").longValue();
     }
 
     /**
@@ -107,24 +127,61 @@ public class UserData
             _deviceAuthenticationStrings.add(initialDeviceCode);
 
         // Initialize empty history
-        _moneyHistory = new LinkedList<>();
+        _moneyHistory = new MoneyHistory();
+    }
+
+    /**
+     * Creates a user with the given data, as read from a database image.
+     * 
+     * @param name
+     *            The user's name.
+     * @param email
+     *            The user's email.
+     * @param password
+     *            The user's password.
+     * @param money
+     *            The user's amount of money.
+     * @param ctfGroupId
+     *            The user's token server group ID.
+     * @param token
+     *            The token granted for stealing money from this user.
+     * @param deviceCodes
+     *            The user's device codes.
+     * @param moneyHistory
+     *            The history of money changes on this account.
+     * @param journalSequence
+     *            The sequence number of the last journal record that changed
+     *            this user.
+     */
+    public UserData(String name, String email, String password, int money, int ctfGroupId, String token, LinkedList<String> deviceCodes,
+            MoneyHistory moneyHistory, long journalSequence)
+    {
+        _name = name;
+        _email = email;
+        _password = password;
+        _money = money;
+        _ctfGroupId = ctfGroupId;
+        _token = token;
+        _deviceAuthenticationStrings = deviceCodes;
+        _moneyHistory = moneyHistory;
+        _journalSequence = journalSequence;
     }
 
     /**
-     * Saves the user's data into a JSON object. Only used for generating database
-     * files.
+     * Saves the user's data into a JSON object. Used for generating database
+     * files and for snapshots.
      * 
      * @return A JSON object with the user's data.
      */
     public JsonObject toJson()
     {
         // Put device list into JSON array
-        JsonArrayBuilder deviceArrayBuilder = Json.createArrayBuilder();
+        JsonArrayBuilder deviceArrayBuilder = JSON_BUILDER_FACTORY.createArrayBuilder();
         for(String device : _deviceAuthenticationStrings)
             deviceArrayBuilder.add(device);
 
         // Create user data JSON object
-        JsonObjectBuilder objBuilder = Json.createObjectBuilder();
+        JsonObjectBuilder objBuilder = JSON_BUILDER_FACTORY.createObjectBuilder();
         objBuilder.add("name", _name);
         objBuilder.add("email", _email);
         objBuilder.add("password", _password);
@@ -132,6 +189,14 @@ public class UserData
         objBuilder.add("devices", deviceArrayBuilder.build());
         objBuilder.add("ctfgroup", _ctfGroupId);
         objBuilder.add("token", _token);
+
+        // Add history and journal position
+        JsonArrayBuilder historyArrayBuilder = JSON_BUILDER_FACTORY.createArrayBuilder();
+        for(int h = 0; h < _moneyHistory.size(); ++h)
+            historyArrayBuilder.add(JSON_BUILDER_FACTORY.createArrayBuilder().add(_moneyHistory.getCounterparty(h)).add(_moneyHistory.getAmount(h)));
+        objBuilder.add("history", historyArrayBuilder.build());
+        objBuilder.add("historystart", _moneyHistory.getFirstSequence());
+        objBuilder.add("journalseq", _journalSequence);
         return objBuilder.build();
     }
 
@@ -145,6 +210,16 @@ public class UserData
         return _name;
     }
 
+    /**
+     * Returns the user's password.
+     * 
+     * @return The user's password.
+     */
+    public String getPassword()
+    {
+        return _password;
+    }
+
     /**
      * Returns the user's e-mail address.
      * 
@@ -187,20 +262,8 @@ public class UserData
      */
     public boolean checkPassword(String password)
     {
-        try
-        {
-            // Compare passwords
-        	if(password.equals(_password)) {
-        		return true;
-        	}
-        	
-        	Thread.sleep(3000);
-        	return false;
-        	
-        } catch(Exception ex)
-        {
-            return false;
-        }
+        // Compare passwords
+        return password.equals(_password);
     }
 
     /**
@@ -227,23 +290,55 @@ public class UserData
     public void changeMoney(int userId, int money)
     {
         // Add history entry
-        _moneyHistory.add(new Tuple<Integer, Integer>(userId, money));
+        _moneyHistory.add(userId, money);
 
         // Update money amount
         _money += money;
     }
 
     /**
-     * Returns a list containing the user's full money sending/receiving history.
+     * Returns the user's money sending/receiving history.
      * 
-     * @return A list containing the given user's full money sending/receiving
-     *         history.
+     * @return The user's money sending/receiving history.
      */
-    public LinkedList<Tuple<Integer, Integer>> getMoneyHistory()
+    public MoneyHistory getMoneyHistory()
     {
         return _moneyHistory;
     }
 
+    /**
+     * Returns the sequence number of the last journal record that changed this
+     * user.
+     * 
+     * @return The journal sequence number.
+     */
+    public long getJournalSequence()
+    {
+        return _journalSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last journal record that changed this
+     * user.
+     * 
+     * @param journalSequence
+     *            The journal sequence number.
+     */
+    public void setJournalSequence(long journalSequence)
+    {
+        _journalSequence = journalSequence;
+    }
+
+    /**
+     * Returns the authentication codes of the user's devices.
+     * 
+     * @return The device codes, which must not be modified.
+     */
+    public List<String> getDevices()
+    {
+        return _deviceAuthenticationStrings;
+    }
+
     /**
      * Adds the device with the given authentication code.
      * 
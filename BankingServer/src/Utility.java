@@ -1,19 +1,11 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Calendar;
-import java.util.List;
 import java.util.Random;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 /**
  * Helper class containing auxiliary functions.
  */
@@ -29,46 +21,6 @@ public class Utility
 	 */
 	private static Random random;
 	
-	/**
-	 * Used for creating macs
-	 */	
-	private static Mac mac;
-	
-	/**
-	 * Used to get the time
-	 */
-	private static Calendar calendar;
-	
-	/**
-	 * Used to keep track of messages
-	 */
-	private static int msgOutCounter;
-	
-	/**
-	 * Mac key String used for generate mac Key object
-	 */
-	private static String rawMacKey;
-	
-	/**
-	 * Mac key that was generated from DHKE
-	 */
-	private static Key macKey;
-	
-	/**
-	 * Encryption key that was generated from DHKE
-	 */
-	private static String encKey;
-	
-	/**
-	 * Init Vector for encryption
-	 */
-	private static String initVec;
-	
-	/**
-	 * List of Countervalues of ingoing messages
-	 */
-	private static List<Integer> msgInCounter = new ArrayList<>();
-	
     /**
      * Controls whether we are in lab or testing mode. Lab mode enables
      * communication features like sending mails and tokens.
@@ -76,21 +28,8 @@ public class Utility
     public final static boolean LAB_MODE = false;
 
     /**
-     * Prints out the given message, while synchronizing between threads.
-     * 
-     * @param message
-     *            The message to be printed.
-     */
-    public static void safePrintln(String message)
-    {
-        synchronized(System.out)
-        {
-            System.out.println(message);
-        }
-    }
-
-    /**
-     * Writes the given payload as a packet into the given output stream.
+     * Writes the given payload as an unencrypted packet into the given output
+     * stream.
      * 
      * @param outputStream
      *            The stream the packet shall be written to.
@@ -98,44 +37,9 @@ public class Utility
      *            The string payload to be sended.
      * @throws IOException
      */
-    public static void sendPacket(DataOutputStream outputStream, String payload) throws IOException
+    public static void sendUnencPacket(DataOutputStream outputStream, String payload) throws IOException
     {
-    	// Make a new MAC generator
-    	try {
-			mac = Mac.getInstance("HmacSHA256");
-			mac.init(macKey);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-    	
-    	// Get a new Timestamp
-    	Timestamp timestamp = new Timestamp(calendar.getTimeInMillis());
-    	
-    	// Assemble data
-    	// payload + timestamp + counter
-    	String data = payload + "::" + timestamp.getTime() + "::" + msgOutCounter;
-    	
-    	// Increase Counter for outgoing messages, so it will not be use again
-    	if(msgOutCounter + 1 >= Integer.MAX_VALUE) {
-    		msgOutCounter = 0;
-    	}
-    	msgOutCounter ++;
-    	
-    	// Encrypt data
-    	String cipher = Encryptor.encrypt(encKey, initVec, data);
-    	
-    	// Authenticate cipher
-    	mac.update(cipher.getBytes());
-    	String hmac = Base64.getEncoder().encodeToString(mac.doFinal());
-    	
-        // Encode payload
-        byte[] payloadEncoded = (cipher + "::" + hmac).getBytes();
-        
-        // Write packet length
-        outputStream.writeInt(payloadEncoded.length);
-
-        // Write payload
-        outputStream.write(payloadEncoded);
+        writePacket(outputStream, encodeUnencPacket(payload));
     }
 
     /**
@@ -146,115 +50,95 @@ public class Utility
      * @return The payload of the received packet.
      * @throws IOException
      */
-    public static String receivePacket(DataInputStream inputStream) throws IOException
+    public static String receiveUnencPacket(DataInputStream inputStream) throws IOException
     {
-        // Prepare payload buffer
-        byte[] payloadEncoded = new byte[inputStream.readInt()];
-        inputStream.readFully(payloadEncoded);
-        
-        String payLoad = new String(payloadEncoded);
-        
-        // Split package in cipher and HMAC
-        String[] split = new String[2];
-        String rcvCipher = "";
-        String rcvHmac = "";
-        
-        try {
-            split = payLoad.split("::");
-            rcvCipher = split[0];
-            rcvHmac = split[1];
-        } catch(Exception e) {
-        	e.printStackTrace();
-        	return "Error: Bad Package.";
-        }
-        
-        // Check HMAC
-        // Make a new MAC generator
-    	try {
-			mac = Mac.getInstance("HmacSHA256");
-			mac.init(macKey);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-    	
-    	// Authenticate cipher
-    	mac.update(rcvCipher.getBytes());
-    	String hmac = Base64.getEncoder().encodeToString(mac.doFinal());
-    	
-    	// If hmac is diffrent from the recieved one
-    	if(!(hmac.equals(rcvHmac))) {
-    		// Someone tamperd with the package
-    		// Error
-    		return "Error: Bad HMAC.";
-    	}
-    	
-    	// Decrypt
-    	String data = Encryptor.decrypt(encKey, initVec, rcvCipher);
-    	
-    	// Dissassamble data
-    	try {
-        	split = data.split("::");
-    	} catch (Exception e) {
-    		
-    	}
-    	
-    	String payload = split [0];
-    	Timestamp timestamp = new Timestamp(Long.parseLong(split [1]));
-    	int msgCounter = Integer.parseInt(split [2]);
-    	
-//    	if(timestamp.compareTo(calendar.getTime()) < 0) {
-//    		long diffrence = calendar.getTimeInMillis() - timestamp.getTime();
-//    		if(diffrence < 300000) {
-//    			// TODO: Close Input Stream
-//    			return "Error: Recieved Package is too old.";
-//    		}
-//    	}
-    	
-    	// Check if messageCounter was already used
-    	if(msgInCounter.contains(msgCounter)) {
-    		return "Error: Package counter already used.";
-    	}
-    	
-    	// Check if msgCounter might overflow
-    	if(msgCounter + 1 >= Integer.MAX_VALUE) {
-    		msgInCounter.clear();
-    	}
-        
-    	// Add messageCounter to list
-    	msgInCounter.add(msgCounter);
-        
-        // Decode payload
-        return payload;
+        return decodeUnencPacket(readPacket(inputStream));
     }
-    
-    public static void sendUnencPacket(DataOutputStream outputStream, String payload) throws IOException
+
+    /**
+     * Returns the packet contents for the given unencrypted payload.
+     * 
+     * @param payload
+     *            The string payload to be encoded.
+     * @return The encoded packet contents.
+     */
+    public static byte[] encodeUnencPacket(String payload)
     {
         // Encode payload
-        byte[] payloadEncoded = payload.getBytes();
+        return payload.getBytes();
+    }
 
-        // Write packet length
-        outputStream.writeInt(payloadEncoded.length);
+    /**
+     * Returns the payload of the given unencrypted packet contents.
+     * 
+     * @param payloadEncoded
+     *            The packet contents as received.
+     * @return The payload of the packet.
+     */
+    public static String decodeUnencPacket(byte[] payloadEncoded)
+    {
+        // Decode payload
+        return new String(payloadEncoded);
+    }
 
-        // Write payload
-        outputStream.write(payloadEncoded);
+    /**
+     * Writes the given packet contents with length prefix into the given output
+     * stream.
+     * 
+     * @param outputStream
+     *            The stream the packet shall be written to.
+     * @param packet
+     *            The packet contents.
+     * @throws IOException
+     */
+    public static void writePacket(DataOutputStream outputStream, byte[] packet) throws IOException
+    {
+        // Write packet length and payload with a single call, to avoid a write
+        // per length byte on unbuffered socket streams
+        byte[] prefixedPacket = new byte[4 + packet.length];
+        prefixedPacket[0] = (byte)(packet.length >>> 24);
+        prefixedPacket[1] = (byte)(packet.length >>> 16);
+        prefixedPacket[2] = (byte)(packet.length >>> 8);
+        prefixedPacket[3] = (byte)packet.length;
+        System.arraycopy(packet, 0, prefixedPacket, 4, packet.length);
+        outputStream.write(prefixedPacket);
     }
 
     /**
-     * Receives the next packet from the given input stream.
+     * Reads the contents of the next length prefixed packet from the given input
+     * stream.
      * 
      * @param inputStream
      *            The stream where the packet shall be retrieved.
-     * @return The payload of the received packet.
+     * @return The packet contents.
      * @throws IOException
      */
-    public static String receiveUnencPacket(DataInputStream inputStream) throws IOException
+    public static byte[] readPacket(DataInputStream inputStream) throws IOException
     {
-        // Prepare payload buffer
-        byte[] payloadEncoded = new byte[inputStream.readInt()];
-        inputStream.readFully(payloadEncoded);
+        return readPacket(inputStream, Integer.MAX_VALUE);
+    }
 
-        // Decode payload
-        return new String(payloadEncoded);
+    /**
+     * Reads the contents of the next length prefixed packet from the given input
+     * stream, rejecting packets longer than the given limit.
+     * 
+     * @param inputStream
+     *            The stream where the packet shall be retrieved.
+     * @param maxLength
+     *            The maximum packet length.
+     * @return The packet contents.
+     * @throws IOException
+     *             If the stream fails, or the length prefix is invalid.
+     */
+    public static byte[] readPacket(DataInputStream inputStream, int maxLength) throws IOException
+    {
+        // Prepare payload buffer
+        int length = inputStream.readInt();
+        if(length < 0 || length > maxLength)
+            throw new IOException("Invalid packet length " + length + ".");
+        byte[] packet = new byte[length];
+        inputStream.readFully(packet);
+        return packet;
     }
 
     /**
@@ -272,9 +156,14 @@ public class Utility
     
     /**
      * Generates a longer key from DHKE
-     * @throws Exception 
+     * 
+     * @param dhke
+     *            The shared Diffie-Hellman key.
+     * @param part
+     *            0 for the MAC key, 1 for the encryption key.
+     * @return The derived key.
      */
-    private static String generateKey(long dhke, int part) {
+    public static String generateKey(long dhke, int part) {
     	if(part < 0 || part > 1) {
     		return null;
     	}
@@ -314,14 +203,5 @@ public class Utility
     public static void setup() {
     	rndStrGen = new RandomStringGenerator();
     	random = new Random();
-    	calendar = Calendar.getInstance();
-    	msgOutCounter = random.nextInt();
-    	initVec = "1234567890123456";
-    }
-    
-    public static void setup(long dhke) {
-    	rawMacKey = generateKey(dhke, 0);
-    	encKey = generateKey(dhke, 1);
-    	macKey = new SecretKeySpec( rawMacKey.getBytes(), "AES");
     }
 }
@@ -0,0 +1,72 @@
+/**
+ * Checks used by the tests. A failed check throws an AssertionError naming the
+ * checked property and, where there are some, the expected and actual values.
+ */
+public class Assert
+{
+    /**
+     * Checks that the given condition holds.
+     * 
+     * @param condition
+     *            The condition.
+     * @param message
+     *            Describes the checked property.
+     */
+    public static void assertTrue(boolean condition, String message)
+    {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * Checks that the given numbers are equal.
+     * 
+     * @param expected
+     *            The expected value.
+     * @param actual
+     *            The actual value.
+     * @param message
+     *            Describes the checked property.
+     */
+    public static void assertEquals(long expected, long actual, String message)
+    {
+        if(expected != actual)
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Checks that the given objects are equal.
+     * 
+     * @param expected
+     *            The expected value.
+     * @param actual
+     *            The actual value.
+     * @param message
+     *            Describes the checked property.
+     */
+    public static void assertEquals(Object expected, Object actual, String message)
+    {
+        if(expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError(message + ": expected <" + expected + ">, got <" + actual + ">");
+    }
+
+    /**
+     * Checks that the given databases hold the same money and history for
+     * each of the first users.
+     * 
+     * @param expected
+     *            The database with the expected accounts.
+     * @param actual
+     *            The checked database.
+     * @param userCount
+     *            The number of compared users.
+     */
+    public static void assertSameAccounts(Database expected, Database actual, int userCount)
+    {
+        for(int u = 0; u < userCount; ++u)
+        {
+            assertEquals(expected.getMoney(u), actual.getMoney(u), "Money of user " + u);
+            assertEquals(expected.getUserMoneyHistory(u), actual.getUserMoneyHistory(u), "History of user " + u);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that batch transactions are applied as a whole or not at all, both
+ * live and when the journal is replayed.
+ */
+public class BatchTransferTest
+{
+    /**
+     * The number of users of the test databases.
+     */
+    private static final int USER_COUNT = 4;
+
+    public static void testInsufficientFundsChangesNothing() throws IOException
+    {
+        Database.TransferResult[] results = runRejectedBatch(new String[] { "user1", "user2" }, new int[] { 6, 6 });
+        Assert.assertEquals(Database.TransferResult.NOT_APPLIED, results[0], "Result of the covered transfer");
+        Assert.assertEquals(Database.TransferResult.INSUFFICIENT_FUNDS, results[1], "Result of the uncovered transfer");
+    }
+
+    public static void testMoneyReceivedInBatchDoesNotCount() throws IOException
+    {
+        Database.TransferResult[] results = runRejectedBatch(new String[] { "user0", "user1" }, new int[] { 5, 10 });
+        Assert.assertEquals(Database.TransferResult.INSUFFICIENT_FUNDS, results[1], "Result of the transfer covered only by the self transfer");
+    }
+
+    public static void testInvalidTransferChangesNothing() throws IOException
+    {
+        Database.TransferResult[] results = runRejectedBatch(new String[] { "user1", "nobody", "user2" }, new int[] { 1, 1, 0 });
+        Assert.assertEquals(Database.TransferResult.NOT_APPLIED, results[0], "Result of the valid transfer");
+        Assert.assertEquals(Database.TransferResult.UNKNOWN_RECIPIENT, results[1], "Result of the transfer to an unknown user");
+        Assert.assertEquals(Database.TransferResult.INVALID_AMOUNT, results[2], "Result of the empty transfer");
+    }
+
+    public static void testBatchIsAppliedAndReplayedCompletely() throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, 10);
+        try
+        {
+            // Spend all money, partly on the source user itself
+            Database database = JournalReplayTest.open(databaseFile, databaseFile.getPath());
+            Database.TransferResult[] results = database.sendMoneyBatchAsync(0, new String[] { "user1", "user0", "user1" }, new int[] { 3, 2, 5 }).join();
+            for(Database.TransferResult result : results)
+                Assert.assertEquals(Database.TransferResult.OK, result, "Transfer result");
+            Assert.assertEquals(2, database.getMoney(0), "Money of the source user");
+            Assert.assertEquals(18, database.getMoney(1), "Money of the target user");
+            Assert.assertEquals(1, database.getJournal().getLastSequence(), "Journal records of the batch");
+            database.closeJournal();
+
+            Database replayed = JournalReplayTest.open(databaseFile, databaseFile.getPath());
+            replayed.closeJournal();
+            Assert.assertSameAccounts(database, replayed, USER_COUNT);
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+
+    /**
+     * Runs a batch of user0, who has 10 money, that must be rejected, and
+     * checks that no account and no journal record was changed.
+     */
+    private static Database.TransferResult[] runRejectedBatch(String[] targetUserNames, int[] amounts) throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, 10);
+        try
+        {
+            Database database = JournalReplayTest.open(databaseFile, databaseFile.getPath());
+            Database unchanged = new Database(databaseFile.getPath());
+            Database.TransferResult[] results = database.sendMoneyBatchAsync(0, targetUserNames, amounts).join();
+            Assert.assertSameAccounts(unchanged, database, USER_COUNT);
+            Assert.assertEquals(0, database.getJournal().getLastSequence(), "Journal records of the batch");
+            database.closeJournal();
+            return results;
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Tests that replaying the journal, alone or on top of a snapshot, restores
+ * the accounts of the run that wrote it, and that a damaged last record is
+ * dropped without losing the records before it.
+ */
+public class JournalReplayTest
+{
+    /**
+     * The number of users of the test databases.
+     */
+    private static final int USER_COUNT = 100;
+
+    /**
+     * The initial money of every user, enough for all transfers.
+     */
+    private static final int MONEY = 1_000_000;
+
+    public static void testReplayRestoresAccounts() throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, MONEY);
+        try
+        {
+            Database database = open(databaseFile, databaseFile.getPath());
+            runTransfers(database, 1000, 1);
+            database.closeJournal();
+
+            Database replayed = open(databaseFile, databaseFile.getPath());
+            replayed.closeJournal();
+            Assert.assertSameAccounts(database, replayed, USER_COUNT);
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+
+    public static void testReplayAfterSnapshotIsIdempotent() throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, MONEY);
+        try
+        {
+            // Snapshot in the middle of the run, which archives the journal
+            // segment before it
+            Database database = open(databaseFile, databaseFile.getPath());
+            runTransfers(database, 500, 2);
+            Path snapshotFile = new Checkpointer(database, 60000, 1).checkpoint();
+            Assert.assertTrue(snapshotFile != null, "Snapshot was written");
+            runTransfers(database, 500, 3);
+            database.closeJournal();
+
+            // Loading the snapshot and replaying the newer records gives the
+            // same result every time
+            for(int run = 0; run < 2; ++run)
+            {
+                Database replayed = open(databaseFile, Checkpointer.findLatestSnapshot(databaseFile.getPath()));
+                replayed.closeJournal();
+                Assert.assertTrue(replayed.getSnapshotSequence() > 0, "Snapshot sequence was loaded");
+                Assert.assertSameAccounts(database, replayed, USER_COUNT);
+            }
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+
+    public static void testRecordsContainedInSnapshotAreSkipped() throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, MONEY);
+        try
+        {
+            // A snapshot containing all changes, but claiming to contain no
+            // record, lets replay see every record a second time, like records
+            // appended while a snapshot is written
+            Database database = open(databaseFile, databaseFile.getPath());
+            runTransfers(database, 1000, 4);
+            Path snapshotFile = Paths.get(databaseFile.getPath() + ".complete");
+            database.writeSnapshot(snapshotFile, 0);
+            database.closeJournal();
+
+            Database replayed = open(databaseFile, snapshotFile.toString());
+            replayed.closeJournal();
+            Assert.assertEquals(0, replayed.getSnapshotSequence(), "Snapshot sequence");
+            Assert.assertSameAccounts(database, replayed, USER_COUNT);
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+
+    public static void testTornRecordIsDropped() throws IOException
+    {
+        checkDamagedLastRecord(journal -> journal.setLength(journal.length() - 3));
+    }
+
+    public static void testCorruptRecordIsDropped() throws IOException
+    {
+        checkDamagedLastRecord(journal ->
+        {
+            // Flip a bit of the checksum
+            journal.seek(journal.length() - 1);
+            int lastByte = journal.read();
+            journal.seek(journal.length() - 1);
+            journal.write(lastByte ^ 1);
+        });
+    }
+
+    /**
+     * Damages a journal file.
+     */
+    private interface Damage
+    {
+        void apply(RandomAccessFile journal) throws IOException;
+    }
+
+    /**
+     * Writes ten transfers, damages the last journal record, and checks that
+     * replay restores the first nine and appends after them.
+     */
+    private static void checkDamagedLastRecord(Damage damage) throws IOException
+    {
+        File databaseFile = BenchmarkDatabase.write(USER_COUNT, MONEY);
+        try
+        {
+            // Transfer 1 to 10 money, the records are durable when sendMoney()
+            // returns
+            File journalFile = new File(databaseFile.getPath() + ".journal");
+            Database database = open(databaseFile, databaseFile.getPath());
+            long intactLength = 0;
+            for(int t = 1; t <= 10; ++t)
+            {
+                intactLength = journalFile.length();
+                Assert.assertTrue(database.sendMoney(0, "user1", t), "Transfer " + t);
+            }
+            database.closeJournal();
+            try(RandomAccessFile journal = new RandomAccessFile(journalFile, "rw"))
+            {
+                damage.apply(journal);
+            }
+
+            // The last transfer is lost and cut off
+            Database replayed = open(databaseFile, databaseFile.getPath());
+            Assert.assertEquals(9, replayed.getJournal().getLastSequence(), "Last replayed sequence");
+            Assert.assertEquals(intactLength, journalFile.length(), "Journal length after replay");
+            Assert.assertEquals(MONEY - 45, replayed.getMoney(0), "Money of the source user");
+            Assert.assertEquals(MONEY + 45, replayed.getMoney(1), "Money of the target user");
+
+            // New records follow the intact ones
+            Assert.assertTrue(replayed.sendMoney(0, "user1", 100), "Transfer after replay");
+            replayed.closeJournal();
+            Database reopened = open(databaseFile, databaseFile.getPath());
+            Assert.assertEquals(10, reopened.getJournal().getLastSequence(), "Last sequence after reopening");
+            reopened.closeJournal();
+            Assert.assertSameAccounts(replayed, reopened, USER_COUNT);
+            Assert.assertEquals(MONEY - 145, reopened.getMoney(0), "Money of the source user after reopening");
+        }
+        finally
+        {
+            BenchmarkDatabase.delete(databaseFile);
+        }
+    }
+
+    /**
+     * Loads the given snapshot of the given database file, and replays and
+     * opens the journal next to the database file with synchronous commits.
+     * 
+     * @param databaseFile
+     *            The database file.
+     * @param snapshotFile
+     *            The file the data is loaded from, the database file itself
+     *            if there is no snapshot.
+     * @return The database.
+     * @throws IOException
+     */
+    static Database open(File databaseFile, String snapshotFile) throws IOException
+    {
+        Database database = new Database(databaseFile.getPath(), snapshotFile);
+        database.openJournal(databaseFile.getPath() + ".journal", Journal.CommitPolicy.SYNC, 0);
+        return database;
+    }
+
+    /**
+     * Runs random transfers between the users, where every fourth goes back
+     * to the source user and every tenth is a batch including the source
+     * user.
+     */
+    private static void runTransfers(Database database, int count, long seed)
+    {
+        String[] names = BenchmarkDatabase.names(USER_COUNT);
+        Random random = new Random(seed);
+        for(int i = 0; i < count; ++i)
+        {
+            int source = random.nextInt(USER_COUNT);
+            int target = i % 4 == 0 ? source : random.nextInt(USER_COUNT);
+            if(i % 10 == 0)
+            {
+                Database.TransferResult[] results = database
+                        .sendMoneyBatchAsync(source, new String[] { names[source], names[target], names[target] }, new int[] { 3, 1, 2 }).join();
+                Assert.assertEquals(Database.TransferResult.OK, results[0], "Batch " + i);
+            }
+            else
+                Assert.assertTrue(database.sendMoney(source, names[target], 1 + random.nextInt(10)), "Transfer " + i);
+        }
+    }
+}
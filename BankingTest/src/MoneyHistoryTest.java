@@ -0,0 +1,74 @@
+import java.util.ArrayDeque;
+
+/**
+ * Tests the money history columns, in particular the ring buffer of histories
+ * with a retention limit, against a plain queue of the expected entries.
+ */
+public class MoneyHistoryTest
+{
+    public static void testUnlimitedKeepsAllEntries()
+    {
+        MoneyHistory history = new MoneyHistory(5, 0);
+        for(int e = 0; e < 1000; ++e)
+            history.add(e, -e);
+        Assert.assertEquals(1000, history.size(), "Size");
+        Assert.assertEquals(5, history.getFirstSequence(), "First sequence");
+        Assert.assertEquals(1005, history.getNextSequence(), "Next sequence");
+        for(int i = 0; i < 1000; ++i)
+        {
+            Assert.assertEquals(i, history.getCounterparty(i), "Counterparty of entry " + i);
+            Assert.assertEquals(-i, history.getAmount(i), "Amount of entry " + i);
+            Assert.assertEquals(5 + i, history.getSequence(i), "Sequence of entry " + i);
+        }
+    }
+
+    public static void testRingBufferWrap()
+    {
+        // Retention limits below, at and between the growth steps of the columns
+        for(int retention : new int[] { 1, 3, 4, 5, 6, 8, 100 })
+        {
+            MoneyHistory history = new MoneyHistory(0, retention);
+            ArrayDeque<Integer> expected = new ArrayDeque<>();
+            for(int e = 0; e < 3 * retention + 7; ++e)
+            {
+                history.add(e, e * 10);
+                expected.add(e);
+                if(expected.size() > retention)
+                    expected.poll();
+
+                // Oldest retained entry first, sequence numbers count all entries
+                String state = "retention " + retention + " after " + (e + 1) + " entries";
+                Assert.assertEquals(expected.size(), history.size(), "Size, " + state);
+                Assert.assertEquals((long)expected.peek(), history.getFirstSequence(), "First sequence, " + state);
+                Assert.assertEquals(e + 1, history.getNextSequence(), "Next sequence, " + state);
+                int i = 0;
+                for(int entry : expected)
+                {
+                    Assert.assertEquals(entry, history.getCounterparty(i), "Counterparty of entry " + i + ", " + state);
+                    Assert.assertEquals(entry * 10, history.getAmount(i), "Amount of entry " + i + ", " + state);
+                    Assert.assertEquals(entry, history.getSequence(i), "Sequence of entry " + i + ", " + state);
+                    ++i;
+                }
+            }
+        }
+    }
+
+    public static void testIndexOutOfRange()
+    {
+        MoneyHistory history = new MoneyHistory(0, 4);
+        for(int e = 0; e < 6; ++e)
+            history.add(e, e);
+        for(int index : new int[] { -1, 4 })
+        {
+            try
+            {
+                history.getAmount(index);
+                throw new AssertionError("Index " + index + " was accepted");
+            }
+            catch(IndexOutOfBoundsException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
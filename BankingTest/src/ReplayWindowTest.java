@@ -0,0 +1,69 @@
+/**
+ * Tests the packet counter replay window: duplicates, reordering within the
+ * window, its exact edges, jumps and counter overflow.
+ */
+public class ReplayWindowTest
+{
+    public static void testSizeIsRoundedToPowerOfTwo()
+    {
+        Assert.assertEquals(64, new ReplayWindow(1).getSize(), "Size for 1");
+        Assert.assertEquals(64, new ReplayWindow(64).getSize(), "Size for 64");
+        Assert.assertEquals(128, new ReplayWindow(65).getSize(), "Size for 65");
+        Assert.assertEquals(1024, new ReplayWindow(ReplayWindow.DEFAULT_SIZE).getSize(), "Default size");
+    }
+
+    public static void testInOrderAndDuplicates()
+    {
+        ReplayWindow window = new ReplayWindow(64);
+        Assert.assertTrue(window.accept(-5), "Any first counter is accepted");
+        for(int counter = -4; counter < 200; ++counter)
+            Assert.assertTrue(window.accept(counter), "Counter " + counter + " in order");
+        Assert.assertTrue(!window.accept(199), "Highest counter is rejected twice");
+        Assert.assertTrue(!window.accept(150), "Counter in the window is rejected twice");
+    }
+
+    public static void testOutOfOrderWithinWindow()
+    {
+        ReplayWindow window = new ReplayWindow(64);
+        window.accept(1000);
+        for(int counter = 999; counter > 1000 - 64; --counter)
+            Assert.assertTrue(window.accept(counter), "Late counter " + counter);
+        for(int counter = 999; counter > 1000 - 64; --counter)
+            Assert.assertTrue(!window.accept(counter), "Repeated late counter " + counter);
+    }
+
+    public static void testWindowEdges()
+    {
+        ReplayWindow window = new ReplayWindow(64);
+        window.accept(1000);
+        Assert.assertTrue(!window.accept(1000 - 64), "Counter just below the window");
+        Assert.assertTrue(window.accept(1000 - 63), "Oldest counter in the window");
+
+        // Sliding forward by exactly the window size forgets everything seen
+        Assert.assertTrue(window.accept(1064), "Counter one window ahead");
+        Assert.assertTrue(!window.accept(1000), "Old highest counter is now out of the window");
+        Assert.assertTrue(window.accept(1001), "Unseen counter at the new lower edge");
+        Assert.assertTrue(!window.accept(1064), "New highest counter is rejected twice");
+    }
+
+    public static void testLargeJump()
+    {
+        ReplayWindow window = new ReplayWindow(64);
+        for(int counter = 0; counter < 64; ++counter)
+            window.accept(counter);
+        Assert.assertTrue(window.accept(1_000_000), "Counter far ahead");
+        Assert.assertTrue(window.accept(1_000_000 - 63), "Unseen counter after a jump, whose bit was set before");
+        Assert.assertTrue(!window.accept(63), "Counter before the jump");
+    }
+
+    public static void testCounterOverflow()
+    {
+        ReplayWindow window = new ReplayWindow(64);
+        Assert.assertTrue(window.accept(Integer.MAX_VALUE - 1), "Counter before overflow");
+        Assert.assertTrue(window.accept(Integer.MIN_VALUE), "Counter after overflow");
+        Assert.assertTrue(window.accept(Integer.MAX_VALUE), "Late counter before overflow");
+        Assert.assertTrue(!window.accept(Integer.MAX_VALUE - 1), "Repeated counter before overflow");
+        Assert.assertTrue(window.accept(Integer.MIN_VALUE + 62), "Counter ahead after overflow");
+        Assert.assertTrue(!window.accept(Integer.MAX_VALUE - 1), "Counter that left the window across the overflow");
+    }
+}
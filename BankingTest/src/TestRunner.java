@@ -0,0 +1,59 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Runs the tests. The project has no build tool to fetch a test framework, so
+ * a test class is a plain class whose public static methods without
+ * parameters and with names starting with "test" are its test cases. A case
+ * fails by throwing, usually through the checks in Assert. The runner prints
+ * one line per case and exits with status 1 if any case failed.
+ */
+public class TestRunner
+{
+    /**
+     * The test classes run by default.
+     */
+    private static final String[] TEST_CLASSES = { "ReplayWindowTest", "MoneyHistoryTest", "BatchTransferTest", "JournalReplayTest" };
+
+    /**
+     * Test entry point.
+     * 
+     * @param args
+     *            Optional: names of the test classes to run, all by default.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Utility.setup();
+        int passed = 0;
+        int failed = 0;
+        for(String className : args.length > 0 ? args : TEST_CLASSES)
+        {
+            // Run test cases in name order
+            Method[] methods = Class.forName(className).getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for(Method method : methods)
+            {
+                if(!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0)
+                    continue;
+                try
+                {
+                    method.invoke(null);
+                    System.out.println("PASS " + className + "." + method.getName());
+                    ++passed;
+                }
+                catch(InvocationTargetException e)
+                {
+                    System.out.println("FAIL " + className + "." + method.getName() + ": " + e.getCause());
+                    e.getCause().printStackTrace(System.out);
+                    ++failed;
+                }
+            }
+        }
+        System.out.println(passed + " passed, " + failed + " failed");
+        if(failed > 0)
+            System.exit(1);
+    }
+}
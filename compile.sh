@@ -5,4 +5,10 @@ javac -d bin -sourcepath src/ -cp lib/*:. src/ServerMain.java
 cd ..
 cd BankingClient
 javac -d bin -sourcepath src/:../BankingServer/src/ -cp lib/*:. src/ClientMain.java
+cd ..
+cd BankingBenchmark
+javac -d bin -sourcepath src/:../BankingServer/src/:../BankingClient/src/ -cp ../BankingServer/lib/*:. src/*.java
+cd ..
+cd BankingTest
+javac -d bin -sourcepath src/:../BankingServer/src/:../BankingBenchmark/src/ -cp ../BankingServer/lib/*:. src/*.java
 cd ..
\ No newline at end of file
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Usage: ./run_benchmark.sh BENCHMARK [ARGS...]
+# Example: ./run_benchmark.sh SessionModeBenchmark 5000
+# Harness suites: ./run_benchmark.sh -Dharness.results=new.json ProtocolBenchmarks
+#                 ./run_benchmark.sh -Dharness.results=new.json -Dharness.filter=sendMoney LedgerBenchmarks
+# Compare runs:   ./run_benchmark.sh HarnessCompare old.json new.json
+# Load test:      ./run_benchmark.sh -Dload.sessions=32 -Dload.rate=2000 LoadGenerator localhost PORT DATABASE_FILE
+cd BankingBenchmark/bin/
+java -cp ../../BankingServer/lib/*:. "$@"
+cd ../../
@@ -1,6 +1,11 @@
 #!/bin/bash
-# Usage: ./run_client.sh IP PORT
+# Usage: ./run_client.sh IP PORT [SCRIPT|-]
 # Example: ./run_client.sh 192.168.0.101 12301
+# With a script file (or - for stdin) the client runs one operation per line
+# (e.g. 'login NAME PASSWORD', 'balance', 'transfer RECIPIENT AMOUNT') and
+# prints one JSON result line per operation. Transfer operations are
+# pipelined on servers supporting it, JAVA_OPTS=-Dbank.pipelineDepth=0 disables it.
+# Tuning properties can be passed via JAVA_OPTS, e.g. JAVA_OPTS=-Dbank.replayWindow=4096
 cd BankingClient/bin/
-java -cp ../lib/*:. ClientMain ${1} ${2}
+java $JAVA_OPTS -cp ../lib/*:. ClientMain ${1} ${2} ${3}
 cd ../../
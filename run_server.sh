@@ -2,6 +2,22 @@
 # Usage:
 #     To generate a new database: ./run_server.sh DATABASENAME.json generate
 #     To load an existing database: ./run_server.sh DATABASENAME.json
+#     To convert a database into a memory-mapped binary image: ./run_server.sh DATABASENAME.json convert IMAGENAME.img
+#     To import a transfer file ("source,recipient,amount" per line) offline: ./run_server.sh DATABASENAME.json import TRANSFERS.csv OUTPUTNAME.json
+#         (rejected rows are written to OUTPUTNAME.json.rejected)
+#     To load a binary image instead (starts without parsing all users): ./run_server.sh IMAGENAME.img
+#     To serve clients with non-blocking event loops: ./run_server.sh DATABASENAME.json nio [EVENTLOOPS]
+#     To run sessions on a bounded executor (platform thread pool, virtual threads on Java 21+): ./run_server.sh DATABASENAME.json virtual [MAXSESSIONS] [queue|reject]
+# Tuning properties can be passed via JAVA_OPTS, e.g. JAVA_OPTS=-Dbank.replayWindow=4096
+# Transfers are journaled to DATABASENAME.json.journal, see -Dbank.journalCommit=sync|group|async
+# Snapshots are written to DATABASENAME.json.snapshot.*, see -Dbank.snapshotInterval=SECONDS -Dbank.snapshotRetention=COUNT
+# Balance histories keep all entries, or only the newest ones with -Dbank.historyRetention=ENTRIES
+# E-mails and token grants are delivered in the background, see -Dbank.sideEffectSinks=lab|local; undeliverable ones go to DATABASENAME.json.deadletter
+# Lab e-mails are sent over a pool of SMTP connections, see -Dbank.smtpHost=HOST -Dbank.smtpPort=PORT -Dbank.smtpConnections=COUNT
+# Log output is asynchronous, see -Dbank.logLevel=debug|info|warn|error -Dbank.logFile=FILE -Dbank.logPolicy=drop|block
+# Metrics are served on http://127.0.0.1:PORT/metrics with -Dbank.metricsPort=PORT, and dumped with -Dbank.metricsFile=FILE -Dbank.metricsInterval=SECONDS
+# Client packets longer than -Dbank.maxPacketLength=BYTES (default 1 MiB) close the connection
+# Offline imports are applied in parallel, see -Dbank.importThreads=COUNT -Dbank.importChunkRows=ROWS
 cd BankingServer/bin/
-java -cp ../lib/*:. ServerMain ${1} ${2:- }
+java $JAVA_OPTS -cp ../lib/*:. ServerMain "$@"
 cd ../../
@@ -0,0 +1,9 @@
+#!/bin/bash
+# Usage: ./run_tests.sh [TEST_CLASS...]
+# Example: ./run_tests.sh JournalReplayTest
+# Runs all tests without arguments; exits with status 1 if a test failed.
+cd BankingTest/bin/
+java -cp ../../BankingServer/lib/*:. TestRunner "$@"
+STATUS=$?
+cd ../../
+exit $STATUS